@@ -19,6 +19,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.retry.RetryPolicy;
+import com.cloudera.director.aws.clientprovider.SharedClientExecutor;
 import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
@@ -30,7 +31,10 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +54,14 @@ public class AWSClientConfig {
   // always picks the maximum possible wait time.
   public static final int DEFAULT_MAX_ERROR_RETRIES = 15;
   public static final int DEFAULT_CONNECTION_TIMEOUT_MILLIS = 10000;
+  public static final int DEFAULT_MAX_CONNECTIONS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+  public static final int DEFAULT_SOCKET_TIMEOUT_MILLIS = ClientConfiguration.DEFAULT_SOCKET_TIMEOUT;
+  public static final int DEFAULT_REQUEST_TIMEOUT_MILLIS = ClientConfiguration.DEFAULT_REQUEST_TIMEOUT;
+  public static final int DEFAULT_CLIENT_EXECUTION_TIMEOUT_MILLIS =
+      ClientConfiguration.DEFAULT_CLIENT_EXECUTION_TIMEOUT;
+  public static final boolean DEFAULT_TCP_KEEP_ALIVE = ClientConfiguration.DEFAULT_TCP_KEEP_ALIVE;
+  public static final long DEFAULT_CONNECTION_TTL_MILLIS = ClientConfiguration.DEFAULT_CONNECTION_TTL;
+  public static final int DEFAULT_ASYNC_EXECUTOR_THREADS = SharedClientExecutor.DEFAULT_THREADS;
   public static final ClientConfiguration DEFAULT_CLIENT_CONFIG = new ClientConfiguration()
       .withMaxErrorRetry(DEFAULT_MAX_ERROR_RETRIES)
       .withConnectionTimeout(DEFAULT_CONNECTION_TIMEOUT_MILLIS);
@@ -102,6 +114,119 @@ public class AWSClientConfig {
       }
     },
 
+    /**
+     * The maximum number of open HTTP connections per client.
+     */
+    MAX_CONNECTIONS(new SimpleConfigurationPropertyBuilder()
+        .configKey("maxConnections")
+        .name("Maximum connections")
+        .defaultDescription("The maximum number of open HTTP connections per client.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setMaxConnections(Integer.parseInt(propertyValue));
+      }
+    },
+
+    /**
+     * The amount of time to wait (in milliseconds) for data to be transferred over an established
+     * connection before giving up and timing out.
+     */
+    SOCKET_TIMEOUT_IN_MILLISECONDS(new SimpleConfigurationPropertyBuilder()
+        .configKey("socketTimeoutInMilliseconds")
+        .name("Socket timeout (ms)")
+        .defaultDescription("The amount of time to wait (in milliseconds) for data to be"
+            + " transferred over an established connection before giving up and timing out.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setSocketTimeoutInMilliseconds(Integer.parseInt(propertyValue));
+      }
+    },
+
+    /**
+     * The amount of time to wait (in milliseconds) for a single HTTP request to complete before
+     * giving up and timing out, or zero to disable the timeout.
+     */
+    REQUEST_TIMEOUT_IN_MILLISECONDS(new SimpleConfigurationPropertyBuilder()
+        .configKey("requestTimeoutInMilliseconds")
+        .name("Request timeout (ms)")
+        .defaultDescription("The amount of time to wait (in milliseconds) for a single HTTP"
+            + " request to complete before giving up and timing out, or zero to disable the"
+            + " timeout.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setRequestTimeoutInMilliseconds(Integer.parseInt(propertyValue));
+      }
+    },
+
+    /**
+     * The amount of time to wait (in milliseconds) for a client call to complete, including
+     * retries, before giving up and timing out, or zero to disable the timeout.
+     */
+    CLIENT_EXECUTION_TIMEOUT_IN_MILLISECONDS(new SimpleConfigurationPropertyBuilder()
+        .configKey("clientExecutionTimeoutInMilliseconds")
+        .name("Client execution timeout (ms)")
+        .defaultDescription("The amount of time to wait (in milliseconds) for a client call to"
+            + " complete, including retries, before giving up and timing out, or zero to"
+            + " disable the timeout.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setClientExecutionTimeoutInMilliseconds(Integer.parseInt(propertyValue));
+      }
+    },
+
+    /**
+     * Whether to use TCP keep-alive on HTTP connections.
+     */
+    TCP_KEEP_ALIVE(new SimpleConfigurationPropertyBuilder()
+        .configKey("tcpKeepAlive")
+        .name("TCP keep-alive")
+        .type(Property.Type.BOOLEAN)
+        .defaultDescription("Whether to use TCP keep-alive on HTTP connections.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setTcpKeepAlive(Boolean.parseBoolean(propertyValue));
+      }
+    },
+
+    /**
+     * The time (in milliseconds) after which a pooled HTTP connection is no longer reused, or
+     * a negative value for no expiration.
+     */
+    CONNECTION_TTL_IN_MILLISECONDS(new SimpleConfigurationPropertyBuilder()
+        .configKey("connectionTTLInMilliseconds")
+        .name("Connection TTL (ms)")
+        .defaultDescription("The time (in milliseconds) after which a pooled HTTP connection"
+            + " is no longer reused, or a negative value for no expiration.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setConnectionTTLInMilliseconds(Long.parseLong(propertyValue));
+      }
+    },
+
+    /**
+     * The number of threads shared by all asynchronous clients. This setting applies to the
+     * whole plugin, and is ignored in per-service overrides. When every thread is busy and the
+     * queue is full, requests run on the threads that submit them.
+     */
+    ASYNC_EXECUTOR_THREADS(new SimpleConfigurationPropertyBuilder()
+        .configKey("asyncExecutorThreads")
+        .name("Asynchronous executor threads")
+        .defaultDescription("The number of threads shared by all asynchronous AWS clients."
+            + " When they are all busy and too many requests are waiting, further requests run"
+            + " on the threads that make them.")
+        .build()) {
+      @Override
+      protected void setFieldValue(AWSClientConfig clientConfig, String propertyValue) {
+        clientConfig.setAsyncExecutorThreads(Integer.parseInt(propertyValue));
+      }
+    },
+
     /**
      * Whether to log internal AWS client retries.
      */
@@ -168,8 +293,21 @@ public class AWSClientConfig {
   private int maxErrorRetries = DEFAULT_MAX_ERROR_RETRIES;
   private int connectionTimeoutInMilliseconds = DEFAULT_CONNECTION_TIMEOUT_MILLIS;
   private boolean logRetryAttempts = DEFAULT_LOG_RETRY_ATTEMPTS;
+  private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+  private int socketTimeoutInMilliseconds = DEFAULT_SOCKET_TIMEOUT_MILLIS;
+  private int requestTimeoutInMilliseconds = DEFAULT_REQUEST_TIMEOUT_MILLIS;
+  private int clientExecutionTimeoutInMilliseconds = DEFAULT_CLIENT_EXECUTION_TIMEOUT_MILLIS;
+  private boolean tcpKeepAlive = DEFAULT_TCP_KEEP_ALIVE;
+  private long connectionTTLInMilliseconds = DEFAULT_CONNECTION_TTL_MILLIS;
+  private int asyncExecutorThreads = DEFAULT_ASYNC_EXECUTOR_THREADS;
   private HttpProxyParameters httpProxyParameters;
 
+  /**
+   * The client configs overriding this one for specific services, keyed by service endpoint
+   * prefix.
+   */
+  private Map<String, AWSClientConfig> serviceClientConfigs = Collections.emptyMap();
+
   /**
    * Creates AWS client config with default configuration.
    */
@@ -187,10 +325,68 @@ public class AWSClientConfig {
   public AWSClientConfig(Configured configuration,
       HttpProxyParameters httpProxyParameters,
       LocalizationContext parentLocalizationContext) {
+    this(configuration, Collections.emptyMap(), httpProxyParameters, parentLocalizationContext);
+  }
+
+  /**
+   * Creates AWS client config with the specified configuration and per-service overrides.
+   *
+   * @param configuration             the configuration
+   * @param serviceConfigurations     the configurations overriding the configuration for
+   *                                  specific services, keyed by service endpoint prefix
+   * @param httpProxyParameters       the HTTP proxy parameters
+   * @param parentLocalizationContext the parent localization context
+   */
+  public AWSClientConfig(Configured configuration,
+      Map<String, Configured> serviceConfigurations,
+      HttpProxyParameters httpProxyParameters,
+      LocalizationContext parentLocalizationContext) {
     checkNotNull(configuration, "configuration is null");
+    checkNotNull(serviceConfigurations, "serviceConfigurations is null");
     setHttpProxyParameters(httpProxyParameters);
     LocalizationContext localizationContext =
         new ChildLocalizationContext(parentLocalizationContext, "client");
+    readAndSetPropertyValues(configuration, localizationContext);
+
+    Map<String, AWSClientConfig> serviceClientConfigs = new HashMap<>();
+    for (Map.Entry<String, Configured> entry : serviceConfigurations.entrySet()) {
+      String serviceName = entry.getKey();
+      LOG.info("Reading client configuration overrides for {}", serviceName);
+      AWSClientConfig serviceClientConfig = new AWSClientConfig(this);
+      serviceClientConfig.readAndSetPropertyValues(entry.getValue(),
+          new ChildLocalizationContext(localizationContext, serviceName));
+      serviceClientConfigs.put(serviceName, serviceClientConfig);
+    }
+    this.serviceClientConfigs = Collections.unmodifiableMap(serviceClientConfigs);
+  }
+
+  /**
+   * Creates a copy of the specified AWS client config, without its per-service overrides.
+   *
+   * @param other the AWS client config to copy
+   */
+  private AWSClientConfig(AWSClientConfig other) {
+    this.maxErrorRetries = other.maxErrorRetries;
+    this.connectionTimeoutInMilliseconds = other.connectionTimeoutInMilliseconds;
+    this.logRetryAttempts = other.logRetryAttempts;
+    this.maxConnections = other.maxConnections;
+    this.socketTimeoutInMilliseconds = other.socketTimeoutInMilliseconds;
+    this.requestTimeoutInMilliseconds = other.requestTimeoutInMilliseconds;
+    this.clientExecutionTimeoutInMilliseconds = other.clientExecutionTimeoutInMilliseconds;
+    this.tcpKeepAlive = other.tcpKeepAlive;
+    this.connectionTTLInMilliseconds = other.connectionTTLInMilliseconds;
+    this.asyncExecutorThreads = other.asyncExecutorThreads;
+    this.httpProxyParameters = other.httpProxyParameters;
+  }
+
+  /**
+   * Reads all properties from the specified configuration, setting the corresponding fields.
+   *
+   * @param configuration       the configuration
+   * @param localizationContext the localization context
+   */
+  private void readAndSetPropertyValues(Configured configuration,
+      LocalizationContext localizationContext) {
     for (AWSClientConfigurationPropertyToken propertyToken : AWSClientConfigurationPropertyToken.values()) {
       propertyToken.readAndSetPropertyValue(configuration, this, localizationContext);
     }
@@ -230,6 +426,89 @@ public class AWSClientConfig {
     this.logRetryAttempts = logRetryAttempts;
   }
 
+  public int getMaxConnections() {
+    return maxConnections;
+  }
+
+  public void setMaxConnections(int maxConnections) {
+    LOG.info("Overriding maxConnections={} (default {})", maxConnections,
+        DEFAULT_MAX_CONNECTIONS);
+    this.maxConnections = maxConnections;
+  }
+
+  public int getSocketTimeoutInMilliseconds() {
+    return socketTimeoutInMilliseconds;
+  }
+
+  public void setSocketTimeoutInMilliseconds(int socketTimeoutInMilliseconds) {
+    LOG.info("Overriding socketTimeoutInMilliseconds={} (default {})",
+        socketTimeoutInMilliseconds, DEFAULT_SOCKET_TIMEOUT_MILLIS);
+    this.socketTimeoutInMilliseconds = socketTimeoutInMilliseconds;
+  }
+
+  public int getRequestTimeoutInMilliseconds() {
+    return requestTimeoutInMilliseconds;
+  }
+
+  public void setRequestTimeoutInMilliseconds(int requestTimeoutInMilliseconds) {
+    LOG.info("Overriding requestTimeoutInMilliseconds={} (default {})",
+        requestTimeoutInMilliseconds, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+    this.requestTimeoutInMilliseconds = requestTimeoutInMilliseconds;
+  }
+
+  public int getClientExecutionTimeoutInMilliseconds() {
+    return clientExecutionTimeoutInMilliseconds;
+  }
+
+  public void setClientExecutionTimeoutInMilliseconds(int clientExecutionTimeoutInMilliseconds) {
+    LOG.info("Overriding clientExecutionTimeoutInMilliseconds={} (default {})",
+        clientExecutionTimeoutInMilliseconds, DEFAULT_CLIENT_EXECUTION_TIMEOUT_MILLIS);
+    this.clientExecutionTimeoutInMilliseconds = clientExecutionTimeoutInMilliseconds;
+  }
+
+  public boolean isTcpKeepAlive() {
+    return tcpKeepAlive;
+  }
+
+  public void setTcpKeepAlive(boolean tcpKeepAlive) {
+    LOG.info("Overriding tcpKeepAlive={} (default {})", tcpKeepAlive, DEFAULT_TCP_KEEP_ALIVE);
+    this.tcpKeepAlive = tcpKeepAlive;
+  }
+
+  public long getConnectionTTLInMilliseconds() {
+    return connectionTTLInMilliseconds;
+  }
+
+  public void setConnectionTTLInMilliseconds(long connectionTTLInMilliseconds) {
+    LOG.info("Overriding connectionTTLInMilliseconds={} (default {})",
+        connectionTTLInMilliseconds, DEFAULT_CONNECTION_TTL_MILLIS);
+    this.connectionTTLInMilliseconds = connectionTTLInMilliseconds;
+  }
+
+  public int getAsyncExecutorThreads() {
+    return asyncExecutorThreads;
+  }
+
+  public void setAsyncExecutorThreads(int asyncExecutorThreads) {
+    LOG.info("Overriding asyncExecutorThreads={} (default {})", asyncExecutorThreads,
+        DEFAULT_ASYNC_EXECUTOR_THREADS);
+    this.asyncExecutorThreads = asyncExecutorThreads;
+  }
+
+  /**
+   * Returns an AWS ClientConfiguration for the specified service, applying any overrides
+   * configured for it.
+   *
+   * @param serviceName the service endpoint prefix, such as {@code ec2}
+   * @return An AWS ClientConfiguration
+   */
+  public ClientConfiguration getClientConfiguration(String serviceName) {
+    AWSClientConfig serviceClientConfig = serviceClientConfigs.get(serviceName);
+    return (serviceClientConfig == null)
+        ? getClientConfiguration()
+        : serviceClientConfig.getClientConfiguration();
+  }
+
   /**
    * Returns an AWS ClientConfiguration representing the current proxy state.
    *
@@ -239,6 +518,12 @@ public class AWSClientConfig {
     ClientConfiguration clientConfig = new ClientConfiguration()
         .withMaxErrorRetry(getMaxErrorRetries())
         .withConnectionTimeout(getConnectionTimeoutInMilliseconds())
+        .withMaxConnections(getMaxConnections())
+        .withSocketTimeout(getSocketTimeoutInMilliseconds())
+        .withRequestTimeout(getRequestTimeoutInMilliseconds())
+        .withClientExecutionTimeout(getClientExecutionTimeoutInMilliseconds())
+        .withTcpKeepAlive(isTcpKeepAlive())
+        .withConnectionTTL(getConnectionTTLInMilliseconds())
         .withProxyHost(httpProxyParameters.getHost())
         .withProxyPort(httpProxyParameters.getPort())
         .withProxyUsername(httpProxyParameters.getUsername())
@@ -25,12 +25,20 @@ import com.cloudera.director.spi.v2.model.exception.PluginExceptionConditionAccu
 import com.cloudera.director.spi.v2.model.exception.PluginExceptionDetails;
 import com.cloudera.director.spi.v2.model.exception.TransientProviderException;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -112,6 +120,16 @@ public class AWSExceptions {
 
   public static final String ENCODED_MESSAGE_STRING = "Encoded authorization failure message:";
 
+  /**
+   * Decoded authorization messages, by SHA-256 hash of the encoded message. Entries expire so
+   * that the cache does not outlive changes to the policies the messages describe.
+   */
+  private static final Cache<String, String> DECODED_AUTHORIZATION_MESSAGES =
+      CacheBuilder.newBuilder()
+          .maximumSize(256)
+          .expireAfterWrite(1, TimeUnit.HOURS)
+          .build();
+
 
   /**
    * Parses a set of exceptions and a set of failed state reasons and throws
@@ -246,6 +264,9 @@ public class AWSExceptions {
 
   /**
    * Decodes authorization messages if possible. Will not fail if the messages cannot be decoded.
+   * Decoded messages are cached by a hash of the encoded message, and concurrent requests to
+   * decode the same message share a single call to STS, so that a failure repeated across many
+   * instances of an allocation is only decoded once.
    *
    * @param stsClient the client to use to decode the authorization messages
    * @param e         the exception to decode the message from
@@ -261,21 +282,36 @@ public class AWSExceptions {
       try {
         int indexOfEncodedMessage = errorMessage.indexOf(ENCODED_MESSAGE_STRING);
         String encodedErrorMessage = errorMessage.substring(
-            errorMessage.indexOf(ENCODED_MESSAGE_STRING) + ENCODED_MESSAGE_STRING.length());
-        DecodeAuthorizationMessageRequest request = new DecodeAuthorizationMessageRequest();
-        request.setEncodedMessage(encodedErrorMessage);
+            indexOfEncodedMessage + ENCODED_MESSAGE_STRING.length());
+        String decodedMessage = DECODED_AUTHORIZATION_MESSAGES.get(
+            Hashing.sha256().hashString(encodedErrorMessage, StandardCharsets.UTF_8).toString(),
+            () -> {
+              DecodeAuthorizationMessageRequest request = new DecodeAuthorizationMessageRequest();
+              request.setEncodedMessage(encodedErrorMessage);
+              String decoded = stsClient.decodeAuthorizationMessage(request).getDecodedMessage();
+              LOG.debug("Successfully decoded authorization message.");
+              return decoded;
+            });
         e.setErrorMessage(errorMessage.substring(0, indexOfEncodedMessage) + "Decoded authorization message: " +
-            stsClient.decodeAuthorizationMessage(request).getDecodedMessage());
-        LOG.debug("Successfully decoded authorization message.");
-      } catch (AmazonClientException clientException) {
+            decodedMessage);
+      } catch (ExecutionException | UncheckedExecutionException decodeException) {
+        // Failed decodes are not cached, so a later failure tries again
         LOG.warn("Unable to decode authorization message.");
-        LOG.debug("Unable to decode authorization message.", e);
+        LOG.debug("Unable to decode authorization message.", decodeException.getCause());
       }
     }
 
     return e;
   }
 
+  /**
+   * Forgets all decoded authorization messages.
+   */
+  @VisibleForTesting
+  static void clearDecodedAuthorizationMessages() {
+    DECODED_AUTHORIZATION_MESSAGES.invalidateAll();
+  }
+
   /**
    * Returns whether the specified throwable is an {@code AmazonServiceException} with
    * the specified error code.
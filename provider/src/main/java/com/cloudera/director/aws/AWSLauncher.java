@@ -20,16 +20,28 @@ import static com.cloudera.director.aws.ec2.EphemeralDeviceMappings.EphemeralDev
 import static com.cloudera.director.aws.ec2.VirtualizationMappings.VirtualizationMappingsConfigProperties.VirtualizationMappingsConfigurationPropertyToken;
 import static com.cloudera.director.aws.rds.RDSEndpoints.RDSEndpointsConfigProperties.RDSEndpointsConfigurationPropertyToken;
 
+import com.cloudera.director.aws.audit.FileRpcAuditSink;
+import com.cloudera.director.aws.audit.LoggerRpcAuditSink;
+import com.cloudera.director.aws.audit.RpcAuditConfig;
+import com.cloudera.director.aws.audit.RpcAuditLog;
+import com.cloudera.director.aws.audit.RpcAuditSink;
+import com.cloudera.director.aws.clientprovider.SharedClientExecutor;
 import com.cloudera.director.aws.common.ConfigFragmentWrapper;
 import com.cloudera.director.aws.common.ResourceBundleLocalizationContext;
 import com.cloudera.director.aws.ec2.EphemeralDeviceMappings;
 import com.cloudera.director.aws.ec2.VirtualizationMappings;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.ec2.allocation.InstanceIdIndex;
+import com.cloudera.director.aws.ec2.allocation.InstanceTerminator;
 import com.cloudera.director.aws.ec2.ebs.EBSDeviceMappings;
 import com.cloudera.director.aws.ec2.ebs.EBSMetadata;
 import com.cloudera.director.aws.network.NetworkRules;
 import com.cloudera.director.aws.provider.AWSProvider;
 import com.cloudera.director.aws.rds.RDSEncryptionInstanceClasses;
 import com.cloudera.director.aws.rds.RDSEndpoints;
+import com.cloudera.director.aws.tracing.FileSpanExporter;
+import com.cloudera.director.aws.tracing.SpanExporter;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
 import com.cloudera.director.spi.v2.model.ConfigurationPropertyToken;
 import com.cloudera.director.spi.v2.model.Configured;
@@ -45,11 +57,14 @@ import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 import com.typesafe.config.ConfigParseOptions;
 import com.typesafe.config.ConfigSyntax;
+import com.typesafe.config.ConfigValue;
 
 import java.io.File;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * AWS plugin launcher.
@@ -68,6 +83,16 @@ public class AWSLauncher extends AbstractLauncher {
    */
   public static final boolean DEFAULT_USE_TAG_ON_CREATE = true;
 
+  /**
+   * The default allocation journal file, relative to the configuration directory.
+   */
+  private static final String DEFAULT_ALLOCATION_JOURNAL_FILE = "allocation-journal.json";
+
+  /**
+   * The default name of the file to which allocation spans are written, when tracing is enabled.
+   */
+  public static final String DEFAULT_TRACING_FILE_NAME = "allocation-traces.json";
+
   /**
    * Creates ephemeral device mappings with the specified parameters.
    *
@@ -179,9 +204,18 @@ public class AWSLauncher extends AbstractLauncher {
   private static AWSClientConfig getAWSClientConfig(Config config,
       HttpProxyParameters httpProxyParameters,
       LocalizationContext cloudLocalizationContext) {
+    Map<String, Configured> serviceConfigurations = new HashMap<>();
+    if (config != null && config.hasPath(Configurations.AWS_CLIENT_SERVICES_SECTION)) {
+      for (String serviceName
+          : config.getObject(Configurations.AWS_CLIENT_SERVICES_SECTION).keySet()) {
+        serviceConfigurations.put(serviceName, getConfiguration(config,
+            Configurations.AWS_CLIENT_SERVICES_SECTION + "." + serviceName,
+            AWSClientConfigurationPropertyToken.values()));
+      }
+    }
     return new AWSClientConfig(getConfiguration(config, Configurations.AWS_CLIENT_SECTION,
-        AWSClientConfigurationPropertyToken.values()), httpProxyParameters,
-        cloudLocalizationContext);
+        AWSClientConfigurationPropertyToken.values()), serviceConfigurations,
+        httpProxyParameters, cloudLocalizationContext);
   }
 
   /**
@@ -215,6 +249,137 @@ public class AWSLauncher extends AbstractLauncher {
         : STSRoles.DEFAULT;
   }
 
+  /**
+   * Creates the span exporter for allocation tracing, if tracing is enabled. Spans are written
+   * to a file which, if relative, is resolved against the plugin configuration directory.
+   *
+   * @param config                 the configuration
+   * @param configurationDirectory the plugin configuration directory
+   * @return the span exporter, or {@code null} if tracing is disabled
+   */
+  private static SpanExporter getSpanExporter(Config config, File configurationDirectory) {
+    if (config == null || !config.hasPath(Configurations.TRACING_SECTION)) {
+      return null;
+    }
+    Config tracingConfig = config.getConfig(Configurations.TRACING_SECTION);
+    if (!tracingConfig.hasPath("enabled") || !tracingConfig.getBoolean("enabled")) {
+      return null;
+    }
+    File file = new File(tracingConfig.hasPath("file")
+        ? tracingConfig.getString("file") : DEFAULT_TRACING_FILE_NAME);
+    if (!file.isAbsolute()) {
+      file = new File(configurationDirectory, file.getPath());
+    }
+    FileSpanExporter.Format format = tracingConfig.hasPath("format")
+        && "otlp".equalsIgnoreCase(tracingConfig.getString("format"))
+        ? FileSpanExporter.Format.OTLP_JSON
+        : FileSpanExporter.Format.JSON_LINES;
+    return new FileSpanExporter(file, format);
+  }
+
+  /**
+   * Starts the RPC audit log if it is enabled, and stops it otherwise. Records are written to
+   * a file which, if relative, is resolved against the plugin configuration directory, or to
+   * a dedicated logger if no file is configured.
+   *
+   * @param config                 the configuration
+   * @param configurationDirectory the plugin configuration directory
+   */
+  private static void configureRpcAuditLog(Config config, File configurationDirectory) {
+    if (config == null || !config.hasPath(Configurations.RPC_AUDIT_SECTION)) {
+      RpcAuditLog.stop();
+      return;
+    }
+    Config auditConfig = config.getConfig(Configurations.RPC_AUDIT_SECTION);
+    if (!auditConfig.hasPath("enabled") || !auditConfig.getBoolean("enabled")) {
+      RpcAuditLog.stop();
+      return;
+    }
+
+    Map<String, RpcAuditConfig.Verbosity> verbosityByAction = new HashMap<>();
+    if (auditConfig.hasPath("actions")) {
+      for (Map.Entry<String, ConfigValue> action
+          : auditConfig.getConfig("actions").root().entrySet()) {
+        verbosityByAction.put(action.getKey(),
+            toVerbosity(action.getValue().unwrapped().toString()));
+      }
+    }
+    RpcAuditConfig rpcAuditConfig = new RpcAuditConfig(
+        auditConfig.hasPath("sampleRate") ? auditConfig.getDouble("sampleRate") : 1.0,
+        auditConfig.hasPath("verbosity")
+            ? toVerbosity(auditConfig.getString("verbosity")) : RpcAuditConfig.Verbosity.SUMMARY,
+        verbosityByAction,
+        auditConfig.hasPath("bufferSize")
+            ? auditConfig.getInt("bufferSize") : RpcAuditConfig.DEFAULT_BUFFER_CAPACITY);
+
+    RpcAuditSink sink;
+    if (auditConfig.hasPath("file")) {
+      File file = new File(auditConfig.getString("file"));
+      if (!file.isAbsolute()) {
+        file = new File(configurationDirectory, file.getPath());
+      }
+      sink = new FileRpcAuditSink(file);
+    } else {
+      sink = new LoggerRpcAuditSink();
+    }
+    RpcAuditLog.start(rpcAuditConfig, sink);
+  }
+
+  private static void configureAllocationJournal(Config config, File configurationDirectory) {
+    if (config == null || !config.hasPath(Configurations.ALLOCATION_JOURNAL_SECTION)) {
+      AllocationJournal.close();
+      return;
+    }
+    Config journalConfig = config.getConfig(Configurations.ALLOCATION_JOURNAL_SECTION);
+    if (!journalConfig.hasPath("enabled") || !journalConfig.getBoolean("enabled")) {
+      AllocationJournal.close();
+      return;
+    }
+
+    File file = new File(journalConfig.hasPath("file")
+        ? journalConfig.getString("file") : DEFAULT_ALLOCATION_JOURNAL_FILE);
+    if (!file.isAbsolute()) {
+      file = new File(configurationDirectory, file.getPath());
+    }
+    AllocationJournal.open(file);
+  }
+
+  private static void configureInstanceIdIndex(Config config, File configurationDirectory) {
+    Config indexConfig =
+        (config != null && config.hasPath(Configurations.INSTANCE_ID_INDEX_SECTION))
+        ? config.getConfig(Configurations.INSTANCE_ID_INDEX_SECTION)
+        : ConfigFactory.empty();
+    int maxEntries = indexConfig.hasPath("maxEntries")
+        ? indexConfig.getInt("maxEntries") : InstanceIdIndex.DEFAULT_MAX_ENTRIES;
+    if (!indexConfig.hasPath("file")) {
+      InstanceIdIndex.openInMemory(maxEntries);
+      return;
+    }
+
+    File file = new File(indexConfig.getString("file"));
+    if (!file.isAbsolute()) {
+      file = new File(configurationDirectory, file.getPath());
+    }
+    InstanceIdIndex.open(file, maxEntries);
+  }
+
+  private static void configureInstanceTermination(Config config) {
+    Config terminationConfig =
+        (config != null && config.hasPath(Configurations.INSTANCE_TERMINATION_SECTION))
+        ? config.getConfig(Configurations.INSTANCE_TERMINATION_SECTION)
+        : ConfigFactory.empty();
+    InstanceTerminator.configure(
+        terminationConfig.hasPath("waitUntilTerminated")
+            && terminationConfig.getBoolean("waitUntilTerminated"),
+        terminationConfig.hasPath("waitTimeoutSeconds")
+            ? terminationConfig.getLong("waitTimeoutSeconds")
+            : InstanceTerminator.DEFAULT_WAIT_TIMEOUT_SECONDS);
+  }
+
+  private static RpcAuditConfig.Verbosity toVerbosity(String value) {
+    return RpcAuditConfig.Verbosity.valueOf(value.toUpperCase(Locale.US));
+  }
+
   private static boolean getUseTagOnCreate(Config config) {
     return config != null && config.hasPath(Configurations.USE_TAG_ON_CREATE) ?
         config.getBoolean(Configurations.USE_TAG_ON_CREATE) : DEFAULT_USE_TAG_ON_CREATE;
@@ -307,12 +472,18 @@ public class AWSLauncher extends AbstractLauncher {
     awsClientConfig = getAWSClientConfig(config,
         (httpProxyParameters == null) ? new HttpProxyParameters() : httpProxyParameters,
         cloudLocalizationContext);
+    SharedClientExecutor.setThreads(awsClientConfig.getAsyncExecutorThreads());
     awsFilters = getAWSFilterConfig(config);
     awsTimeouts = getAWSTimeouts(config);
     customTagMappings = getCustomTagMappings(config);
     networkRules = getNetworkRules(configurationDirectory);
     stsRoles = getRoleConfigurations(config);
     useTagOnCreate = getUseTagOnCreate(config);
+    Tracing.setExporter(getSpanExporter(config, configurationDirectory));
+    configureRpcAuditLog(config, configurationDirectory);
+    configureAllocationJournal(config, configurationDirectory);
+    configureInstanceIdIndex(config, configurationDirectory);
+    configureInstanceTermination(config);
   }
 
   /**
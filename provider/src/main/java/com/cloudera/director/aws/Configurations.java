@@ -75,6 +75,12 @@ public final class Configurations {
    */
   public static final String AWS_CLIENT_SECTION = "awsClient";
 
+  /**
+   * The HOCON path prefix for per-service AWS client configuration overrides, keyed by service
+   * endpoint prefix, such as {@code ec2}.
+   */
+  public static final String AWS_CLIENT_SERVICES_SECTION = AWS_CLIENT_SECTION + ".services";
+
   /**
    * The HOCON path prefix for AWS filter configuration.
    */
@@ -95,6 +101,31 @@ public final class Configurations {
    */
   public static final String STS_ROLES_SECTION = "stsRoles";
 
+  /**
+   * The HOCON path prefix for allocation tracing.
+   */
+  public static final String TRACING_SECTION = "tracing";
+
+  /**
+   * The HOCON path prefix for the RPC audit log.
+   */
+  public static final String RPC_AUDIT_SECTION = "rpcAudit";
+
+  /**
+   * The HOCON path prefix for the allocation journal.
+   */
+  public static final String ALLOCATION_JOURNAL_SECTION = "allocationJournal";
+
+  /**
+   * The HOCON path prefix for the index from virtual instance IDs to EC2 instance IDs.
+   */
+  public static final String INSTANCE_ID_INDEX_SECTION = "instanceIdIndex";
+
+  /**
+   * The HOCON path prefix for instance termination.
+   */
+  public static final String INSTANCE_TERMINATION_SECTION = "instanceTermination";
+
   /**
    * The HOCON path prefix for using tag on create.
    */
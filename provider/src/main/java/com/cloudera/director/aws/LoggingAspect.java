@@ -23,7 +23,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Aspect to log rpc calls.
+ * Aspect to log rpc calls. Asynchronous calls made through
+ * {@link com.cloudera.director.aws.common.CompletableFutures#call} are passed as method
+ * references, which are not matched by these pointcuts, and are logged and audited there
+ * instead.
  */
 @Aspect
 public class LoggingAspect {
@@ -59,7 +62,9 @@ public class LoggingAspect {
   }
 
   /**
-   * Logging advice around join point.
+   * Logging advice around join point. Arguments and results are only rendered when debug
+   * logging is enabled; structured, always-on recording of calls is done by the
+   * {@link RpcAuditAspect}.
    *
    * @param jp join point.
    * @return original method returns.
@@ -67,6 +72,10 @@ public class LoggingAspect {
    */
   @Around("ec2Call() || iamCall() || kmsCall() || rdsCall()")
   public Object log(ProceedingJoinPoint jp) throws Throwable {
+    if (!LOG.isDebugEnabled()) {
+      return jp.proceed();
+    }
+
     MethodSignature ms = MethodSignature.class.cast(jp.getSignature());
     String methodName = ms.getDeclaringType().getSimpleName() + "::" + ms.getMethod().getName();
 
@@ -0,0 +1,83 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws;
+
+import com.cloudera.director.aws.audit.RpcAuditConfig.Verbosity;
+import com.cloudera.director.aws.audit.RpcAuditLog;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+
+/**
+ * Aspect to record rpc calls in the {@link RpcAuditLog}. Asynchronous calls made through
+ * {@link com.cloudera.director.aws.common.CompletableFutures#call} are recorded there when
+ * they complete.
+ */
+@Aspect
+public class RpcAuditAspect {
+
+  /**
+   * The qualified action of each call site, computed once per call site.
+   */
+  private static final ConcurrentMap<JoinPoint.StaticPart, String> ACTIONS =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Auditing advice around join point.
+   *
+   * @param jp join point.
+   * @return original method returns.
+   * @throws Throwable original method throwables.
+   */
+  @Around("com.cloudera.director.aws.LoggingAspect.ec2Call()"
+      + " || com.cloudera.director.aws.LoggingAspect.iamCall()"
+      + " || com.cloudera.director.aws.LoggingAspect.kmsCall()"
+      + " || com.cloudera.director.aws.LoggingAspect.rdsCall()")
+  public Object audit(ProceedingJoinPoint jp) throws Throwable {
+    if (!RpcAuditLog.isEnabled()) {
+      return jp.proceed();
+    }
+    MethodSignature ms = MethodSignature.class.cast(jp.getSignature());
+    String action = ACTIONS.computeIfAbsent(jp.getStaticPart(),
+        (staticPart) -> ms.getDeclaringType().getSimpleName() + "::" + ms.getName());
+    Verbosity verbosity = RpcAuditLog.getVerbosity(action, ms.getName());
+    if (verbosity == Verbosity.OFF) {
+      return jp.proceed();
+    }
+
+    Object[] args = jp.getArgs();
+    Object request = (args.length > 0) ? args[0] : null;
+    long startMillis = System.currentTimeMillis();
+    long start = System.nanoTime();
+    try {
+      Object result = jp.proceed();
+      if (RpcAuditLog.isSampled()) {
+        RpcAuditLog.record(action, verbosity, startMillis, System.nanoTime() - start, request,
+            result, null);
+      }
+      return result;
+    } catch (Throwable e) {
+      RpcAuditLog.record(action, verbosity, startMillis, System.nanoTime() - start, request,
+          null, e);
+      throw e;
+    }
+  }
+}
@@ -20,6 +20,7 @@ import static java.util.Objects.requireNonNull;
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 
 import com.amazonaws.annotation.ThreadSafe;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSSessionCredentials;
 import com.amazonaws.auth.AWSSessionCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
@@ -30,21 +31,34 @@ import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceClientBuilder
 import com.amazonaws.services.securitytoken.model.AssumeRoleRequest;
 import com.amazonaws.services.securitytoken.model.AssumeRoleResult;
 import com.amazonaws.services.securitytoken.model.Credentials;
-import com.google.common.base.Predicate;
-import com.google.common.base.Predicates;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
-
-import javax.annotation.Nullable;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Credential provider to provider session credentials after assuming role n
  * times.
+ * <p>
+ * The credentials of each hop in the chain are cached separately, so that a
+ * refresh only re-assumes the hops whose credentials are expiring. Credentials
+ * that are inside the asynchronous refresh window are still served while a
+ * background refresh runs; callers only block once the credentials are inside
+ * the blocking refresh window. Background refreshes run on a shared pool sized
+ * by the number of distinct role chains of the providers in use, up to a fixed
+ * bound.
  */
 @SuppressWarnings("Guava")
 @ThreadSafe
@@ -52,14 +66,21 @@ public class STSAssumeNRolesSessionCredentialsProvider implements AWSSessionCred
   private static final int DEFAULT_DURATION_SECONDS = 900;
   private static final int DEFAULT_BLOCKING_REFRESH_DURATION_MSEC = 60 * 1000;
   private static final int DEFAULT_ASYNC_REFRESH_DURATION_MSEC = 300 * 1000;
-  private static final ScheduledExecutorService EXECUTOR = Executors.newSingleThreadScheduledExecutor(
-      runnable -> {
-        Thread thread = Executors.defaultThreadFactory().newThread(runnable);
-        thread.setDaemon(true);
-        return thread;
-      });
+  private static final int MAX_REFRESH_THREADS = 8;
+  /**
+   * The number of providers in use for each distinct role chain, guarded by the executor.
+   */
+  private static final Map<List<String>, Integer> ROLE_CHAINS = new HashMap<>();
+  private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1,
+      new ThreadFactoryBuilder()
+          .setNameFormat("director-aws-sts-refresh-%d")
+          .setDaemon(true)
+          .build());
 
   private final AtomicReference<Credentials> credentials = new AtomicReference<>(null);
+  private final AtomicReferenceArray<Credentials> hopCredentials;
+  private final AtomicBoolean asyncRefreshInProgress = new AtomicBoolean(false);
+  private final Object refreshLock = new Object();
   private final int blockingRefreshDurationMsec;
   private final int asyncRefreshDurationMsec;
   private final AWSSecurityTokenServiceClientBuilder stsClientBuilder;
@@ -83,74 +104,169 @@ public class STSAssumeNRolesSessionCredentialsProvider implements AWSSessionCred
     this.roleConfigurations = roleConfigurations;
     this.roleSessionDurationSeconds = roleSessionDurationSeconds;
     this.scopeDownPolicy = scopeDownPolicy;
-
-    EXECUTOR.scheduleWithFixedDelay(
-        () -> refreshSession(new Predicate<Credentials>() {
-          @Override
-          public boolean apply(@Nullable Credentials credentials) {
-            return isRefreshNeeded(
-                credentials,
-                STSAssumeNRolesSessionCredentialsProvider.this.asyncRefreshDurationMsec);
+    this.hopCredentials = new AtomicReferenceArray<>(roleConfigurations.size());
+
+    List<String> roleChain = registerRoleChain(roleConfigurations);
+
+    // The scheduled refresh only holds a weak reference, so that providers that are no longer
+    // in use stop being refreshed, and stop counting towards the size of the shared pool
+    WeakReference<STSAssumeNRolesSessionCredentialsProvider> providerReference =
+        new WeakReference<>(this);
+    AtomicReference<ScheduledFuture<?>> scheduledRefresh = new AtomicReference<>();
+    scheduledRefresh.set(EXECUTOR.scheduleWithFixedDelay(
+        () -> {
+          STSAssumeNRolesSessionCredentialsProvider provider = providerReference.get();
+          if (provider == null) {
+            ScheduledFuture<?> future = scheduledRefresh.get();
+            if (future != null && future.cancel(false)) {
+              unregisterRoleChain(roleChain);
+            }
+            return;
           }
-        }),
+          provider.refreshSession(provider.asyncRefreshDurationMsec);
+        },
         this.blockingRefreshDurationMsec,
         this.asyncRefreshDurationMsec,
-        TimeUnit.MILLISECONDS);
+        TimeUnit.MILLISECONDS));
   }
 
   @Override
   public AWSSessionCredentials getCredentials() {
-    refreshSession(credentials -> isRefreshNeeded(credentials, blockingRefreshDurationMsec));
+    Credentials currentCredentials = credentials.get();
+    if (isRefreshNeeded(currentCredentials, blockingRefreshDurationMsec)) {
+      currentCredentials = refreshSession(blockingRefreshDurationMsec);
+    } else if (isRefreshNeeded(currentCredentials, asyncRefreshDurationMsec)) {
+      // Serve the current credentials while they are refreshed in the background
+      refreshSessionAsync();
+    }
 
-    return toAWSCredentials(this.credentials.get());
+    return toAWSCredentials(currentCredentials);
   }
 
   @Override
   public void refresh() {
-    refreshSession(Predicates.alwaysTrue());
+    synchronized (refreshLock) {
+      for (int hop = 0; hop < hopCredentials.length(); hop++) {
+        hopCredentials.set(hop, null);
+      }
+      credentials.set(null);
+      refreshSession(blockingRefreshDurationMsec);
+    }
   }
 
-  private void refreshSession(Predicate<Credentials> predicate) {
-    Credentials oldCredentials = credentials.get();
-    if (predicate.apply(oldCredentials)) {
-      Credentials newCredentials = newSession(
-          stsClientBuilder,
-          roleConfigurations,
-          roleSessionDurationSeconds,
-          scopeDownPolicy);
-
-      // No need to worry whether CAS succeeds or not, unless the latency
-      // to call newSession() is even greater than role session duration
-      credentials.compareAndSet(oldCredentials, newCredentials);
+  private static List<String> registerRoleChain(List<RoleConfiguration> roleConfigurations) {
+    List<String> roleChain = Lists.newArrayListWithCapacity(3 * roleConfigurations.size());
+    for (RoleConfiguration roleConfiguration : roleConfigurations) {
+      roleChain.add(roleConfiguration.getRoleArn());
+      roleChain.add(roleConfiguration.getRoleSessionName());
+      roleChain.add(Strings.nullToEmpty(roleConfiguration.getRoleExternalId()));
     }
+    synchronized (EXECUTOR) {
+      ROLE_CHAINS.merge(roleChain, 1, Integer::sum);
+      resizeExecutor();
+    }
+    return roleChain;
   }
 
-  private Credentials newSession(
-      AWSSecurityTokenServiceClientBuilder stsClientBuilder,
-      List<RoleConfiguration> roleConfigurations,
-      int roleSessionDurationSeconds,
-      String scopeDownPolicy) {
+  private static void unregisterRoleChain(List<String> roleChain) {
+    synchronized (EXECUTOR) {
+      ROLE_CHAINS.computeIfPresent(roleChain, (chain, count) -> (count > 1) ? count - 1 : null);
+      resizeExecutor();
+    }
+  }
 
-    AWSSecurityTokenService sts = stsClientBuilder.build();
-    Credentials credentials = null;
+  private static void resizeExecutor() {
+    int poolSize = Math.max(1, Math.min(ROLE_CHAINS.size(), MAX_REFRESH_THREADS));
+    if (poolSize != EXECUTOR.getCorePoolSize()) {
+      EXECUTOR.setCorePoolSize(poolSize);
+    }
+  }
 
-    for (RoleConfiguration roleConfiguration : roleConfigurations) {
-      AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest()
-          .withRoleArn(roleConfiguration.getRoleArn())
-          .withRoleSessionName(roleConfiguration.getRoleSessionName())
-          .withExternalId(roleConfiguration.getRoleExternalId())
-          .withDurationSeconds(roleSessionDurationSeconds)
-          .withPolicy(scopeDownPolicy);
-
-      AssumeRoleResult assumeRoleResult = sts.assumeRole(assumeRoleRequest);
-      credentials = assumeRoleResult.getCredentials();
-      sts = clone(stsClientBuilder)
-          .withCredentials(new AWSStaticCredentialsProvider(toAWSCredentials(credentials)))
-          .build();
+  /**
+   * Returns the number of distinct role chains of the providers in use.
+   */
+  @VisibleForTesting
+  static int getRoleChainCount() {
+    synchronized (EXECUTOR) {
+      return ROLE_CHAINS.size();
     }
+  }
+
+  private void refreshSessionAsync() {
+    if (asyncRefreshInProgress.compareAndSet(false, true)) {
+      try {
+        EXECUTOR.execute(() -> {
+          try {
+            refreshSession(asyncRefreshDurationMsec);
+          } finally {
+            asyncRefreshInProgress.set(false);
+          }
+        });
+      } catch (RuntimeException e) {
+        asyncRefreshInProgress.set(false);
+        throw e;
+      }
+    }
+  }
+
+  private Credentials refreshSession(int refreshDuration) {
+    synchronized (refreshLock) {
+      // Another caller may have refreshed the credentials while we waited for the lock
+      Credentials currentCredentials = credentials.get();
+      if (!isRefreshNeeded(currentCredentials, refreshDuration)) {
+        return currentCredentials;
+      }
 
-    checkState(credentials != null, "Retrieved credentials cannot be null");
-    return credentials;
+      Credentials newCredentials = assumeHop(hopCredentials.length() - 1, refreshDuration);
+      checkState(newCredentials != null, "Retrieved credentials cannot be null");
+      credentials.set(newCredentials);
+      return newCredentials;
+    }
+  }
+
+  /**
+   * Returns credentials for the specified hop of the role chain, re-assuming the role only if
+   * the cached credentials for the hop need refreshing. The previous hop is refreshed in turn
+   * only if its credentials are too close to expiry to make the call.
+   */
+  private Credentials assumeHop(int hop, int refreshDuration) {
+    Credentials cachedCredentials = hopCredentials.get(hop);
+    if (!isRefreshNeeded(cachedCredentials, refreshDuration)) {
+      return cachedCredentials;
+    }
+
+    AWSSecurityTokenService sts = buildStsClient((hop == 0)
+        ? null
+        : new AWSStaticCredentialsProvider(
+            toAWSCredentials(assumeHop(hop - 1, blockingRefreshDurationMsec))));
+
+    RoleConfiguration roleConfiguration = roleConfigurations.get(hop);
+    AssumeRoleRequest assumeRoleRequest = new AssumeRoleRequest()
+        .withRoleArn(roleConfiguration.getRoleArn())
+        .withRoleSessionName(roleConfiguration.getRoleSessionName())
+        .withExternalId(roleConfiguration.getRoleExternalId())
+        .withDurationSeconds(roleSessionDurationSeconds)
+        .withPolicy(scopeDownPolicy);
+
+    AssumeRoleResult assumeRoleResult = sts.assumeRole(assumeRoleRequest);
+    Credentials newCredentials = assumeRoleResult.getCredentials();
+    hopCredentials.set(hop, newCredentials);
+    return newCredentials;
+  }
+
+  /**
+   * Builds an STS client that makes calls with the credentials of the previous hop of the role
+   * chain, or with the credentials of the client builder for the first hop.
+   *
+   * @param previousHopCredentials the credentials of the previous hop, or {@code null} for the
+   *                               first hop
+   * @return the STS client
+   */
+  @VisibleForTesting
+  AWSSecurityTokenService buildStsClient(AWSCredentialsProvider previousHopCredentials) {
+    return (previousHopCredentials == null)
+        ? stsClientBuilder.build()
+        : clone(stsClientBuilder).withCredentials(previousHopCredentials).build();
   }
 
   private static boolean isRefreshNeeded(Credentials credentials, int refreshDuration) {
@@ -0,0 +1,60 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws;
+
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+
+/**
+ * Aspect to record rpc calls made within a traced operation as child spans. Asynchronous
+ * calls made through {@code CompletableFutures} are traced there, when they complete.
+ */
+@Aspect
+public class TracingAspect {
+
+  /**
+   * Tracing advice around join point.
+   *
+   * @param jp join point.
+   * @return original method returns.
+   * @throws Throwable original method throwables.
+   */
+  @Around("com.cloudera.director.aws.LoggingAspect.ec2Call()"
+      + " || com.cloudera.director.aws.LoggingAspect.iamCall()"
+      + " || com.cloudera.director.aws.LoggingAspect.kmsCall()"
+      + " || com.cloudera.director.aws.LoggingAspect.rdsCall()")
+  public Object trace(ProceedingJoinPoint jp) throws Throwable {
+    if (!Tracing.isEnabled()) {
+      return jp.proceed();
+    }
+    MethodSignature ms = MethodSignature.class.cast(jp.getSignature());
+    try (Span span = Tracing.startChildSpan(
+        ms.getDeclaringType().getSimpleName() + "::" + ms.getMethod().getName())) {
+      try {
+        Object result = jp.proceed();
+        span.setOk();
+        return result;
+      } catch (Throwable e) {
+        span.recordError(e);
+        throw e;
+      }
+    }
+  }
+}
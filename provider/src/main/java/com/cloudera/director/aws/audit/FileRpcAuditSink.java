@@ -0,0 +1,100 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends RPC audit records to a local file, one JSON object per line.
+ */
+public final class FileRpcAuditSink implements RpcAuditSink {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileRpcAuditSink.class);
+
+  private final File file;
+  private Writer out;
+  private boolean failed;
+
+  /**
+   * Creates a file RPC audit sink, appending to the specified file.
+   *
+   * @param file the file
+   */
+  public FileRpcAuditSink(File file) {
+    this.file = requireNonNull(file, "file is null");
+  }
+
+  @Override
+  public void write(RpcAuditRecord record) {
+    if (failed) {
+      return;
+    }
+    try {
+      if (out == null) {
+        out = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+      }
+      out.write(record.toJson());
+      out.write('\n');
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  @Override
+  public void flush() {
+    if (out != null && !failed) {
+      try {
+        out.flush();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close RPC audit file {}", file, e);
+      }
+      out = null;
+    }
+  }
+
+  private void fail(IOException e) {
+    // Auditing must never break provisioning, so stop writing after the first failure
+    failed = true;
+    LOG.warn("Unable to write RPC audit records to {}, RPC auditing output is disabled", file, e);
+  }
+
+  @Override
+  public String toString() {
+    return "file " + file;
+  }
+}
@@ -0,0 +1,52 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes RPC audit records as JSON to a dedicated logger, so that they can be routed to their
+ * own appender by the logging configuration.
+ */
+public final class LoggerRpcAuditSink implements RpcAuditSink {
+
+  /**
+   * The name of the audit logger.
+   */
+  public static final String LOGGER_NAME = "com.cloudera.director.aws.audit.rpc";
+
+  private static final Logger AUDIT_LOG = LoggerFactory.getLogger(LOGGER_NAME);
+
+  @Override
+  public void write(RpcAuditRecord record) {
+    if (AUDIT_LOG.isInfoEnabled()) {
+      AUDIT_LOG.info(record.toJson());
+    }
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public String toString() {
+    return "logger " + LOGGER_NAME;
+  }
+}
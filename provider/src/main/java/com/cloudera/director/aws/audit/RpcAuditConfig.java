@@ -0,0 +1,114 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * The configuration of the RPC audit log.
+ */
+public final class RpcAuditConfig {
+
+  /**
+   * How much is recorded about a call.
+   */
+  public enum Verbosity {
+    /**
+     * Nothing is recorded.
+     */
+    OFF,
+    /**
+     * The action, latency and error code are recorded.
+     */
+    SUMMARY,
+    /**
+     * The AWS request ID and the resource IDs referenced by the request are also recorded.
+     */
+    FULL
+  }
+
+  /**
+   * The default capacity of the record buffer.
+   */
+  public static final int DEFAULT_BUFFER_CAPACITY = 8192;
+
+  private final double sampleRate;
+  private final Verbosity defaultVerbosity;
+  private final Map<String, Verbosity> verbosityByAction;
+  private final int bufferCapacity;
+
+  /**
+   * Creates an RPC audit configuration.
+   *
+   * @param sampleRate        the fraction of successful calls that are recorded, between 0 and
+   *                          1; failed calls are always recorded
+   * @param defaultVerbosity  the verbosity of actions without a specific verbosity
+   * @param verbosityByAction the verbosity of specific actions, keyed by method name, such as
+   *                          {@code describeInstances}, or by qualified action, such as
+   *                          {@code AmazonEC2Client::describeInstances}, or
+   *                          {@code ec2::describeInstances} for asynchronous calls
+   * @param bufferCapacity    the capacity of the record buffer
+   */
+  public RpcAuditConfig(double sampleRate, Verbosity defaultVerbosity,
+      Map<String, Verbosity> verbosityByAction, int bufferCapacity) {
+    checkArgument(sampleRate >= 0.0 && sampleRate <= 1.0,
+        "sampleRate must be between 0 and 1: %s", sampleRate);
+    checkArgument(bufferCapacity > 0, "bufferCapacity must be positive: %s", bufferCapacity);
+    this.sampleRate = sampleRate;
+    this.defaultVerbosity = requireNonNull(defaultVerbosity, "defaultVerbosity is null");
+    this.verbosityByAction =
+        ImmutableMap.copyOf(requireNonNull(verbosityByAction, "verbosityByAction is null"));
+    this.bufferCapacity = bufferCapacity;
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getBufferCapacity() {
+    return bufferCapacity;
+  }
+
+  /**
+   * Returns the verbosity of the specified action.
+   *
+   * @param action     the qualified action, such as {@code AmazonEC2Client::describeInstances}
+   * @param methodName the method name, such as {@code describeInstances}
+   * @return the verbosity of the action
+   */
+  public Verbosity getVerbosity(String action, String methodName) {
+    Verbosity verbosity = verbosityByAction.get(action);
+    if (verbosity == null) {
+      verbosity = verbosityByAction.get(methodName);
+    }
+    return (verbosity == null) ? defaultVerbosity : verbosity;
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("sampleRate", sampleRate)
+        .add("defaultVerbosity", defaultVerbosity)
+        .add("verbosityByAction", verbosityByAction)
+        .add("bufferCapacity", bufferCapacity)
+        .toString();
+  }
+}
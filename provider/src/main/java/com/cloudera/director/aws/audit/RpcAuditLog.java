@@ -0,0 +1,316 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static java.util.Objects.requireNonNull;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.AmazonWebServiceResult;
+import com.amazonaws.ResponseMetadata;
+import com.cloudera.director.aws.audit.RpcAuditConfig.Verbosity;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Process-wide audit log of AWS calls.</p>
+ * <p>Calls are recorded as structured {@link RpcAuditRecord}s into a lock-free ring buffer,
+ * which a dedicated thread drains to the configured sink. Nothing about a call is rendered on
+ * the calling thread, and when the audit log is disabled, the only cost of a call is a
+ * volatile read.</p>
+ * <p>Each action has a verbosity, and successful calls are sampled at the configured rate.
+ * Failed calls are recorded whenever their action is not turned off.</p>
+ */
+public final class RpcAuditLog {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RpcAuditLog.class);
+
+  /**
+   * How often the buffer is drained.
+   */
+  private static final long DRAIN_INTERVAL_MILLIS = 500L;
+
+  /**
+   * The maximum number of resource IDs recorded per call.
+   */
+  private static final int MAX_RECORDED_RESOURCE_IDS = 20;
+
+  /**
+   * The public getters of each request class that return resource IDs.
+   */
+  private static final ClassValue<List<Method>> RESOURCE_ID_GETTERS =
+      new ClassValue<List<Method>>() {
+        @Override
+        protected List<Method> computeValue(Class<?> type) {
+          return findResourceIdGetters(type);
+        }
+      };
+
+  /**
+   * The running auditor, or {@code null} if the audit log is disabled.
+   */
+  private static volatile Auditor auditor;
+
+  /**
+   * Starts the audit log with the specified configuration and sink, stopping the previous
+   * one.
+   *
+   * @param config the configuration
+   * @param sink   the sink to which records are drained
+   */
+  public static synchronized void start(RpcAuditConfig config, RpcAuditSink sink) {
+    stop();
+    auditor = new Auditor(config, sink);
+    LOG.info("RPC audit log is writing to {} with {}", sink, config);
+  }
+
+  /**
+   * Stops the audit log, draining any buffered records first.
+   */
+  public static synchronized void stop() {
+    Auditor previous = auditor;
+    auditor = null;
+    if (previous != null) {
+      previous.close();
+      LOG.info("RPC audit log is disabled");
+    }
+  }
+
+  /**
+   * Returns whether the audit log is enabled.
+   *
+   * @return whether the audit log is enabled
+   */
+  public static boolean isEnabled() {
+    return auditor != null;
+  }
+
+  /**
+   * Returns the verbosity of the specified action.
+   *
+   * @param action     the qualified action, such as {@code AmazonEC2Client::describeInstances}
+   * @param methodName the method name, such as {@code describeInstances}
+   * @return the verbosity of the action, which is {@code OFF} if the audit log is disabled
+   */
+  public static Verbosity getVerbosity(String action, String methodName) {
+    Auditor current = auditor;
+    return (current == null) ? Verbosity.OFF : current.config.getVerbosity(action, methodName);
+  }
+
+  /**
+   * Returns whether a successful call should be recorded, according to the sample rate.
+   *
+   * @return whether a successful call should be recorded
+   */
+  public static boolean isSampled() {
+    Auditor current = auditor;
+    if (current == null) {
+      return false;
+    }
+    double sampleRate = current.config.getSampleRate();
+    return sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate;
+  }
+
+  /**
+   * Records a call. Only the fields allowed by the verbosity are extracted from the request,
+   * result and error.
+   *
+   * @param action       the qualified action
+   * @param verbosity    the verbosity of the action
+   * @param startMillis  the time at which the call started, in milliseconds since the epoch
+   * @param latencyNanos the latency of the call, in nanoseconds
+   * @param request      the request, or {@code null}
+   * @param result       the result if the call succeeded, or {@code null}
+   * @param error        the error if the call failed, or {@code null}
+   */
+  public static void record(String action, Verbosity verbosity, long startMillis,
+      long latencyNanos, Object request, Object result, Throwable error) {
+    Auditor current = auditor;
+    if (current == null || verbosity == Verbosity.OFF) {
+      return;
+    }
+
+    String errorCode = null;
+    if (error instanceof AmazonServiceException) {
+      errorCode = ((AmazonServiceException) error).getErrorCode();
+    } else if (error != null) {
+      errorCode = error.getClass().getSimpleName();
+    }
+
+    String requestId = null;
+    List<String> resourceIds = Collections.emptyList();
+    int resourceCount = 0;
+    if (verbosity == Verbosity.FULL) {
+      requestId = getRequestId(result, error);
+      if (request instanceof AmazonWebServiceRequest) {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        resourceCount = collectResourceIds(request, builder);
+        resourceIds = builder.build();
+      }
+    }
+
+    current.buffer.offer(new RpcAuditRecord(startMillis, action,
+        TimeUnit.NANOSECONDS.toMicros(latencyNanos), errorCode, requestId, resourceIds,
+        resourceCount));
+  }
+
+  /**
+   * Drains buffered records to the sink immediately.
+   */
+  @VisibleForTesting
+  static void drain() {
+    Auditor current = auditor;
+    if (current != null) {
+      current.drain();
+    }
+  }
+
+  private static String getRequestId(Object result, Throwable error) {
+    if (error instanceof AmazonServiceException) {
+      return ((AmazonServiceException) error).getRequestId();
+    }
+    if (result instanceof AmazonWebServiceResult) {
+      ResponseMetadata metadata = ((AmazonWebServiceResult<?>) result).getSdkResponseMetadata();
+      return (metadata == null) ? null : metadata.getRequestId();
+    }
+    return null;
+  }
+
+  /**
+   * Adds up to {@link #MAX_RECORDED_RESOURCE_IDS} resource IDs referenced by a request to the
+   * specified builder, and returns the total number of resource IDs it references.
+   */
+  private static int collectResourceIds(Object request, ImmutableList.Builder<String> builder) {
+    int count = 0;
+    for (Method getter : RESOURCE_ID_GETTERS.get(request.getClass())) {
+      Object value;
+      try {
+        value = getter.invoke(request);
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        continue;
+      }
+      if (value instanceof String) {
+        if (count++ < MAX_RECORDED_RESOURCE_IDS) {
+          builder.add((String) value);
+        }
+      } else if (value instanceof Collection) {
+        for (Object element : (Collection<?>) value) {
+          if (element instanceof String && count++ < MAX_RECORDED_RESOURCE_IDS) {
+            builder.add((String) element);
+          }
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the public getters of a request class that return resource IDs, that is, a string
+   * or a list of strings, and are named like {@code getInstanceId}, {@code getVolumeIds} or
+   * {@code getResources}.
+   */
+  @VisibleForTesting
+  static List<Method> findResourceIdGetters(Class<?> type) {
+    ImmutableList.Builder<Method> getters = ImmutableList.builder();
+    for (Method method : type.getMethods()) {
+      String name = method.getName();
+      if (method.getParameterCount() != 0 || Modifier.isStatic(method.getModifiers())
+          || !name.startsWith("get")) {
+        continue;
+      }
+      boolean isString = method.getReturnType() == String.class;
+      boolean isList = List.class.isAssignableFrom(method.getReturnType());
+      if ((isString && name.endsWith("Id")) || (isList && name.endsWith("Ids"))
+          || (isList && name.equals("getResources"))) {
+        getters.add(method);
+      }
+    }
+    return getters.build();
+  }
+
+  /**
+   * A running audit log.
+   */
+  private static final class Auditor {
+
+    private final RpcAuditConfig config;
+    private final RpcAuditSink sink;
+    private final RpcAuditRingBuffer buffer;
+    private final ScheduledExecutorService drainer;
+    private long reportedDrops;
+
+    Auditor(RpcAuditConfig config, RpcAuditSink sink) {
+      this.config = requireNonNull(config, "config is null");
+      this.sink = requireNonNull(sink, "sink is null");
+      this.buffer = new RpcAuditRingBuffer(config.getBufferCapacity());
+      this.drainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+          .setNameFormat("director-aws-rpc-audit-%d")
+          .setDaemon(true)
+          .build());
+      drainer.scheduleWithFixedDelay(this::drain, DRAIN_INTERVAL_MILLIS, DRAIN_INTERVAL_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void drain() {
+      try {
+        if (buffer.drainTo(sink::write) > 0) {
+          sink.flush();
+        }
+        long dropped = buffer.getDropped();
+        if (dropped > reportedDrops) {
+          LOG.warn("Dropped {} RPC audit records because the buffer of {} was full",
+              dropped - reportedDrops, buffer.capacity());
+          reportedDrops = dropped;
+        }
+      } catch (RuntimeException e) {
+        // Keep the scheduled drain running
+        LOG.warn("Unable to drain RPC audit records", e);
+      }
+    }
+
+    void close() {
+      drainer.shutdown();
+      try {
+        if (!drainer.awaitTermination(5, TimeUnit.SECONDS)) {
+          drainer.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      drain();
+      sink.close();
+    }
+  }
+
+  /**
+   * Private constructor to prevent instantiation.
+   */
+  private RpcAuditLog() {
+  }
+}
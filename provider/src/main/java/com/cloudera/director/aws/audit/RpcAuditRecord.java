@@ -0,0 +1,142 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * The structured record of a single AWS call. Records are cheap to create and hold no
+ * reference to the request or result of the call, so that the audit log never keeps large
+ * responses alive.
+ */
+public final class RpcAuditRecord {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final long timestampMillis;
+  private final String action;
+  private final long latencyMicros;
+  private final String errorCode;
+  private final String requestId;
+  private final List<String> resourceIds;
+  private final int resourceCount;
+
+  /**
+   * Creates an RPC audit record.
+   *
+   * @param timestampMillis the time at which the call started, in milliseconds since the epoch
+   * @param action          the action, such as {@code AmazonEC2Client::describeInstances}
+   * @param latencyMicros   the latency of the call, in microseconds
+   * @param errorCode       the error code if the call failed, or {@code null}
+   * @param requestId       the AWS request ID, or {@code null} if unknown or not recorded
+   * @param resourceIds     the recorded resource IDs referenced by the request
+   * @param resourceCount   the total number of resource IDs referenced by the request, which
+   *                        may exceed the number recorded
+   */
+  public RpcAuditRecord(long timestampMillis, String action, long latencyMicros,
+      String errorCode, String requestId, List<String> resourceIds, int resourceCount) {
+    this.timestampMillis = timestampMillis;
+    this.action = requireNonNull(action, "action is null");
+    this.latencyMicros = latencyMicros;
+    this.errorCode = errorCode;
+    this.requestId = requestId;
+    this.resourceIds = ImmutableList.copyOf(requireNonNull(resourceIds, "resourceIds is null"));
+    this.resourceCount = resourceCount;
+  }
+
+  public long getTimestampMillis() {
+    return timestampMillis;
+  }
+
+  public String getAction() {
+    return action;
+  }
+
+  public long getLatencyMicros() {
+    return latencyMicros;
+  }
+
+  public String getErrorCode() {
+    return errorCode;
+  }
+
+  public String getRequestId() {
+    return requestId;
+  }
+
+  public List<String> getResourceIds() {
+    return resourceIds;
+  }
+
+  public int getResourceCount() {
+    return resourceCount;
+  }
+
+  /**
+   * Returns this record as a single-line JSON object. Fields that were not recorded are
+   * omitted.
+   *
+   * @return this record as JSON
+   */
+  public String toJson() {
+    StringWriter writer = new StringWriter(160);
+    try (JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+      generator.writeStartObject();
+      generator.writeStringField("time", Instant.ofEpochMilli(timestampMillis).toString());
+      generator.writeStringField("action", action);
+      generator.writeNumberField("latencyMicros", latencyMicros);
+      if (errorCode != null) {
+        generator.writeStringField("errorCode", errorCode);
+      }
+      if (requestId != null) {
+        generator.writeStringField("requestId", requestId);
+      }
+      if (resourceCount > 0) {
+        generator.writeArrayFieldStart("resourceIds");
+        for (String resourceId : resourceIds) {
+          generator.writeString(resourceId);
+        }
+        generator.writeEndArray();
+        generator.writeNumberField("resourceCount", resourceCount);
+      }
+      generator.writeEndObject();
+    } catch (IOException e) {
+      // Writing to a string does not fail
+      throw new IllegalStateException(e);
+    }
+    return writer.toString();
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("action", action)
+        .add("latencyMicros", latencyMicros)
+        .add("errorCode", errorCode)
+        .add("requestId", requestId)
+        .add("resourceCount", resourceCount)
+        .toString();
+  }
+}
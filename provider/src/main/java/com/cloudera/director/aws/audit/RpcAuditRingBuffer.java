@@ -0,0 +1,116 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * <p>A bounded, lock-free ring buffer of audit records, with any number of producers and a
+ * single consumer.</p>
+ * <p>Producers claim a slot by advancing the tail, then publish their record into it. The
+ * consumer takes published records from the head, clearing each slot before advancing past
+ * it, so that a claimed slot is always empty. When the buffer is full, records are dropped
+ * and counted rather than blocking the calling thread.</p>
+ */
+final class RpcAuditRingBuffer {
+
+  private final AtomicReferenceArray<RpcAuditRecord> slots;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * Creates a ring buffer.
+   *
+   * @param capacity the capacity, rounded up to a power of two
+   */
+  RpcAuditRingBuffer(int capacity) {
+    checkArgument(capacity > 0 && capacity <= (1 << 30), "capacity out of range: %s", capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) {
+      size <<= 1;
+    }
+    this.slots = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Returns the capacity of this buffer.
+   *
+   * @return the capacity of this buffer
+   */
+  int capacity() {
+    return slots.length();
+  }
+
+  /**
+   * Adds a record, unless the buffer is full.
+   *
+   * @param record the record
+   * @return whether the record was added
+   */
+  boolean offer(RpcAuditRecord record) {
+    while (true) {
+      long currentTail = tail.get();
+      if (currentTail - head.get() >= slots.length()) {
+        dropped.incrementAndGet();
+        return false;
+      }
+      if (tail.compareAndSet(currentTail, currentTail + 1)) {
+        slots.lazySet((int) currentTail & mask, record);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Passes every published record to the specified consumer, in the order in which slots were
+   * claimed. Draining stops at the first claimed slot whose record is not yet published. Must
+   * only be called by a single thread at a time.
+   *
+   * @param consumer the consumer
+   * @return the number of records drained
+   */
+  int drainTo(Consumer<RpcAuditRecord> consumer) {
+    int count = 0;
+    long currentHead = head.get();
+    while (currentHead < tail.get()) {
+      int index = (int) currentHead & mask;
+      RpcAuditRecord record = slots.get(index);
+      if (record == null) {
+        break;
+      }
+      slots.lazySet(index, null);
+      head.lazySet(++currentHead);
+      consumer.accept(record);
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the total number of records dropped because the buffer was full.
+   *
+   * @return the total number of dropped records
+   */
+  long getDropped() {
+    return dropped.get();
+  }
+}
@@ -0,0 +1,367 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.clientprovider;
+
+import static java.util.Objects.requireNonNull;
+
+import com.amazonaws.AmazonWebServiceClient;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Process-wide registry of AWS clients, shared by all client providers.</p>
+ * <p>Clients are keyed by client type, credentials identity, endpoint and client configuration,
+ * so that providers configured alike share one client, along with its connection pool and
+ * executor, instead of each building their own. Each client is reference counted by the owners
+ * that acquired it, and is shut down when the last owner releases it, either explicitly or by
+ * being garbage collected.</p>
+ */
+public final class AWSClientRegistry {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AWSClientRegistry.class);
+
+  /**
+   * The process-wide registry.
+   */
+  private static final AWSClientRegistry INSTANCE = new AWSClientRegistry();
+
+  /**
+   * Returns the process-wide registry.
+   *
+   * @return the process-wide registry
+   */
+  public static AWSClientRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * The pooled clients, by key.
+   */
+  private final Map<Key, PooledClient> clients = new HashMap<>();
+
+  /**
+   * The queue of references to owners that have been garbage collected.
+   */
+  private final ReferenceQueue<Object> collectedOwners = new ReferenceQueue<>();
+
+  /**
+   * Creates an empty registry.
+   */
+  @VisibleForTesting
+  AWSClientRegistry() {
+  }
+
+  /**
+   * Returns the shared client for the specified parameters, creating it with the specified
+   * factory if there is none, and adds the specified owner to its references. The factory runs
+   * outside the registry lock, so that a slow factory only delays the callers that need the
+   * same client.
+   *
+   * @param clientType             the client type
+   * @param credentialsProvider    the credentials provider
+   * @param endpoint               the endpoint, or another string identifying how the endpoint
+   *                               is determined
+   * @param clientConfiguration    the client configuration
+   * @param owner                  the owner of the reference
+   * @param factory                the factory used to create the client if necessary
+   * @param <C>                    the type of client
+   * @return the shared client
+   */
+  public <C extends AmazonWebServiceClient> C acquire(Class<C> clientType,
+      AWSCredentialsProvider credentialsProvider, String endpoint,
+      ClientConfiguration clientConfiguration, Object owner, Supplier<C> factory) {
+    Key key = new Key(clientType, credentialsIdentity(credentialsProvider), endpoint,
+        configurationIdentity(clientConfiguration));
+
+    PooledClient pooledClient;
+    boolean create = false;
+    synchronized (this) {
+      expungeCollectedOwners();
+
+      pooledClient = clients.get(key);
+      if (pooledClient == null) {
+        pooledClient = new PooledClient(key);
+        clients.put(key, pooledClient);
+        create = true;
+      }
+      pooledClient.owners.add(new OwnerReference(owner, pooledClient, collectedOwners));
+    }
+
+    if (create) {
+      try {
+        pooledClient.client.complete(requireNonNull(factory.get(), "client is null"));
+        LOG.info("<< Created shared {} for endpoint {}", clientType.getSimpleName(), endpoint);
+      } catch (RuntimeException | Error e) {
+        pooledClient.client.completeExceptionally(e);
+        synchronized (this) {
+          clients.remove(key, pooledClient);
+        }
+        throw e;
+      }
+    }
+
+    try {
+      return clientType.cast(pooledClient.client.join());
+    } catch (CompletionException e) {
+      // Another caller failed to create the client
+      Throwables.throwIfUnchecked(e.getCause());
+      throw e;
+    }
+  }
+
+  /**
+   * Removes all references held by the specified owner, shutting down any client that is no
+   * longer referenced.
+   *
+   * @param owner the owner
+   */
+  public synchronized void release(Object owner) {
+    expungeCollectedOwners();
+
+    for (PooledClient pooledClient : clients.values().toArray(new PooledClient[0])) {
+      pooledClient.owners.removeIf(reference -> {
+        if (reference.get() == owner) {
+          reference.clear();
+          return true;
+        }
+        return false;
+      });
+      shutdownIfUnreferenced(pooledClient);
+    }
+  }
+
+  /**
+   * Returns the number of references to each shared client, keyed by a description of the
+   * client type and endpoint.
+   *
+   * @return the number of references to each shared client
+   */
+  public synchronized Map<String, Integer> getReferenceCounts() {
+    expungeCollectedOwners();
+
+    ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+    for (PooledClient pooledClient : clients.values()) {
+      builder.put(pooledClient.key.toString(), pooledClient.owners.size());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Releases the references of owners that have been garbage collected.
+   */
+  private void expungeCollectedOwners() {
+    Reference<?> reference;
+    while ((reference = collectedOwners.poll()) != null) {
+      OwnerReference ownerReference = (OwnerReference) reference;
+      PooledClient pooledClient = ownerReference.pooledClient;
+      pooledClient.owners.remove(ownerReference);
+      shutdownIfUnreferenced(pooledClient);
+    }
+  }
+
+  /**
+   * Shuts down the specified client if it is no longer referenced.
+   *
+   * @param pooledClient the pooled client
+   */
+  private void shutdownIfUnreferenced(PooledClient pooledClient) {
+    if (pooledClient.owners.isEmpty() && clients.remove(pooledClient.key, pooledClient)) {
+      LOG.info(">> Shutting down unreferenced shared {}", pooledClient.key);
+      // The client may still be being created, in which case it is shut down once it is
+      pooledClient.client.thenAccept(AmazonWebServiceClient::shutdown);
+    }
+  }
+
+  /**
+   * Returns an object identifying the credentials supplied by the specified provider. Static
+   * credentials are identified by their value, and the default provider chain is shared by the
+   * whole process; any other provider is identified by the provider instance itself.
+   *
+   * @param credentialsProvider the credentials provider
+   * @return an object identifying the credentials supplied by the specified provider
+   */
+  private static Object credentialsIdentity(AWSCredentialsProvider credentialsProvider) {
+    if (credentialsProvider instanceof AWSStaticCredentialsProvider) {
+      AWSCredentials credentials = credentialsProvider.getCredentials();
+      String sessionToken = (credentials instanceof AWSSessionCredentials)
+          ? ((AWSSessionCredentials) credentials).getSessionToken()
+          : null;
+      // Avoid holding on to the secret itself
+      return Arrays.asList(
+          credentials.getAWSAccessKeyId(),
+          Hashing.sha256().hashString(
+              Strings.nullToEmpty(credentials.getAWSSecretKey()) + Strings.nullToEmpty(sessionToken),
+              StandardCharsets.UTF_8).toString());
+    }
+    if (credentialsProvider instanceof DefaultAWSCredentialsProviderChain) {
+      return DefaultAWSCredentialsProviderChain.class;
+    }
+    return new IdentityKey(credentialsProvider);
+  }
+
+  /**
+   * Returns an object identifying the specified client configuration, which does not implement
+   * equality itself.
+   *
+   * @param clientConfiguration the client configuration
+   * @return an object identifying the specified client configuration
+   */
+  @VisibleForTesting
+  static List<Object> configurationIdentity(ClientConfiguration clientConfiguration) {
+    return Arrays.asList(
+        clientConfiguration.getProtocol(),
+        clientConfiguration.getMaxConnections(),
+        clientConfiguration.getUserAgentPrefix(),
+        clientConfiguration.getUserAgentSuffix(),
+        clientConfiguration.getProxyHost(),
+        clientConfiguration.getProxyPort(),
+        clientConfiguration.getProxyUsername(),
+        clientConfiguration.getProxyPassword(),
+        clientConfiguration.getProxyDomain(),
+        clientConfiguration.getProxyWorkstation(),
+        clientConfiguration.getNonProxyHosts(),
+        clientConfiguration.isPreemptiveBasicProxyAuth(),
+        clientConfiguration.getMaxErrorRetry(),
+        new IdentityKey(clientConfiguration.getRetryPolicy()),
+        clientConfiguration.getSocketTimeout(),
+        clientConfiguration.getConnectionTimeout(),
+        clientConfiguration.getRequestTimeout(),
+        clientConfiguration.getClientExecutionTimeout(),
+        clientConfiguration.useThrottledRetries(),
+        clientConfiguration.useGzip(),
+        clientConfiguration.useTcpKeepAlive(),
+        clientConfiguration.getConnectionTTL(),
+        clientConfiguration.getConnectionMaxIdleMillis(),
+        clientConfiguration.getSignerOverride(),
+        clientConfiguration.getHeaders());
+  }
+
+  /**
+   * Key of a shared client.
+   */
+  private static final class Key {
+    private final Class<?> clientType;
+    private final Object credentialsIdentity;
+    private final String endpoint;
+    private final List<Object> configurationIdentity;
+
+    Key(Class<?> clientType, Object credentialsIdentity, String endpoint,
+        List<Object> configurationIdentity) {
+      this.clientType = clientType;
+      this.credentialsIdentity = credentialsIdentity;
+      this.endpoint = endpoint;
+      this.configurationIdentity = configurationIdentity;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key key = (Key) o;
+      return clientType.equals(key.clientType)
+          && credentialsIdentity.equals(key.credentialsIdentity)
+          && Objects.equals(endpoint, key.endpoint)
+          && configurationIdentity.equals(key.configurationIdentity);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(clientType, credentialsIdentity, endpoint, configurationIdentity);
+    }
+
+    @Override
+    public String toString() {
+      return clientType.getSimpleName() + "@" + endpoint;
+    }
+  }
+
+  /**
+   * Wrapper that compares an object by identity.
+   */
+  private static final class IdentityKey {
+    private final Object object;
+
+    IdentityKey(Object object) {
+      this.object = object;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return (o instanceof IdentityKey) && ((IdentityKey) o).object == object;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(object);
+    }
+  }
+
+  /**
+   * A shared client, which is completed once it has been created, and the references of its
+   * owners.
+   */
+  private static final class PooledClient {
+    private final Key key;
+    private final CompletableFuture<AmazonWebServiceClient> client = new CompletableFuture<>();
+    private final List<OwnerReference> owners = new ArrayList<>();
+
+    PooledClient(Key key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * A weak reference from an owner to a shared client, which is enqueued when the owner is
+   * garbage collected without having released the client.
+   */
+  private static final class OwnerReference extends WeakReference<Object> {
+    private final PooledClient pooledClient;
+
+    OwnerReference(Object owner, PooledClient pooledClient, ReferenceQueue<Object> queue) {
+      super(owner, queue);
+      this.pooledClient = pooledClient;
+    }
+  }
+}
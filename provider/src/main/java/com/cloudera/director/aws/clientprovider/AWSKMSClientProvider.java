@@ -22,6 +22,7 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.kms.AWSKMS;
 import com.amazonaws.services.kms.AWSKMSClient;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSExceptions;
@@ -64,7 +65,7 @@ public class AWSKMSClientProvider extends AbstractConfiguredOnceClientProvider<A
       LocalizationContext providerLocalizationContext,
       boolean verify) {
 
-    AWSKMSClient client = new AWSKMSClient(awsCredentialsProvider, clientConfiguration);
+    AWSKMSClient client;
 
     try {
       String regionEndpoint = configuration.getConfigurationValue(KMS_REGION_ENDPOINT, providerLocalizationContext);
@@ -72,30 +73,39 @@ public class AWSKMSClientProvider extends AbstractConfiguredOnceClientProvider<A
         LOG.info("<< Using configured region endpoint for KMS client: {}", regionEndpoint);
       } else {
         String region = configuration.getConfigurationValue(REGION, providerLocalizationContext);
-        regionEndpoint = getKMSEndpointForRegion(client, region);
+        regionEndpoint = getKMSEndpointForRegion(region);
       }
-      client.setEndpoint(regionEndpoint);
+      client = acquireClient(AWSKMSClient.class, regionEndpoint, this::createClient);
     } catch (AmazonClientException e) {
       AWSSecurityTokenServiceAsyncClient stsClient = new AWSSTSClientProvider(awsCredentialsProvider,
           clientConfiguration) .doConfigure(configuration, accumulator, providerLocalizationContext, verify);
       throw AWSExceptions.propagate(stsClient, e);
     } catch (IllegalArgumentException e) {
       accumulator.addError(REGION.unwrap().getConfigKey(), e.getMessage());
+      // The client is discarded because of the error, so it is not shared
+      client = createClient();
     }
 
     return client;
   }
 
+  /**
+   * Creates a client with the default endpoint.
+   *
+   * @return a client with the default endpoint
+   */
+  private AWSKMSClient createClient() {
+    return new AWSKMSClient(awsCredentialsProvider, clientConfiguration);
+  }
+
   /**
    * Returns the KMS endpoint URL for the specified region.
    *
-   * @param kmsClient  the KMS client
    * @param regionName the desired region
    * @return the endpoint URL for the specified region
    * @throws IllegalArgumentException if the endpoint cannot be determined
    */
-  private static String getKMSEndpointForRegion(AWSKMSClient kmsClient, String regionName) {
-    requireNonNull(kmsClient, "kmsClient is null");
+  private static String getKMSEndpointForRegion(String regionName) {
     requireNonNull(regionName, "regionName is null");
 
     com.amazonaws.regions.Region region = RegionUtils.getRegion(regionName);
@@ -104,7 +114,7 @@ public class AWSKMSClientProvider extends AbstractConfiguredOnceClientProvider<A
       throw new IllegalArgumentException(String.format("Unable to find the region %s", regionName));
     }
 
-    String serviceName = kmsClient.getServiceName();
+    String serviceName = AWSKMS.ENDPOINT_PREFIX;
     String protocolPrefix = region.hasHttpsEndpoint(serviceName) ? "https://" : "http://";
     return protocolPrefix + region.getServiceEndpoint(serviceName);
   }
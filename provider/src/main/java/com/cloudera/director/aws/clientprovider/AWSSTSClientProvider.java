@@ -53,8 +53,7 @@ public class AWSSTSClientProvider extends AbstractConfiguredOnceClientProvider<A
   @Override
   protected AWSSecurityTokenServiceAsyncClient doConfigure(Configured configuration, PluginExceptionConditionAccumulator accumulator, LocalizationContext providerLocalizationContext, boolean verify) {
 
-    AWSSecurityTokenServiceAsyncClient client =
-        new AWSSecurityTokenServiceAsyncClient(awsCredentialsProvider, clientConfiguration);
+    AWSSecurityTokenServiceAsyncClient client;
 
     try {
       String regionEndpoint = configuration.getConfigurationValue(STS_REGION_ENDPOINT, providerLocalizationContext);
@@ -63,12 +62,23 @@ public class AWSSTSClientProvider extends AbstractConfiguredOnceClientProvider<A
       // Other regions/endpoints must be explicitly enabled by the user.
       if (regionEndpoint != null) {
         LOG.info("<< Using configured region endpoint for STS client: {}", regionEndpoint);
-        client.setEndpoint(regionEndpoint);
       }
+      client = acquireClient(AWSSecurityTokenServiceAsyncClient.class, regionEndpoint,
+          this::createClient);
     } catch (AmazonClientException e) {
-      throw AWSExceptions.propagate(client, e);
+      throw AWSExceptions.propagate(createClient(), e);
     }
 
     return client;
   }
+
+  /**
+   * Creates a client with the default endpoint.
+   *
+   * @return a client with the default endpoint
+   */
+  private AWSSecurityTokenServiceAsyncClient createClient() {
+    return new AWSSecurityTokenServiceAsyncClient(awsCredentialsProvider, clientConfiguration,
+        SharedClientExecutor.getExecutorService());
+  }
 }
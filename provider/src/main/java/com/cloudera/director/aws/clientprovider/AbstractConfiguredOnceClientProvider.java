@@ -16,6 +16,7 @@ package com.cloudera.director.aws.clientprovider;
 
 import static java.util.Objects.requireNonNull;
 
+import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.cloudera.director.spi.v2.model.Configured;
@@ -23,6 +24,8 @@ import com.cloudera.director.spi.v2.model.LocalizationContext;
 import com.cloudera.director.spi.v2.model.exception.PluginExceptionConditionAccumulator;
 
 import java.util.Objects;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * A simple implementation for objects which need to be configured once.
@@ -96,6 +99,57 @@ public abstract class AbstractConfiguredOnceClientProvider<T> implements ClientP
       LocalizationContext providerLocalizationContext,
       boolean verify);
 
+  /**
+   * Returns the client of the specified type for the specified endpoint that is shared by all
+   * client providers with the same credentials and client configuration, creating it if
+   * necessary. The shared client is referenced by this client provider until it is garbage
+   * collected, so whoever keeps the returned client must also keep this client provider
+   * reachable, and the returned client must not be reconfigured.
+   *
+   * @param clientType        the client type
+   * @param endpoint          the endpoint, or {@code null} to use the default endpoint
+   * @param clientConstructor the client constructor
+   * @param <C>               the type of client
+   * @return the shared client
+   */
+  protected <C extends AmazonWebServiceClient> C acquireClient(
+      Class<C> clientType, String endpoint, Supplier<C> clientConstructor) {
+    return acquireClient(clientType, endpoint, clientConstructor, (client) -> endpoint);
+  }
+
+  /**
+   * Returns the client of the specified type that is shared by all client providers with the
+   * same credentials, client configuration and endpoint key, creating it if necessary. When a
+   * client is created, its endpoint is determined by the specified resolver, which may use the
+   * client itself; if the resolver fails, the client is shut down.
+   *
+   * @param clientType        the client type
+   * @param endpointKey       a string identifying how the endpoint is determined
+   * @param clientConstructor the client constructor
+   * @param endpointResolver  the endpoint resolver, which may return {@code null} to use the
+   *                          default endpoint
+   * @param <C>               the type of client
+   * @return the shared client
+   */
+  protected <C extends AmazonWebServiceClient> C acquireClient(
+      Class<C> clientType, String endpointKey, Supplier<C> clientConstructor,
+      Function<? super C, String> endpointResolver) {
+    return AWSClientRegistry.getInstance().acquire(
+        clientType, awsCredentialsProvider, endpointKey, clientConfiguration, this, () -> {
+          C client = clientConstructor.get();
+          try {
+            String endpoint = endpointResolver.apply(client);
+            if (endpoint != null) {
+              client.setEndpoint(endpoint);
+            }
+          } catch (RuntimeException e) {
+            client.shutdown();
+            throw e;
+          }
+          return client;
+        });
+  }
+
   /**
    * Returns whether the specified configurations are equal.
    *
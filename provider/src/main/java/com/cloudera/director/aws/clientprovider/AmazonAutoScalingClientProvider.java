@@ -22,6 +22,7 @@ import com.amazonaws.AmazonClientException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.regions.RegionUtils;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSExceptions;
@@ -65,8 +66,7 @@ public class AmazonAutoScalingClientProvider
       LocalizationContext providerLocalizationContext,
       boolean verify) {
 
-    AmazonAutoScalingAsyncClient client =
-        new AmazonAutoScalingAsyncClient(awsCredentialsProvider, clientConfiguration);
+    AmazonAutoScalingAsyncClient client;
 
     try {
       String regionEndpoint = configuration.getConfigurationValue(AS_REGION_ENDPOINT, providerLocalizationContext);
@@ -74,29 +74,40 @@ public class AmazonAutoScalingClientProvider
         LOG.info("<< Using configured region endpoint for Auto Scaling client: {}", regionEndpoint);
       } else {
         String region = configuration.getConfigurationValue(REGION, providerLocalizationContext);
-        regionEndpoint = getASEndpointForRegion(client, region);
+        regionEndpoint = getASEndpointForRegion(region);
       }
-      client.setEndpoint(regionEndpoint);
+      client = acquireClient(AmazonAutoScalingAsyncClient.class, regionEndpoint, this::createClient);
     } catch (AmazonClientException e) {
       AWSSecurityTokenServiceAsyncClient stsClient = new AWSSTSClientProvider(awsCredentialsProvider,
           clientConfiguration) .doConfigure(configuration, accumulator, providerLocalizationContext, verify);
       throw AWSExceptions.propagate(stsClient, e);
     } catch (IllegalArgumentException e) {
       accumulator.addError(REGION.unwrap().getConfigKey(), e.getMessage());
+      // The client is discarded because of the error, so it is not shared
+      client = createClient();
     }
 
     return client;
   }
 
+  /**
+   * Creates a client with the default endpoint.
+   *
+   * @return a client with the default endpoint
+   */
+  private AmazonAutoScalingAsyncClient createClient() {
+    return new AmazonAutoScalingAsyncClient(awsCredentialsProvider, clientConfiguration,
+        SharedClientExecutor.getExecutorService());
+  }
+
   /**
    * Returns the Auto Scaling endpoint URL for the specified region.
    *
-   * @param asClient  the Auto Scaling client
    * @param regionName the desired region
    * @return the endpoint URL for the specified region
    * @throws IllegalArgumentException if the endpoint cannot be determined
    */
-  private static String getASEndpointForRegion(AmazonAutoScalingAsyncClient asClient, String regionName) {
+  private static String getASEndpointForRegion(String regionName) {
     requireNonNull(regionName, "regionName is null");
 
     com.amazonaws.regions.Region region = RegionUtils.getRegion(regionName);
@@ -105,7 +116,7 @@ public class AmazonAutoScalingClientProvider
       throw new IllegalArgumentException(String.format("Unable to find the region %s", regionName));
     }
 
-    String serviceName = asClient.getServiceName();
+    String serviceName = AmazonAutoScaling.ENDPOINT_PREFIX;
     String protocolPrefix = region.hasHttpsEndpoint(serviceName) ? "https://" : "http://";
     return protocolPrefix + region.getServiceEndpoint(serviceName);
   }
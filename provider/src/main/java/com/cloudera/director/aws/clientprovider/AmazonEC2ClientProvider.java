@@ -34,6 +34,7 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,19 +72,25 @@ public class AmazonEC2ClientProvider
       LocalizationContext providerLocalizationContext,
       boolean verify) {
 
-    AmazonEC2AsyncClient client = new AmazonEC2AsyncClient(awsCredentialsProvider, clientConfiguration);
+    AmazonEC2AsyncClient client;
 
     try {
       String regionEndpoint =
           configuration.getConfigurationValue(REGION_ENDPOINT, providerLocalizationContext);
       if (regionEndpoint != null) {
         LOG.info("<< Using configured region endpoint for EC2 client: {}", regionEndpoint);
+        client = acquireClient(AmazonEC2AsyncClient.class, regionEndpoint, this::createClient);
       } else {
         String region = configuration.getConfigurationValue(REGION, providerLocalizationContext);
-        regionEndpoint = getEndpointForRegion(client, region);
-        verify = false;
+        // Looking up the endpoint verifies the client, but only when the client is newly created
+        AtomicBoolean created = new AtomicBoolean(false);
+        client = acquireClient(AmazonEC2AsyncClient.class, "region:" + region, this::createClient,
+            (regionClient) -> {
+              created.set(true);
+              return getEndpointForRegion(regionClient, region);
+            });
+        verify = verify && !created.get();
       }
-      client.setEndpoint(regionEndpoint);
 
       if (verify) {
         // Attempt to use client, to validate credentials and connectivity
@@ -95,11 +102,23 @@ public class AmazonEC2ClientProvider
       throw AWSExceptions.propagate(stsClient, e);
     } catch (IllegalArgumentException e) {
       accumulator.addError(REGION.unwrap().getConfigKey(), e.getMessage());
+      // The client is discarded because of the error, so it is not shared
+      client = createClient();
     }
 
     return client;
   }
 
+  /**
+   * Creates a client with the default endpoint.
+   *
+   * @return a client with the default endpoint
+   */
+  private AmazonEC2AsyncClient createClient() {
+    return new AmazonEC2AsyncClient(awsCredentialsProvider, clientConfiguration,
+        SharedClientExecutor.getExecutorService());
+  }
+
   private static String getEndpointForRegion(AmazonEC2Client client, String regionName) {
     requireNonNull(client, "client is null");
     requireNonNull(regionName, "regionName is null");
@@ -67,17 +67,16 @@ public class AmazonIdentityManagementClientProvider
       LocalizationContext providerLocalizationContext,
       boolean verify) {
 
-    AmazonIdentityManagementClient client = new AmazonIdentityManagementClient(
-        awsCredentialsProvider, clientConfiguration);
+    AmazonIdentityManagementClient client = null;
 
     try {
       String iamEndpoint =
           configuration.getConfigurationValue(IAM_ENDPOINT, providerLocalizationContext);
       if (iamEndpoint != null) {
         LOG.info("<< Using configured IAM endpoint: {}", iamEndpoint);
-        client.setEndpoint(iamEndpoint);
       }
       // else use the single default endpoint for all of AWS (outside GovCloud)
+      client = acquireClient(AmazonIdentityManagementClient.class, iamEndpoint, this::createClient);
 
       if (verify) {
         // Attempt to use client, to validate credentials and connectivity
@@ -96,7 +95,17 @@ public class AmazonIdentityManagementClientProvider
       accumulator.addError(IAM_ENDPOINT.unwrap().getConfigKey(), e.getMessage());
     }
 
-    return client;
+    // The client is discarded if there was an error, so it is not shared
+    return (client != null) ? client : createClient();
+  }
+
+  /**
+   * Creates a client with the default endpoint.
+   *
+   * @return a client with the default endpoint
+   */
+  private AmazonIdentityManagementClient createClient() {
+    return new AmazonIdentityManagementClient(awsCredentialsProvider, clientConfiguration);
   }
 
   @Override
@@ -77,7 +77,7 @@ public class AmazonRDSClientProvider extends AbstractConfiguredOnceClientProvide
       LocalizationContext providerLocalizationContext,
       boolean verify) {
 
-    AmazonRDSClient client = new AmazonRDSClient(awsCredentialsProvider, clientConfiguration);
+    AmazonRDSClient client = null;
 
     try {
       String regionEndpoint =
@@ -93,7 +93,7 @@ public class AmazonRDSClientProvider extends AbstractConfiguredOnceClientProvide
         }
         regionEndpoint = getEndpointForRegion(rdsEndpoints, region);
       }
-      client.setEndpoint(regionEndpoint);
+      client = acquireClient(AmazonRDSClient.class, regionEndpoint, this::createClient);
 
       if (verify) {
         // Attempt to use client, to validate credentials and connectivity
@@ -114,7 +114,17 @@ public class AmazonRDSClientProvider extends AbstractConfiguredOnceClientProvide
       accumulator.addError(REGION.unwrap().getConfigKey(), e.getMessage());
     }
 
-    return client;
+    // The client is discarded if there was an error, so it is not shared
+    return (client != null) ? client : createClient();
+  }
+
+  /**
+   * Creates a client with the default endpoint.
+   *
+   * @return a client with the default endpoint
+   */
+  private AmazonRDSClient createClient() {
+    return new AmazonRDSClient(awsCredentialsProvider, clientConfiguration);
   }
 
   private static String getEndpointForRegion(RDSEndpoints endpoints, String regionName) {
@@ -0,0 +1,321 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.clientprovider;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.amazonaws.ClientConfiguration;
+import com.google.common.base.MoreObjects;
+import com.google.common.util.concurrent.ForwardingExecutorService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>The bounded executor shared by all asynchronous AWS clients.</p>
+ * <p>By default, every asynchronous SDK client creates its own fixed thread pool with as many
+ * threads as it has connections, so the number of threads grows with the number of clients.
+ * Instead, every asynchronous client is given a view of this single named executor, whose size
+ * is configured once for the process. When its queue is full, tasks run on the submitting
+ * thread, which slows down callers rather than failing their requests.</p>
+ * <p>Since the executor is shared by every client in the process, under load this means that
+ * SDK work, including the blocking HTTP request of an asynchronous call and any callbacks,
+ * can run on a caller's thread, such as a thread that only meant to start a call and wait on
+ * its future elsewhere, or a thread of an unrelated provider. Callers must therefore not
+ * assume that asynchronous calls return promptly. How often this happens is reported by
+ * {@link Statistics#getCallerRunsTasks()}; if it happens regularly, the number of threads
+ * should be raised with the {@code asyncExecutorThreads} client configuration property.</p>
+ */
+public final class SharedClientExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedClientExecutor.class);
+
+  /**
+   * The default number of threads, which matches the pool size of a single default SDK client.
+   */
+  public static final int DEFAULT_THREADS = ClientConfiguration.DEFAULT_MAX_CONNECTIONS;
+
+  /**
+   * The maximum number of tasks waiting for a thread.
+   */
+  private static final int QUEUE_CAPACITY = 1000;
+
+  /**
+   * The time after which idle threads are stopped, in seconds.
+   */
+  private static final long KEEP_ALIVE_SECONDS = 60L;
+
+  /**
+   * The shared executor.
+   */
+  private static final InstrumentedThreadPoolExecutor EXECUTOR =
+      new InstrumentedThreadPoolExecutor(DEFAULT_THREADS);
+
+  /**
+   * The view of the shared executor handed to clients, which ignores shutdown requests, since
+   * SDK clients shut down their executor when they are shut down.
+   */
+  private static final ExecutorService CLIENT_VIEW = new ForwardingExecutorService() {
+    @Override
+    protected ExecutorService delegate() {
+      return EXECUTOR;
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return Collections.emptyList();
+    }
+  };
+
+  /**
+   * Returns the executor to inject into asynchronous AWS clients.
+   *
+   * @return the executor to inject into asynchronous AWS clients
+   */
+  public static ExecutorService getExecutorService() {
+    return CLIENT_VIEW;
+  }
+
+  /**
+   * Sets the number of threads of the shared executor.
+   *
+   * @param threads the number of threads
+   */
+  public static synchronized void setThreads(int threads) {
+    checkArgument(threads > 0, "threads must be positive: %s", threads);
+    if (threads == EXECUTOR.getMaximumPoolSize()) {
+      return;
+    }
+    LOG.info("Resizing shared AWS client executor to {} threads, {}", threads, getStatistics());
+    if (threads > EXECUTOR.getMaximumPoolSize()) {
+      EXECUTOR.setMaximumPoolSize(threads);
+      EXECUTOR.setCorePoolSize(threads);
+    } else {
+      EXECUTOR.setCorePoolSize(threads);
+      EXECUTOR.setMaximumPoolSize(threads);
+    }
+  }
+
+  /**
+   * Returns a snapshot of the shared executor statistics.
+   *
+   * @return a snapshot of the shared executor statistics
+   */
+  public static Statistics getStatistics() {
+    return new Statistics(EXECUTOR);
+  }
+
+  /**
+   * A snapshot of the shared executor statistics.
+   */
+  public static final class Statistics {
+    private final int threads;
+    private final int activeThreads;
+    private final int queuedTasks;
+    private final long completedTasks;
+    private final long callerRunsTasks;
+    private final long averageQueueMillis;
+    private final long averageRunMillis;
+
+    private Statistics(InstrumentedThreadPoolExecutor executor) {
+      this.threads = executor.getPoolSize();
+      this.activeThreads = executor.getActiveCount();
+      this.queuedTasks = executor.getQueue().size();
+      long completed = executor.completedTasks.sum();
+      this.completedTasks = completed;
+      this.callerRunsTasks = executor.callerRunsTasks.sum();
+      this.averageQueueMillis =
+          (completed == 0) ? 0 : executor.queueNanos.sum() / completed / 1000000L;
+      this.averageRunMillis =
+          (completed == 0) ? 0 : executor.runNanos.sum() / completed / 1000000L;
+    }
+
+    /**
+     * Returns the number of threads in the pool, which may be fewer than configured while the
+     * pool is idle.
+     *
+     * @return the number of threads in the pool
+     */
+    public int getThreads() {
+      return threads;
+    }
+
+    /**
+     * Returns the approximate number of threads running tasks.
+     *
+     * @return the approximate number of threads running tasks
+     */
+    public int getActiveThreads() {
+      return activeThreads;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     *
+     * @return the number of tasks waiting for a thread
+     */
+    public int getQueuedTasks() {
+      return queuedTasks;
+    }
+
+    /**
+     * Returns the number of tasks completed by pool threads since the process started.
+     *
+     * @return the number of tasks completed by pool threads
+     */
+    public long getCompletedTasks() {
+      return completedTasks;
+    }
+
+    /**
+     * Returns the number of tasks that ran on the submitting thread because the queue was full,
+     * since the process started. These tasks are not included in the completed task count.
+     *
+     * @return the number of tasks that ran on the submitting thread
+     */
+    public long getCallerRunsTasks() {
+      return callerRunsTasks;
+    }
+
+    /**
+     * Returns the average time completed tasks waited for a thread, in milliseconds.
+     *
+     * @return the average time completed tasks waited for a thread, in milliseconds
+     */
+    public long getAverageQueueMillis() {
+      return averageQueueMillis;
+    }
+
+    /**
+     * Returns the average time completed tasks ran on a pool thread, in milliseconds.
+     *
+     * @return the average time completed tasks ran on a pool thread, in milliseconds
+     */
+    public long getAverageRunMillis() {
+      return averageRunMillis;
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("threads", threads)
+          .add("activeThreads", activeThreads)
+          .add("queuedTasks", queuedTasks)
+          .add("completedTasks", completedTasks)
+          .add("callerRunsTasks", callerRunsTasks)
+          .add("averageQueueMillis", averageQueueMillis)
+          .add("averageRunMillis", averageRunMillis)
+          .toString();
+    }
+  }
+
+  /**
+   * A thread pool executor that records how long tasks wait and run.
+   */
+  private static final class InstrumentedThreadPoolExecutor extends ThreadPoolExecutor {
+    private final LongAdder completedTasks = new LongAdder();
+    private final LongAdder callerRunsTasks = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder runNanos = new LongAdder();
+    private final ThreadLocal<Long> startNanos = new ThreadLocal<>();
+
+    InstrumentedThreadPoolExecutor(int threads) {
+      super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(QUEUE_CAPACITY),
+          new ThreadFactoryBuilder()
+              .setNameFormat("director-aws-client-%d")
+              .setDaemon(true)
+              .build(),
+          new CallerRunsPolicy());
+      allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      super.execute(new TimedRunnable(command));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+      super.beforeExecute(t, r);
+      long now = System.nanoTime();
+      if (r instanceof TimedRunnable) {
+        queueNanos.add(now - ((TimedRunnable) r).submitNanos);
+      }
+      startNanos.set(now);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+      Long start = startNanos.get();
+      if (start != null) {
+        runNanos.add(System.nanoTime() - start);
+        startNanos.remove();
+      }
+      completedTasks.increment();
+      super.afterExecute(r, t);
+    }
+  }
+
+  /**
+   * A task that records when it was submitted.
+   */
+  private static final class TimedRunnable implements Runnable {
+    private final Runnable delegate;
+    private final long submitNanos = System.nanoTime();
+
+    TimedRunnable(Runnable delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void run() {
+      delegate.run();
+    }
+  }
+
+  /**
+   * Runs rejected tasks on the submitting thread, counting them.
+   */
+  private static final class CallerRunsPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+      if (!e.isShutdown()) {
+        ((InstrumentedThreadPoolExecutor) e).callerRunsTasks.increment();
+        r.run();
+      }
+    }
+  }
+
+  /**
+   * Private constructor to prevent instantiation.
+   */
+  private SharedClientExecutor() {
+  }
+}
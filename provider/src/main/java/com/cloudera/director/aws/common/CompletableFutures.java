@@ -0,0 +1,430 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.common;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.audit.RpcAuditConfig.Verbosity;
+import com.cloudera.director.aws.audit.RpcAuditLog;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ascii;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Provides the non-blocking execution core used by the converted provider operations.</p>
+ * <p>SDK asynchronous calls are adapted to {@code CompletableFuture} stages through their
+ * callback handlers, and delays between polling attempts are scheduled on a small shared
+ * scheduler, so that the operations built on them do not park a thread each while waiting.
+ * Blocking SPI methods call {@link #join(CompletableFuture)} once, at the end of a composed
+ * operation. Other waits, such as the EBS volume, Spot request and Auto Scaling group polling
+ * loops, still sleep on the calling thread.</p>
+ * <p>Calls made through {@link #call} are invoked through method references, which the
+ * logging, audit and tracing aspects do not intercept, and which they would only time up to
+ * the submission of the call if they did. These calls are logged, audited and traced here
+ * instead, in the same form, when they complete. Calls issued by {@link #callAll} after the
+ * first ones complete are traced under the span that was current when it was called.</p>
+ */
+public final class CompletableFutures {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CompletableFutures.class);
+
+  /**
+   * The maximum length of a logged result.
+   */
+  private static final int LOG_LENGTH_LIMIT = 200;
+
+  /**
+   * The suffix of SDK request class names.
+   */
+  private static final String REQUEST_SUFFIX = "Request";
+
+  /**
+   * The suffix of the packages of SDK model classes.
+   */
+  private static final String MODEL_PACKAGE_SUFFIX = ".model";
+
+  /**
+   * The number of threads in the shared scheduler.
+   */
+  private static final int SCHEDULER_THREADS = 2;
+
+  /**
+   * The shared scheduler used to time delays between polling attempts.
+   */
+  private static final ScheduledExecutorService SCHEDULER = Executors.newScheduledThreadPool(
+      SCHEDULER_THREADS,
+      new ThreadFactoryBuilder()
+          .setNameFormat("director-aws-scheduler-%d")
+          .setDaemon(true)
+          .build());
+
+  /**
+   * Issues an SDK asynchronous call, and returns a future that completes with its result
+   * when the SDK invokes the callback handler.
+   *
+   * @param asyncCall the SDK asynchronous call, taking a request and a callback handler
+   * @param request   the request
+   * @param <Q>       the type of request
+   * @param <R>       the type of result
+   * @return a future that completes with the result of the call
+   */
+  public static <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> call(
+      BiFunction<Q, AsyncHandler<Q, R>, Future<R>> asyncCall, Q request) {
+    return call(asyncCall, request, Tracing.currentSpan());
+  }
+
+  /**
+   * Issues an SDK asynchronous call, recorded as a child span of the specified span, and
+   * returns a future that completes with its result when the SDK invokes the callback handler.
+   *
+   * @param asyncCall  the SDK asynchronous call, taking a request and a callback handler
+   * @param request    the request
+   * @param parentSpan the span of the operation making the call
+   * @param <Q>        the type of request
+   * @param <R>        the type of result
+   * @return a future that completes with the result of the call
+   */
+  private static <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> call(
+      BiFunction<Q, AsyncHandler<Q, R>, Future<R>> asyncCall, Q request, Span parentSpan) {
+    String action = getAction(request);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("-> Calling {} with argument(s): {}", action, request);
+    }
+    Verbosity verbosity = RpcAuditLog.getVerbosity(action, getMethodName(request));
+    long startMillis = System.currentTimeMillis();
+    long start = System.nanoTime();
+    Span span = Tracing.startAsyncSpan(action, parentSpan);
+
+    CompletableFuture<R> future = new CompletableFuture<>();
+    try {
+      asyncCall.apply(request, new AsyncHandler<Q, R>() {
+        @Override
+        public void onError(Exception exception) {
+          LOG.debug("<- {} throws {}", action, exception.getMessage());
+          audit(action, verbosity, startMillis, start, request, null, exception);
+          span.recordError(exception).close();
+          future.completeExceptionally(exception);
+        }
+
+        @Override
+        public void onSuccess(Q request, R result) {
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("<- {} returns: {}", action,
+                Ascii.truncate(String.valueOf(result), LOG_LENGTH_LIMIT, "..."));
+          }
+          audit(action, verbosity, startMillis, start, request, result, null);
+          span.setOk().close();
+          future.complete(result);
+        }
+      });
+    } catch (RuntimeException e) {
+      LOG.debug("<- {} throws {}", action, e.getMessage());
+      audit(action, verbosity, startMillis, start, request, null, e);
+      span.recordError(e).close();
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  /**
+   * Records a completed call in the {@link RpcAuditLog}, as the {@code RpcAuditAspect} does
+   * for synchronous calls. Successful calls are sampled, and failed calls are always recorded
+   * unless their action is turned off.
+   *
+   * @param action      the qualified action
+   * @param verbosity   the verbosity of the action
+   * @param startMillis the time at which the call started, in milliseconds since the epoch
+   * @param start       the value of {@link System#nanoTime()} when the call started
+   * @param request     the request
+   * @param result      the result if the call succeeded, or {@code null}
+   * @param error       the error if the call failed, or {@code null}
+   */
+  private static void audit(String action, Verbosity verbosity, long startMillis, long start,
+      Object request, Object result, Throwable error) {
+    if (verbosity != Verbosity.OFF && (error != null || RpcAuditLog.isSampled())) {
+      RpcAuditLog.record(action, verbosity, startMillis, System.nanoTime() - start, request,
+          result, error);
+    }
+  }
+
+  /**
+   * Returns the qualified action of an SDK call, made of the service and the name of the
+   * synchronous method for the specified request, such as {@code ec2::describeInstances} for
+   * a {@code DescribeInstancesRequest}. The client making an asynchronous call cannot be told
+   * from its method reference, so the service is taken from the package of the request.
+   *
+   * @param request the request
+   * @return the qualified action
+   */
+  @VisibleForTesting
+  static String getAction(AmazonWebServiceRequest request) {
+    String packageName = request.getClass().getPackage().getName();
+    if (packageName.endsWith(MODEL_PACKAGE_SUFFIX)) {
+      packageName =
+          packageName.substring(0, packageName.length() - MODEL_PACKAGE_SUFFIX.length());
+    }
+    String service = packageName.substring(packageName.lastIndexOf('.') + 1);
+    return service + "::" + getMethodName(request);
+  }
+
+  /**
+   * Returns the name of the synchronous SDK method for the specified request, such as
+   * {@code describeInstances} for a {@code DescribeInstancesRequest}.
+   *
+   * @param request the request
+   * @return the method name
+   */
+  private static String getMethodName(AmazonWebServiceRequest request) {
+    String name = request.getClass().getSimpleName();
+    if (name.endsWith(REQUEST_SUFFIX)) {
+      name = name.substring(0, name.length() - REQUEST_SUFFIX.length());
+    }
+    return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+  }
+
+  /**
+   * Issues SDK asynchronous calls for each of the specified requests, with at most the
+   * specified number of calls in flight at a time, and returns a future for each call, in the
+   * order of the requests. Each further call is issued as soon as an earlier one completes.
+   *
+   * @param asyncCall      the SDK asynchronous call, taking a request and a callback handler
+   * @param requests       the requests
+   * @param maxConcurrency the maximum number of calls in flight
+   * @param <Q>            the type of request
+   * @param <R>            the type of result
+   * @return a future for each call, in the order of the requests
+   */
+  public static <Q extends AmazonWebServiceRequest, R> List<CompletableFuture<R>> callAll(
+      BiFunction<Q, AsyncHandler<Q, R>, Future<R>> asyncCall, List<Q> requests,
+      int maxConcurrency) {
+    checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+    List<CompletableFuture<R>> futures = new ArrayList<>(requests.size());
+    for (int i = 0; i < requests.size(); i++) {
+      futures.add(new CompletableFuture<>());
+    }
+    AtomicInteger next = new AtomicInteger();
+    Span parentSpan = Tracing.currentSpan();
+    for (int i = 0; i < Math.min(maxConcurrency, requests.size()); i++) {
+      callNext(asyncCall, requests, futures, next, parentSpan);
+    }
+    return futures;
+  }
+
+  private static <Q extends AmazonWebServiceRequest, R> void callNext(
+      BiFunction<Q, AsyncHandler<Q, R>, Future<R>> asyncCall, List<Q> requests,
+      List<CompletableFuture<R>> futures, AtomicInteger next, Span parentSpan) {
+    int index = next.getAndIncrement();
+    if (index >= requests.size()) {
+      return;
+    }
+    call(asyncCall, requests.get(index), parentSpan).whenComplete((result, t) -> {
+      if (t != null) {
+        futures.get(index).completeExceptionally(t);
+      } else {
+        futures.get(index).complete(result);
+      }
+      callNext(asyncCall, requests, futures, next, parentSpan);
+    });
+  }
+
+  /**
+   * Runs an asynchronous task for each of the specified items, with at most the specified
+   * number of tasks in flight at a time, and returns a future that completes once all tasks
+   * have completed. Each further task is started as soon as an earlier one completes. After a
+   * task fails, no further tasks are started, and the returned future completes exceptionally
+   * with the first failure once the tasks in flight have completed.
+   *
+   * @param items          the items
+   * @param task           the task, which returns a future that completes when it is done
+   * @param maxConcurrency the maximum number of tasks in flight
+   * @param <T>            the type of item
+   * @return a future that completes when all tasks have completed
+   */
+  public static <T> CompletableFuture<Void> runAll(List<T> items,
+      Function<T, CompletableFuture<?>> task, int maxConcurrency) {
+    checkArgument(maxConcurrency > 0, "maxConcurrency must be positive");
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    int workers = Math.min(maxConcurrency, items.size());
+    if (workers == 0) {
+      done.complete(null);
+      return done;
+    }
+    AtomicInteger next = new AtomicInteger();
+    AtomicInteger activeWorkers = new AtomicInteger(workers);
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    for (int i = 0; i < workers; i++) {
+      runNext(items, task, next, activeWorkers, failure, done);
+    }
+    return done;
+  }
+
+  private static <T> void runNext(List<T> items, Function<T, CompletableFuture<?>> task,
+      AtomicInteger next, AtomicInteger activeWorkers, AtomicReference<Throwable> failure,
+      CompletableFuture<Void> done) {
+    int index = next.getAndIncrement();
+    if (index >= items.size() || failure.get() != null) {
+      if (activeWorkers.decrementAndGet() == 0) {
+        Throwable t = failure.get();
+        if (t == null) {
+          done.complete(null);
+        } else {
+          done.completeExceptionally(t);
+        }
+      }
+      return;
+    }
+    CompletableFuture<?> future;
+    try {
+      future = task.apply(items.get(index));
+    } catch (RuntimeException e) {
+      future = new CompletableFuture<>();
+      future.completeExceptionally(e);
+    }
+    future.whenComplete((result, t) -> {
+      if (t != null) {
+        failure.compareAndSet(null,
+            (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t);
+      }
+      runNext(items, task, next, activeWorkers, failure, done);
+    });
+  }
+
+  /**
+   * Returns a future that completes after the specified delay.
+   *
+   * @param delay    the delay
+   * @param timeUnit the delay time unit
+   * @return a future that completes after the specified delay
+   */
+  public static CompletableFuture<Void> delay(long delay, TimeUnit timeUnit) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    SCHEDULER.schedule(() -> future.complete(null), delay, timeUnit);
+    return future;
+  }
+
+  /**
+   * Repeats the specified attempt, with the specified delay between attempts, until an attempt
+   * completes with {@code true} or the specified deadline passes. The returned future completes
+   * with {@code true} if an attempt succeeded, {@code false} if the deadline passed first, or
+   * exceptionally if an attempt fails. Cancelling the returned future, as {@link #join} does
+   * when the waiting thread is interrupted, stops further attempts.
+   *
+   * @param attempt          the attempt, which returns a future indicating whether to stop
+   * @param delay            the delay between attempts
+   * @param timeUnit         the delay time unit
+   * @param deadlineMillis   the time after which no further attempts are made, in milliseconds
+   * @return a future indicating whether an attempt succeeded before the deadline
+   */
+  public static CompletableFuture<Boolean> pollUntil(Supplier<CompletableFuture<Boolean>> attempt,
+      long delay, TimeUnit timeUnit, long deadlineMillis) {
+    CompletableFuture<Boolean> polled = new CompletableFuture<>();
+    poll(polled, attempt, delay, timeUnit, deadlineMillis);
+    return polled;
+  }
+
+  private static void poll(CompletableFuture<Boolean> polled,
+      Supplier<CompletableFuture<Boolean>> attempt, long delay, TimeUnit timeUnit,
+      long deadlineMillis) {
+    if (polled.isCancelled()) {
+      return;
+    }
+    CompletableFuture<Boolean> attempted;
+    try {
+      attempted = attempt.get();
+    } catch (RuntimeException e) {
+      polled.completeExceptionally(e);
+      return;
+    }
+    attempted.whenComplete((done, t) -> {
+      if (t != null) {
+        polled.completeExceptionally(
+            (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t);
+      } else if (done) {
+        polled.complete(true);
+      } else if (System.currentTimeMillis() >= deadlineMillis) {
+        polled.complete(false);
+      } else if (!polled.isCancelled()) {
+        delay(delay, timeUnit).thenRun(
+            () -> poll(polled, attempt, delay, timeUnit, deadlineMillis));
+      }
+    });
+  }
+
+  /**
+   * Returns a future that completes when all the specified futures have completed, whether
+   * normally or exceptionally. Failures are left to be inspected on the individual futures.
+   *
+   * @param futures the futures
+   * @return a future that completes when all the specified futures have completed
+   */
+  public static CompletableFuture<Void> allSettled(Collection<? extends CompletableFuture<?>> futures) {
+    return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+        .handle((result, t) -> null);
+  }
+
+  /**
+   * Blocks until the specified future completes, and returns its result. This is the adapter
+   * between the blocking SPI methods and the asynchronous core. If the calling thread is
+   * interrupted, the future is cancelled. If the future completes exceptionally, its cause is
+   * rethrown if it is unchecked, or wrapped in a RuntimeException otherwise.
+   *
+   * @param future the future
+   * @param <T>    the type of result
+   * @return the result of the future
+   * @throws InterruptedException if the calling thread is interrupted
+   */
+  public static <T> T join(CompletableFuture<T> future) throws InterruptedException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      future.cancel(true);
+      throw e;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfUnchecked(cause);
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /**
+   * Private constructor to prevent instantiation.
+   */
+  private CompletableFutures() {
+  }
+}
@@ -19,6 +19,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import com.google.common.collect.ImmutableMap;
 
 import java.io.IOException;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.springframework.core.env.MapPropertySource;
@@ -124,7 +125,46 @@ public final class PropertyResolvers {
     return new PropertySourcesPropertyResolver(sources);
   }
 
-  private static PropertySource buildPropertySource(String name, String loc,
+  /**
+   * Loads the properties from multiple property resource locations into a
+   * single immutable map, in which properties from later locations override
+   * those from earlier ones. The first "built-in" location must be
+   * successfully loaded, but all other "custom" locations may fail to load.
+   * Unlike a property resolver, the resulting map can be enumerated, so that
+   * it can be compiled into a lookup table.
+   *
+   * @param builtInResourceLocation lowest precedence, required resource
+   *                                location for properties
+   * @param customResourceLocations additional resource locations for
+   *                                properties, in increasing order of precedence
+   * @return the merged properties
+   * @throws IOException          if the built-in resource location could not be loaded
+   * @throws NullPointerException if any resource location is null
+   */
+  public static Map<String, String> loadMultiResourceProperties(String builtInResourceLocation,
+      String... customResourceLocations)
+      throws IOException {
+    checkNotNull(builtInResourceLocation, "builtInResourceLocation is null");
+    Map<String, String> properties = new LinkedHashMap<>();
+    putAll(properties, buildPropertySource(BUILT_IN_NAME, builtInResourceLocation, false));
+    int customCtr = 1;
+    for (String loc : customResourceLocations) {
+      checkNotNull(loc, "customResourceLocations[" + (customCtr - 1) +
+          "] is null");
+      putAll(properties, buildPropertySource(CUSTOM_NAME_PREFIX + customCtr++, loc, true));
+    }
+    return ImmutableMap.copyOf(properties);
+  }
+
+  private static void putAll(Map<String, String> properties, ResourcePropertySource source) {
+    if (source != null) {
+      for (String name : source.getPropertyNames()) {
+        properties.put(name, String.valueOf(source.getProperty(name)));
+      }
+    }
+  }
+
+  private static ResourcePropertySource buildPropertySource(String name, String loc,
       boolean allowMissing)
       throws IOException {
     try {
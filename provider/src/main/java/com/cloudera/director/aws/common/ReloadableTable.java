@@ -0,0 +1,303 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.common;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>An immutable lookup table compiled from a built-in properties resource and an optional
+ * custom properties file, whose properties override the built-in ones.</p>
+ * <p>The properties are compiled once, when they are loaded, so lookups do not go through
+ * property resolution or type conversion. The directory holding the custom file is watched,
+ * and whenever the file changes the table is recompiled and swapped atomically, so that
+ * operators can add entries, such as new instance types, without restarting. Changes to other
+ * files in the directory, such as journals and traces, are ignored. If the changed file cannot
+ * be loaded or compiled, the previous table stays in place.</p>
+ *
+ * @param <T> the type of compiled table
+ */
+public final class ReloadableTable<T> implements Supplier<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReloadableTable.class);
+
+  /**
+   * Loads and compiles a table, and watches its custom file for changes.
+   *
+   * @param description     a description of the table, for logging
+   * @param builtInLocation the location of the built-in properties resource
+   * @param customFile      the custom properties file, which need not exist
+   * @param compiler        the function compiling properties into a table
+   * @param <T>             the type of compiled table
+   * @return the table
+   * @throws IllegalArgumentException if the properties cannot be loaded
+   */
+  public static <T> ReloadableTable<T> load(String description, String builtInLocation,
+      File customFile, Function<Map<String, String>, T> compiler) {
+    ReloadableTable<T> table = new ReloadableTable<>(description,
+        checkNotNull(builtInLocation, "builtInLocation is null"),
+        checkNotNull(customFile, "customFile is null").getAbsoluteFile(),
+        compiler);
+    try {
+      table.table = table.compile();
+    } catch (IOException e) {
+      throw new IllegalArgumentException("Could not load " + description, e);
+    }
+    CustomFileWatcher.INSTANCE.watch(table);
+    return table;
+  }
+
+  /**
+   * Returns a table compiled from the specified properties, which is never reloaded.
+   *
+   * @param properties the properties
+   * @param compiler   the function compiling properties into a table
+   * @param <T>        the type of compiled table
+   * @return the table
+   */
+  public static <T> ReloadableTable<T> of(Map<String, String> properties,
+      Function<Map<String, String>, T> compiler) {
+    ReloadableTable<T> table = new ReloadableTable<>("fixed table", null, null, compiler);
+    table.table = compiler.apply(properties);
+    return table;
+  }
+
+  private final String description;
+  private final String builtInLocation;
+  private final File customFile;
+  private final Function<Map<String, String>, T> compiler;
+  private volatile T table;
+
+  private ReloadableTable(String description, String builtInLocation, File customFile,
+      Function<Map<String, String>, T> compiler) {
+    this.description = checkNotNull(description, "description is null");
+    this.builtInLocation = builtInLocation;
+    this.customFile = customFile;
+    this.compiler = checkNotNull(compiler, "compiler is null");
+  }
+
+  /**
+   * Returns the current compiled table.
+   *
+   * @return the current compiled table
+   */
+  @Override
+  public T get() {
+    return table;
+  }
+
+  /**
+   * Reloads and recompiles the table, keeping the current table if that fails.
+   *
+   * @return whether the table was replaced
+   */
+  @VisibleForTesting
+  public boolean reload() {
+    if (customFile == null) {
+      return false;
+    }
+    try {
+      table = compile();
+      LOG.info("Reloaded {} from {}", description, customFile);
+      return true;
+    } catch (IOException | RuntimeException e) {
+      LOG.error("Could not reload {} from {}, keeping the previous table", description,
+          customFile, e);
+      return false;
+    }
+  }
+
+  /**
+   * Loads and compiles the properties.
+   *
+   * @return the compiled table
+   * @throws IOException if the built-in properties cannot be loaded
+   */
+  private T compile() throws IOException {
+    return compiler.apply(PropertyResolvers.loadMultiResourceProperties(
+        builtInLocation, "file:" + customFile.getPath()));
+  }
+
+  /**
+   * Watches the directories of custom files, and reloads the tables compiled from them when
+   * they change. Events for other files in the watched directories are discarded as soon as
+   * they are received, without waiting for them to settle. Tables are only weakly referenced,
+   * so that tables that are no longer used are not kept alive by the watcher.
+   */
+  private static final class CustomFileWatcher implements Runnable {
+
+    private static final CustomFileWatcher INSTANCE = new CustomFileWatcher();
+
+    /**
+     * The time to wait for related file system events to accumulate, in milliseconds, so that
+     * a file written in several steps is reloaded once.
+     */
+    private static final long SETTLE_MILLIS = 200L;
+
+    private final Map<Path, WatchKey> watchKeysByDirectory = new HashMap<>();
+    private final Map<Path, List<WeakReference<ReloadableTable<?>>>> tablesByFile =
+        new HashMap<>();
+    private WatchService watchService;
+
+    /**
+     * Watches the custom file of the specified table. If the directory cannot be watched, the
+     * table simply is not reloaded.
+     *
+     * @param table the table
+     */
+    synchronized void watch(ReloadableTable<?> table) {
+      Path file = table.customFile.toPath();
+      Path directory = file.getParent();
+      if (directory == null || !Files.isDirectory(directory)) {
+        return;
+      }
+      try {
+        if (watchService == null) {
+          watchService = FileSystems.getDefault().newWatchService();
+          new ThreadFactoryBuilder()
+              .setNameFormat("director-aws-table-watcher-%d")
+              .setDaemon(true)
+              .build()
+              .newThread(this)
+              .start();
+        }
+        if (!watchKeysByDirectory.containsKey(directory)) {
+          watchKeysByDirectory.put(directory, directory.register(watchService,
+              StandardWatchEventKinds.ENTRY_CREATE,
+              StandardWatchEventKinds.ENTRY_MODIFY,
+              StandardWatchEventKinds.ENTRY_DELETE));
+        }
+      } catch (IOException e) {
+        LOG.warn("Unable to watch {} for changes to {}", directory, table.description, e);
+        return;
+      }
+      tablesByFile.computeIfAbsent(file, (f) -> new ArrayList<>())
+          .add(new WeakReference<>(table));
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        WatchKey key;
+        try {
+          key = watchService.take();
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+          return;
+        }
+        Path directory = (Path) key.watchable();
+        Set<Path> changedFiles = new HashSet<>();
+        boolean overflow = addChangedFiles(directory, key.pollEvents(), changedFiles);
+        if (overflow || !changedFiles.isEmpty()) {
+          // Events keep accumulating on the key until it is reset
+          try {
+            Thread.sleep(SETTLE_MILLIS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          overflow |= addChangedFiles(directory, key.pollEvents(), changedFiles);
+        }
+        key.reset();
+
+        List<ReloadableTable<?>> changedTables = new ArrayList<>();
+        if (overflow) {
+          changedTables.addAll(getTables(null));
+        } else {
+          for (Path file : changedFiles) {
+            changedTables.addAll(getTables(file));
+          }
+        }
+        changedTables.stream().distinct().forEach(ReloadableTable::reload);
+      }
+    }
+
+    /**
+     * Adds the watched files affected by the specified events to the specified set, ignoring
+     * events for other files in the directory.
+     *
+     * @param directory    the watched directory
+     * @param events       the events
+     * @param changedFiles the changed watched files, which are added to
+     * @return whether events were lost, in which case any watched file may have changed
+     */
+    private synchronized boolean addChangedFiles(Path directory, List<WatchEvent<?>> events,
+        Set<Path> changedFiles) {
+      boolean overflow = false;
+      for (WatchEvent<?> event : events) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+          overflow = true;
+        } else {
+          Path file = directory.resolve((Path) event.context());
+          if (tablesByFile.containsKey(file)) {
+            changedFiles.add(file);
+          }
+        }
+      }
+      return overflow;
+    }
+
+    /**
+     * Returns the live tables compiled from the specified file, dropping any that have been
+     * garbage collected.
+     *
+     * @param file the file, or {@code null} for all files
+     * @return the live tables compiled from the specified file
+     */
+    private synchronized List<ReloadableTable<?>> getTables(Path file) {
+      List<ReloadableTable<?>> tables = new ArrayList<>();
+      for (Map.Entry<Path, List<WeakReference<ReloadableTable<?>>>> entry
+          : tablesByFile.entrySet()) {
+        if (file != null && !file.equals(entry.getKey())) {
+          continue;
+        }
+        for (Iterator<WeakReference<ReloadableTable<?>>> it = entry.getValue().iterator();
+            it.hasNext(); ) {
+          ReloadableTable<?> table = it.next().get();
+          if (table == null) {
+            it.remove();
+          } else {
+            tables.add(table);
+          }
+        }
+      }
+      return tables;
+    }
+  }
+}
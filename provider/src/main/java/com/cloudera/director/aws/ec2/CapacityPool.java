@@ -0,0 +1,120 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cloudera.director.aws.ec2;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A capacity pool in which On-Demand instances can be launched, identified by an instance type
+ * and a subnet, and hence an availability zone.
+ */
+public final class CapacityPool {
+
+  /**
+   * The separator between the instance type and the subnet ID of a capacity pool.
+   */
+  private static final char SEPARATOR = ':';
+
+  private final String type;
+  private final String subnetId;
+
+  /**
+   * Creates a capacity pool.
+   *
+   * @param type     the instance type
+   * @param subnetId the subnet ID
+   */
+  public CapacityPool(String type, String subnetId) {
+    this.type = requireNonNull(type, "type is null");
+    this.subnetId = requireNonNull(subnetId, "subnetId is null");
+  }
+
+  /**
+   * Parses a comma-separated, ordered list of capacity pools. Each pool is written as
+   * {@code instanceType:subnetId}, where either part may be omitted, together with the colon
+   * if the subnet ID is omitted, to use that of the template.
+   *
+   * @param value           the comma-separated list of capacity pools, possibly {@code null}
+   * @param defaultType     the instance type of the template
+   * @param defaultSubnetId the subnet ID of the template
+   * @return the capacity pools, in order
+   * @throws IllegalArgumentException if a pool has neither an instance type nor a subnet ID
+   */
+  public static List<CapacityPool> parseList(String value, String defaultType,
+      String defaultSubnetId) {
+    if (Strings.isNullOrEmpty(value)) {
+      return ImmutableList.of();
+    }
+    ImmutableList.Builder<CapacityPool> pools = ImmutableList.builder();
+    for (String pool : EC2InstanceTemplate.CSV_SPLITTER.split(value)) {
+      int separator = pool.indexOf(SEPARATOR);
+      String type = ((separator < 0) ? pool : pool.substring(0, separator)).trim();
+      String subnetId = (separator < 0) ? "" : pool.substring(separator + 1).trim();
+      if (type.isEmpty() && subnetId.isEmpty()) {
+        throw new IllegalArgumentException("Invalid capacity pool: " + pool);
+      }
+      pools.add(new CapacityPool(type.isEmpty() ? defaultType : type,
+          subnetId.isEmpty() ? defaultSubnetId : subnetId));
+    }
+    return pools.build();
+  }
+
+  /**
+   * Returns the instance type.
+   *
+   * @return the instance type
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * Returns the subnet ID.
+   *
+   * @return the subnet ID
+   */
+  public String getSubnetId() {
+    return subnetId;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    CapacityPool that = (CapacityPool) o;
+    return type.equals(that.type) && subnetId.equals(that.subnetId);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(type, subnetId);
+  }
+
+  @Override
+  public String toString() {
+    return type + SEPARATOR + subnetId;
+  }
+}
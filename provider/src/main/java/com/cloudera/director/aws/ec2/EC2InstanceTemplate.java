@@ -18,6 +18,7 @@ import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTempl
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.AUTOMATIC_INSTANCE_PROCESSING;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.AVAILABILITY_ZONE;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.BLOCK_DURATION_MINUTES;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.CAPACITY_FALLBACKS;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_IOPS;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_KMS_KEY_ID;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_OPTIMIZED;
@@ -41,6 +42,9 @@ import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTempl
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USER_DATA;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USER_DATA_UNENCODED;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USE_SPOT_INSTANCES;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MAX_PREPARED_CAPACITY;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MIN_SIZE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_STATE;
 
 import com.cloudera.director.aws.ec2.ebs.SystemDisk;
 import com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate;
@@ -48,11 +52,13 @@ import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
 import com.cloudera.director.spi.v2.model.Property;
+import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilder;
 import com.cloudera.director.spi.v2.util.ConfigurationPropertiesUtil;
 import com.google.common.base.Optional;
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
 import com.google.common.io.BaseEncoding;
 
 import java.math.BigDecimal;
@@ -139,6 +145,62 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
         .hidden(true)
         .build()),
 
+    /**
+     * The minimum number of pre-initialized instances to keep in the warm pool of an Auto Scaling
+     * group, from which the group is grown before launching new instances. Zero disables the warm
+     * pool.
+     */
+    WARM_POOL_MIN_SIZE(new SimpleConfigurationPropertyBuilder()
+        .configKey("warmPoolMinSize")
+        .name("Warm pool minimum size")
+        .defaultValue("0")
+        .type(Property.Type.INTEGER)
+        .widget(ConfigurationProperty.Widget.NUMBER)
+        .defaultDescription(
+            "The minimum number of pre-initialized instances to keep in Standby in the Auto " +
+                "Scaling group, so that growing the group takes seconds instead of a full " +
+                "instance boot. Zero disables the warm pool.<br />" +
+                "<a target='_blank' href='http://docs.aws.amazon.com/autoscaling/ec2/userguide/as-enter-exit-standby.html'>More Information</a>"
+        )
+        .hidden(true)
+        .build()),
+
+    /**
+     * The maximum number of instances, in service or in the warm pool, that an Auto Scaling
+     * group may hold.
+     */
+    WARM_POOL_MAX_PREPARED_CAPACITY(new SimpleConfigurationPropertyBuilder()
+        .configKey("warmPoolMaxPreparedCapacity")
+        .name("Warm pool maximum prepared capacity")
+        .required(false)
+        .type(Property.Type.INTEGER)
+        .widget(ConfigurationProperty.Widget.NUMBER)
+        .defaultDescription(
+            "The maximum number of instances, in service or in the warm pool, that the Auto " +
+                "Scaling group may hold. By default, the warm pool is refilled up to its " +
+                "minimum size."
+        )
+        .hidden(true)
+        .build()),
+
+    /**
+     * The state in which instances wait in the warm pool of an Auto Scaling group.
+     */
+    WARM_POOL_STATE(new SimpleConfigurationPropertyBuilder()
+        .configKey("warmPoolState")
+        .name("Warm pool instance state")
+        .defaultValue("Stopped")
+        .widget(ConfigurationProperty.Widget.LIST)
+        .defaultDescription(
+            "The state in which instances wait in the warm pool. Stopped instances only incur " +
+                "storage charges, but take longer to bring into service than Running instances."
+        ).addValidValues(
+            "Stopped",
+            "Running"
+        )
+        .hidden(true)
+        .build()),
+
     /**
      * <p>The availability zone.</p>
      * <p>Multiple availability zones are linked together by high speed low latency connections.
@@ -275,7 +337,7 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
         ).build()),
 
     /**
-     * Whether to allocate EBS volumes separately when using non-default KMS Key ID.
+     * Whether to fall back to allocating EBS volumes separately when using non-default KMS Key ID.
      */
     ALLOCATE_EBS_SEPARATELY(new SimpleConfigurationPropertyBuilder()
         .configKey("allocateEbsSeparately")
@@ -283,9 +345,10 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
         .defaultValue("false")
         .type(Property.Type.BOOLEAN)
         .defaultDescription(
-            "Whether to allocate EBS volumes separately when using non-default KMS Key ID. This should" +
-                "only be enabled on certain regions (like GovCloud) that don't allow specifying EBS KMS" +
-                "Key ID as part of the instance launch request."
+            "Whether to allow allocating EBS volumes separately when using non-default KMS Key ID. " +
+                "Volumes are still requested as part of the instance launch request whenever the " +
+                "region accepts the EBS KMS Key ID there, and are only allocated separately on " +
+                "certain regions (like GovCloud) that don't."
         ).widget(ConfigurationProperty.Widget.CHECKBOX)
         .hidden(true)
         .build()),
@@ -511,6 +574,24 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
         )
         .build()),
 
+    /**
+     * The ordered capacity pools in which to retry On-Demand instances that could not be
+     * launched for lack of capacity.
+     */
+    CAPACITY_FALLBACKS(new SimpleConfigurationPropertyBuilder()
+        .configKey("capacityFallbacks")
+        .name("Capacity fallbacks")
+        .required(false)
+        .widget(ConfigurationProperty.Widget.TEXT)
+        .defaultDescription(
+            "An ordered, comma-separated list of capacity pools in which to retry On-Demand " +
+                "instances that could not be launched for lack of capacity, each written as " +
+                "instanceType:subnetId. Either part may be omitted to use that of the template, " +
+                "as in m5.4xlarge or :subnet-0123abcd. Only the instances still missing are " +
+                "retried in each pool."
+        )
+        .build()),
+
     /**
      * The instance type (e.g. t1.micro, m1.medium, etc.).
      */
@@ -713,6 +794,23 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
    */
   private final String tenancy;
 
+  /**
+   * The ordered capacity pools in which to retry instances that could not be launched for lack
+   * of capacity.
+   */
+  private final List<CapacityPool> capacityFallbacks;
+
+  /**
+   * The configuration from which this template was created, to derive templates for capacity
+   * pools.
+   */
+  private final Configured configuration;
+
+  /**
+   * The parent provider localization context.
+   */
+  private final LocalizationContext providerLocalizationContext;
+
   /**
    * The subnet ID.
    */
@@ -814,6 +912,21 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
    */
   private final boolean enableAutomaticInstanceProcesing;
 
+  /**
+   * The minimum number of instances in the warm pool of the Auto Scaling group.
+   */
+  private final int warmPoolMinSize;
+
+  /**
+   * The maximum number of instances, in service or in the warm pool, in the Auto Scaling group.
+   */
+  private final Optional<Integer> warmPoolMaxPreparedCapacity;
+
+  /**
+   * The state in which instances wait in the warm pool of the Auto Scaling group.
+   */
+  private final String warmPoolState;
+
   /**
    * Creates an EC2 instance template with the specified parameters.
    *
@@ -825,6 +938,8 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
   public EC2InstanceTemplate(String name, Configured configuration, Map<String, String> tags,
       LocalizationContext providerLocalizationContext) {
     super(name, configuration, tags, providerLocalizationContext);
+    this.configuration = configuration;
+    this.providerLocalizationContext = providerLocalizationContext;
     LocalizationContext localizationContext = getLocalizationContext();
     this.type = getConfigurationValue(TYPE, localizationContext);
     this.image = getConfigurationValue(IMAGE, localizationContext);
@@ -838,6 +953,8 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
     this.placementGroup =
         Optional.fromNullable(getConfigurationValue(PLACEMENT_GROUP, localizationContext));
     this.tenancy = getConfigurationValue(TENANCY, localizationContext);
+    this.capacityFallbacks = CapacityPool.parseList(
+        getConfigurationValue(CAPACITY_FALLBACKS, localizationContext), type, subnetId);
 
     this.rootVolumeSizeGB =
         Integer.parseInt(getConfigurationValue(ROOT_VOLUME_SIZE_GB, localizationContext));
@@ -889,6 +1006,15 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
 
     this.enableAutomaticInstanceProcesing =
         Boolean.parseBoolean(getConfigurationValue(AUTOMATIC_INSTANCE_PROCESSING, localizationContext));
+
+    this.warmPoolMinSize =
+        Integer.parseInt(getConfigurationValue(WARM_POOL_MIN_SIZE, localizationContext));
+    String warmPoolMaxPreparedCapacityString = Strings.emptyToNull(
+        getConfigurationValue(WARM_POOL_MAX_PREPARED_CAPACITY, localizationContext));
+    this.warmPoolMaxPreparedCapacity = warmPoolMaxPreparedCapacityString != null
+        ? Optional.of(Integer.parseInt(warmPoolMaxPreparedCapacityString))
+        : Optional.absent();
+    this.warmPoolState = getConfigurationValue(WARM_POOL_STATE, localizationContext);
   }
 
   private String base64Encode(String s) {
@@ -943,6 +1069,37 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
     return tenancy;
   }
 
+  /**
+   * Returns the ordered capacity pools in which to retry instances that could not be launched
+   * for lack of capacity.
+   *
+   * @return the ordered capacity fallback pools
+   */
+  public List<CapacityPool> getCapacityFallbacks() {
+    return capacityFallbacks;
+  }
+
+  /**
+   * Returns a template identical to this one, except that it launches instances in the
+   * specified capacity pool and has no capacity fallbacks of its own. If the subnet differs,
+   * the availability zone is left to follow from it.
+   *
+   * @param capacityPool the capacity pool
+   * @return a template for the capacity pool
+   */
+  public EC2InstanceTemplate forCapacityPool(CapacityPool capacityPool) {
+    Map<String, String> configMap =
+        Maps.newHashMap(configuration.getConfiguration(getLocalizationContext()));
+    configMap.put(TYPE.unwrap().getConfigKey(), capacityPool.getType());
+    configMap.remove(CAPACITY_FALLBACKS.unwrap().getConfigKey());
+    if (!capacityPool.getSubnetId().equals(subnetId)) {
+      configMap.put(SUBNET_ID.unwrap().getConfigKey(), capacityPool.getSubnetId());
+      configMap.remove(AVAILABILITY_ZONE.unwrap().getConfigKey());
+    }
+    return new EC2InstanceTemplate(getName(), new SimpleConfiguration(configMap), getTags(),
+        providerLocalizationContext);
+  }
+
   /**
    * Returns the subnet ID.
    *
@@ -1124,4 +1281,33 @@ public class EC2InstanceTemplate extends ComputeInstanceTemplate {
   public boolean isEnableAutomaticInstanceProcesing() {
     return enableAutomaticInstanceProcesing;
   }
+
+  /**
+   * Returns the minimum number of instances in the warm pool of the Auto Scaling group.
+   *
+   * @return the minimum number of instances in the warm pool, or zero if there is no warm pool
+   */
+  public int getWarmPoolMinSize() {
+    return warmPoolMinSize;
+  }
+
+  /**
+   * Returns the maximum number of instances, in service or in the warm pool, in the Auto
+   * Scaling group.
+   *
+   * @return the maximum number of instances, in service or in the warm pool, if limited
+   */
+  public Optional<Integer> getWarmPoolMaxPreparedCapacity() {
+    return warmPoolMaxPreparedCapacity;
+  }
+
+  /**
+   * Returns the state in which instances wait in the warm pool of the Auto Scaling group.
+   *
+   * @return the state in which instances wait in the warm pool, {@code Stopped} or
+   * {@code Running}
+   */
+  public String getWarmPoolState() {
+    return warmPoolState;
+  }
 }
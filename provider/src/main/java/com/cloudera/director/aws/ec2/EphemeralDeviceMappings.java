@@ -20,7 +20,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.amazonaws.services.ec2.model.BlockDeviceMapping;
 import com.cloudera.director.aws.Configurations;
-import com.cloudera.director.aws.common.PropertyResolvers;
+import com.cloudera.director.aws.common.ReloadableTable;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
@@ -28,21 +28,22 @@ import com.cloudera.director.spi.v2.model.util.ChildLocalizationContext;
 import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilder;
 import com.google.common.base.Functions;
-import com.google.common.base.Optional;
-import com.google.common.collect.Lists;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.env.PropertyResolver;
 
 /**
  * Maps an instance type to a list of block device mappings for ephemeral
@@ -53,7 +54,7 @@ import org.springframework.core.env.PropertyResolver;
  * @see <a href="http://docs.aws.amazon.com/AWSEC2/latest/UserGuide/InstanceStorage.html">Amazon EC2 Instance Stor</a>
  * @see <a href="http://docs.aws.amazon.com/AWSEC2/latest/UserGuide/block-device-mapping-concepts.html">Block Device Mapping</a>
  */
-@SuppressWarnings({"PMD.TooManyStaticImports", "Guava"})
+@SuppressWarnings("PMD.TooManyStaticImports")
 public class EphemeralDeviceMappings {
 
   private static final Logger LOG = LoggerFactory.getLogger(EphemeralDeviceMappings.class);
@@ -178,15 +179,10 @@ public class EphemeralDeviceMappings {
     protected EphemeralDeviceMappingsConfigProperties
         ephemeralDeviceMappingsConfigProperties;
 
-    public PropertyResolver ephemeralDeviceMappingsResolver() {
-      try {
-        return PropertyResolvers.newMultiResourcePropertyResolver(
-            BUILT_IN_LOCATION,
-            "file:" + ephemeralDeviceMappingsConfigProperties.getCustomMappingsFile().getAbsolutePath()
-        );
-      } catch (IOException e) {
-        throw new IllegalArgumentException("Could not load ephemeral device mappings", e);
-      }
+    public ReloadableTable<CompiledMappings> ephemeralDeviceMappingsTable() {
+      return ReloadableTable.load("ephemeral device mappings", BUILT_IN_LOCATION,
+          ephemeralDeviceMappingsConfigProperties.getCustomMappingsFile(),
+          (properties) -> new CompiledMappings(properties, ephemeralDeviceMappingsConfigProperties));
     }
 
     /**
@@ -200,9 +196,49 @@ public class EphemeralDeviceMappings {
     }
   }
 
+  /**
+   * The ephemeral device mappings compiled from their properties: the ephemeral volume count
+   * for each instance type, and the block device mappings for each count, which are copied by
+   * all lookups that do not need to skip any of their device names.
+   */
+  static final class CompiledMappings {
+    private final ImmutableMap<String, Integer> counts;
+    private final ImmutableMap<Integer, ImmutableList<BlockDeviceMapping>> mappingsByCount;
+    private final ImmutableMap<Integer, ImmutableSet<String>> deviceNamesByCount;
+
+    CompiledMappings(Map<String, String> properties,
+        EphemeralDeviceMappingsConfigProperties configProperties) {
+      ImmutableMap.Builder<String, Integer> countsBuilder = ImmutableMap.builder();
+      Map<Integer, ImmutableList<BlockDeviceMapping>> mappingsByCount = new HashMap<>();
+      Map<Integer, ImmutableSet<String>> deviceNamesByCount = new HashMap<>();
+      DeviceNameUtils deviceNameUtils = new DeviceNameUtils();
+      for (Map.Entry<String, String> entry : properties.entrySet()) {
+        int count;
+        try {
+          count = Integer.parseInt(entry.getValue().trim());
+        } catch (NumberFormatException e) {
+          LOG.error("Ignoring invalid ephemeral volume count {} for instance type {}",
+              entry.getValue(), entry.getKey());
+          continue;
+        }
+        countsBuilder.put(entry.getKey(), count);
+        if (count > 0 && !mappingsByCount.containsKey(count)) {
+          List<String> deviceNames = deviceNameUtils.getDeviceNames(
+              configProperties.getDeviceNamePrefix(), configProperties.getRangeStart(),
+              count, Collections.emptySet());
+          mappingsByCount.put(count, toBlockDeviceMappings(deviceNames));
+          deviceNamesByCount.put(count, ImmutableSet.copyOf(deviceNames));
+        }
+      }
+      this.counts = countsBuilder.build();
+      this.mappingsByCount = ImmutableMap.copyOf(mappingsByCount);
+      this.deviceNamesByCount = ImmutableMap.copyOf(deviceNamesByCount);
+    }
+  }
+
   EphemeralDeviceMappingsConfigProperties ephemeralDeviceMappingsConfigProperties;
 
-  PropertyResolver ephemeralDeviceMappingsResolver;
+  ReloadableTable<CompiledMappings> ephemeralDeviceMappingsTable;
 
   /**
    * Creates ephemeral device mappings with the specified parameters.
@@ -226,27 +262,38 @@ public class EphemeralDeviceMappings {
       EphemeralDeviceMappingsConfigProperties ephemeralDeviceMappingsConfigProperties) {
     this(ephemeralDeviceMappingsConfigProperties,
         new EphemeralDeviceMappingsConfig(ephemeralDeviceMappingsConfigProperties)
-            .ephemeralDeviceMappingsResolver());
+            .ephemeralDeviceMappingsTable());
   }
 
   /**
    * Creates ephemeral device mappings with the specified parameters.
    *
    * @param ephemeralDeviceMappingsConfigProperties the config properties
-   * @param ephemeralDeviceMappingsResolver         the ephemeral device mappings resolver
+   * @param ephemeralDeviceMappingsTable            the compiled ephemeral device mappings
    */
   private EphemeralDeviceMappings(
       EphemeralDeviceMappingsConfigProperties ephemeralDeviceMappingsConfigProperties,
-      PropertyResolver ephemeralDeviceMappingsResolver) {
+      ReloadableTable<CompiledMappings> ephemeralDeviceMappingsTable) {
     this.ephemeralDeviceMappingsConfigProperties = ephemeralDeviceMappingsConfigProperties;
-    this.ephemeralDeviceMappingsResolver = ephemeralDeviceMappingsResolver;
+    this.ephemeralDeviceMappingsTable = ephemeralDeviceMappingsTable;
   }
 
   private final DeviceNameUtils deviceNameUtils = new DeviceNameUtils();
 
+  /**
+   * Returns whether the ephemeral instance volume count of the given instance type is known.
+   *
+   * @param instanceType EC2 instance type
+   * @return whether the instance type is supported
+   */
+  public boolean isSupported(String instanceType) {
+    return ephemeralDeviceMappingsTable.get().counts.containsKey(instanceType);
+  }
+
   /**
    * Generates a list of block device mappings for all ephemeral drives for
-   * the given instance type.
+   * the given instance type. The returned list and its mappings are not shared,
+   * so callers may modify them.
    *
    * @param instanceType       EC2 instance type
    * @param excludeDeviceNames set of device names that shouldn't be used for the block device mappings
@@ -256,24 +303,54 @@ public class EphemeralDeviceMappings {
   public List<BlockDeviceMapping> getBlockDeviceMappings(String instanceType, Set<String> excludeDeviceNames) {
     checkNotNull(instanceType, "instanceType is null");
 
-    Optional<Integer> optCount = getCount(instanceType);
-    if (!optCount.isPresent()) {
+    CompiledMappings compiledMappings = ephemeralDeviceMappingsTable.get();
+    Integer count = compiledMappings.counts.get(instanceType);
+    if (count == null) {
       LOG.error("Unsupported instance type {}, add its ephemeral instance " +
           "volume count as a custom mapping; assuming zero", instanceType);
       return Collections.emptyList();
     }
 
-    int count = optCount.get();
     if (count == 0) {
       return Collections.emptyList();
     }
 
+    if (Collections.disjoint(compiledMappings.deviceNamesByCount.get(count), excludeDeviceNames)) {
+      // SDK model objects are mutable, so callers get copies of the compiled mappings
+      List<BlockDeviceMapping> mappings = new ArrayList<>(count);
+      for (BlockDeviceMapping mapping : compiledMappings.mappingsByCount.get(count)) {
+        mappings.add(copyOf(mapping));
+      }
+      return mappings;
+    }
+
     List<String> deviceNames = deviceNameUtils.getDeviceNames(
         ephemeralDeviceMappingsConfigProperties.getDeviceNamePrefix(),
         ephemeralDeviceMappingsConfigProperties.getRangeStart(),
         count, excludeDeviceNames);
+    return new ArrayList<>(toBlockDeviceMappings(deviceNames));
+  }
 
-    List<BlockDeviceMapping> result = Lists.newArrayListWithExpectedSize(count);
+  public List<BlockDeviceMapping> getBlockDeviceMappings(String instanceType) {
+    return getBlockDeviceMappings(instanceType, Collections.emptySet());
+  }
+
+  /**
+   * Returns a deep copy of the specified block device mapping.
+   *
+   * @param mapping the block device mapping
+   * @return a deep copy of the specified block device mapping
+   */
+  private static BlockDeviceMapping copyOf(BlockDeviceMapping mapping) {
+    BlockDeviceMapping copy = mapping.clone();
+    if (mapping.getEbs() != null) {
+      copy.setEbs(mapping.getEbs().clone());
+    }
+    return copy;
+  }
+
+  private static ImmutableList<BlockDeviceMapping> toBlockDeviceMappings(List<String> deviceNames) {
+    ImmutableList.Builder<BlockDeviceMapping> result = ImmutableList.builder();
     int index = 0;
     for (String device : deviceNames) {
       result.add(new BlockDeviceMapping()
@@ -281,18 +358,7 @@ public class EphemeralDeviceMappings {
           .withVirtualName("ephemeral" + index));
       index += 1;
     }
-
-    return result;
-  }
-
-  public List<BlockDeviceMapping> getBlockDeviceMappings(String instanceType) {
-    return getBlockDeviceMappings(instanceType, Collections.emptySet());
-  }
-
-  private Optional<Integer> getCount(String instanceType) {
-    return Optional.fromNullable(
-        ephemeralDeviceMappingsResolver.getProperty(instanceType, Integer.class)
-    );
+    return result.build();
   }
 
   /**
@@ -306,14 +372,13 @@ public class EphemeralDeviceMappings {
       LocalizationContext launcherLocalizationContext) {
     Map<String, String> propertyMap =
         Maps.transformValues(counts, Functions.toStringFunction());
-    PropertyResolver ephemeralDeviceMappingsResolver =
-        PropertyResolvers.newMapPropertyResolver(propertyMap);
     File tempDir = Files.createTempDir();
     tempDir.deleteOnExit();
     EphemeralDeviceMappingsConfigProperties ephemeralDeviceMappingsConfigProperties =
         new EphemeralDeviceMappingsConfigProperties(new SimpleConfiguration(),
             tempDir, launcherLocalizationContext);
     return new EphemeralDeviceMappings(ephemeralDeviceMappingsConfigProperties,
-        ephemeralDeviceMappingsResolver);
+        ReloadableTable.of(propertyMap,
+            (properties) -> new CompiledMappings(properties, ephemeralDeviceMappingsConfigProperties)));
   }
 }
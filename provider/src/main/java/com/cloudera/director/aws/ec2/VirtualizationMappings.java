@@ -18,7 +18,7 @@ import static com.cloudera.director.aws.ec2.VirtualizationMappings.Virtualizatio
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-import com.cloudera.director.aws.common.PropertyResolvers;
+import com.cloudera.director.aws.common.ReloadableTable;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
@@ -28,11 +28,12 @@ import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilde
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
@@ -40,7 +41,6 @@ import javax.annotation.Nonnull;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.env.PropertyResolver;
 
 /**
  * Maps a virtualization type to the instance types that support it. EC2 does
@@ -155,15 +155,10 @@ public class VirtualizationMappings implements Function<String, List<String>> {
     protected VirtualizationMappingsConfigProperties
         virtualizationMappingsConfigProperties;
 
-    public PropertyResolver virtualizationMappingsResolver() {
-      try {
-        return PropertyResolvers.newMultiResourcePropertyResolver(
-            BUILT_IN_LOCATION,
-            "file:" + virtualizationMappingsConfigProperties.getCustomMappingsFile().getAbsolutePath()
-        );
-      } catch (IOException e) {
-        throw new IllegalArgumentException("Could not load custom virtualization mappings", e);
-      }
+    public ReloadableTable<Map<String, List<String>>> virtualizationMappingsTable() {
+      return ReloadableTable.load("virtualization mappings", BUILT_IN_LOCATION,
+          virtualizationMappingsConfigProperties.getCustomMappingsFile(),
+          VirtualizationMappings::compile);
     }
 
     /**
@@ -179,7 +174,7 @@ public class VirtualizationMappings implements Function<String, List<String>> {
 
   VirtualizationMappingsConfigProperties virtualizationMappingsConfigProperties;
 
-  PropertyResolver virtualizationMappingsResolver;
+  ReloadableTable<Map<String, List<String>>> virtualizationMappingsTable;
 
   /**
    * Creates virtualization mappings with the specified parameters.
@@ -200,19 +195,33 @@ public class VirtualizationMappings implements Function<String, List<String>> {
    * @param virtualizationMappingsConfigProperties the config properties
    */
   public VirtualizationMappings(VirtualizationMappingsConfigProperties virtualizationMappingsConfigProperties) {
-    this(virtualizationMappingsConfigProperties, new VirtualizationMappingsConfig(virtualizationMappingsConfigProperties).virtualizationMappingsResolver());
+    this(virtualizationMappingsConfigProperties, new VirtualizationMappingsConfig(virtualizationMappingsConfigProperties).virtualizationMappingsTable());
   }
 
   /**
    * Creates virtualization mappings with the specified parameters.
    *
    * @param virtualizationMappingsConfigProperties the config properties
-   * @param virtualizationMappingsResolver         the virtualization mappings resolver
+   * @param virtualizationMappingsTable            the compiled virtualization mappings
    */
   private VirtualizationMappings(VirtualizationMappingsConfigProperties virtualizationMappingsConfigProperties,
-      PropertyResolver virtualizationMappingsResolver) {
+      ReloadableTable<Map<String, List<String>>> virtualizationMappingsTable) {
     this.virtualizationMappingsConfigProperties = virtualizationMappingsConfigProperties;
-    this.virtualizationMappingsResolver = virtualizationMappingsResolver;
+    this.virtualizationMappingsTable = virtualizationMappingsTable;
+  }
+
+  /**
+   * Compiles virtualization mapping properties into immutable lists of instance types.
+   *
+   * @param properties the virtualization mapping properties
+   * @return the instance types for each virtualization type
+   */
+  private static Map<String, List<String>> compile(Map<String, String> properties) {
+    ImmutableMap.Builder<String, List<String>> builder = ImmutableMap.builder();
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      builder.put(entry.getKey(), ImmutableList.copyOf(SPLITTER.split(entry.getValue())));
+    }
+    return builder.build();
   }
 
   /**
@@ -225,13 +234,13 @@ public class VirtualizationMappings implements Function<String, List<String>> {
   @Nonnull
   public List<String> apply(String virtualizationType) {
     checkNotNull(virtualizationType, "virtualizationType is null");
-    String instanceTypeList =
-        virtualizationMappingsResolver.getProperty(virtualizationType);
-    if (instanceTypeList == null) {
+    List<String> instanceTypes =
+        virtualizationMappingsTable.get().get(virtualizationType);
+    if (instanceTypes == null) {
       throw new IllegalArgumentException("Unknown virtualization type " +
           virtualizationType);
     }
-    return SPLITTER.splitToList(instanceTypeList);
+    return instanceTypes;
   }
 
   /**
@@ -245,14 +254,12 @@ public class VirtualizationMappings implements Function<String, List<String>> {
       final Map<String, List<String>> instanceTypes, LocalizationContext localizationContext) {
     Map<String, String> propertyMap =
         Maps.transformValues(instanceTypes, JOINER::join);
-    PropertyResolver virtualizationMappingsResolver =
-        PropertyResolvers.newMapPropertyResolver(propertyMap);
     File tempDir = Files.createTempDir();
     tempDir.deleteOnExit();
     VirtualizationMappingsConfigProperties virtualizationMappingsConfigProperties =
         new VirtualizationMappingsConfigProperties(new SimpleConfiguration(),
             tempDir, localizationContext);
     return new VirtualizationMappings(virtualizationMappingsConfigProperties,
-        virtualizationMappingsResolver);
+        ReloadableTable.of(propertyMap, VirtualizationMappings::compile));
   }
 }
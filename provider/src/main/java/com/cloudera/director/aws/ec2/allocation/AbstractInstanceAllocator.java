@@ -16,6 +16,7 @@ package com.cloudera.director.aws.ec2.allocation;
 
 import static com.cloudera.director.aws.ec2.EC2Retryer.retryUntil;
 import static com.google.common.collect.Iterables.getOnlyElement;
+import static java.util.Objects.requireNonNull;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
@@ -29,15 +30,19 @@ import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSExceptions;
 import com.cloudera.director.aws.AWSTimeouts;
+import com.cloudera.director.aws.common.CompletableFutures;
 import com.cloudera.director.aws.ec2.EC2Instance;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.EC2TagHelper;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
 import com.github.rholder.retry.RetryException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
@@ -47,9 +52,12 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -95,6 +103,17 @@ public abstract class AbstractInstanceAllocator implements InstanceAllocator {
     return (message == null) ? e.getClass().getSimpleName() : message;
   }
 
+  /**
+   * Returns how long to wait for tagged instances to be findable, in milliseconds.
+   *
+   * @param awsTimeouts the AWS timeouts
+   * @return how long to wait for tagged instances to be findable, in milliseconds
+   */
+  public static long getWaitUntilFindableMillis(AWSTimeouts awsTimeouts) {
+    return awsTimeouts.getTimeout(INSTANCE_WAIT_UNTIL_FINDABLE_MS)
+        .or(DEFAULT_INSTANCE_WAIT_UNTIL_FINDABLE_MS);
+  }
+
   /**
    * The allocation helper.
    */
@@ -145,6 +164,12 @@ public abstract class AbstractInstanceAllocator implements InstanceAllocator {
    */
   protected final int minCount;
 
+  /**
+   * The listener notified as each instance starts running.
+   */
+  private BiConsumer<String, String> instanceStartedListener = (virtualInstanceId, ec2InstanceId) -> {
+  };
+
   /**
    * Creates an abstract instance allocator with the specified parameters.
    *
@@ -168,8 +193,7 @@ public abstract class AbstractInstanceAllocator implements InstanceAllocator {
     AWSTimeouts awsTimeouts = allocationHelper.getAWSTimeouts();
     this.waitUntilStartedMillis = awsTimeouts.getTimeout(INSTANCE_WAIT_UNTIL_STARTED_MS)
         .or(DEFAULT_INSTANCE_WAIT_UNTIL_STARTED_MS);
-    this.waitUntilFindableMillis = awsTimeouts.getTimeout(INSTANCE_WAIT_UNTIL_FINDABLE_MS)
-        .or(DEFAULT_INSTANCE_WAIT_UNTIL_FINDABLE_MS);
+    this.waitUntilFindableMillis = getWaitUntilFindableMillis(awsTimeouts);
 
     this.tagEbsVolumes = tagEbsVolumes;
 
@@ -191,6 +215,21 @@ public abstract class AbstractInstanceAllocator implements InstanceAllocator {
   @Override
   public abstract void delete() throws InterruptedException;
 
+  @Override
+  public void setInstanceStartedListener(BiConsumer<String, String> listener) {
+    this.instanceStartedListener = requireNonNull(listener, "listener is null");
+  }
+
+  /**
+   * Notifies the instance started listener that an instance has started running.
+   *
+   * @param virtualInstanceId the virtual instance ID
+   * @param ec2InstanceId     the EC2 instance ID
+   */
+  protected void notifyInstanceStarted(String virtualInstanceId, String ec2InstanceId) {
+    instanceStartedListener.accept(virtualInstanceId, ec2InstanceId);
+  }
+
   /**
    * Determines the idempotency client token for the specified virtual instance ID.
    *
@@ -208,7 +247,9 @@ public abstract class AbstractInstanceAllocator implements InstanceAllocator {
   }
 
   /**
-   * Waits until all of the specified instances have assigned private IP addresses.
+   * Waits until all of the specified instances have assigned private IP addresses, or until the
+   * instance start timeout passes. Instances that terminate, or that still have no private IP
+   * address when the timeout passes, are left out of the result.
    *
    * @param virtualInstanceIdToEC2InstanceIds a virtual instance Id to EC2 instance Id map
    * @return a virtual instance to instance map in which instance is running and assigned with private IP
@@ -224,42 +265,59 @@ public abstract class AbstractInstanceAllocator implements InstanceAllocator {
         .create(virtualInstanceIdToEC2InstanceIds)
         .inverse();
 
-    while (!ec2InstanceIdToVirtualInstanceIds.isEmpty()) {
-      LOG.info(">> Waiting for {} instance(s) to get a private IP allocated", ec2InstanceIdToVirtualInstanceIds.size());
-
-      try {
-        DescribeInstancesResult result = ec2Client.describeInstances(
-            new DescribeInstancesRequest().withInstanceIds(ec2InstanceIdToVirtualInstanceIds.keySet()));
-
-        allocationHelper.forEachInstance(result, instance -> {
-          InstanceStateName currentState =
-              InstanceStateName.fromValue(instance.getState().getName());
+    if (ec2InstanceIdToVirtualInstanceIds.isEmpty()) {
+      return virtualInstanceIdToInstanceResult;
+    }
 
-          String ec2InstanceId = instance.getInstanceId();
-          if (currentState.equals(InstanceStateName.Terminated) ||
-              currentState.equals(InstanceStateName.ShuttingDown)) {
-            LOG.info("<< Instance {} has terminated unexpectedly, skipping IP address wait.", ec2InstanceId);
-            ec2InstanceIdToVirtualInstanceIds.remove(ec2InstanceId);
+    try (Span span = Tracing.startSpan("wait-for-private-ip")) {
+      span.setAttribute("instance.count", ec2InstanceIdToVirtualInstanceIds.size());
+      // Each check is an asynchronous describe, and the delay between checks is scheduled, so no
+      // thread is parked while the instances are starting
+      boolean allAssigned = CompletableFutures.join(CompletableFutures.pollUntil(() -> {
+        LOG.info(">> Waiting for {} instance(s) to get a private IP allocated", ec2InstanceIdToVirtualInstanceIds.size());
+        DescribeInstancesRequest request = new DescribeInstancesRequest()
+            .withInstanceIds(ImmutableSet.copyOf(ec2InstanceIdToVirtualInstanceIds.keySet()));
+        CompletableFuture<DescribeInstancesResult> describeInstances =
+            CompletableFutures.call(ec2Client::describeInstancesAsync, request);
+        return describeInstances.handle((result, t) -> {
+          if (t != null) {
+            Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+            if (!AWSExceptions.isNotFound(cause)) {
+              throw new CompletionException(cause);
+            }
+          } else {
+            allocationHelper.forEachInstance(result, instance -> {
+              InstanceStateName currentState =
+                  InstanceStateName.fromValue(instance.getState().getName());
+
+              String ec2InstanceId = instance.getInstanceId();
+              if (currentState.equals(InstanceStateName.Terminated) ||
+                  currentState.equals(InstanceStateName.ShuttingDown)) {
+                LOG.info("<< Instance {} has terminated unexpectedly, skipping IP address wait.", ec2InstanceId);
+                ec2InstanceIdToVirtualInstanceIds.remove(ec2InstanceId);
+
+              } else if (instance.getPrivateIpAddress() != null) {
+                LOG.info("<< Instance {} got IP {}", ec2InstanceId, instance.getPrivateIpAddress());
+                virtualInstanceIdToInstanceResult.put(ec2InstanceIdToVirtualInstanceIds.get(ec2InstanceId), instance);
+                ec2InstanceIdToVirtualInstanceIds.remove(ec2InstanceId);
+              }
+              return null;
+            });
+          }
 
-          } else if (instance.getPrivateIpAddress() != null) {
-            LOG.info("<< Instance {} got IP {}", ec2InstanceId, instance.getPrivateIpAddress());
-            virtualInstanceIdToInstanceResult.put(ec2InstanceIdToVirtualInstanceIds.get(ec2InstanceId), instance);
-            ec2InstanceIdToVirtualInstanceIds.remove(ec2InstanceId);
+          if (!ec2InstanceIdToVirtualInstanceIds.isEmpty()) {
+            LOG.info("Waiting 5 seconds until next check, {} instance(s) still don't have an IP",
+                ec2InstanceIdToVirtualInstanceIds.size());
+            return false;
           }
-          return null;
+          return true;
         });
-      } catch (AmazonServiceException e) {
-        if (!AWSExceptions.isNotFound(e)) {
-          throw e;
-        }
-      }
-
-      if (!ec2InstanceIdToVirtualInstanceIds.isEmpty()) {
-        LOG.info("Waiting 5 seconds until next check, {} instance(s) still don't have an IP",
-            ec2InstanceIdToVirtualInstanceIds.size());
-
-        TimeUnit.SECONDS.sleep(5);
+      }, 5, TimeUnit.SECONDS, System.currentTimeMillis() + waitUntilStartedMillis));
+      if (!allAssigned) {
+        LOG.warn("<< Timed out waiting for instance(s) {} to get a private IP allocated",
+            ec2InstanceIdToVirtualInstanceIds.keySet());
       }
+      span.setAttribute("instance.count.with.ip", virtualInstanceIdToInstanceResult.size());
     }
 
     return virtualInstanceIdToInstanceResult;
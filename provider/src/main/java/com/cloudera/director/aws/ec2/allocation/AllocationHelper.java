@@ -129,6 +129,15 @@ public interface AllocationHelper {
       Predicate<Instance> predicate)
       throws InterruptedException;
 
+  /**
+   * Returns current information for the specified EC2 instances. Instances that no longer
+   * exist are omitted rather than failing the lookup.
+   *
+   * @param ec2InstanceIds the EC2 instance IDs
+   * @return the instances, by EC2 instance ID
+   */
+  Map<String, Instance> findByEc2InstanceIds(Collection<String> ec2InstanceIds);
+
   /**
    * Deletes the specified instances, which are guaranteed to have been created by this provider.
    *
@@ -0,0 +1,471 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>A durable, append-only journal of the progress of instance allocations, kept in a local
+ * file so that it survives a restart of Director in the middle of an allocation.</p>
+ * <p>For each virtual instance, the journal records the client token of its launch request,
+ * its Spot instance request, its EC2 instance, and the EBS volumes created for it separately,
+ * along with whether the instance was allocated and whether its volumes are complete. An
+ * allocator that is restarted for the same virtual instances can then resume with lookups by
+ * ID, reuse client tokens so that launch requests are idempotent, and delete volumes that were
+ * left incomplete, instead of relying on scans by tag. Records are removed when their
+ * instances are released.</p>
+ * <p>Each batch of entries is forced to disk before the call that records it returns, so that
+ * client tokens are durable before the launch requests that use them are sent. The journal is
+ * compacted to the live records when it is opened and as it grows. A journal that cannot be
+ * written keeps its records in memory only.</p>
+ * <p>The journal is disabled until it is opened; until then, {@link #get()} returns a journal
+ * that records nothing.</p>
+ */
+public final class AllocationJournal {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AllocationJournal.class);
+
+  /**
+   * The minimum number of entries appended between compactions.
+   */
+  private static final int MIN_ENTRIES_BETWEEN_COMPACTIONS = 1000;
+
+  private static final String OP_CLIENT_TOKEN = "clientToken";
+  private static final String OP_SPOT_REQUEST = "spotRequest";
+  private static final String OP_INSTANCE = "instance";
+  private static final String OP_VOLUMES = "volumes";
+  private static final String OP_VOLUMES_READY = "volumesReady";
+  private static final String OP_ALLOCATED = "allocated";
+  private static final String OP_RELEASED = "released";
+
+  /**
+   * The journal that records nothing.
+   */
+  private static final AllocationJournal DISABLED = new AllocationJournal(null);
+
+  /**
+   * The current journal.
+   */
+  private static volatile AllocationJournal current = DISABLED;
+
+  /**
+   * Opens the journal in the specified file, replaying and compacting its existing entries,
+   * and makes it the current journal.
+   *
+   * @param file the journal file
+   */
+  public static synchronized void open(File file) {
+    AllocationJournal journal = new AllocationJournal(
+        new JournalFile(requireNonNull(file, "file is null"), "allocation journal", true));
+    close();
+    journal.load();
+    current = journal;
+    LOG.info("Allocation journal {} holds {} in-progress or allocated instance(s)", file,
+        journal.records.size());
+  }
+
+  /**
+   * Closes the current journal, disabling journaling.
+   */
+  public static synchronized void close() {
+    AllocationJournal previous = current;
+    current = DISABLED;
+    previous.closeFile();
+  }
+
+  /**
+   * Returns the current journal, which records nothing if journaling is disabled.
+   *
+   * @return the current journal
+   */
+  public static AllocationJournal get() {
+    return current;
+  }
+
+  private final JournalFile file;
+  private final Map<String, Record> records = new LinkedHashMap<>();
+
+  private AllocationJournal(JournalFile file) {
+    this.file = file;
+  }
+
+  /**
+   * Returns whether this journal records anything.
+   *
+   * @return whether this journal records anything
+   */
+  public boolean isEnabled() {
+    return file != null;
+  }
+
+  /**
+   * Returns the record of a virtual instance.
+   *
+   * @param virtualInstanceId the virtual instance ID
+   * @return the record, or {@code null} if nothing is recorded for the virtual instance
+   */
+  public synchronized Record getRecord(String virtualInstanceId) {
+    return records.get(virtualInstanceId);
+  }
+
+  /**
+   * Returns the records of the specified virtual instances.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   * @return the records, by virtual instance ID, omitting virtual instances without records
+   */
+  public synchronized Map<String, Record> getRecords(Collection<String> virtualInstanceIds) {
+    if (!isEnabled()) {
+      return Collections.emptyMap();
+    }
+    Map<String, Record> result = Maps.newHashMap();
+    for (String virtualInstanceId : virtualInstanceIds) {
+      Record record = records.get(virtualInstanceId);
+      if (record != null) {
+        result.put(virtualInstanceId, record);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Records the client tokens of launch requests about to be sent.
+   *
+   * @param clientTokensByVirtualInstanceId the client tokens, by virtual instance ID
+   */
+  public void recordClientTokens(Map<String, String> clientTokensByVirtualInstanceId) {
+    append(OP_CLIENT_TOKEN, clientTokensByVirtualInstanceId);
+  }
+
+  /**
+   * Records Spot instance requests.
+   *
+   * @param requestIdsByVirtualInstanceId the Spot instance request IDs, by virtual instance ID
+   */
+  public void recordSpotInstanceRequests(Map<String, String> requestIdsByVirtualInstanceId) {
+    append(OP_SPOT_REQUEST, requestIdsByVirtualInstanceId);
+  }
+
+  /**
+   * Records launched EC2 instances.
+   *
+   * @param ec2InstanceIdsByVirtualInstanceId the EC2 instance IDs, by virtual instance ID
+   */
+  public void recordInstances(Map<String, String> ec2InstanceIdsByVirtualInstanceId) {
+    append(OP_INSTANCE, ec2InstanceIdsByVirtualInstanceId);
+  }
+
+  /**
+   * Records the EBS volumes created separately for a virtual instance. Nothing is written if
+   * the volumes are already recorded.
+   *
+   * @param virtualInstanceId the virtual instance ID
+   * @param volumeIds         the volume IDs
+   */
+  public void recordVolumes(String virtualInstanceId, Set<String> volumeIds) {
+    if (!isEnabled()) {
+      return;
+    }
+    synchronized (this) {
+      Record record = records.get(virtualInstanceId);
+      if (record != null && record.getVolumeIds().equals(volumeIds)) {
+        return;
+      }
+    }
+    append(OP_VOLUMES, Collections.singletonMap(virtualInstanceId, String.join(",", volumeIds)));
+  }
+
+  /**
+   * Records that the EBS volumes of a virtual instance are attached and deleted on termination.
+   *
+   * @param virtualInstanceId the virtual instance ID
+   */
+  public void recordVolumesReady(String virtualInstanceId) {
+    append(OP_VOLUMES_READY, Collections.singletonMap(virtualInstanceId, null));
+  }
+
+  /**
+   * Records that virtual instances were allocated.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   */
+  public void recordAllocated(Collection<String> virtualInstanceIds) {
+    append(OP_ALLOCATED, toValueMap(virtualInstanceIds));
+  }
+
+  /**
+   * Records that virtual instances were released, that is, deleted or cleaned up after a
+   * failed allocation, forgetting their records.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   */
+  public void recordReleased(Collection<String> virtualInstanceIds) {
+    append(OP_RELEASED, toValueMap(virtualInstanceIds));
+  }
+
+  private static Map<String, String> toValueMap(Collection<String> virtualInstanceIds) {
+    Map<String, String> values = new LinkedHashMap<>();
+    for (String virtualInstanceId : virtualInstanceIds) {
+      values.put(virtualInstanceId, null);
+    }
+    return values;
+  }
+
+  /**
+   * Applies entries of the same kind to the records, and writes them to the journal file as
+   * a single batch.
+   */
+  private synchronized void append(String op, Map<String, String> valuesByVirtualInstanceId) {
+    if (!isEnabled() || valuesByVirtualInstanceId.isEmpty()) {
+      return;
+    }
+    List<JournalFile.Entry> batch =
+        Lists.newArrayListWithCapacity(valuesByVirtualInstanceId.size());
+    for (Map.Entry<String, String> entry : valuesByVirtualInstanceId.entrySet()) {
+      apply(op, entry.getKey(), entry.getValue());
+      batch.add(new JournalFile.Entry(op, entry.getKey(), entry.getValue()));
+    }
+    file.append(batch);
+    if (file.getEntriesSinceCompaction()
+        > Math.max(MIN_ENTRIES_BETWEEN_COMPACTIONS, 4 * records.size())) {
+      file.compact(getLiveEntries());
+    }
+  }
+
+  private void apply(String op, String virtualInstanceId, String value) {
+    if (OP_RELEASED.equals(op)) {
+      records.remove(virtualInstanceId);
+      return;
+    }
+    Record record = records.get(virtualInstanceId);
+    if (record == null) {
+      record = new Record(virtualInstanceId);
+    }
+    switch (op) {
+      case OP_CLIENT_TOKEN:
+        record = record.withClientToken(value);
+        break;
+      case OP_SPOT_REQUEST:
+        record = record.withSpotInstanceRequestId(value);
+        break;
+      case OP_INSTANCE:
+        record = record.withEc2InstanceId(value);
+        break;
+      case OP_VOLUMES:
+        record = record.withVolumeIds((value == null || value.isEmpty())
+            ? ImmutableSet.of() : ImmutableSet.copyOf(value.split(",")));
+        break;
+      case OP_VOLUMES_READY:
+        record = record.withVolumesReady();
+        break;
+      case OP_ALLOCATED:
+        record = record.withAllocated();
+        break;
+      default:
+        LOG.warn("Ignoring unknown allocation journal entry {} for {}", op, virtualInstanceId);
+        return;
+    }
+    records.put(virtualInstanceId, record);
+  }
+
+  /**
+   * Replays the entries of the journal file, if it exists, and compacts it.
+   */
+  private synchronized void load() {
+    file.replay(this::apply);
+    file.compact(getLiveEntries());
+  }
+
+  /**
+   * Returns only the entries needed to rebuild the live records.
+   */
+  private List<JournalFile.Entry> getLiveEntries() {
+    List<JournalFile.Entry> entries = Lists.newArrayList();
+    for (Record record : records.values()) {
+      String vid = record.getVirtualInstanceId();
+      if (record.getClientToken() != null) {
+        entries.add(new JournalFile.Entry(OP_CLIENT_TOKEN, vid, record.getClientToken()));
+      }
+      if (record.getSpotInstanceRequestId() != null) {
+        entries.add(
+            new JournalFile.Entry(OP_SPOT_REQUEST, vid, record.getSpotInstanceRequestId()));
+      }
+      if (record.getEc2InstanceId() != null) {
+        entries.add(new JournalFile.Entry(OP_INSTANCE, vid, record.getEc2InstanceId()));
+      }
+      if (!record.getVolumeIds().isEmpty()) {
+        entries.add(
+            new JournalFile.Entry(OP_VOLUMES, vid, String.join(",", record.getVolumeIds())));
+      }
+      if (record.isVolumesReady()) {
+        entries.add(new JournalFile.Entry(OP_VOLUMES_READY, vid, null));
+      }
+      if (record.isAllocated()) {
+        entries.add(new JournalFile.Entry(OP_ALLOCATED, vid, null));
+      }
+    }
+    return entries;
+  }
+
+  private void closeFile() {
+    if (file != null) {
+      file.close();
+    }
+  }
+
+  /**
+   * The journaled state of a virtual instance.
+   */
+  public static final class Record {
+
+    private final String virtualInstanceId;
+    private final String clientToken;
+    private final String spotInstanceRequestId;
+    private final String ec2InstanceId;
+    private final Set<String> volumeIds;
+    private final boolean volumesReady;
+    private final boolean allocated;
+
+    private Record(String virtualInstanceId) {
+      this(virtualInstanceId, null, null, null, ImmutableSet.of(), false, false);
+    }
+
+    private Record(String virtualInstanceId, String clientToken, String spotInstanceRequestId,
+        String ec2InstanceId, Set<String> volumeIds, boolean volumesReady, boolean allocated) {
+      this.virtualInstanceId = virtualInstanceId;
+      this.clientToken = clientToken;
+      this.spotInstanceRequestId = spotInstanceRequestId;
+      this.ec2InstanceId = ec2InstanceId;
+      this.volumeIds = volumeIds;
+      this.volumesReady = volumesReady;
+      this.allocated = allocated;
+    }
+
+    public String getVirtualInstanceId() {
+      return virtualInstanceId;
+    }
+
+    /**
+     * Returns the client token of the latest launch request for the virtual instance.
+     *
+     * @return the client token, or {@code null} if none was recorded
+     */
+    public String getClientToken() {
+      return clientToken;
+    }
+
+    public String getSpotInstanceRequestId() {
+      return spotInstanceRequestId;
+    }
+
+    public String getEc2InstanceId() {
+      return ec2InstanceId;
+    }
+
+    public Set<String> getVolumeIds() {
+      return volumeIds;
+    }
+
+    public boolean isVolumesReady() {
+      return volumesReady;
+    }
+
+    public boolean isAllocated() {
+      return allocated;
+    }
+
+    /**
+     * Returns whether a launch request was sent for the virtual instance with a client token,
+     * but its EC2 instance was never recorded, so that the request can be resent with the same
+     * token to recover the instance.
+     *
+     * @return whether the launch request can be resumed with its client token
+     */
+    public boolean isLaunchPending() {
+      return clientToken != null && ec2InstanceId == null;
+    }
+
+    /**
+     * Returns whether volumes were created for the virtual instance, but were not completed,
+     * so that they may be left behind when the instance is terminated.
+     *
+     * @return whether the virtual instance has incomplete volumes
+     */
+    public boolean hasIncompleteVolumes() {
+      return !volumeIds.isEmpty() && !volumesReady;
+    }
+
+    private Record withClientToken(String clientToken) {
+      // A new launch request supersedes the previous Spot instance request and instance, if any
+      return new Record(virtualInstanceId, clientToken, null, null, volumeIds, volumesReady,
+          false);
+    }
+
+    private Record withSpotInstanceRequestId(String spotInstanceRequestId) {
+      // A new Spot instance request supersedes the previous instance, if any
+      return new Record(virtualInstanceId, clientToken, spotInstanceRequestId, null, volumeIds,
+          volumesReady, false);
+    }
+
+    private Record withEc2InstanceId(String ec2InstanceId) {
+      return new Record(virtualInstanceId, clientToken, spotInstanceRequestId, ec2InstanceId,
+          volumeIds, volumesReady, allocated);
+    }
+
+    private Record withVolumeIds(Set<String> volumeIds) {
+      return new Record(virtualInstanceId, clientToken, spotInstanceRequestId, ec2InstanceId,
+          volumeIds, false, allocated);
+    }
+
+    private Record withVolumesReady() {
+      return new Record(virtualInstanceId, clientToken, spotInstanceRequestId, ec2InstanceId,
+          volumeIds, true, allocated);
+    }
+
+    private Record withAllocated() {
+      return new Record(virtualInstanceId, clientToken, spotInstanceRequestId, ec2InstanceId,
+          volumeIds, volumesReady, true);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("virtualInstanceId", virtualInstanceId)
+          .add("clientToken", clientToken)
+          .add("spotInstanceRequestId", spotInstanceRequestId)
+          .add("ec2InstanceId", ec2InstanceId)
+          .add("volumeIds", volumeIds)
+          .add("volumesReady", volumesReady)
+          .add("allocated", allocated)
+          .toString();
+    }
+  }
+}
@@ -17,6 +17,7 @@ package com.cloudera.director.aws.ec2.allocation;
 import com.cloudera.director.aws.ec2.EC2Instance;
 
 import java.util.Collection;
+import java.util.function.BiConsumer;
 
 /**
  * Represents a configured strategy for creating, finding, and deleting groups of EC2 instances.
@@ -31,6 +32,18 @@ public interface InstanceAllocator {
    */
   Collection<EC2Instance> allocate() throws InterruptedException;
 
+  /**
+   * Sets a listener that is notified as each instance starts running, before allocation as a
+   * whole completes, with the instance's virtual instance ID and EC2 instance ID. This lets
+   * per-instance work, such as attaching EBS volumes, overlap with the rest of the allocation.
+   * Allocators that cannot tell when individual instances start never notify the listener,
+   * so callers must also handle the instances returned by {@link #allocate()}.
+   *
+   * @param listener the listener
+   */
+  default void setInstanceStartedListener(BiConsumer<String, String> listener) {
+  }
+
   /**
    * Returns the instance IDs.
    *
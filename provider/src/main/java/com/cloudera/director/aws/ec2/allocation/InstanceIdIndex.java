@@ -0,0 +1,218 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>An index from virtual instance IDs to EC2 instance IDs, so that the instances of
+ * templates that are not automatic can be described by EC2 instance ID, rather than with a
+ * Director ID tag filter, which EC2 evaluates across the whole account.</p>
+ * <p>Entries are hints only: an instance found through the index must carry the Director ID
+ * tag of its virtual instance, and lookups fall back to tag filtering on a miss or a mismatch.
+ * The index is populated as instances are allocated, and evicts its least recently used
+ * entries beyond a maximum size.</p>
+ * <p>The index may be backed by a file, in the same format as the {@link AllocationJournal},
+ * so that it survives a restart. Since entries are validated when they are used, the file is
+ * not forced to disk as it is written, and an unreadable file only costs the tag lookups the
+ * index would have saved.</p>
+ */
+public final class InstanceIdIndex {
+
+  private static final Logger LOG = LoggerFactory.getLogger(InstanceIdIndex.class);
+
+  /**
+   * The default maximum number of entries.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+  private static final String OP_INSTANCE = "instance";
+  private static final String OP_REMOVED = "removed";
+
+  /**
+   * The current index.
+   */
+  private static volatile InstanceIdIndex current = new InstanceIdIndex(null, DEFAULT_MAX_ENTRIES);
+
+  /**
+   * Replaces the current index with one kept in memory only.
+   *
+   * @param maxEntries the maximum number of entries
+   */
+  public static synchronized void openInMemory(int maxEntries) {
+    replace(new InstanceIdIndex(null, maxEntries));
+  }
+
+  /**
+   * Replaces the current index with one backed by the specified file, loading the entries
+   * already in the file.
+   *
+   * @param file       the index file
+   * @param maxEntries the maximum number of entries
+   */
+  public static synchronized void open(File file, int maxEntries) {
+    InstanceIdIndex index =
+        new InstanceIdIndex(new JournalFile(file, "instance ID index", false), maxEntries);
+    index.load();
+    replace(index);
+    LOG.info("Instance ID index {} holds {} entries", file, index.entries.size());
+  }
+
+  private static void replace(InstanceIdIndex index) {
+    InstanceIdIndex previous = current;
+    current = index;
+    previous.closeFile();
+  }
+
+  /**
+   * Returns the current index.
+   *
+   * @return the current index
+   */
+  public static InstanceIdIndex get() {
+    return current;
+  }
+
+  private final JournalFile file;
+  private final int maxEntries;
+  private final LinkedHashMap<String, String> entries;
+
+  private InstanceIdIndex(JournalFile file, int maxEntries) {
+    checkArgument(maxEntries > 0, "maxEntries must be positive: %s", maxEntries);
+    this.file = file;
+    this.maxEntries = maxEntries;
+    this.entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+        return size() > InstanceIdIndex.this.maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the indexed EC2 instance IDs of the specified virtual instances.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   * @return the EC2 instance IDs, by virtual instance ID, omitting virtual instances that are
+   * not indexed
+   */
+  public synchronized Map<String, String> getEc2InstanceIds(
+      Collection<String> virtualInstanceIds) {
+    Map<String, String> ec2InstanceIds = Maps.newHashMap();
+    for (String virtualInstanceId : virtualInstanceIds) {
+      String ec2InstanceId = entries.get(virtualInstanceId);
+      if (ec2InstanceId != null) {
+        ec2InstanceIds.put(virtualInstanceId, ec2InstanceId);
+      }
+    }
+    return ec2InstanceIds;
+  }
+
+  /**
+   * Indexes the EC2 instance IDs of the specified virtual instances.
+   *
+   * @param ec2InstanceIdsByVirtualInstanceId the EC2 instance IDs, by virtual instance ID
+   */
+  public synchronized void putAll(Map<String, String> ec2InstanceIdsByVirtualInstanceId) {
+    List<JournalFile.Entry> batch =
+        Lists.newArrayListWithCapacity(ec2InstanceIdsByVirtualInstanceId.size());
+    for (Map.Entry<String, String> entry : ec2InstanceIdsByVirtualInstanceId.entrySet()) {
+      entries.put(entry.getKey(), entry.getValue());
+      batch.add(new JournalFile.Entry(OP_INSTANCE, entry.getKey(), entry.getValue()));
+    }
+    write(batch);
+  }
+
+  /**
+   * Removes the specified virtual instances from the index, typically because their indexed
+   * EC2 instances are gone or no longer match.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   */
+  public synchronized void removeAll(Collection<String> virtualInstanceIds) {
+    List<JournalFile.Entry> batch = Lists.newArrayList();
+    for (String virtualInstanceId : virtualInstanceIds) {
+      if (entries.remove(virtualInstanceId) != null) {
+        batch.add(new JournalFile.Entry(OP_REMOVED, virtualInstanceId, null));
+      }
+    }
+    write(batch);
+  }
+
+  /**
+   * Returns the number of entries.
+   *
+   * @return the number of entries
+   */
+  @VisibleForTesting
+  synchronized int size() {
+    return entries.size();
+  }
+
+  private void write(List<JournalFile.Entry> batch) {
+    if (file == null || batch.isEmpty()) {
+      return;
+    }
+    file.append(batch);
+    if (file.getEntriesSinceCompaction() > 2 * maxEntries) {
+      file.compact(getLiveEntries());
+    }
+  }
+
+  private synchronized void load() {
+    file.replay(this::apply);
+    file.compact(getLiveEntries());
+  }
+
+  private void apply(String op, String virtualInstanceId, String value) {
+    if (OP_INSTANCE.equals(op) && value != null) {
+      entries.put(virtualInstanceId, value);
+    } else if (OP_REMOVED.equals(op)) {
+      entries.remove(virtualInstanceId);
+    }
+  }
+
+  /**
+   * Returns the entries needed to rebuild the index, from least to most recently used.
+   */
+  private List<JournalFile.Entry> getLiveEntries() {
+    List<JournalFile.Entry> live = Lists.newArrayListWithCapacity(entries.size());
+    for (Map.Entry<String, String> entry : entries.entrySet()) {
+      live.add(new JournalFile.Entry(OP_INSTANCE, entry.getKey(), entry.getValue()));
+    }
+    return live;
+  }
+
+  private synchronized void closeFile() {
+    if (file != null) {
+      file.close();
+    }
+  }
+}
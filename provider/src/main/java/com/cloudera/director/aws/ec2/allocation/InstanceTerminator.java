@@ -0,0 +1,457 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static com.cloudera.director.aws.ec2.common.EC2Exceptions.INVALID_INSTANCE_ID_NOT_FOUND;
+import static java.util.Objects.requireNonNull;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.cloudera.director.aws.common.CompletableFutures;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Terminates EC2 instances in bulk.</p>
+ * <p>Instances are terminated in chunks of bounded size, several chunks at a time. EC2 rejects
+ * a whole terminate request if any of its instance IDs is malformed or unknown, so a chunk
+ * that is rejected for that reason is split in halves, which are retried one after the other
+ * within the chunk's request slot, until the offending instances are isolated. The remaining
+ * instances are still terminated, with O(k log n) extra requests for k offending instances out
+ * of n, and no more than the usual number of requests in flight.</p>
+ * <p>An instance that EC2 does not know is normally long gone, and is treated as already
+ * terminated. EC2 is eventually consistent, however, so an instance that was launched moments
+ * ago may not be known to it yet. A terminator created for freshly launched instances therefore
+ * retries unknown instances after a short delay, until a configurable timeout passes, before it
+ * reports them as a failure.</p>
+ * <p>If configured to, the terminator then waits for the terminating instances to reach the
+ * terminated state, polling their states in batches.</p>
+ */
+public class InstanceTerminator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(InstanceTerminator.class);
+
+  /**
+   * The error code with which EC2 rejects a request containing a malformed instance ID.
+   */
+  private static final String INVALID_INSTANCE_ID_MALFORMED = "InvalidInstanceID.Malformed";
+
+  /**
+   * The maximum number of instances per terminate request. EC2 accepts up to 1000, but
+   * recommends smaller batches.
+   */
+  @VisibleForTesting
+  static final int MAX_INSTANCES_PER_REQUEST = 500;
+
+  /**
+   * The maximum number of instances per describe request while waiting for termination.
+   */
+  private static final int MAX_INSTANCES_PER_DESCRIBE_REQUEST = 100;
+
+  /**
+   * The maximum number of requests in flight at a time.
+   */
+  @VisibleForTesting
+  static final int MAX_CONCURRENT_REQUESTS = 4;
+
+  /**
+   * The delay between polls while waiting for termination, in seconds.
+   */
+  private static final long POLL_INTERVAL_SECONDS = 5L;
+
+  /**
+   * The delay before retrying an instance that EC2 does not know, in seconds.
+   */
+  private static final long NOT_FOUND_RETRY_DELAY_SECONDS = 2L;
+
+  /**
+   * The default time to wait for instances to be terminated, in seconds.
+   */
+  public static final long DEFAULT_WAIT_TIMEOUT_SECONDS = 600L;
+
+  /**
+   * Whether to wait for instances to be terminated.
+   */
+  private static volatile boolean waitUntilTerminated = false;
+
+  /**
+   * The time to wait for instances to be terminated, in milliseconds.
+   */
+  private static volatile long waitTimeoutMillis =
+      TimeUnit.SECONDS.toMillis(DEFAULT_WAIT_TIMEOUT_SECONDS);
+
+  /**
+   * Configures whether terminators wait for instances to be terminated.
+   *
+   * @param waitUntilTerminated whether to wait for instances to be terminated
+   * @param waitTimeoutSeconds  the time to wait for instances to be terminated, in seconds
+   */
+  public static void configure(boolean waitUntilTerminated, long waitTimeoutSeconds) {
+    InstanceTerminator.waitUntilTerminated = waitUntilTerminated;
+    InstanceTerminator.waitTimeoutMillis = TimeUnit.SECONDS.toMillis(waitTimeoutSeconds);
+  }
+
+  /**
+   * The outcome of terminating an instance.
+   */
+  public enum Outcome {
+
+    /**
+     * The instance is shutting down.
+     */
+    TERMINATING,
+
+    /**
+     * The instance is terminated.
+     */
+    TERMINATED,
+
+    /**
+     * The instance does not exist, even after waiting for it to become known if the instances
+     * were freshly launched.
+     */
+    NOT_FOUND,
+
+    /**
+     * The instance ID is malformed.
+     */
+    MALFORMED,
+
+    /**
+     * The instance could not be terminated; see {@link Result#getFailure()}.
+     */
+    FAILED
+  }
+
+  /**
+   * The outcome of a bulk termination.
+   */
+  public static final class Result {
+
+    private final Map<String, Outcome> outcomes;
+    private final AmazonClientException failure;
+
+    private Result(Map<String, Outcome> outcomes, AmazonClientException failure) {
+      this.outcomes = ImmutableMap.copyOf(outcomes);
+      this.failure = failure;
+    }
+
+    /**
+     * Returns the outcome of each instance, by EC2 instance ID.
+     *
+     * @return the outcome of each instance
+     */
+    public Map<String, Outcome> getOutcomes() {
+      return outcomes;
+    }
+
+    /**
+     * Returns the IDs of the instances with the specified outcome.
+     *
+     * @param outcome the outcome
+     * @return the IDs of the instances with the outcome
+     */
+    public Set<String> getInstanceIds(Outcome outcome) {
+      return outcomes.entrySet().stream()
+          .filter((entry) -> entry.getValue() == outcome)
+          .map(Map.Entry::getKey)
+          .collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the first error that caused instances to fail to terminate, including a freshly
+     * launched instance that remained unknown, or {@code null} if there was none. Malformed
+     * instance IDs, and unknown instance IDs that were not freshly launched, are only reported
+     * in the outcomes.
+     *
+     * @return the first error, or {@code null}
+     */
+    public AmazonClientException getFailure() {
+      return failure;
+    }
+  }
+
+  private final AmazonEC2AsyncClient client;
+
+  /**
+   * Whether the instances were freshly launched, in which case instances that EC2 does not
+   * know are retried, and reported as a failure if they remain unknown.
+   */
+  private final boolean freshlyLaunched;
+
+  /**
+   * How long to keep retrying instances that EC2 does not know, in milliseconds.
+   */
+  private final long waitUntilFindableMillis;
+
+  /**
+   * Creates an instance terminator for instances that may have been terminated long ago, such
+   * as those that Director deletes. Instances that EC2 does not know are treated as already
+   * terminated.
+   *
+   * @param client the EC2 client
+   */
+  public InstanceTerminator(AmazonEC2AsyncClient client) {
+    this(client, false, 0L);
+  }
+
+  /**
+   * Creates an instance terminator for instances that were launched moments ago, such as those
+   * cleaned up after a failed allocation. Instances that EC2 does not know are retried until
+   * the specified timeout passes, and then reported as a failure.
+   *
+   * @param client                  the EC2 client
+   * @param waitUntilFindableMillis how long to keep retrying instances that EC2 does not know,
+   *                                in milliseconds
+   */
+  public InstanceTerminator(AmazonEC2AsyncClient client, long waitUntilFindableMillis) {
+    this(client, true, waitUntilFindableMillis);
+  }
+
+  private InstanceTerminator(AmazonEC2AsyncClient client, boolean freshlyLaunched,
+      long waitUntilFindableMillis) {
+    this.client = requireNonNull(client, "client is null");
+    this.freshlyLaunched = freshlyLaunched;
+    this.waitUntilFindableMillis = waitUntilFindableMillis;
+  }
+
+  /**
+   * Terminates the specified instances, waiting for them to be terminated if so configured.
+   *
+   * @param ec2InstanceIds the EC2 instance IDs
+   * @return the outcome of each instance
+   * @throws InterruptedException if the operation is interrupted
+   */
+  public Result terminate(Collection<String> ec2InstanceIds) throws InterruptedException {
+    Set<String> instanceIds = Sets.newLinkedHashSet(ec2InstanceIds);
+    Map<String, Outcome> outcomes = new ConcurrentHashMap<>();
+    if (instanceIds.isEmpty()) {
+      return new Result(outcomes, null);
+    }
+
+    AtomicReference<AmazonClientException> failure = new AtomicReference<>();
+    long findableDeadlineMillis = System.currentTimeMillis() + waitUntilFindableMillis;
+    LOG.info(">> Terminating {} instance(s)", instanceIds.size());
+    List<String> pending = Lists.newArrayList(instanceIds);
+    while (true) {
+      Map<String, AmazonClientException> notFound = new ConcurrentHashMap<>();
+      CompletableFutures.join(CompletableFutures.runAll(
+          Lists.partition(pending, MAX_INSTANCES_PER_REQUEST),
+          (chunk) -> terminateChunk(chunk, outcomes, failure, notFound),
+          MAX_CONCURRENT_REQUESTS));
+      if (notFound.isEmpty()) {
+        break;
+      }
+      long retryMillis = TimeUnit.SECONDS.toMillis(NOT_FOUND_RETRY_DELAY_SECONDS);
+      if (freshlyLaunched
+          && System.currentTimeMillis() + retryMillis < findableDeadlineMillis) {
+        LOG.debug("Instance(s) {} are not known yet, retrying", notFound.keySet());
+        CompletableFutures.join(
+            CompletableFutures.delay(NOT_FOUND_RETRY_DELAY_SECONDS, TimeUnit.SECONDS));
+        pending = Lists.newArrayList(notFound.keySet());
+        continue;
+      }
+      for (Map.Entry<String, AmazonClientException> entry : notFound.entrySet()) {
+        outcomes.put(entry.getKey(), Outcome.NOT_FOUND);
+        if (freshlyLaunched) {
+          failure.compareAndSet(null, entry.getValue());
+        }
+      }
+      break;
+    }
+    Result result = new Result(outcomes, failure.get());
+    logResult(result);
+
+    if (waitUntilTerminated) {
+      awaitTermination(result.getInstanceIds(Outcome.TERMINATING), outcomes);
+      result = new Result(outcomes, failure.get());
+    }
+    return result;
+  }
+
+  /**
+   * Terminates the specified chunk of instances, bisecting it if EC2 rejects it because of an
+   * unknown or malformed instance ID. The halves are terminated one after the other, so that
+   * the chunk never has more than one request in flight. The returned future does not complete
+   * exceptionally because of EC2 errors; instead, their instances are recorded as failed or
+   * malformed, and isolated unknown instances are added to the specified map, with their error.
+   */
+  private CompletableFuture<Void> terminateChunk(List<String> chunk,
+      Map<String, Outcome> outcomes, AtomicReference<AmazonClientException> failure,
+      Map<String, AmazonClientException> notFound) {
+    return CompletableFutures.<TerminateInstancesRequest, TerminateInstancesResult>call(
+        client::terminateInstancesAsync, new TerminateInstancesRequest().withInstanceIds(chunk))
+        .handle((result, t) -> {
+          if (t == null) {
+            for (InstanceStateChange change : result.getTerminatingInstances()) {
+              outcomes.put(change.getInstanceId(),
+                  InstanceStateName.Terminated.toString().equals(change.getCurrentState().getName())
+                      ? Outcome.TERMINATED : Outcome.TERMINATING);
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+          }
+
+          Throwable cause = (t instanceof CompletionException && t.getCause() != null)
+              ? t.getCause() : t;
+          if (!(cause instanceof AmazonClientException)) {
+            throw new CompletionException(cause);
+          }
+          Outcome invalidIdOutcome = getInvalidIdOutcome(cause);
+          if (invalidIdOutcome == null) {
+            LOG.warn("Failed to terminate {} instance(s)", chunk.size(), cause);
+            failure.compareAndSet(null, (AmazonClientException) cause);
+            chunk.forEach((instanceId) -> outcomes.put(instanceId, Outcome.FAILED));
+            return CompletableFuture.<Void>completedFuture(null);
+          }
+          if (chunk.size() == 1) {
+            if (invalidIdOutcome == Outcome.NOT_FOUND) {
+              notFound.put(chunk.get(0), (AmazonClientException) cause);
+            } else {
+              outcomes.put(chunk.get(0), invalidIdOutcome);
+            }
+            return CompletableFuture.<Void>completedFuture(null);
+          }
+
+          int middle = chunk.size() / 2;
+          LOG.debug("Bisecting a chunk of {} instances to isolate invalid instance IDs",
+              chunk.size());
+          return CompletableFutures.runAll(
+              ImmutableList.of(chunk.subList(0, middle), chunk.subList(middle, chunk.size())),
+              (half) -> terminateChunk(half, outcomes, failure, notFound), 1);
+        })
+        .thenCompose((future) -> future);
+  }
+
+  /**
+   * Waits for the specified terminating instances to be terminated, until the configured
+   * timeout passes. Instances that EC2 no longer reports count as terminated.
+   */
+  private void awaitTermination(Set<String> terminatingInstanceIds,
+      Map<String, Outcome> outcomes) throws InterruptedException {
+    if (terminatingInstanceIds.isEmpty()) {
+      return;
+    }
+    LOG.info(">> Waiting for {} instance(s) to be terminated", terminatingInstanceIds.size());
+    Set<String> remaining = ConcurrentHashMap.newKeySet();
+    remaining.addAll(terminatingInstanceIds);
+    boolean terminated;
+    try {
+      terminated = CompletableFutures.join(CompletableFutures.pollUntil(
+          () -> pollTermination(remaining, outcomes).thenApply((ignored) -> remaining.isEmpty()),
+          POLL_INTERVAL_SECONDS, TimeUnit.SECONDS,
+          System.currentTimeMillis() + waitTimeoutMillis));
+    } catch (AmazonClientException e) {
+      // The instances are already terminating, so there is nothing to report
+      LOG.warn("<< Unable to wait for instances to be terminated", e);
+      return;
+    }
+    if (terminated) {
+      LOG.info("<< All instances are terminated");
+    } else {
+      LOG.warn("<< Timed out waiting for instance(s) {} to be terminated", remaining);
+    }
+  }
+
+  /**
+   * Describes the specified remaining instances in batches, and removes those that are
+   * terminated or no longer reported.
+   */
+  private CompletableFuture<Void> pollTermination(Set<String> remaining,
+      Map<String, Outcome> outcomes) {
+    List<List<String>> batches = Lists.partition(Lists.newArrayList(remaining),
+        MAX_INSTANCES_PER_DESCRIBE_REQUEST);
+    return CompletableFutures.runAll(batches, (batch) -> {
+      // A filter, unlike a list of instance IDs, does not fail on instances that are gone
+      DescribeInstancesRequest request = new DescribeInstancesRequest()
+          .withFilters(new Filter().withName("instance-id").withValues(batch));
+      return CompletableFutures.<DescribeInstancesRequest, DescribeInstancesResult>call(
+          client::describeInstancesAsync, request)
+          .thenAccept((result) -> {
+            Set<String> reported = Sets.newHashSet();
+            for (Reservation reservation : result.getReservations()) {
+              for (Instance instance : reservation.getInstances()) {
+                if (!InstanceStateName.Terminated.toString()
+                    .equals(instance.getState().getName())) {
+                  reported.add(instance.getInstanceId());
+                }
+              }
+            }
+            for (String instanceId : batch) {
+              if (!reported.contains(instanceId)) {
+                remaining.remove(instanceId);
+                outcomes.put(instanceId, Outcome.TERMINATED);
+              }
+            }
+          });
+    }, MAX_CONCURRENT_REQUESTS);
+  }
+
+  /**
+   * Returns the outcome for the instance IDs of a request that EC2 rejected because of an
+   * unknown or malformed instance ID, or {@code null} if it was rejected for another reason.
+   */
+  private static Outcome getInvalidIdOutcome(Throwable t) {
+    if (!(t instanceof AmazonServiceException)) {
+      return null;
+    }
+    String errorCode = ((AmazonServiceException) t).getErrorCode();
+    if (INVALID_INSTANCE_ID_NOT_FOUND.equals(errorCode)) {
+      return Outcome.NOT_FOUND;
+    }
+    if (INVALID_INSTANCE_ID_MALFORMED.equals(errorCode)) {
+      return Outcome.MALFORMED;
+    }
+    return null;
+  }
+
+  private static void logResult(Result result) {
+    Set<String> notFound = result.getInstanceIds(Outcome.NOT_FOUND);
+    Set<String> malformed = result.getInstanceIds(Outcome.MALFORMED);
+    Set<String> failed = result.getInstanceIds(Outcome.FAILED);
+    LOG.info("<< Terminated {} instance(s){}{}{}",
+        result.getOutcomes().size() - notFound.size() - malformed.size() - failed.size(),
+        notFound.isEmpty() ? "" : ", unknown " + notFound,
+        malformed.isEmpty() ? "" : ", malformed " + malformed,
+        failed.isEmpty() ? "" : ", failed " + failed);
+  }
+}
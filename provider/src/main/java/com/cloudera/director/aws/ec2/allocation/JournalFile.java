@@ -0,0 +1,277 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>An append-only file of entries about virtual instances, one JSON object per line, that
+ * is replayed when it is opened and compacted to the entries its owner still needs.</p>
+ * <p>Appended batches may be forced to disk before {@link #append(Collection)} returns, for
+ * owners whose entries must be durable before the calls they record are made. After the first
+ * failure to write, the file is no longer written, and its owner keeps its state in memory
+ * only.</p>
+ */
+final class JournalFile {
+
+  private static final Logger LOG = LoggerFactory.getLogger(JournalFile.class);
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  /**
+   * Applies a replayed entry to the state of the owner of a journal file.
+   */
+  interface EntryHandler {
+
+    /**
+     * Applies an entry.
+     *
+     * @param op                the operation of the entry
+     * @param virtualInstanceId the virtual instance ID
+     * @param value             the value of the entry, or {@code null} if it has none
+     */
+    void apply(String op, String virtualInstanceId, String value);
+  }
+
+  /**
+   * An entry of a journal file.
+   */
+  static final class Entry {
+
+    private final String op;
+    private final String virtualInstanceId;
+    private final String value;
+
+    /**
+     * Creates an entry.
+     *
+     * @param op                the operation of the entry
+     * @param virtualInstanceId the virtual instance ID
+     * @param value             the value of the entry, or {@code null} if it has none
+     */
+    Entry(String op, String virtualInstanceId, String value) {
+      this.op = requireNonNull(op, "op is null");
+      this.virtualInstanceId = requireNonNull(virtualInstanceId, "virtualInstanceId is null");
+      this.value = value;
+    }
+  }
+
+  private final File file;
+  private final String description;
+  private final boolean force;
+  private FileOutputStream out;
+  private int entriesSinceCompaction;
+  private boolean failed;
+
+  /**
+   * Creates a journal file.
+   *
+   * @param file        the file
+   * @param description a description of the file, for log messages
+   * @param force       whether appended entries are forced to disk before they are
+   *                    acknowledged
+   */
+  JournalFile(File file, String description, boolean force) {
+    this.file = requireNonNull(file, "file is null");
+    this.description = requireNonNull(description, "description is null");
+    this.force = force;
+  }
+
+  /**
+   * Returns the number of entries appended since the file was last compacted.
+   *
+   * @return the number of entries appended since the file was last compacted
+   */
+  synchronized int getEntriesSinceCompaction() {
+    return entriesSinceCompaction;
+  }
+
+  /**
+   * Appends a batch of entries, unless the file could not be written before.
+   *
+   * @param entries the entries
+   */
+  synchronized void append(Collection<Entry> entries) {
+    if (failed || entries.isEmpty()) {
+      return;
+    }
+    try {
+      if (out == null) {
+        out = new FileOutputStream(file, true);
+      }
+      toBytes(entries).writeTo(out);
+      out.flush();
+      if (force) {
+        out.getChannel().force(false);
+      }
+      entriesSinceCompaction += entries.size();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Replays the entries of the file, if it exists, skipping malformed entries.
+   *
+   * @param handler the handler of the entries
+   */
+  synchronized void replay(EntryHandler handler) {
+    if (!file.exists()) {
+      return;
+    }
+    int lineNumber = 0;
+    try (BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        if (!line.isEmpty() && !replay(line, handler)) {
+          // Typically the last entry, if Director stopped while it was being written
+          LOG.warn("Ignoring malformed {} entry at line {} of {}", description, lineNumber,
+              file);
+        }
+      }
+    } catch (IOException e) {
+      LOG.warn("Unable to read {} {}, ignoring entries after line {}", description, file,
+          lineNumber, e);
+    }
+  }
+
+  private static boolean replay(String line, EntryHandler handler) {
+    String op = null;
+    String virtualInstanceId = null;
+    String value = null;
+    try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return false;
+      }
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        parser.nextToken();
+        switch (field) {
+          case "op":
+            op = parser.getValueAsString();
+            break;
+          case "vid":
+            virtualInstanceId = parser.getValueAsString();
+            break;
+          case "value":
+            value = parser.getValueAsString();
+            break;
+          default:
+            parser.skipChildren();
+            break;
+        }
+      }
+      if (parser.getCurrentToken() != JsonToken.END_OBJECT) {
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+    if (op == null || virtualInstanceId == null) {
+      return false;
+    }
+    handler.apply(op, virtualInstanceId, value);
+    return true;
+  }
+
+  /**
+   * Rewrites the file with only the specified entries, and atomically replaces the previous
+   * file, unless the file could not be written before.
+   *
+   * @param entries the entries needed to rebuild the state of the owner of the file
+   */
+  synchronized void compact(Collection<Entry> entries) {
+    if (failed) {
+      return;
+    }
+    close();
+    File compacted = new File(file.getPath() + ".tmp");
+    try {
+      try (FileOutputStream compactedOut = new FileOutputStream(compacted)) {
+        toBytes(entries).writeTo(compactedOut);
+        compactedOut.flush();
+        if (force) {
+          compactedOut.getChannel().force(false);
+        }
+      }
+      Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      entriesSinceCompaction = 0;
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  private static ByteArrayOutputStream toBytes(Collection<Entry> entries) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(128 * entries.size());
+    for (Entry entry : entries) {
+      try (JsonGenerator generator = JSON_FACTORY.createGenerator(bytes, JsonEncoding.UTF8)) {
+        generator.writeStartObject();
+        generator.writeStringField("op", entry.op);
+        generator.writeStringField("vid", entry.virtualInstanceId);
+        if (entry.value != null) {
+          generator.writeStringField("value", entry.value);
+        }
+        generator.writeEndObject();
+      }
+      bytes.write('\n');
+    }
+    return bytes;
+  }
+
+  private void fail(IOException e) {
+    // The owner must go on without the file, so stop writing after the first failure
+    failed = true;
+    close();
+    LOG.warn("Unable to write {} {}, its entries are kept in memory only", description, file, e);
+  }
+
+  /**
+   * Closes the file, which is reopened by the next append.
+   */
+  synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close {} {}", description, file, e);
+      }
+      out = null;
+    }
+  }
+}
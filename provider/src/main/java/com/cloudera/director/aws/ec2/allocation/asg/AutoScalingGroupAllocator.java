@@ -17,38 +17,57 @@ package com.cloudera.director.aws.ec2.allocation.asg;
 import static com.cloudera.director.aws.AWSExceptions.isAmazonServiceException;
 import static com.cloudera.director.aws.AWSExceptions.isUnrecoverable;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
+import com.amazonaws.services.autoscaling.model.Activity;
 import com.amazonaws.services.autoscaling.model.AlreadyExistsException;
 import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
 import com.amazonaws.services.autoscaling.model.CreateAutoScalingGroupRequest;
 import com.amazonaws.services.autoscaling.model.DeleteAutoScalingGroupRequest;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
 import com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesRequest;
+import com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesResult;
 import com.amazonaws.services.autoscaling.model.DetachInstancesRequest;
+import com.amazonaws.services.autoscaling.model.DetachInstancesResult;
 import com.amazonaws.services.autoscaling.model.LaunchTemplateSpecification;
 import com.amazonaws.services.autoscaling.model.SuspendProcessesRequest;
 import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupResult;
 import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.amazonaws.services.ec2.model.BlockDeviceMapping;
 import com.amazonaws.services.ec2.model.CreateLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateResult;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateVersionRequest;
+import com.amazonaws.services.ec2.model.CreateLaunchTemplateVersionResult;
 import com.amazonaws.services.ec2.model.DeleteLaunchTemplateRequest;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateVersionsRequest;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateVersionsResponseErrorItem;
+import com.amazonaws.services.ec2.model.DeleteLaunchTemplateVersionsResult;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplateVersionsRequest;
+import com.amazonaws.services.ec2.model.DescribeLaunchTemplateVersionsResult;
 import com.amazonaws.services.ec2.model.EbsBlockDevice;
 import com.amazonaws.services.ec2.model.LaunchTemplateBlockDeviceMappingRequest;
 import com.amazonaws.services.ec2.model.LaunchTemplateEbsBlockDeviceRequest;
 import com.amazonaws.services.ec2.model.LaunchTemplateIamInstanceProfileSpecificationRequest;
 import com.amazonaws.services.ec2.model.LaunchTemplateInstanceNetworkInterfaceSpecificationRequest;
 import com.amazonaws.services.ec2.model.LaunchTemplatePlacementRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateVersion;
 import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
 import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
+import com.amazonaws.services.securitytoken.model.GetCallerIdentityRequest;
 import com.cloudera.director.aws.AWSExceptions;
 import com.cloudera.director.aws.common.Callables2;
+import com.cloudera.director.aws.common.CompletableFutures;
 import com.cloudera.director.aws.ec2.EC2Instance;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.EC2TagHelper;
 import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
 import com.cloudera.director.aws.ec2.allocation.InstanceAllocator;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
 import com.github.rholder.retry.RetryException;
 import com.github.rholder.retry.Retryer;
@@ -58,21 +77,31 @@ import com.github.rholder.retry.WaitStrategies;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -123,12 +152,96 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
   @VisibleForTesting
   public static final String SCALING_PROCESS_AZ_REBALANCE = "AZRebalance";
 
+  /**
+   * The maximum number of detach requests in flight at a time while narrowing down instances
+   * that cannot be detached.
+   */
+  @VisibleForTesting
+  static final int MAX_CONCURRENT_DETACH_REQUESTS = 4;
+
+  /**
+   * The maximum number of attempts to detach a batch of instances that fails for a transient
+   * reason, such as throttling.
+   */
+  @VisibleForTesting
+  static final int MAX_DETACH_ATTEMPTS = 5;
+
+  /**
+   * The delay before the first retry to detach instances, in milliseconds, which doubles with
+   * each further attempt.
+   */
+  private static final long DETACH_RETRY_BASE_DELAY_MILLIS = 500L;
+
+  /**
+   * The maximum delay before retrying to detach instances, in milliseconds.
+   */
+  private static final long DETACH_RETRY_MAX_DELAY_MILLIS = 10000L;
+
   /**
    * The error code that indicates that a launch template was not found.
    */
   private static final String LAUNCH_TEMPLATE_NOT_FOUND_EXCEPTION =
       "InvalidLaunchTemplateName.NotFoundException";
 
+  /**
+   * The error code that indicates that a launch template already exists.
+   */
+  private static final String LAUNCH_TEMPLATE_ALREADY_EXISTS_EXCEPTION =
+      "InvalidLaunchTemplateName.AlreadyExistsException";
+
+  /**
+   * The message pattern that indicates that the launch template version referenced by an
+   * Auto Scaling group request does not exist.
+   */
+  private static final Pattern LAUNCH_TEMPLATE_VERSION_NOT_FOUND_PATTERN =
+      Pattern.compile("(?i).*version.*launch template.*does not exist.*");
+
+  /**
+   * The number of most recent launch template versions that are retained when older versions
+   * are pruned. EC2 limits each launch template to 10,000 versions, and every distinct
+   * fingerprint adds one.
+   */
+  @VisibleForTesting
+  static final int MAX_RETAINED_LAUNCH_TEMPLATE_VERSIONS = 5;
+
+  /**
+   * The maximum number of launch template versions that can be deleted in one request.
+   */
+  private static final int MAX_DELETED_LAUNCH_TEMPLATE_VERSIONS = 200;
+
+  /**
+   * The status code of a scaling activity that failed.
+   */
+  private static final String SCALING_ACTIVITY_FAILED = "Failed";
+
+  /**
+   * The status code of a scaling activity that was cancelled.
+   */
+  private static final String SCALING_ACTIVITY_CANCELLED = "Cancelled";
+
+  /**
+   * The status code of a scaling activity that completed successfully.
+   */
+  private static final String SCALING_ACTIVITY_SUCCESSFUL = "Successful";
+
+  /**
+   * The pattern of scaling activity status messages that Auto Scaling cannot recover from by
+   * retrying, such as a missing or invalid image, launch template, key pair, security group or
+   * subnet, missing permissions, or an account instance limit. Other failures, such as
+   * insufficient capacity in an availability zone, are retried by Auto Scaling itself.
+   */
+  private static final Pattern NON_RETRYABLE_SCALING_FAILURE_PATTERN = Pattern.compile(
+      "(?i).*(does not exist|invalid|not authorized|unauthorized|not supported|unsupported"
+          + "|instance limit|vcpu limit|InstanceLimitExceeded|VcpuLimitExceeded).*",
+      Pattern.DOTALL);
+
+  /**
+   * The number of consecutive failed scaling activities, without any instance joining the
+   * group in between, after which the allocation stops waiting for Auto Scaling to recover.
+   */
+  @VisibleForTesting
+  static final int MAX_CONSECUTIVE_SCALING_FAILURES = 3;
+
   /**
    * The error code that indicates a validation error.
    */
@@ -173,6 +286,17 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
    */
   private final EC2TagHelper ec2TagHelper;
 
+  /**
+   * The launch template registry.
+   */
+  private final LaunchTemplateRegistry launchTemplateRegistry;
+
+  /**
+   * The EC2 endpoint, or a string identifying the region, that scopes launch templates in the
+   * launch template registry.
+   */
+  private final String ec2Endpoint;
+
   /**
    * The instance template.
    */
@@ -193,6 +317,11 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
    */
   private final int minCount;
 
+  /**
+   * The duration of requests, in milliseconds.
+   */
+  private final long requestDuration;
+
   /**
    * The latest time to wait for group creation.
    */
@@ -213,33 +342,79 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
    */
   private final String launchTemplateName;
 
+  /**
+   * The key of the launch template in the launch template registry, looked up when the
+   * registry is first used.
+   */
+  private LaunchTemplateRegistry.Key launchTemplateKey;
+
   /**
    * The Auto Scaling group name.
    */
   private final String autoScalingGroupName;
 
+  /**
+   * The warm pool of the Auto Scaling group.
+   */
+  private final WarmPool warmPool;
+
+  /**
+   * The launch template version used by the Auto Scaling group, determined during allocation.
+   */
+  private String launchTemplateVersion;
+
+  /**
+   * Whether the launch template version was taken from the launch template registry without
+   * being described or created during allocation, so that it may no longer exist.
+   */
+  private boolean launchTemplateVersionFromRegistry;
+
+  /**
+   * Whether the launch template version was created during allocation.
+   */
+  private boolean launchTemplateVersionCreated;
+
+  /**
+   * The number of instances to launch after the grow to refill the warm pool, determined during
+   * allocation.
+   */
+  private int warmPoolRefillCount;
+
+  /**
+   * The refill of the warm pool started by the latest allocation, which the allocation does not
+   * wait for.
+   */
+  private CompletableFuture<List<String>> warmPoolRefill =
+      CompletableFuture.completedFuture(Collections.emptyList());
+
   /**
    * Creates an Auto Scaling group allocator with the specified parameters.
    *
-   * @param allocationHelper  the allocation helper
-   * @param ec2Client         the EC2 client
-   * @param autoScalingClient the Auto Scaling client
-   * @param stsClient         the STS client
-   * @param template          the instance template
-   * @param instanceIds       the instance IDs (needed for delete; only size needed for allocate)
-   * @param minCount          the minimum number of instances in the group
+   * @param allocationHelper       the allocation helper
+   * @param ec2Client              the EC2 client
+   * @param autoScalingClient      the Auto Scaling client
+   * @param stsClient              the STS client
+   * @param launchTemplateRegistry the launch template registry
+   * @param ec2Endpoint            the EC2 endpoint, or a string identifying the region, that
+   *                               scopes launch templates in the registry
+   * @param template               the instance template
+   * @param instanceIds            the instance IDs (needed for delete; only size needed for allocate)
+   * @param minCount               the minimum number of instances in the group
    */
   public AutoScalingGroupAllocator(AllocationHelper allocationHelper,
       AmazonEC2AsyncClient ec2Client, AmazonAutoScalingAsyncClient autoScalingClient,
-      AWSSecurityTokenServiceAsyncClient stsClient, EC2InstanceTemplate template,
-      Collection<String> instanceIds, int minCount) {
+      AWSSecurityTokenServiceAsyncClient stsClient, LaunchTemplateRegistry launchTemplateRegistry,
+      String ec2Endpoint, EC2InstanceTemplate template, Collection<String> instanceIds,
+      int minCount) {
     this.allocationHelper = allocationHelper;
     this.ec2Client = ec2Client;
     this.autoScalingClient = autoScalingClient;
     this.stsClient = stsClient;
+    this.launchTemplateRegistry = launchTemplateRegistry;
+    this.ec2Endpoint = ec2Endpoint;
     this.ec2TagHelper = allocationHelper.getEC2TagHelper();
 
-    long requestDuration = allocationHelper.getAWSTimeouts()
+    requestDuration = allocationHelper.getAWSTimeouts()
         .getTimeout(AUTO_SCALING_GROUP_REQUEST_DURATION_MS)
         .or(DEFAULT_AUTO_SCALING_GROUP_REQUEST_DURATION_MS);
     instancePollDuration = allocationHelper.getAWSTimeouts()
@@ -257,6 +432,8 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     groupId = template.getGroupId();
     launchTemplateName = groupId;
     autoScalingGroupName = groupId;
+    warmPool = new WarmPool(autoScalingClient, ec2Client, allocationHelper, autoScalingGroupName,
+        template, instancePollDuration);
   }
 
   /**
@@ -270,54 +447,65 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     LOG.info(">> Requesting Auto Scaling group of {} - {} instances for {}",
         minCount, desiredCount, template);
 
+    // Scaling activities that started before this allocation are not relevant to it
+    Date allocationStartTime = new Date();
+
     try {
-      // Create launch template
+      // Reuse a matching launch template version, or create a new one if the data changed
       RequestLaunchTemplateData launchTemplateData = newRequestLaunchTemplateData(template);
-      retryAndPropagate(() -> {
-        createLaunchTemplate(launchTemplateData);
-        return null;
-      }, RuntimeException.class);
-
-      // Create Auto Scaling group
-      retryAndPropagate(() -> {
-        createOrUpdateAutoScalingGroup();
-        return null;
-      }, RuntimeException.class, Optional.of(this::isInvalidLaunchTemplateException));
-
-      // Optionally disable automatic instance processing
-      if (!template.isEnableAutomaticInstanceProcesing()) {
+      String fingerprint = LaunchTemplateRegistry.fingerprint(launchTemplateData);
+      try (Span span = Tracing.startSpan("launch-template")) {
         retryAndPropagate(() -> {
-          disableAutomaticInstanceProcessing();
+          launchTemplateVersion =
+              String.valueOf(getOrCreateLaunchTemplateVersion(launchTemplateData, fingerprint));
           return null;
         }, RuntimeException.class);
+        span.setAttribute("launch.template.version", launchTemplateVersion)
+            .setAttribute("launch.template.version.created", launchTemplateVersionCreated);
       }
 
-      // Poll for instances in the group until we get the desired count or run out of time
-      Set<String> instanceIds = Sets.newHashSet();
-      do {
-        retryAndPropagate(() -> {
-          instanceIds.addAll(getInstanceIds());
-          return null;
-        }, RuntimeException.class);
+      // Grow from the warm pool before launching new instances
+      Set<String> existingInstanceIds;
+      try (Span span = Tracing.startSpan("warm-pool")) {
+        existingInstanceIds = prepareWarmPool();
+        span.setAttribute("instance.count.existing", existingInstanceIds.size());
+      }
 
-        if ((instanceIds.size() >= desiredCount)
-            || (System.currentTimeMillis() >= requestExpirationTime.getTime())) {
-          break;
-        }
+      // Create Auto Scaling group, looking up or recreating a registered launch template
+      // version that no longer exists before retrying
+      try (Span span = Tracing.startSpan("update-auto-scaling-group")) {
+        span.setAttribute("auto.scaling.group", autoScalingGroupName);
+        updateAutoScalingGroup(launchTemplateData, fingerprint);
+      }
 
-        Thread.sleep(instancePollDuration);
-      } while (true);
+      // Describe instances as they join the group, and follow the group's scaling activities,
+      // until we get the desired count, a scaling activity fails, or we run out of time
+      Map<String, EC2Instance> instancesById = Maps.newLinkedHashMap();
+      List<String> scalingFailures = Lists.newArrayList();
+      try (Span span = Tracing.startSpan("wait-for-instances")) {
+        span.setAttribute("instance.count.requested", desiredCount);
+        waitForInstances(allocationStartTime, desiredCount, instancesById, scalingFailures);
+        span.setAttribute("instance.count.found", instancesById.size());
+      }
 
-      if (instanceIds.size() < minCount) {
-        throw new UnrecoverableProviderException("Only allocated " + instanceIds.size()
-            + " of " + minCount + " instances in configured time. Cleaning up resources.");
+      if (instancesById.size() < minCount) {
+        throw new UnrecoverableProviderException("Only allocated " + instancesById.size()
+            + " of " + minCount + " instances"
+            + (scalingFailures.isEmpty()
+            ? " in configured time"
+            : " before scaling failed (" + String.join("; ", scalingFailures) + ")")
+            + ". Cleaning up resources.");
       }
 
-      return allocationHelper.find(template, instanceIds);
+      // The allocation does not wait for the instances launched to refill the warm pool
+      existingInstanceIds.addAll(instancesById.keySet());
+      warmPoolRefill = refillWarmPool(existingInstanceIds);
+
+      return instancesById.values();
     } catch (RuntimeException e) {
       // TODO revisit cleanup behavior based on min count semantics, and review catch blocks
       // to see if we want to catch Error, InterruptedException, etc.
-      try {
+      try (Span span = Tracing.startSpan("cleanup")) {
         retryAndPropagate(() -> {
           doDeleteGroup();
           return null;
@@ -337,6 +525,124 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     return Collections.emptyList();
   }
 
+  /**
+   * Creates or updates the Auto Scaling group with the current launch template version,
+   * looking up or recreating a registered launch template version that no longer exists before
+   * retrying, and then applies the group settings that follow from the template.
+   *
+   * @param launchTemplateData the launch template data
+   * @param fingerprint        the fingerprint of the launch template data
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private void updateAutoScalingGroup(RequestLaunchTemplateData launchTemplateData,
+      String fingerprint) throws InterruptedException {
+    retryAndPropagate(() -> {
+      try {
+        createOrUpdateAutoScalingGroup();
+      } catch (RuntimeException e) {
+        if (launchTemplateVersionFromRegistry && isLaunchTemplateVersionNotFoundException(e)) {
+          LOG.warn("Launch template: {} version: {} no longer exists", launchTemplateName,
+              launchTemplateVersion);
+          launchTemplateRegistry.invalidate(getLaunchTemplateKey());
+          launchTemplateVersion =
+              String.valueOf(getOrCreateLaunchTemplateVersion(launchTemplateData, fingerprint));
+        }
+        throw e;
+      }
+      return null;
+    }, RuntimeException.class, Optional.of(this::isLaunchTemplateVersionNotFoundException));
+
+    // Keep new versions from accumulating up to the EC2 limit
+    if (launchTemplateVersionCreated) {
+      pruneLaunchTemplateVersions();
+    }
+
+    // Optionally disable automatic instance processing
+    if (!template.isEnableAutomaticInstanceProcesing()) {
+      retryAndPropagate(() -> {
+        disableAutomaticInstanceProcessing();
+        return null;
+      }, RuntimeException.class);
+    }
+  }
+
+  /**
+   * Describes instances as they join the group, and follows the group's scaling activities,
+   * until the group has the target count, a scaling activity fails for a reason that Auto
+   * Scaling cannot recover from, scaling activities fail repeatedly without any instance
+   * joining the group, or the request expires.
+   *
+   * @param allocationStartTime the time at which the allocation started
+   * @param targetCount         the number of instances to wait for
+   * @param instancesById       the instances found so far, by instance ID, which are added to
+   * @param scalingFailures     the scaling activity failures found so far, which are added to
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private void waitForInstances(Date allocationStartTime, int targetCount,
+      Map<String, EC2Instance> instancesById, List<String> scalingFailures)
+      throws InterruptedException {
+    Set<String> completedActivityIds = Sets.newHashSet();
+    int consecutiveFailures = 0;
+    boolean nonRetryableFailure = false;
+    while (instancesById.size() < targetCount) {
+      Set<String> newInstanceIds = Sets.newLinkedHashSet();
+      retryAndPropagate(() -> {
+        for (String instanceId : getInstanceIds()) {
+          if (!instancesById.containsKey(instanceId)) {
+            newInstanceIds.add(instanceId);
+          }
+        }
+        return null;
+      }, RuntimeException.class);
+
+      if (!newInstanceIds.isEmpty()) {
+        consecutiveFailures = 0;
+        for (EC2Instance instance : allocationHelper.find(template, newInstanceIds)) {
+          instancesById.put(instance.getId(), instance);
+        }
+        LOG.info("<< Auto Scaling group {} has {} of {} instances",
+            autoScalingGroupName, instancesById.size(), targetCount);
+        if (instancesById.size() >= targetCount) {
+          break;
+        }
+      }
+
+      List<Activity> completedActivities = Lists.newArrayList();
+      retryAndPropagate(() -> {
+        completedActivities.addAll(
+            getCompletedScalingActivities(allocationStartTime, completedActivityIds));
+        return null;
+      }, RuntimeException.class);
+
+      // Auto Scaling retries failed launches itself, so only give up on failures it cannot
+      // recover from, or on failures that keep recurring without any progress
+      for (Activity activity : Lists.reverse(completedActivities)) {
+        if (SCALING_ACTIVITY_SUCCESSFUL.equals(activity.getStatusCode())) {
+          consecutiveFailures = 0;
+          continue;
+        }
+        String failure = (activity.getStatusMessage() != null)
+            ? activity.getStatusMessage()
+            : activity.getDescription();
+        scalingFailures.add(failure);
+        consecutiveFailures++;
+        if (isNonRetryableScalingFailure(failure)) {
+          nonRetryableFailure = true;
+        } else {
+          LOG.info("<< Waiting for Auto Scaling group {} to retry failed scaling activity",
+              autoScalingGroupName);
+        }
+      }
+
+      if (nonRetryableFailure || consecutiveFailures >= MAX_CONSECUTIVE_SCALING_FAILURES
+          || (System.currentTimeMillis() >= requestExpirationTime.getTime())) {
+        break;
+      }
+
+      Thread.sleep(instancePollDuration);
+    }
+  }
+
   /**
    * Deletes an Auto Scaling group and associated launch template.
    *
@@ -393,6 +699,150 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     );
   }
 
+  /**
+   * Brings instances from the warm pool of the existing Auto Scaling group into service, up to
+   * the desired count, and determines how many instances to launch after the grow to refill the
+   * pool. The pool is only refilled when instances have to be launched anyway, so that a grow
+   * fully served by the pool does not launch instances. Problems with the warm pool are logged,
+   * and the group is then grown from cold.
+   *
+   * @return the IDs of the instances that were in the group before this allocation
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private Set<String> prepareWarmPool() throws InterruptedException {
+    warmPoolRefillCount = 0;
+    Set<String> existingInstanceIds = Sets.newHashSet();
+    if (!warmPool.isEnabled()) {
+      return existingInstanceIds;
+    }
+    try {
+      List<AutoScalingGroup> autoScalingGroups = getAutoScalingGroups();
+      if (autoScalingGroups.isEmpty()) {
+        warmPoolRefillCount = warmPool.getRefillCount(0, desiredCount);
+        return existingInstanceIds;
+      }
+
+      AutoScalingGroup autoScalingGroup = autoScalingGroups.get(0);
+      for (com.amazonaws.services.autoscaling.model.Instance instance
+          : autoScalingGroup.getInstances()) {
+        existingInstanceIds.add(instance.getInstanceId());
+      }
+      int warmCount = WarmPool.getWarmInstanceIds(autoScalingGroup).size();
+      int growth = desiredCount - autoScalingGroup.getDesiredCapacity();
+      int drawn = 0;
+      if (growth > 0 && warmCount > 0) {
+        if (autoScalingGroup.getMaxSize() < desiredCount) {
+          // Instances leaving Standby raise the desired capacity, which cannot exceed the max
+          autoScalingClient.updateAutoScalingGroup(new UpdateAutoScalingGroupRequest()
+              .withAutoScalingGroupName(autoScalingGroupName)
+              .withMaxSize(desiredCount));
+        }
+        drawn = warmPool.draw(autoScalingGroup, growth, new DateTime(requestExpirationTime)).size();
+      }
+      if (growth > drawn) {
+        warmPoolRefillCount = warmPool.getRefillCount(warmCount - drawn, desiredCount);
+      }
+    } catch (AmazonClientException e) {
+      LOG.warn("Unable to use the warm pool of Auto Scaling group {}", autoScalingGroupName, e);
+    }
+    return existingInstanceIds;
+  }
+
+  /**
+   * Returns the refill of the warm pool started by the latest allocation.
+   *
+   * @return a future that completes with the IDs of the instances moved into the warm pool
+   */
+  @VisibleForTesting
+  CompletableFuture<List<String>> getWarmPoolRefill() {
+    return warmPoolRefill;
+  }
+
+  /**
+   * Starts refilling the warm pool once the group has grown, without waiting for the refill:
+   * raises the desired capacity of the group by the number of instances to refill, and moves
+   * the instances launched as a result into the warm pool as they come into service. Failures
+   * are logged, since the allocation has already succeeded.
+   *
+   * @param knownInstanceIds the IDs of the instances in the group after the grow
+   * @return a future that completes with the IDs of the instances moved into the warm pool
+   */
+  private CompletableFuture<List<String>> refillWarmPool(Set<String> knownInstanceIds) {
+    if (warmPoolRefillCount <= 0) {
+      return CompletableFuture.completedFuture(Collections.emptyList());
+    }
+    int refillCount = warmPoolRefillCount;
+    long deadlineMillis = System.currentTimeMillis() + requestDuration;
+    LOG.info(">> Launching {} instances to refill the warm pool of Auto Scaling group {}",
+        refillCount, autoScalingGroupName);
+    Span span = Tracing.startAsyncSpan("warm-pool-refill", Tracing.currentSpan());
+    span.setAttribute("instance.count.requested", refillCount);
+
+    Set<String> launchedInstanceIds = Sets.newConcurrentHashSet();
+    CompletableFuture<List<String>> refill = describeAutoScalingGroup()
+        .thenCompose((autoScalingGroup) -> {
+          int desiredCapacity = autoScalingGroup.getDesiredCapacity() + refillCount;
+          return CompletableFutures.<UpdateAutoScalingGroupRequest,
+              UpdateAutoScalingGroupResult>call(autoScalingClient::updateAutoScalingGroupAsync,
+              new UpdateAutoScalingGroupRequest()
+                  .withAutoScalingGroupName(autoScalingGroupName)
+                  .withDesiredCapacity(desiredCapacity)
+                  .withMaxSize(Math.max(autoScalingGroup.getMaxSize(), desiredCapacity)));
+        })
+        .thenCompose((ignored) -> CompletableFutures.pollUntil(
+            () -> describeAutoScalingGroup().thenApply((autoScalingGroup) -> {
+              for (com.amazonaws.services.autoscaling.model.Instance instance
+                  : autoScalingGroup.getInstances()) {
+                if (!knownInstanceIds.contains(instance.getInstanceId())
+                    && launchedInstanceIds.size() < refillCount) {
+                  launchedInstanceIds.add(instance.getInstanceId());
+                }
+              }
+              return launchedInstanceIds.size() >= refillCount;
+            }),
+            instancePollDuration, TimeUnit.MILLISECONDS, deadlineMillis))
+        .thenCompose((allLaunched) -> {
+          if (!allLaunched) {
+            LOG.warn("Only {} of {} instances launched for the warm pool of Auto Scaling group "
+                + "{} joined the group in time", launchedInstanceIds.size(), refillCount,
+                autoScalingGroupName);
+          }
+          return launchedInstanceIds.isEmpty()
+              ? CompletableFuture.completedFuture(Collections.<String>emptyList())
+              : warmPool.park(ImmutableSet.copyOf(launchedInstanceIds), deadlineMillis);
+        });
+
+    return refill.handle((parked, t) -> {
+      if (t == null) {
+        span.setAttribute("instance.count.parked", parked.size()).setOk().close();
+        return parked;
+      }
+      Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+      LOG.warn("Unable to refill the warm pool of Auto Scaling group {}", autoScalingGroupName,
+          cause);
+      span.recordError(cause).close();
+      return Collections.<String>emptyList();
+    });
+  }
+
+  /**
+   * Describes the Auto Scaling group.
+   *
+   * @return a future that completes with the Auto Scaling group
+   */
+  private CompletableFuture<AutoScalingGroup> describeAutoScalingGroup() {
+    return CompletableFutures.<DescribeAutoScalingGroupsRequest,
+        DescribeAutoScalingGroupsResult>call(autoScalingClient::describeAutoScalingGroupsAsync,
+        new DescribeAutoScalingGroupsRequest().withAutoScalingGroupNames(autoScalingGroupName))
+        .thenApply((result) -> {
+          if (result.getAutoScalingGroups().isEmpty()) {
+            throw new IllegalStateException(
+                "Auto Scaling group " + autoScalingGroupName + " does not exist");
+          }
+          return result.getAutoScalingGroups().get(0);
+        });
+  }
+
   /**
    * Builds a {@code RequestLaunchTemplateData} starting from a template.
    *
@@ -489,35 +939,185 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
   }
 
   /**
-   * Creates a launch template from the configured launch template data.
+   * Returns the key of the configured launch template in the launch template registry, looking
+   * up the account of the credentials in use the first time.
+   *
+   * @return the key of the configured launch template in the launch template registry
+   */
+  private LaunchTemplateRegistry.Key getLaunchTemplateKey() {
+    if (launchTemplateKey == null) {
+      String accountId =
+          stsClient.getCallerIdentity(new GetCallerIdentityRequest()).getAccount();
+      launchTemplateKey =
+          new LaunchTemplateRegistry.Key(ec2Endpoint, accountId, launchTemplateName);
+    }
+    return launchTemplateKey;
+  }
+
+  /**
+   * Returns the number of a version of the configured launch template whose data has the
+   * specified fingerprint, creating the launch template or a new version of it if necessary.
    *
    * @param launchTemplateData the launch template data
+   * @param fingerprint        the fingerprint of the launch template data
+   * @return the launch template version number
+   */
+  private long getOrCreateLaunchTemplateVersion(RequestLaunchTemplateData launchTemplateData,
+      String fingerprint) {
+    Optional<Long> versionNumber =
+        launchTemplateRegistry.getVersion(getLaunchTemplateKey(), fingerprint);
+    launchTemplateVersionFromRegistry = versionNumber.isPresent();
+    if (!versionNumber.isPresent()) {
+      try {
+        versionNumber = findLaunchTemplateVersion(fingerprint);
+        if (!versionNumber.isPresent()) {
+          versionNumber = Optional.of(createLaunchTemplateVersion(launchTemplateData, fingerprint));
+          launchTemplateVersionCreated = true;
+        }
+      } catch (RuntimeException e) {
+        if (!isInvalidLaunchTemplateException(e)) {
+          throw e;
+        }
+        versionNumber = Optional.of(createLaunchTemplate(launchTemplateData, fingerprint));
+        launchTemplateVersionCreated = true;
+      }
+      launchTemplateRegistry.register(getLaunchTemplateKey(), fingerprint, versionNumber.get());
+    } else {
+      LOG.info(">> Reusing launch template: {} version: {}", launchTemplateName, versionNumber.get());
+    }
+    return versionNumber.get();
+  }
+
+  /**
+   * Searches the versions of the configured launch template for one whose data has the
+   * specified fingerprint, registering every fingerprinted version encountered along the way.
+   *
+   * @param fingerprint the fingerprint of the launch template data
+   * @return the number of the matching launch template version, if any
    */
-  private void createLaunchTemplate(RequestLaunchTemplateData launchTemplateData) {
-    CreateLaunchTemplateRequest createLaunchTemplateRequest =
-        new CreateLaunchTemplateRequest()
-            .withLaunchTemplateName(launchTemplateName)
-            .withLaunchTemplateData(launchTemplateData);
-    //.withClientToken(template.getGroupId() + launchTemplateData.hashCode()); // TODO figure out client token
-    createLaunchTemplate(createLaunchTemplateRequest);
+  private Optional<Long> findLaunchTemplateVersion(String fingerprint) {
+    Optional<Long> matchingVersionNumber = Optional.absent();
+    DescribeLaunchTemplateVersionsRequest request = new DescribeLaunchTemplateVersionsRequest()
+        .withLaunchTemplateName(launchTemplateName);
+    String nextToken;
+    do {
+      DescribeLaunchTemplateVersionsResult result = ec2Client.describeLaunchTemplateVersions(request);
+      for (LaunchTemplateVersion version : result.getLaunchTemplateVersions()) {
+        Optional<String> versionFingerprint =
+            LaunchTemplateRegistry.fromVersionDescription(version.getVersionDescription());
+        if (versionFingerprint.isPresent()) {
+          launchTemplateRegistry.register(
+              getLaunchTemplateKey(), versionFingerprint.get(), version.getVersionNumber());
+          if (fingerprint.equals(versionFingerprint.get())) {
+            LOG.info(">> Found launch template: {} version: {}", launchTemplateName,
+                version.getVersionNumber());
+            matchingVersionNumber = Optional.of(version.getVersionNumber());
+          }
+        }
+      }
+      nextToken = result.getNextToken();
+      request.setNextToken(nextToken);
+    } while (nextToken != null);
+    return matchingVersionNumber;
   }
 
   /**
-   * Creates an Auto Scaling launch template from the specified request.
+   * Creates the configured launch template from the specified launch template data, falling
+   * back to creating a new version if the launch template was created concurrently.
    *
-   * @param request the create launch template request
+   * @param launchTemplateData the launch template data
+   * @param fingerprint        the fingerprint of the launch template data
+   * @return the number of the created launch template version
    */
-  private void createLaunchTemplate(CreateLaunchTemplateRequest request) {
+  private long createLaunchTemplate(RequestLaunchTemplateData launchTemplateData,
+      String fingerprint) {
     LOG.info(">> Creating launch template: " + launchTemplateName);
+    CreateLaunchTemplateRequest request = new CreateLaunchTemplateRequest()
+        .withLaunchTemplateName(launchTemplateName)
+        .withVersionDescription(LaunchTemplateRegistry.toVersionDescription(fingerprint))
+        .withLaunchTemplateData(launchTemplateData);
     try {
-      ec2Client.createLaunchTemplate(request);
-    } catch (AlreadyExistsException ignore) {
+      CreateLaunchTemplateResult result = ec2Client.createLaunchTemplate(request);
+      return result.getLaunchTemplate().getLatestVersionNumber();
     } catch (AmazonServiceException ase) {
-      // TODO update existing group?
-      if (!"InvalidLaunchTemplateName.AlreadyExistsException".equals(ase.getErrorCode())) {
+      if (!LAUNCH_TEMPLATE_ALREADY_EXISTS_EXCEPTION.equals(ase.getErrorCode())) {
         throw ase;
       }
     }
+    return createLaunchTemplateVersion(launchTemplateData, fingerprint);
+  }
+
+  /**
+   * Creates a new version of the configured launch template from the specified launch
+   * template data.
+   *
+   * @param launchTemplateData the launch template data
+   * @param fingerprint        the fingerprint of the launch template data
+   * @return the number of the created launch template version
+   */
+  private long createLaunchTemplateVersion(RequestLaunchTemplateData launchTemplateData,
+      String fingerprint) {
+    LOG.info(">> Creating new version of launch template: " + launchTemplateName);
+    CreateLaunchTemplateVersionRequest request = new CreateLaunchTemplateVersionRequest()
+        .withLaunchTemplateName(launchTemplateName)
+        .withVersionDescription(LaunchTemplateRegistry.toVersionDescription(fingerprint))
+        .withLaunchTemplateData(launchTemplateData);
+    CreateLaunchTemplateVersionResult result = ec2Client.createLaunchTemplateVersion(request);
+    return result.getLaunchTemplateVersion().getVersionNumber();
+  }
+
+  /**
+   * Deletes all but the most recent versions of the configured launch template, sparing the
+   * version used by the Auto Scaling group and the default version. Failures are logged rather
+   * than propagated, since pruning is not required for the allocation to succeed.
+   */
+  private void pruneLaunchTemplateVersions() {
+    long currentVersionNumber = Long.parseLong(launchTemplateVersion);
+    if (currentVersionNumber <= MAX_RETAINED_LAUNCH_TEMPLATE_VERSIONS) {
+      return;
+    }
+    try {
+      List<LaunchTemplateVersion> versions = Lists.newArrayList();
+      DescribeLaunchTemplateVersionsRequest request = new DescribeLaunchTemplateVersionsRequest()
+          .withLaunchTemplateName(launchTemplateName);
+      String nextToken;
+      do {
+        DescribeLaunchTemplateVersionsResult result =
+            ec2Client.describeLaunchTemplateVersions(request);
+        versions.addAll(result.getLaunchTemplateVersions());
+        nextToken = result.getNextToken();
+        request.setNextToken(nextToken);
+      } while (nextToken != null);
+
+      versions.sort(Comparator.comparing(LaunchTemplateVersion::getVersionNumber).reversed());
+      List<Long> obsoleteVersionNumbers = versions.stream()
+          .skip(MAX_RETAINED_LAUNCH_TEMPLATE_VERSIONS)
+          .filter((version) -> version.getVersionNumber() != currentVersionNumber
+              && !Boolean.TRUE.equals(version.getDefaultVersion()))
+          .map(LaunchTemplateVersion::getVersionNumber)
+          .collect(Collectors.toList());
+      if (obsoleteVersionNumbers.isEmpty()) {
+        return;
+      }
+
+      LOG.info(">> Deleting {} old versions of launch template: {}",
+          obsoleteVersionNumbers.size(), launchTemplateName);
+      for (List<Long> batch :
+          Lists.partition(obsoleteVersionNumbers, MAX_DELETED_LAUNCH_TEMPLATE_VERSIONS)) {
+        DeleteLaunchTemplateVersionsResult result = ec2Client.deleteLaunchTemplateVersions(
+            new DeleteLaunchTemplateVersionsRequest()
+                .withLaunchTemplateName(launchTemplateName)
+                .withVersions(batch.stream().map(String::valueOf).collect(Collectors.toList())));
+        for (DeleteLaunchTemplateVersionsResponseErrorItem errorItem :
+            result.getUnsuccessfullyDeletedLaunchTemplateVersions()) {
+          LOG.warn("Unable to delete launch template: {} version: {}: {}", launchTemplateName,
+              errorItem.getVersionNumber(), errorItem.getResponseError());
+        }
+      }
+      launchTemplateRegistry.invalidateVersions(getLaunchTemplateKey(), obsoleteVersionNumbers);
+    } catch (RuntimeException e) {
+      LOG.warn("Unable to prune old versions of launch template: " + launchTemplateName, e);
+    }
   }
 
   /**
@@ -535,6 +1135,7 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
         throw e;
       }
     }
+    launchTemplateRegistry.invalidate(getLaunchTemplateKey());
   }
 
   /**
@@ -542,23 +1143,29 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
    * name.
    */
   private void createOrUpdateAutoScalingGroup() {
-    LOG.info(">> Attempting to create Auto Scaling group: " + autoScalingGroupName);
     List<Tag> userDefinedTags = ec2TagHelper.getUserDefinedTags(template);
     CreateAutoScalingGroupRequest createAutoScalingGroupRequest =
         newCreateAutoScalingGroupRequest(template, userDefinedTags);
-    try {
-      autoScalingClient.createAutoScalingGroup(createAutoScalingGroupRequest);
-      return;
-    } catch (AlreadyExistsException ignore) {
-    } catch (AmazonServiceException ase) {
-      if (!"AlreadyExists".equals(ase.getErrorCode())) {
-        throw ase;
+
+    List<AutoScalingGroup> autoScalingGroups = getAutoScalingGroups();
+    if (autoScalingGroups.isEmpty()) {
+      LOG.info(">> Attempting to create Auto Scaling group: " + autoScalingGroupName);
+      try {
+        autoScalingClient.createAutoScalingGroup(createAutoScalingGroupRequest);
+        return;
+      } catch (AlreadyExistsException ignore) {
+      } catch (AmazonServiceException ase) {
+        if (!"AlreadyExists".equals(ase.getErrorCode())) {
+          throw ase;
+        }
       }
+      autoScalingGroups = getAutoScalingGroups();
     }
 
-    for (AutoScalingGroup autoScalingGroup : getAutoScalingGroups()) {
+    for (AutoScalingGroup autoScalingGroup : autoScalingGroups) {
       // Auto Scaling group already exists. Update if necessary.
-      if (autoScalingGroup.getDesiredCapacity() < desiredCount) {
+      if ((autoScalingGroup.getDesiredCapacity() < desiredCount)
+          || !isUsingLaunchTemplateVersion(autoScalingGroup)) {
         LOG.info(">> Updating Auto Scaling group: " + autoScalingGroupName);
         UpdateAutoScalingGroupRequest updateAutoScalingGroupRequest =
             newUpdateAutoScalingGroupRequest(createAutoScalingGroupRequest);
@@ -567,6 +1174,18 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     }
   }
 
+  /**
+   * Returns whether the specified Auto Scaling group uses the configured launch template version.
+   *
+   * @param autoScalingGroup the Auto Scaling group
+   * @return whether the specified Auto Scaling group uses the configured launch template version
+   */
+  private boolean isUsingLaunchTemplateVersion(AutoScalingGroup autoScalingGroup) {
+    LaunchTemplateSpecification launchTemplateSpecification = autoScalingGroup.getLaunchTemplate();
+    return (launchTemplateSpecification != null)
+        && launchTemplateVersion.equals(launchTemplateSpecification.getVersion());
+  }
+
   /**
    * Builds a {@code CreateAutoScalingGroupRequest} starting from a template.
    *
@@ -591,7 +1210,8 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     }
 
     LaunchTemplateSpecification launchTemplateSpecification = new LaunchTemplateSpecification()
-        .withLaunchTemplateName(launchTemplateName);
+        .withLaunchTemplateName(launchTemplateName)
+        .withVersion(launchTemplateVersion);
 
     CreateAutoScalingGroupRequest request = new CreateAutoScalingGroupRequest()
         .withAutoScalingGroupName(autoScalingGroupName)
@@ -688,26 +1308,8 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
       }, RuntimeException.class);
     } catch (RuntimeException e) {
       if (isInstanceNotInASGException(e) || isInstanceNotInStateException(e)) {
-        // Try detaching instances individually
-        for (String instanceId : instanceIds) {
-          LOG.info(">> Detaching instance: " + instanceId + " from Auto Scaling group: " + autoScalingGroupName);
-          DetachInstancesRequest detachInstanceRequest =
-              newDetachInstancesRequest(Collections.singletonList(instanceId));
-          try {
-            retryAndPropagate(() -> {
-              autoScalingClient.detachInstances(detachInstanceRequest);
-              return null;
-            }, RuntimeException.class, Optional.of(this::isInstanceNotInStateException));
-          } catch (RuntimeException e1) {
-            if (isInstanceNotInASGException(e1)) {
-              // Warn and ignore
-              LOG.warn("Instance: " + instanceId
-                  + " not in Auto Scaling group: " + autoScalingGroupName + ". Ignoring.");
-            } else {
-              throw e1;
-            }
-          }
-        }
+        // Narrow down the offending instances by repeatedly splitting the failed batch
+        detachInstancesByBisection(new ArrayList<>(instanceIds));
       } else {
         throw e;
       }
@@ -718,6 +1320,155 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     allocationHelper.doDelete(instanceIds);
   }
 
+  /**
+   * Detaches the specified instances, none of which could be detached in a single request,
+   * from the configured Auto Scaling group. The instances are split into halves, and each half
+   * that fails because one of its instances is not in the group or not in a detachable state is
+   * split again, until the offending instances are isolated. This takes O(k log n) requests for
+   * k offending instances out of n, rather than one request per instance.
+   * <p>The batches are detached in rounds, with at most
+   * {@link #MAX_CONCURRENT_DETACH_REQUESTS} requests in flight at a time. A batch that fails
+   * for a transient reason, such as throttling, is retried in a later round, after an
+   * exponential backoff with jitter, up to {@link #MAX_DETACH_ATTEMPTS} attempts and until the
+   * request expiration time.</p>
+   *
+   * @param instanceIds the instance IDs
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private void detachInstancesByBisection(List<String> instanceIds) throws InterruptedException {
+    LOG.info(">> Narrowing down instances that cannot be detached from Auto Scaling group: "
+        + autoScalingGroupName);
+    List<DetachBatch> pending = new ArrayList<>();
+    for (List<String> half : (instanceIds.size() > 1)
+        ? bisect(instanceIds) : Collections.singletonList(instanceIds)) {
+      pending.add(new DetachBatch(half, 1));
+    }
+    while (!pending.isEmpty()) {
+      List<DetachBatch> bisected = Collections.synchronizedList(new ArrayList<>());
+      List<DetachBatch> retries = Collections.synchronizedList(new ArrayList<>());
+      CompletableFutures.join(CompletableFutures.runAll(pending,
+          (batch) -> detachBatch(batch, bisected, retries), MAX_CONCURRENT_DETACH_REQUESTS));
+
+      pending = new ArrayList<>(bisected);
+      if (!retries.isEmpty()) {
+        int attempt = retries.stream().mapToInt((batch) -> batch.attempt).max().getAsInt();
+        long delayMillis = getDetachRetryDelayMillis(attempt - 1);
+        if (System.currentTimeMillis() + delayMillis >= requestExpirationTime.getTime()) {
+          Throwables.throwIfUnchecked(retries.get(0).lastFailure);
+          throw new IllegalStateException(retries.get(0).lastFailure);
+        }
+        LOG.debug("Retrying to detach {} batch(es) of instances in {} ms", retries.size(),
+            delayMillis);
+        CompletableFutures.join(CompletableFutures.delay(delayMillis, TimeUnit.MILLISECONDS));
+        pending.addAll(retries);
+      }
+    }
+  }
+
+  /**
+   * Returns the delay before the specified retry to detach instances, which grows
+   * exponentially up to a maximum, and is randomized between half and all of that value so
+   * that concurrent retries are spread out.
+   *
+   * @param retry the number of the retry, starting at 1
+   * @return the delay in milliseconds
+   */
+  @VisibleForTesting
+  static long getDetachRetryDelayMillis(int retry) {
+    long ceiling = Math.min(DETACH_RETRY_MAX_DELAY_MILLIS,
+        DETACH_RETRY_BASE_DELAY_MILLIS << Math.min(retry - 1, 20));
+    return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+  }
+
+  /**
+   * Detaches the specified batch of instances from the configured Auto Scaling group. If some
+   * instance is not in the group or not in a detachable state, the halves of the batch are
+   * added to the specified bisected batches. An isolated instance that is not in the group is
+   * ignored, and one that is not in a detachable state is added to the specified retries, as
+   * is a batch that fails for a transient reason, until it runs out of attempts. The returned
+   * future completes exceptionally on any other failure, or when the batch runs out of
+   * attempts.
+   *
+   * @param batch    the batch
+   * @param bisected the batches to detach in the next round
+   * @param retries  the batches to retry in the next round, after a delay
+   * @return a future that completes when the batch is handled
+   */
+  private CompletableFuture<Void> detachBatch(DetachBatch batch, List<DetachBatch> bisected,
+      List<DetachBatch> retries) {
+    LOG.info(">> Detaching {} instances from Auto Scaling group: {}",
+        batch.instanceIds.size(), autoScalingGroupName);
+    return CompletableFutures.<DetachInstancesRequest, DetachInstancesResult>call(
+        autoScalingClient::detachInstancesAsync, newDetachInstancesRequest(batch.instanceIds))
+        .handle((result, t) -> {
+          if (t == null) {
+            return null;
+          }
+
+          Throwable cause = (t instanceof CompletionException && t.getCause() != null)
+              ? t.getCause() : t;
+          boolean notInASG = isInstanceNotInASGException(cause);
+          if (notInASG || isInstanceNotInStateException(cause)) {
+            if (batch.instanceIds.size() > 1) {
+              for (List<String> half : bisect(batch.instanceIds)) {
+                bisected.add(new DetachBatch(half, 1));
+              }
+              return null;
+            }
+            if (notInASG) {
+              // Warn and ignore
+              LOG.warn("Instance: " + batch.instanceIds.get(0)
+                  + " not in Auto Scaling group: " + autoScalingGroupName + ". Ignoring.");
+              return null;
+            }
+          } else if (isUnrecoverable(cause)) {
+            throw new CompletionException(cause);
+          }
+
+          if (batch.attempt >= MAX_DETACH_ATTEMPTS) {
+            LOG.warn("Unable to detach {} instances after {} attempts",
+                batch.instanceIds.size(), batch.attempt);
+            throw new CompletionException(cause);
+          }
+          LOG.debug("Unable to detach {} instances yet, retrying", batch.instanceIds.size(),
+              cause);
+          DetachBatch retry = new DetachBatch(batch.instanceIds, batch.attempt + 1);
+          retry.lastFailure = cause;
+          retries.add(retry);
+          return null;
+        });
+  }
+
+  /**
+   * A batch of instances to detach, with the number of the attempt to detach it.
+   */
+  private static final class DetachBatch {
+
+    private final List<String> instanceIds;
+    private final int attempt;
+    private Throwable lastFailure;
+
+    private DetachBatch(List<String> instanceIds, int attempt) {
+      this.instanceIds = instanceIds;
+      this.attempt = attempt;
+    }
+  }
+
+  /**
+   * Splits the specified list into two halves.
+   *
+   * @param list the list, which must have at least two elements
+   * @param <T>  the type of list element
+   * @return the two halves of the list
+   */
+  private static <T> List<List<T>> bisect(List<T> list) {
+    int middle = list.size() / 2;
+    List<List<T>> halves = new ArrayList<>(2);
+    halves.add(list.subList(0, middle));
+    halves.add(list.subList(middle, list.size()));
+    return halves;
+  }
+
   /**
    * Builds an {@code UpdateAutoScalingGroupRequest} to lower the minSize on explicit shrink.
    *
@@ -747,7 +1498,8 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
   }
 
   /**
-   * Returns the instance IDs of the instances in the Auto Scaling group.
+   * Returns the instance IDs of the instances in the Auto Scaling group, excluding those in its
+   * warm pool.
    *
    * @return the instance IDs of the instances in the Auto Scaling group
    */
@@ -756,10 +1508,62 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     List<AutoScalingGroup> autoScalingGroups = getAutoScalingGroups();
     return autoScalingGroups.stream()
         .flatMap((g) -> g.getInstances().stream())
+        .filter((instance) -> !WarmPool.isWarm(instance))
         .map(com.amazonaws.services.autoscaling.model.Instance::getInstanceId)
         .collect(Collectors.toList());
   }
 
+  /**
+   * Returns the scaling activities of the Auto Scaling group that started after the specified
+   * time and have succeeded, failed or been cancelled since the last call, most recent first.
+   * Completed scaling activities are recorded in the specified set, so that each is returned
+   * only once.
+   *
+   * @param startTime            the earliest start time of relevant scaling activities
+   * @param completedActivityIds the IDs of completed scaling activities that were already examined
+   * @return the newly completed scaling activities, most recent first
+   */
+  private List<Activity> getCompletedScalingActivities(Date startTime,
+      Set<String> completedActivityIds) {
+    List<Activity> completedActivities = Lists.newArrayList();
+    DescribeScalingActivitiesRequest request = new DescribeScalingActivitiesRequest()
+        .withAutoScalingGroupName(autoScalingGroupName);
+    String nextToken;
+    do {
+      DescribeScalingActivitiesResult result = autoScalingClient.describeScalingActivities(request);
+      // Scaling activities are returned most recent first, so stop at the first older one
+      for (Activity activity : result.getActivities()) {
+        if (activity.getStartTime() != null && activity.getStartTime().before(startTime)) {
+          return completedActivities;
+        }
+        String statusCode = activity.getStatusCode();
+        boolean failed = SCALING_ACTIVITY_FAILED.equals(statusCode)
+            || SCALING_ACTIVITY_CANCELLED.equals(statusCode);
+        if ((failed || SCALING_ACTIVITY_SUCCESSFUL.equals(statusCode))
+            && completedActivityIds.add(activity.getActivityId())) {
+          LOG.info("<< Scaling activity for Auto Scaling group {} {}: {}",
+              autoScalingGroupName, statusCode, activity.getDescription());
+          completedActivities.add(activity);
+        }
+      }
+      nextToken = result.getNextToken();
+      request.setNextToken(nextToken);
+    } while (nextToken != null);
+    return completedActivities;
+  }
+
+  /**
+   * Returns whether the specified scaling activity failure is one that Auto Scaling cannot
+   * recover from by retrying the launch.
+   *
+   * @param failure the status message or description of a failed scaling activity
+   * @return whether the failure is one that Auto Scaling cannot recover from by retrying
+   */
+  @VisibleForTesting
+  static boolean isNonRetryableScalingFailure(String failure) {
+    return failure != null && NON_RETRYABLE_SCALING_FAILURE_PATTERN.matcher(failure).matches();
+  }
+
   /**
    * Returns the associated Auto Scaling groups (0 or 1).
    *
@@ -797,6 +1601,21 @@ public class AutoScalingGroupAllocator implements InstanceAllocator {
     return isAmazonServiceException(throwable, LAUNCH_TEMPLATE_NOT_FOUND_EXCEPTION);
   }
 
+  /**
+   * Returns whether the specified throwable indicates that the configured launch template, or
+   * the referenced version of it, does not exist.
+   *
+   * @param throwable the throwable
+   * @return whether the specified throwable indicates that the configured launch template, or
+   * the referenced version of it, does not exist
+   */
+  private boolean isLaunchTemplateVersionNotFoundException(Throwable throwable) {
+    return isInvalidLaunchTemplateException(throwable)
+        || (isAmazonServiceException(throwable, VALIDATION_ERROR)
+        && LAUNCH_TEMPLATE_VERSION_NOT_FOUND_PATTERN.matcher(
+        Strings.nullToEmpty(((AmazonServiceException) throwable).getErrorMessage())).matches());
+  }
+
   /**
    * Returns whether the specified throwable indicates that an instance is not part of an
    * Auto Scaling group.
@@ -0,0 +1,336 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation.asg;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+
+import com.amazonaws.services.ec2.model.LaunchTemplateBlockDeviceMappingRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateEbsBlockDeviceRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateIamInstanceProfileSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateInstanceNetworkInterfaceSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplatePlacementRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplateTagSpecificationRequest;
+import com.amazonaws.services.ec2.model.LaunchTemplatesMonitoringRequest;
+import com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
+import com.amazonaws.services.ec2.model.Tag;
+import com.google.common.base.Optional;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Registry of the launch template versions used by Auto Scaling group allocations, keyed by
+ * the EC2 endpoint, account and name of each launch template, and by a fingerprint of the
+ * launch template data.</p>
+ * <p>The fingerprint is also recorded as the description of each launch template version, so
+ * that the registry can be rebuilt from EC2 after a restart. Allocators consult the registry
+ * before creating launch templates, so that an unchanged template is reused and a changed
+ * template results in a new version rather than a new launch template.</p>
+ */
+@SuppressWarnings("Guava")
+public class LaunchTemplateRegistry {
+
+  /**
+   * The prefix for launch template version descriptions that carry a fingerprint.
+   */
+  private static final String FINGERPRINT_DESCRIPTION_PREFIX = "director-fingerprint:";
+
+  /**
+   * The version of the fingerprint format, hashed first so that a change to the fields that
+   * are hashed never matches versions fingerprinted the old way.
+   */
+  private static final int FINGERPRINT_FORMAT_VERSION = 2;
+
+  /**
+   * Identifies a launch template. Launch template names are only unique within an account and
+   * region, so the same name can refer to unrelated launch templates for different providers.
+   */
+  public static final class Key {
+
+    private final String endpoint;
+    private final String accountId;
+    private final String launchTemplateName;
+
+    /**
+     * Creates a launch template key.
+     *
+     * @param endpoint           the EC2 endpoint, or a string identifying the region
+     * @param accountId          the AWS account ID
+     * @param launchTemplateName the launch template name
+     */
+    public Key(String endpoint, String accountId, String launchTemplateName) {
+      this.endpoint = requireNonNull(endpoint, "endpoint is null");
+      this.accountId = requireNonNull(accountId, "accountId is null");
+      this.launchTemplateName = requireNonNull(launchTemplateName, "launchTemplateName is null");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key key = (Key) o;
+      return endpoint.equals(key.endpoint)
+          && accountId.equals(key.accountId)
+          && launchTemplateName.equals(key.launchTemplateName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(endpoint, accountId, launchTemplateName);
+    }
+
+    @Override
+    public String toString() {
+      return launchTemplateName + " (account " + accountId + " at " + endpoint + ")";
+    }
+  }
+
+  /**
+   * <p>Returns the fingerprint of the specified launch template data.</p>
+   * <p>The fingerprint is computed from the individual fields of the data, rather than from
+   * its string representation, which is not guaranteed to be stable across SDK versions and
+   * redacts some fields. Fields that are not hashed must not be set, so that data differing
+   * only in those fields can never share a fingerprint.</p>
+   *
+   * @param launchTemplateData the launch template data
+   * @return the fingerprint of the specified launch template data
+   * @throws IllegalArgumentException if the data sets a field that is not fingerprinted
+   */
+  public static String fingerprint(RequestLaunchTemplateData launchTemplateData) {
+    checkArgument(isEmpty(launchTemplateData.getElasticGpuSpecifications())
+            && launchTemplateData.getInstanceMarketOptions() == null
+            && launchTemplateData.getCreditSpecification() == null,
+        "Unable to fingerprint launch template data with elastic GPU, instance market or"
+            + " credit specifications");
+
+    Hasher hasher = Hashing.sha256().newHasher();
+    hasher.putInt(FINGERPRINT_FORMAT_VERSION);
+    putField(hasher, launchTemplateData.getImageId());
+    putField(hasher, launchTemplateData.getInstanceType());
+    putField(hasher, launchTemplateData.getKernelId());
+    putField(hasher, launchTemplateData.getRamDiskId());
+    putField(hasher, launchTemplateData.getKeyName());
+    putField(hasher, launchTemplateData.getEbsOptimized());
+    putField(hasher, launchTemplateData.getDisableApiTermination());
+    putField(hasher, launchTemplateData.getInstanceInitiatedShutdownBehavior());
+    putField(hasher, launchTemplateData.getUserData());
+    putStrings(hasher, launchTemplateData.getSecurityGroupIds());
+    putStrings(hasher, launchTemplateData.getSecurityGroups());
+
+    LaunchTemplatesMonitoringRequest monitoring = launchTemplateData.getMonitoring();
+    putField(hasher, monitoring != null);
+    if (monitoring != null) {
+      putField(hasher, monitoring.getEnabled());
+    }
+
+    LaunchTemplateIamInstanceProfileSpecificationRequest iamInstanceProfile =
+        launchTemplateData.getIamInstanceProfile();
+    putField(hasher, iamInstanceProfile != null);
+    if (iamInstanceProfile != null) {
+      putField(hasher, iamInstanceProfile.getArn());
+      putField(hasher, iamInstanceProfile.getName());
+    }
+
+    LaunchTemplatePlacementRequest placement = launchTemplateData.getPlacement();
+    putField(hasher, placement != null);
+    if (placement != null) {
+      putField(hasher, placement.getAvailabilityZone());
+      putField(hasher, placement.getAffinity());
+      putField(hasher, placement.getGroupName());
+      putField(hasher, placement.getHostId());
+      putField(hasher, placement.getTenancy());
+      putField(hasher, placement.getSpreadDomain());
+    }
+
+    List<LaunchTemplateBlockDeviceMappingRequest> blockDeviceMappings =
+        launchTemplateData.getBlockDeviceMappings();
+    hasher.putInt(blockDeviceMappings.size());
+    for (LaunchTemplateBlockDeviceMappingRequest blockDeviceMapping : blockDeviceMappings) {
+      putField(hasher, blockDeviceMapping.getDeviceName());
+      putField(hasher, blockDeviceMapping.getVirtualName());
+      putField(hasher, blockDeviceMapping.getNoDevice());
+      LaunchTemplateEbsBlockDeviceRequest ebs = blockDeviceMapping.getEbs();
+      putField(hasher, ebs != null);
+      if (ebs != null) {
+        putField(hasher, ebs.getVolumeType());
+        putField(hasher, ebs.getVolumeSize());
+        putField(hasher, ebs.getIops());
+        putField(hasher, ebs.getSnapshotId());
+        putField(hasher, ebs.getEncrypted());
+        putField(hasher, ebs.getKmsKeyId());
+        putField(hasher, ebs.getDeleteOnTermination());
+      }
+    }
+
+    List<LaunchTemplateInstanceNetworkInterfaceSpecificationRequest> networkInterfaces =
+        launchTemplateData.getNetworkInterfaces();
+    hasher.putInt(networkInterfaces.size());
+    for (LaunchTemplateInstanceNetworkInterfaceSpecificationRequest networkInterface
+        : networkInterfaces) {
+      checkArgument(isEmpty(networkInterface.getIpv6Addresses())
+              && isEmpty(networkInterface.getPrivateIpAddresses()),
+          "Unable to fingerprint launch template data with network interface IP address lists");
+      putField(hasher, networkInterface.getDeviceIndex());
+      putField(hasher, networkInterface.getNetworkInterfaceId());
+      putField(hasher, networkInterface.getSubnetId());
+      putStrings(hasher, networkInterface.getGroups());
+      putField(hasher, networkInterface.getAssociatePublicIpAddress());
+      putField(hasher, networkInterface.getDeleteOnTermination());
+      putField(hasher, networkInterface.getDescription());
+      putField(hasher, networkInterface.getPrivateIpAddress());
+      putField(hasher, networkInterface.getSecondaryPrivateIpAddressCount());
+      putField(hasher, networkInterface.getIpv6AddressCount());
+    }
+
+    List<LaunchTemplateTagSpecificationRequest> tagSpecifications =
+        launchTemplateData.getTagSpecifications();
+    hasher.putInt(tagSpecifications.size());
+    for (LaunchTemplateTagSpecificationRequest tagSpecification : tagSpecifications) {
+      putField(hasher, tagSpecification.getResourceType());
+      hasher.putInt(tagSpecification.getTags().size());
+      for (Tag tag : tagSpecification.getTags()) {
+        putField(hasher, tag.getKey());
+        putField(hasher, tag.getValue());
+      }
+    }
+
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Hashes a field value, distinguishing unset fields and delimiting the value, so that
+   * adjacent fields cannot run together.
+   *
+   * @param hasher the hasher
+   * @param value  the field value, which may be {@code null}
+   */
+  private static void putField(Hasher hasher, Object value) {
+    if (value == null) {
+      hasher.putInt(-1);
+    } else {
+      String string = value.toString();
+      hasher.putInt(string.length());
+      hasher.putString(string, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * Hashes a list of strings, in order.
+   *
+   * @param hasher the hasher
+   * @param values the values
+   */
+  private static void putStrings(Hasher hasher, List<String> values) {
+    hasher.putInt(values.size());
+    for (String value : values) {
+      putField(hasher, value);
+    }
+  }
+
+  private static boolean isEmpty(Collection<?> values) {
+    return values == null || values.isEmpty();
+  }
+
+  /**
+   * Returns the launch template version description that records the specified fingerprint.
+   *
+   * @param fingerprint the launch template data fingerprint
+   * @return the launch template version description that records the specified fingerprint
+   */
+  public static String toVersionDescription(String fingerprint) {
+    return FINGERPRINT_DESCRIPTION_PREFIX + fingerprint;
+  }
+
+  /**
+   * Returns the fingerprint recorded in the specified launch template version description, if any.
+   *
+   * @param versionDescription the launch template version description, which may be {@code null}
+   * @return the fingerprint recorded in the specified launch template version description, if any
+   */
+  public static Optional<String> fromVersionDescription(String versionDescription) {
+    if (versionDescription == null
+        || !versionDescription.startsWith(FINGERPRINT_DESCRIPTION_PREFIX)) {
+      return Optional.absent();
+    }
+    return Optional.of(versionDescription.substring(FINGERPRINT_DESCRIPTION_PREFIX.length()));
+  }
+
+  /**
+   * The known launch template version numbers, by fingerprint, by launch template.
+   */
+  private final ConcurrentMap<Key, ConcurrentMap<String, Long>> versionsByLaunchTemplate =
+      new ConcurrentHashMap<>();
+
+  /**
+   * Returns the known version of the specified launch template with the specified fingerprint.
+   *
+   * @param launchTemplateKey the launch template key
+   * @param fingerprint       the launch template data fingerprint
+   * @return the known version of the specified launch template with the specified fingerprint
+   */
+  public Optional<Long> getVersion(Key launchTemplateKey, String fingerprint) {
+    ConcurrentMap<String, Long> versions = versionsByLaunchTemplate.get(launchTemplateKey);
+    return (versions == null)
+        ? Optional.absent()
+        : Optional.fromNullable(versions.get(fingerprint));
+  }
+
+  /**
+   * Records the version of the specified launch template with the specified fingerprint.
+   *
+   * @param launchTemplateKey the launch template key
+   * @param fingerprint       the launch template data fingerprint
+   * @param versionNumber     the launch template version number
+   */
+  public void register(Key launchTemplateKey, String fingerprint, long versionNumber) {
+    versionsByLaunchTemplate
+        .computeIfAbsent(launchTemplateKey, (key) -> new ConcurrentHashMap<>())
+        .put(fingerprint, versionNumber);
+  }
+
+  /**
+   * Forgets all versions of the specified launch template, typically because it was deleted.
+   *
+   * @param launchTemplateKey the launch template key
+   */
+  public void invalidate(Key launchTemplateKey) {
+    versionsByLaunchTemplate.remove(launchTemplateKey);
+  }
+
+  /**
+   * Forgets the specified versions of the specified launch template, typically because they
+   * were deleted.
+   *
+   * @param launchTemplateKey the launch template key
+   * @param versionNumbers    the launch template version numbers
+   */
+  public void invalidateVersions(Key launchTemplateKey, Collection<Long> versionNumbers) {
+    ConcurrentMap<String, Long> versions = versionsByLaunchTemplate.get(launchTemplateKey);
+    if (versions != null) {
+      versions.values().removeAll(versionNumbers);
+    }
+  }
+}
@@ -0,0 +1,362 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cloudera.director.aws.ec2.allocation.asg;
+
+import com.amazonaws.services.autoscaling.AmazonAutoScalingAsync;
+import com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.amazonaws.services.autoscaling.model.AutoScalingInstanceDetails;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesRequest;
+import com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesResult;
+import com.amazonaws.services.autoscaling.model.EnterStandbyRequest;
+import com.amazonaws.services.autoscaling.model.EnterStandbyResult;
+import com.amazonaws.services.autoscaling.model.ExitStandbyRequest;
+import com.amazonaws.services.autoscaling.model.Instance;
+import com.amazonaws.services.autoscaling.model.LifecycleState;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupRequest;
+import com.amazonaws.services.autoscaling.model.TerminateInstanceInAutoScalingGroupResult;
+import com.amazonaws.services.ec2.AmazonEC2Async;
+import com.amazonaws.services.ec2.model.StartInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesRequest;
+import com.amazonaws.services.ec2.model.StopInstancesResult;
+import com.cloudera.director.aws.common.CompletableFutures;
+import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
+import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Manages the warm pool of an Auto Scaling group: pre-initialized instances that the group
+ * holds in Standby, outside of its desired capacity, so that the group can be grown without
+ * waiting for new instances to boot and bootstrap.</p>
+ * <p>Instances enter the pool by moving to Standby once they are in service, and are then
+ * stopped if the pool keeps its instances stopped, so that only their storage is billed.
+ * Growing the group starts pool instances if necessary and moves them out of Standby, which
+ * brings them into service and raises the desired capacity of the group accordingly.</p>
+ */
+@SuppressWarnings("Guava")
+final class WarmPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WarmPool.class);
+
+  /**
+   * The warm pool state in which instances are kept stopped.
+   */
+  @VisibleForTesting
+  static final String STATE_STOPPED = "Stopped";
+
+  /**
+   * The maximum number of instances that can be moved into or out of Standby in one request.
+   */
+  @VisibleForTesting
+  static final int MAX_STANDBY_INSTANCES_PER_REQUEST = 20;
+
+  /**
+   * The lifecycle states of instances in the warm pool.
+   */
+  private static final Set<String> WARM_LIFECYCLE_STATES = ImmutableSet.of(
+      LifecycleState.EnteringStandby.toString(), LifecycleState.Standby.toString());
+
+  private final AmazonAutoScalingAsync autoScalingClient;
+  private final AmazonEC2Async ec2Client;
+  private final AllocationHelper allocationHelper;
+  private final String autoScalingGroupName;
+  private final int minSize;
+  private final Optional<Integer> maxPreparedCapacity;
+  private final boolean keepStopped;
+  private final long pollDurationMillis;
+
+  /**
+   * Creates a warm pool for the specified Auto Scaling group.
+   *
+   * @param autoScalingClient    the Auto Scaling client
+   * @param ec2Client            the EC2 client
+   * @param allocationHelper     the allocation helper
+   * @param autoScalingGroupName the Auto Scaling group name
+   * @param template             the instance template, which configures the warm pool
+   * @param pollDurationMillis   the polling duration when waiting for instances to change state
+   */
+  WarmPool(AmazonAutoScalingAsync autoScalingClient, AmazonEC2Async ec2Client,
+      AllocationHelper allocationHelper, String autoScalingGroupName,
+      EC2InstanceTemplate template, long pollDurationMillis) {
+    this.autoScalingClient = autoScalingClient;
+    this.ec2Client = ec2Client;
+    this.allocationHelper = allocationHelper;
+    this.autoScalingGroupName = autoScalingGroupName;
+    this.minSize = template.getWarmPoolMinSize();
+    this.maxPreparedCapacity = template.getWarmPoolMaxPreparedCapacity();
+    this.keepStopped = STATE_STOPPED.equals(template.getWarmPoolState());
+    this.pollDurationMillis = pollDurationMillis;
+  }
+
+  /**
+   * Returns whether the Auto Scaling group keeps a warm pool.
+   *
+   * @return whether the Auto Scaling group keeps a warm pool
+   */
+  boolean isEnabled() {
+    return minSize > 0;
+  }
+
+  /**
+   * Returns whether the specified Auto Scaling instance is in the warm pool.
+   *
+   * @param instance the Auto Scaling instance
+   * @return whether the instance is in the warm pool
+   */
+  static boolean isWarm(Instance instance) {
+    return WARM_LIFECYCLE_STATES.contains(instance.getLifecycleState());
+  }
+
+  /**
+   * Returns the IDs of the instances in the warm pool of the specified Auto Scaling group.
+   *
+   * @param autoScalingGroup the Auto Scaling group
+   * @return the IDs of the instances in the warm pool
+   */
+  static List<String> getWarmInstanceIds(AutoScalingGroup autoScalingGroup) {
+    return autoScalingGroup.getInstances().stream()
+        .filter(WarmPool::isWarm)
+        .map(Instance::getInstanceId)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Returns the number of instances to launch, in addition to the desired count, to bring the
+   * warm pool back to its minimum size without exceeding the maximum prepared capacity.
+   *
+   * @param warmCount    the number of instances currently in the warm pool
+   * @param desiredCount the desired number of instances in service
+   * @return the number of instances to launch for the warm pool
+   */
+  int getRefillCount(int warmCount, int desiredCount) {
+    int refillCount = minSize - warmCount;
+    if (maxPreparedCapacity.isPresent()) {
+      refillCount = Math.min(refillCount, maxPreparedCapacity.get() - desiredCount - warmCount);
+    }
+    return Math.max(0, refillCount);
+  }
+
+  /**
+   * Brings up to the specified number of instances from the warm pool into service. Instances
+   * that do not start in time are left in the pool.
+   *
+   * @param autoScalingGroup the Auto Scaling group
+   * @param count            the maximum number of instances to bring into service
+   * @param timeout          the time by which instances must have started
+   * @return the IDs of the instances brought into service
+   * @throws InterruptedException if the operation is interrupted
+   */
+  List<String> draw(AutoScalingGroup autoScalingGroup, int count, DateTime timeout)
+      throws InterruptedException {
+    List<String> candidates = autoScalingGroup.getInstances().stream()
+        .filter((instance) ->
+            LifecycleState.Standby.toString().equals(instance.getLifecycleState()))
+        .map(Instance::getInstanceId)
+        .limit(count)
+        .collect(Collectors.toList());
+    if (candidates.isEmpty()) {
+      return candidates;
+    }
+
+    LOG.info(">> Drawing {} instances from the warm pool of Auto Scaling group {}",
+        candidates.size(), autoScalingGroupName);
+    // Starting an instance that is already running has no effect
+    ec2Client.startInstances(new StartInstancesRequest().withInstanceIds(candidates));
+    List<String> started = Lists.newArrayListWithCapacity(candidates.size());
+    for (String instanceId : candidates) {
+      boolean hasStarted;
+      try {
+        hasStarted = allocationHelper.waitUntilInstanceHasStarted(instanceId, timeout);
+      } catch (TimeoutException e) {
+        hasStarted = false;
+      }
+      if (hasStarted) {
+        started.add(instanceId);
+      } else {
+        LOG.warn("Warm pool instance {} did not start, leaving it in Standby", instanceId);
+      }
+    }
+
+    for (List<String> batch : Lists.partition(started, MAX_STANDBY_INSTANCES_PER_REQUEST)) {
+      autoScalingClient.exitStandby(new ExitStandbyRequest()
+          .withAutoScalingGroupName(autoScalingGroupName)
+          .withInstanceIds(batch));
+    }
+    LOG.info("<< Drew {} instances from the warm pool of Auto Scaling group {}",
+        started.size(), autoScalingGroupName);
+    return started;
+  }
+
+  /**
+   * Moves the specified newly launched instances into the warm pool, once they are in service,
+   * lowering the desired capacity of the group accordingly. Instances that cannot be moved into
+   * the pool are terminated, so that the group does not keep more instances in service than
+   * were requested. No thread is blocked while waiting for the instances to change state.
+   *
+   * @param instanceIds    the IDs of the instances to move into the warm pool
+   * @param deadlineMillis the time by which instances must be in service, in milliseconds
+   * @return a future that completes with the IDs of the instances moved into the warm pool
+   */
+  CompletableFuture<List<String>> park(Collection<String> instanceIds, long deadlineMillis) {
+    LOG.info(">> Moving {} instances into the warm pool of Auto Scaling group {}",
+        instanceIds.size(), autoScalingGroupName);
+
+    List<String> parked = Collections.synchronizedList(
+        Lists.newArrayListWithCapacity(instanceIds.size()));
+    // Only instances in service can enter Standby
+    CompletableFuture<Void> moved =
+        awaitLifecycleState(instanceIds, LifecycleState.InService, deadlineMillis)
+            .thenCompose((inService) -> CompletableFutures.runAll(
+                Lists.partition(inService, MAX_STANDBY_INSTANCES_PER_REQUEST),
+                (batch) -> CompletableFutures.<EnterStandbyRequest, EnterStandbyResult>call(
+                    autoScalingClient::enterStandbyAsync,
+                    new EnterStandbyRequest()
+                        .withAutoScalingGroupName(autoScalingGroupName)
+                        .withInstanceIds(batch)
+                        .withShouldDecrementDesiredCapacity(true))
+                    .thenRun(() -> parked.addAll(batch)),
+                1))
+            .thenCompose((ignored) -> {
+              if (!keepStopped || parked.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+              }
+              // Stopping an instance before it is in Standby would make it fail health checks
+              return awaitLifecycleState(ImmutableSet.copyOf(parked), LifecycleState.Standby,
+                  deadlineMillis)
+                  .thenCompose((standby) -> standby.isEmpty()
+                      ? CompletableFuture.completedFuture(null)
+                      : CompletableFutures.<StopInstancesRequest, StopInstancesResult>call(
+                          ec2Client::stopInstancesAsync,
+                          new StopInstancesRequest().withInstanceIds(standby))
+                          .thenApply((result) -> (Void) null));
+            });
+
+    return moved.handle((ignored, t) -> {
+      if (t != null) {
+        LOG.warn("Unable to move instances into the warm pool of Auto Scaling group {}",
+            autoScalingGroupName, (t instanceof CompletionException) ? t.getCause() : t);
+      }
+      List<CompletableFuture<Void>> terminations = Lists.newArrayList();
+      for (String instanceId : instanceIds) {
+        if (!parked.contains(instanceId)) {
+          terminations.add(terminate(instanceId));
+        }
+      }
+      LOG.info("<< Moved {} instances into the warm pool of Auto Scaling group {}",
+          parked.size(), autoScalingGroupName);
+      return CompletableFutures.allSettled(terminations)
+          .thenApply((settled) -> (List<String>) ImmutableList.copyOf(parked));
+    }).thenCompose((parkedIds) -> parkedIds);
+  }
+
+  /**
+   * Polls the specified instances until they reach the specified lifecycle state, or the
+   * deadline passes.
+   *
+   * @param instanceIds    the instance IDs
+   * @param lifecycleState the lifecycle state
+   * @param deadlineMillis the time after which to stop polling, in milliseconds
+   * @return a future that completes with the IDs of the instances that reached the lifecycle
+   * state
+   */
+  private CompletableFuture<List<String>> awaitLifecycleState(Collection<String> instanceIds,
+      LifecycleState lifecycleState, long deadlineMillis) {
+    AtomicReference<List<String>> matching = new AtomicReference<>(Collections.emptyList());
+    return CompletableFutures.pollUntil(() -> getLifecycleStates(instanceIds,
+        new DescribeAutoScalingInstancesRequest().withInstanceIds(instanceIds),
+        Maps.newHashMapWithExpectedSize(instanceIds.size()))
+        .thenApply((lifecycleStates) -> {
+          matching.set(instanceIds.stream()
+              .filter((instanceId) ->
+                  lifecycleState.toString().equals(lifecycleStates.get(instanceId)))
+              .collect(Collectors.toList()));
+          return matching.get().size() == instanceIds.size();
+        }), pollDurationMillis, TimeUnit.MILLISECONDS, deadlineMillis)
+        .thenApply((ignored) -> matching.get());
+  }
+
+  /**
+   * Describes the lifecycle states of the specified instances, requesting each page of results
+   * once the previous one arrives.
+   *
+   * @param instanceIds     the instance IDs
+   * @param request         the request for the next page of results
+   * @param lifecycleStates the lifecycle states found so far, which are added to
+   * @return a future that completes with the lifecycle states of the instances that are in an
+   * Auto Scaling group, by instance ID
+   */
+  private CompletableFuture<Map<String, String>> getLifecycleStates(
+      Collection<String> instanceIds, DescribeAutoScalingInstancesRequest request,
+      Map<String, String> lifecycleStates) {
+    return CompletableFutures.<DescribeAutoScalingInstancesRequest,
+        DescribeAutoScalingInstancesResult>call(
+        autoScalingClient::describeAutoScalingInstancesAsync, request)
+        .thenCompose((result) -> {
+          for (AutoScalingInstanceDetails details : result.getAutoScalingInstances()) {
+            lifecycleStates.put(details.getInstanceId(), details.getLifecycleState());
+          }
+          return (result.getNextToken() == null)
+              ? CompletableFuture.completedFuture(lifecycleStates)
+              : getLifecycleStates(instanceIds, new DescribeAutoScalingInstancesRequest()
+                  .withInstanceIds(instanceIds)
+                  .withNextToken(result.getNextToken()), lifecycleStates);
+        });
+  }
+
+  /**
+   * Terminates an instance that was launched for the warm pool but could not be moved into it,
+   * lowering the desired capacity of the group.
+   *
+   * @param instanceId the instance ID
+   * @return a future that completes once the instance is terminated, or could not be
+   */
+  private CompletableFuture<Void> terminate(String instanceId) {
+    LOG.info(">> Terminating instance {} that could not enter the warm pool", instanceId);
+    return CompletableFutures.<TerminateInstanceInAutoScalingGroupRequest,
+        TerminateInstanceInAutoScalingGroupResult>call(
+        autoScalingClient::terminateInstanceInAutoScalingGroupAsync,
+        new TerminateInstanceInAutoScalingGroupRequest()
+            .withInstanceId(instanceId)
+            .withShouldDecrementDesiredCapacity(true))
+        .exceptionally((t) -> {
+          LOG.warn("Unable to terminate instance {} in Auto Scaling group {}. Check AWS "
+                  + "console to avoid resource leak.", instanceId, autoScalingGroupName,
+              (t instanceof CompletionException) ? t.getCause() : t);
+          return null;
+        })
+        .thenApply((result) -> (Void) null);
+  }
+}
@@ -39,10 +39,16 @@ import com.amazonaws.services.ec2.model.Tag;
 import com.amazonaws.services.ec2.model.TagSpecification;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSExceptions;
+import com.cloudera.director.aws.common.CompletableFutures;
+import com.cloudera.director.aws.ec2.CapacityPool;
 import com.cloudera.director.aws.ec2.EC2Instance;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.allocation.AbstractInstanceAllocator;
 import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.ec2.allocation.InstanceTerminator;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.cloudera.director.spi.v2.model.exception.TransientProviderException;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
 import com.google.common.annotations.VisibleForTesting;
@@ -63,8 +69,8 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -127,19 +133,19 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
     LOG.info(">> Requesting {} instances for {}", instanceCount, template);
 
     boolean success = false;
+    AllocationJournal journal = AllocationJournal.get();
+    Map<String, AllocationJournal.Record> journaled = journal.getRecords(virtualInstanceIds);
     Map<String, Instance> virtualInstanceIdToInstances = Maps.newHashMapWithExpectedSize(virtualInstanceIds.size());
     Map<String, Instance> unsuccessfulInstances = Maps.newHashMap();
+    Map<String, CapacityPool> servingPools = Maps.newHashMap();
+    Map<String, EC2InstanceTemplate> poolTemplates = Maps.newHashMap();
 
     try {
       // Try to find all instances that are not in a terminal state
-      Iterable<Map.Entry<String, Instance>> vIdToInstances = allocationHelper.doFind(
-          template, virtualInstanceIds,
-          Predicates.not(allocationHelper.INSTANCE_IS_TERMINAL));
-
-      for (Map.Entry<String, Instance> virtualInstanceIdToInstance : vIdToInstances) {
-        virtualInstanceIdToInstances.put(
-            virtualInstanceIdToInstance.getKey(),
-            virtualInstanceIdToInstance.getValue());
+      try (Span span = Tracing.startSpan("find-existing")) {
+        findExistingInstances(template, virtualInstanceIds, journaled,
+            virtualInstanceIdToInstances);
+        span.setAttribute("instance.count.found", virtualInstanceIdToInstances.size());
       }
 
       if (!virtualInstanceIdToInstances.isEmpty()) {
@@ -148,7 +154,6 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
       }
 
       List<Tag> userDefinedTags = ec2TagHelper.getUserDefinedTags(template);
-      List<RunInstancesResult> runInstancesResults = Lists.newArrayList();
       Set<String> unallocatedInstanceIds = Sets.difference(
           Sets.newHashSet(virtualInstanceIds), virtualInstanceIdToInstances.keySet());
 
@@ -156,97 +161,48 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
 
       Set<Exception> encounteredExceptions = Sets.newHashSet();
 
-      if (useTagOnCreate) {
-        Map<String, Future<RunInstancesResult>> runInstanceRequests = Maps.newHashMap();
-        for (String virtualInstanceId : unallocatedInstanceIds) {
-          runInstanceRequests.put(virtualInstanceId, ec2Client.runInstancesAsync(
-              newRunInstancesRequest(template, virtualInstanceId, userDefinedTags)));
+      // Each pool only gets the shortfall left by the previous ones, and the next pool is only
+      // tried when EC2 reports a capacity problem
+      List<CapacityPool> pools = Lists.newArrayList(
+          new CapacityPool(template.getType(), template.getSubnetId()));
+      pools.addAll(template.getCapacityFallbacks());
+      for (int i = 0; i < pools.size(); i++) {
+        Set<String> shortfall = Sets.newLinkedHashSet(Sets.difference(
+            Sets.newLinkedHashSet(virtualInstanceIds), virtualInstanceIdToInstances.keySet()));
+        if (shortfall.isEmpty()) {
+          break;
         }
-
-        LOG.info(">> Submitted {} run instance requests.", runInstanceRequests.size());
-
-        // Map of encountered AWS exceptions where key is the AWS error code, which we may propagate
-        // later. It should be sufficient to just keep track of one exception per error code.
-
-        for (Map.Entry<String, Future<RunInstancesResult>> runInstanceRequest : runInstanceRequests.entrySet()) {
-          String virtualInstanceId = runInstanceRequest.getKey();
-          try {
-            RunInstancesResult result = runInstanceRequest.getValue().get();
-            runInstancesResults.add(result);
-            virtualInstanceIdToInstances.put(
-                virtualInstanceId,
-                getOnlyElement(result.getReservation().getInstances()));
-
-          } catch (ExecutionException e) {
-            if (e.getCause() instanceof AmazonServiceException) {
-              AmazonServiceException awsException = (AmazonServiceException) e.getCause();
-              LOG.error("AWS error while requesting instance {}, AWS error code: {}",
-                  virtualInstanceId, awsException.getErrorCode());
-              encounteredExceptions.add(awsException);
-            } else {
-              LOG.error("Error while requesting instance {}. Attempting to proceed.", virtualInstanceId);
-              encounteredExceptions.add(e);
-            }
-
-            LOG.debug("Exception caught:", e);
-          }
+        CapacityPool pool = pools.get(i);
+        EC2InstanceTemplate poolTemplate = template;
+        Map<String, AllocationJournal.Record> poolJournaled = journaled;
+        if (i > 0) {
+          LOG.info(">> Falling back to capacity pool {} for {} instances", pool, shortfall.size());
+          poolTemplate = template.forCapacityPool(pool);
+          // Launch requests in a fallback pool are new, so they get new client tokens
+          poolJournaled = Collections.emptyMap();
         }
 
-        if (LOG.isInfoEnabled()) {
-          for (RunInstancesResult runInstancesResult : runInstancesResults) {
-            LOG.info("<< Reservation {} with {}", runInstancesResult.getReservation().getReservationId(),
-                summarizeReservationForLogging(runInstancesResult.getReservation()));
-          }
+        boolean capacityError;
+        try (Span span = Tracing.startSpan("capacity-pool")) {
+          span.setAttribute("capacity.pool", pool.toString())
+              .setAttribute("instance.count.requested", shortfall.size());
+          capacityError = runInstances(poolTemplate, shortfall, userDefinedTags, poolJournaled,
+              minCount, virtualInstanceIdToInstances, unsuccessfulInstances,
+              encounteredExceptions);
         }
-      } else {
-        LOG.info("Tag on create is disabled.");
-
-        RunInstancesResult runInstancesResult = null;
-        int normalizedMinCount = Math.max(1, minCount - virtualInstanceIdToInstances.size());
-        try {
-          // Only allocated what we haven't allocated yet
-          runInstancesResult = ec2Client.runInstances(
-              newRunInstanceRequestBulkNoTagOnCreate(template, virtualInstanceIds, normalizedMinCount));
-        } catch (AmazonServiceException e) {
-          AWSExceptions.propagateIfUnrecoverable(stsClient, e);
-
-          // As documented at http://docs.aws.amazon.com/AWSEC2/latest/UserGuide/instance-capacity.html
-
-          if (INSUFFICIENT_INSTANCE_CAPACITY.equals(e.getErrorCode()) ||
-              INSTANCE_LIMIT_EXCEEDED.equals(e.getErrorCode())) {
-            LOG.warn("Hit instance capacity issues. Attempting to proceed anyway.", e);
-          } else {
-            throw AWSExceptions.propagate(stsClient, e);
+        for (String virtualInstanceId : shortfall) {
+          if (virtualInstanceIdToInstances.containsKey(virtualInstanceId)) {
+            servingPools.put(virtualInstanceId, pool);
+            poolTemplates.put(virtualInstanceId, poolTemplate);
           }
         }
-
-        List<Instance> instances = runInstancesResult != null ? runInstancesResult.getReservation().getInstances()
-            : Lists.newArrayList();
-
-        // Limit the number of virtual instance id's used for tagging to the
-        // number of instances that we managed to reserve.
-        List<String> virtualInstanceIdsAllocated = FluentIterable
-            .from(virtualInstanceIds)
-            .limit(instances.size())
-            .toList();
-
-
-        for (Map.Entry<String, Instance> entry : zipWith(virtualInstanceIdsAllocated, instances)) {
-
-          String virtualInstanceId = entry.getKey();
-          Instance instance = entry.getValue();
-          String ec2InstanceId = instance.getInstanceId();
-
-          if (tagInstance(template, userDefinedTags, virtualInstanceId, ec2InstanceId,
-              DateTime.now().plus(waitUntilFindableMillis))) {
-            virtualInstanceIdToInstances.put(virtualInstanceId,
-                instance.withTags(ec2TagHelper.getInstanceTags(template, virtualInstanceId, userDefinedTags)));
-          } else {
-            unsuccessfulInstances.put(virtualInstanceId, instance);
-            LOG.info("<< Instance {} could not be tagged.", ec2InstanceId);
-          }
+        if (!capacityError) {
+          break;
         }
       }
+      if (!template.getCapacityFallbacks().isEmpty()) {
+        LOG.info("<< Capacity pools serving virtual instances: {}", servingPools);
+      }
 
       // Determine which do not yet have a private IP address.
 
@@ -258,18 +214,22 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
         Map<String, String> ec2InstancesWithNoPrivateIp = Maps.newHashMap();
         DateTime timeout = DateTime.now().plus(waitUntilStartedMillis);
 
-        for (Map.Entry<String, Instance> vIdToInstance : virtualInstanceIdToInstances.entrySet()) {
-          if (allocationHelper.waitUntilInstanceHasStarted(vIdToInstance.getValue().getInstanceId(), timeout)) {
-            if (vIdToInstance.getValue().getPrivateIpAddress() == null) {
-              ec2InstancesWithNoPrivateIp.put(vIdToInstance.getKey(), vIdToInstance.getValue().getInstanceId());
+        try (Span span = Tracing.startSpan("wait-until-started")) {
+          span.setAttribute("instance.count", virtualInstanceIdToInstances.size());
+          for (Map.Entry<String, Instance> vIdToInstance : virtualInstanceIdToInstances.entrySet()) {
+            if (allocationHelper.waitUntilInstanceHasStarted(vIdToInstance.getValue().getInstanceId(), timeout)) {
+              notifyInstanceStarted(vIdToInstance.getKey(), vIdToInstance.getValue().getInstanceId());
+              if (vIdToInstance.getValue().getPrivateIpAddress() == null) {
+                ec2InstancesWithNoPrivateIp.put(vIdToInstance.getKey(), vIdToInstance.getValue().getInstanceId());
+              } else {
+                successfulEC2Instances.put(vIdToInstance.getKey(), vIdToInstance.getValue());
+                LOG.info("<< Instance {} got IP {}",
+                    vIdToInstance.getValue().getInstanceId(),
+                    vIdToInstance.getValue().getPrivateIpAddress());
+              }
             } else {
-              successfulEC2Instances.put(vIdToInstance.getKey(), vIdToInstance.getValue());
-              LOG.info("<< Instance {} got IP {}",
-                  vIdToInstance.getValue().getInstanceId(),
-                  vIdToInstance.getValue().getPrivateIpAddress());
+              LOG.info("<< Instance {} did not start.", vIdToInstance.getValue().getInstanceId());
             }
-          } else {
-            LOG.info("<< Instance {} did not start.", vIdToInstance.getValue().getInstanceId());
           }
         }
 
@@ -288,12 +248,15 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
         if (numInstancesAlive >= minCount) {
 
           success = true;
+          journal.recordAllocated(successfulEC2Instances.keySet());
 
           List<EC2Instance> result = Lists.newArrayListWithCapacity(successfulEC2Instances.size());
           for (Map.Entry<String, Instance> instance : successfulEC2Instances.entrySet()) {
             String virtualInstanceId = allocationHelper.getVirtualInstanceId(instance.getValue().getTags(), "instance");
             if (Objects.equals(instance.getKey(), virtualInstanceId)) {
-              result.add(allocationHelper.createInstance(template, virtualInstanceId, instance.getValue()));
+              result.add(allocationHelper.createInstance(
+                  poolTemplates.getOrDefault(virtualInstanceId, template), virtualInstanceId,
+                  instance.getValue()));
             } else {
               LOG.error("Unable to find corresponding instance for ID {}.", virtualInstanceId);
             }
@@ -315,24 +278,264 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
       throw new UnrecoverableProviderException("Unexpected problem during instance allocation", e);
     } finally {
       if (!success) {
-        LOG.error("Unsuccessful allocation of on demand instances. Terminating instances.");
+        try (Span span = Tracing.startSpan("cleanup")) {
+          span.setAttribute("instance.count", virtualInstanceIdToInstances.size());
+          LOG.error("Unsuccessful allocation of on demand instances. Terminating instances.");
 
+          try {
+            Collection<String> ec2InstanceIds = FluentIterable
+                .from(virtualInstanceIdToInstances.values())
+                .transform(INSTANCE_TO_INSTANCE_ID)
+                .toList();
+            // The instances were launched moments ago, so EC2 may not know them yet
+            InstanceTerminator.Result result =
+                new InstanceTerminator(ec2Client, waitUntilFindableMillis)
+                    .terminate(ec2InstanceIds);
+            if (result.getFailure() != null) {
+              throw AWSExceptions.propagate(stsClient, result.getFailure());
+            }
+            journal.recordReleased(virtualInstanceIds);
+          } catch (InterruptedException e) {
+            //noinspection ThrowFromFinallyBlock
+            throw e;
+          } catch (Exception e) {
+            LOG.error("Error while trying to delete instances after failed instance allocation.", e);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Launches instances for the specified virtual instances from a single capacity pool, adding
+   * the launched instances to the specified map.
+   *
+   * @param template                     the instance template of the capacity pool
+   * @param requestedInstanceIds         the virtual instance IDs to launch instances for
+   * @param userDefinedTags              the user-defined tags
+   * @param journaled                    the journal records of the virtual instances, whose
+   *                                     pending launch requests are resumed
+   * @param minCount                     the minimum number of instances of the whole allocation
+   * @param virtualInstanceIdToInstances the map to which launched instances are added
+   * @param unsuccessfulInstances        the map to which launched but unusable instances are added
+   * @param encounteredExceptions        the set to which encountered exceptions are added
+   * @return whether EC2 reported insufficient capacity or an instance limit for the pool
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private boolean runInstances(EC2InstanceTemplate template,
+      Collection<String> requestedInstanceIds, List<Tag> userDefinedTags,
+      Map<String, AllocationJournal.Record> journaled, int minCount,
+      Map<String, Instance> virtualInstanceIdToInstances,
+      Map<String, Instance> unsuccessfulInstances, Set<Exception> encounteredExceptions)
+      throws InterruptedException {
+    AllocationJournal journal = AllocationJournal.get();
+    boolean capacityError = false;
+    if (useTagOnCreate) {
+      List<RunInstancesResult> runInstancesResults = Lists.newArrayList();
+      Map<String, CompletableFuture<RunInstancesResult>> runInstanceRequests = Maps.newHashMap();
+      try (Span span = Tracing.startSpan("run-instances")) {
+        span.setAttribute("instance.count.requested", requestedInstanceIds.size())
+            .setAttribute("tag.on.create", true);
+        Map<String, String> clientTokens = getClientTokens(requestedInstanceIds, journaled);
+        // The tokens must be durable before the requests are sent, to resume them later
+        journal.recordClientTokens(clientTokens);
+        for (Map.Entry<String, String> clientToken : clientTokens.entrySet()) {
+          String virtualInstanceId = clientToken.getKey();
+          runInstanceRequests.put(virtualInstanceId, CompletableFutures.call(
+              ec2Client::runInstancesAsync,
+              newRunInstancesRequest(template, virtualInstanceId, userDefinedTags,
+                  clientToken.getValue())));
+        }
+
+        LOG.info(">> Submitted {} run instance requests.", runInstanceRequests.size());
+
+        // Wait once for all the requests to settle, instead of blocking on each in turn
+        CompletableFutures.join(CompletableFutures.allSettled(runInstanceRequests.values()));
+      }
+
+      // Map of encountered AWS exceptions where key is the AWS error code, which we may propagate
+      // later. It should be sufficient to just keep track of one exception per error code.
+
+      Map<String, String> launchedInstanceIds = Maps.newHashMap();
+      Set<String> failedInstanceIds = Sets.newHashSet();
+      for (Map.Entry<String, CompletableFuture<RunInstancesResult>> runInstanceRequest : runInstanceRequests.entrySet()) {
+        String virtualInstanceId = runInstanceRequest.getKey();
         try {
-          Collection<String> ec2InstanceIds = FluentIterable
-              .from(virtualInstanceIdToInstances.values())
-              .transform(INSTANCE_TO_INSTANCE_ID)
-              .toList();
-          allocationHelper.doDelete(ec2InstanceIds);
-        } catch (InterruptedException e) {
-          //noinspection ThrowFromFinallyBlock
-          throw e;
-        } catch (Exception e) {
-          LOG.error("Error while trying to delete instances after failed instance allocation.", e);
+          RunInstancesResult result = runInstanceRequest.getValue().get();
+          runInstancesResults.add(result);
+          Instance instance = getOnlyElement(result.getReservation().getInstances());
+          virtualInstanceIdToInstances.put(virtualInstanceId, instance);
+          launchedInstanceIds.put(virtualInstanceId, instance.getInstanceId());
+
+        } catch (ExecutionException e) {
+          failedInstanceIds.add(virtualInstanceId);
+          if (e.getCause() instanceof AmazonServiceException) {
+            AmazonServiceException awsException = (AmazonServiceException) e.getCause();
+            LOG.error("AWS error while requesting instance {}, AWS error code: {}",
+                virtualInstanceId, awsException.getErrorCode());
+            encounteredExceptions.add(awsException);
+            capacityError |= isCapacityError(awsException);
+          } else {
+            LOG.error("Error while requesting instance {}. Attempting to proceed.", virtualInstanceId);
+            encounteredExceptions.add(e);
+          }
+
+          LOG.debug("Exception caught:", e);
+        }
+      }
+      journal.recordInstances(launchedInstanceIds);
+      // A rejected request is not resumed, so that its token is not rejected again
+      journal.recordReleased(failedInstanceIds);
+
+      if (LOG.isInfoEnabled()) {
+        for (RunInstancesResult runInstancesResult : runInstancesResults) {
+          LOG.info("<< Reservation {} with {}", runInstancesResult.getReservation().getReservationId(),
+              summarizeReservationForLogging(runInstancesResult.getReservation()));
+        }
+      }
+    } else {
+      LOG.info("Tag on create is disabled.");
+
+      RunInstancesResult runInstancesResult = null;
+      int normalizedMinCount = Math.max(1, minCount - virtualInstanceIdToInstances.size());
+      try (Span span = Tracing.startSpan("run-instances")) {
+        span.setAttribute("instance.count.requested", requestedInstanceIds.size())
+            .setAttribute("tag.on.create", false);
+        try {
+          // Only allocated what we haven't allocated yet
+          runInstancesResult = ec2Client.runInstances(
+              newRunInstanceRequestBulkNoTagOnCreate(template, requestedInstanceIds, normalizedMinCount));
+        } catch (AmazonServiceException e) {
+          AWSExceptions.propagateIfUnrecoverable(stsClient, e);
+
+          // As documented at http://docs.aws.amazon.com/AWSEC2/latest/UserGuide/instance-capacity.html
+
+          if (isCapacityError(e)) {
+            LOG.warn("Hit instance capacity issues. Attempting to proceed anyway.", e);
+            encounteredExceptions.add(e);
+            capacityError = true;
+          } else {
+            throw AWSExceptions.propagate(stsClient, e);
+          }
         }
       }
+
+      List<Instance> instances = runInstancesResult != null ? runInstancesResult.getReservation().getInstances()
+          : Lists.newArrayList();
+      // EC2 launches fewer than requested, down to the minimum count, when it lacks capacity
+      capacityError |= instances.size() < requestedInstanceIds.size();
+
+      // Limit the number of virtual instance id's used for tagging to the
+      // number of instances that we managed to reserve.
+      List<String> virtualInstanceIdsAllocated = FluentIterable
+          .from(requestedInstanceIds)
+          .limit(instances.size())
+          .toList();
+
+
+      Map<String, String> taggedInstanceIds = Maps.newHashMap();
+      try (Span span = Tracing.startSpan("tag-instances")) {
+        for (Map.Entry<String, Instance> entry : zipWith(virtualInstanceIdsAllocated, instances)) {
+
+          String virtualInstanceId = entry.getKey();
+          Instance instance = entry.getValue();
+          String ec2InstanceId = instance.getInstanceId();
+
+          if (tagInstance(template, userDefinedTags, virtualInstanceId, ec2InstanceId,
+              DateTime.now().plus(waitUntilFindableMillis))) {
+            virtualInstanceIdToInstances.put(virtualInstanceId,
+                instance.withTags(ec2TagHelper.getInstanceTags(template, virtualInstanceId, userDefinedTags)));
+            taggedInstanceIds.put(virtualInstanceId, ec2InstanceId);
+          } else {
+            unsuccessfulInstances.put(virtualInstanceId, instance);
+            LOG.info("<< Instance {} could not be tagged.", ec2InstanceId);
+          }
+        }
+      }
+      journal.recordInstances(taggedInstanceIds);
+    }
+    return capacityError;
+  }
+
+  /**
+   * Returns whether the specified exception reports that EC2 is out of capacity for the
+   * requested instance type and availability zone, or that an instance limit was reached, as
+   * documented at http://docs.aws.amazon.com/AWSEC2/latest/UserGuide/instance-capacity.html.
+   */
+  private static boolean isCapacityError(AmazonServiceException e) {
+    return INSUFFICIENT_INSTANCE_CAPACITY.equals(e.getErrorCode())
+        || INSTANCE_LIMIT_EXCEEDED.equals(e.getErrorCode());
+  }
+
+  /**
+   * Finds the instances, not in a terminal state, that were already allocated for the
+   * specified virtual instances. Instances recorded in the allocation journal are looked up by
+   * EC2 instance ID, and a virtual instance whose launch request is pending is resumed with its
+   * client token instead, so only virtual instances unknown to the journal are looked up by tag.
+   *
+   * @param template           the instance template
+   * @param virtualInstanceIds the virtual instance IDs
+   * @param journaled          the journal records of the virtual instances
+   * @param found              the map to which found instances are added, by virtual
+   *                           instance ID
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private void findExistingInstances(EC2InstanceTemplate template,
+      Collection<String> virtualInstanceIds, Map<String, AllocationJournal.Record> journaled,
+      Map<String, Instance> found) throws InterruptedException {
+    Map<String, String> virtualInstanceIdsByEc2InstanceId = Maps.newHashMap();
+    for (AllocationJournal.Record record : journaled.values()) {
+      if (record.getEc2InstanceId() != null) {
+        virtualInstanceIdsByEc2InstanceId.put(record.getEc2InstanceId(),
+            record.getVirtualInstanceId());
+      }
+    }
+    if (!virtualInstanceIdsByEc2InstanceId.isEmpty()) {
+      Map<String, Instance> instances =
+          allocationHelper.findByEc2InstanceIds(virtualInstanceIdsByEc2InstanceId.keySet());
+      for (Instance instance : instances.values()) {
+        if (!allocationHelper.INSTANCE_IS_TERMINAL.apply(instance)) {
+          found.put(virtualInstanceIdsByEc2InstanceId.get(instance.getInstanceId()), instance);
+        }
+      }
+    }
+
+    Set<String> unjournaledInstanceIds =
+        Sets.difference(Sets.newHashSet(virtualInstanceIds), journaled.keySet());
+    if (!unjournaledInstanceIds.isEmpty()) {
+      Iterable<Map.Entry<String, Instance>> vIdToInstances = allocationHelper.doFind(
+          template, unjournaledInstanceIds,
+          Predicates.not(allocationHelper.INSTANCE_IS_TERMINAL));
+      for (Map.Entry<String, Instance> virtualInstanceIdToInstance : vIdToInstances) {
+        found.put(virtualInstanceIdToInstance.getKey(), virtualInstanceIdToInstance.getValue());
+      }
     }
   }
 
+  /**
+   * Returns the client tokens with which to request the specified virtual instances, reusing
+   * the token of a pending launch request recorded in the allocation journal, so that EC2
+   * returns the instance launched by that request rather than launching another one.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   * @param journaled          the journal records of the virtual instances
+   * @return the client tokens, by virtual instance ID
+   */
+  private Map<String, String> getClientTokens(Collection<String> virtualInstanceIds,
+      Map<String, AllocationJournal.Record> journaled) {
+    Map<String, String> clientTokens = Maps.newHashMapWithExpectedSize(virtualInstanceIds.size());
+    for (String virtualInstanceId : virtualInstanceIds) {
+      AllocationJournal.Record record = journaled.get(virtualInstanceId);
+      if (record != null && record.isLaunchPending()) {
+        LOG.info("Resuming launch request for instance {} with client token {}",
+            virtualInstanceId, record.getClientToken());
+        clientTokens.put(virtualInstanceId, record.getClientToken());
+      } else {
+        clientTokens.put(virtualInstanceId, UUID.randomUUID().toString());
+      }
+    }
+    return clientTokens;
+  }
 
   /**
    * Builds a {@code RunInstancesRequest} starting from a template and a virtual instance ID.
@@ -341,12 +544,13 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
    * @param template          the instance template
    * @param virtualInstanceId the virtual instance ID
    * @param userDefinedTags   user defined tags to attach to the instance
+   * @param clientToken       the client token that makes the request idempotent
    * @return a RunInstancesRequest object
    */
   @VisibleForTesting
   @SuppressWarnings("ConstantConditions")
-  private RunInstancesRequest newRunInstancesRequest(
-      EC2InstanceTemplate template, String virtualInstanceId, List<Tag> userDefinedTags) {
+  private RunInstancesRequest newRunInstancesRequest(EC2InstanceTemplate template,
+      String virtualInstanceId, List<Tag> userDefinedTags, String clientToken) {
 
     List<Tag> tags = ec2TagHelper.getInstanceTags(template, virtualInstanceId, userDefinedTags);
     List<TagSpecification> tagSpecifications = Lists.newArrayList(
@@ -354,6 +558,7 @@ public class OnDemandAllocator extends AbstractInstanceAllocator {
         new TagSpecification().withTags(tags).withResourceType(ResourceType.Volume));
 
     return newRunInstanceBaseRequest(template)
+        .withClientToken(clientToken)
         .withMinCount(1)
         .withMaxCount(1)
         .withTagSpecifications(tagSpecifications);
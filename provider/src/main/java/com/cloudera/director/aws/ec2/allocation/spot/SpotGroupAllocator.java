@@ -36,15 +36,18 @@ import com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.amazonaws.services.ec2.model.SpotInstanceState;
 import com.amazonaws.services.ec2.model.SpotPlacement;
 import com.amazonaws.services.ec2.model.Tag;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
-import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSExceptions;
 import com.cloudera.director.aws.AWSTimeouts;
+import com.cloudera.director.aws.common.CompletableFutures;
 import com.cloudera.director.aws.ec2.EC2Instance;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.allocation.AbstractInstanceAllocator;
 import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.ec2.allocation.InstanceTerminator;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.cloudera.director.spi.v2.model.exception.PluginExceptionConditionAccumulator;
 import com.cloudera.director.spi.v2.model.exception.PluginExceptionDetails;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
@@ -52,6 +55,7 @@ import com.github.rholder.retry.RetryException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
@@ -63,8 +67,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
@@ -95,6 +99,17 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
    */
   private static final String MAX_SPOT_INSTANCE_COUNT_EXCEEDED = "MaxSpotInstanceCountExceeded";
 
+  /**
+   * The maximum number of values in a single describe filter.
+   */
+  private static final int MAX_FILTER_VALUES = 200;
+
+  /**
+   * The separator between the hash of a Spot client token and the expiration time of its
+   * request, which a resent request must repeat for the token to be accepted.
+   */
+  private static final char CLIENT_TOKEN_SEPARATOR = '-';
+
   /**
    * The default spot instance request duration, in milliseconds.
    */
@@ -132,6 +147,11 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
    */
   private final Map<String, String> spotInstancesByUntaggedSpotInstanceRequestId;
 
+  /**
+   * The allocation journal.
+   */
+  private final AllocationJournal journal;
+
   /**
    * Creates a Spot group allocator with the specified parameters.
    *
@@ -164,6 +184,7 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
     this.spotAllocationRecordsByVirtualInstanceId =
         initializeSpotAllocationRecordMap(virtualInstanceIds);
     this.spotInstancesByUntaggedSpotInstanceRequestId = Maps.newHashMap();
+    this.journal = AllocationJournal.get();
   }
 
   /**
@@ -213,12 +234,16 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
 
     try {
       try {
-        // Check for existing instances orphaned by a previous call.
-        checkForOrphanedInstances();
-
-        // Check for existing Spot instance requests orphaned by a previous call.
-        Set<String> orphanedSpotInstanceRequests = checkForOrphanedSpotInstanceRequests();
-        Set<String> pendingRequestIds = Sets.newHashSet(orphanedSpotInstanceRequests);
+        Set<String> pendingRequestIds;
+        try (Span span = Tracing.startSpan("find-existing")) {
+          // Check for existing instances orphaned by a previous call.
+          checkForOrphanedInstances();
+
+          // Check for existing Spot instance requests orphaned by a previous call.
+          Set<String> orphanedSpotInstanceRequests = checkForOrphanedSpotInstanceRequests();
+          pendingRequestIds = Sets.newHashSet(orphanedSpotInstanceRequests);
+          span.setAttribute("spot.request.count.found", pendingRequestIds.size());
+        }
 
         // Need to do a Spot instance request for any virtual instance ids not already associated
         // with an orphaned instance or Spot instance request. In the normal use case, this will
@@ -229,23 +254,40 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
         if (!virtualInstanceIdsNeedingSpotInstanceRequest.isEmpty()) {
 
           // Request Spot instances
-          Map<String, String> virtualInstanceIdToRequestIds = requestSpotInstances(virtualInstanceIds, accumulator);
+          Map<String, String> virtualInstanceIdToRequestIds;
+          try (Span span = Tracing.startSpan("request-spot-instances")) {
+            span.setAttribute("instance.count.requested",
+                virtualInstanceIdsNeedingSpotInstanceRequest.size());
+            virtualInstanceIdToRequestIds =
+                requestSpotInstances(virtualInstanceIdsNeedingSpotInstanceRequest, accumulator);
+          }
 
           // Tag Spot instance requests with virtual instance IDs
-          tagSpotInstanceRequests(virtualInstanceIdToRequestIds);
+          try (Span span = Tracing.startSpan("tag-spot-requests")) {
+            tagSpotInstanceRequests(virtualInstanceIdToRequestIds);
+          }
 
           // Combine the request ids of the reused orphaned requests and the new requests.
           pendingRequestIds.addAll(virtualInstanceIdToRequestIds.values());
         }
 
         // Wait for Spot requests to be processed
-        waitForSpotInstances(pendingRequestIds, false);
+        try (Span span = Tracing.startSpan("wait-for-spot-instances")) {
+          span.setAttribute("spot.request.count", pendingRequestIds.size());
+          waitForSpotInstances(pendingRequestIds, false);
+        }
 
         // Tag all the new instances so that we can easily find them later on.
-        tagSpotInstances(DateTime.now().plus(waitUntilStartedMillis));
+        try (Span span = Tracing.startSpan("tag-instances")) {
+          tagSpotInstances(DateTime.now().plus(waitUntilStartedMillis));
+        }
 
         // Wait until all of them have a private IP (it should be pretty fast)
-        Collection<String> terminatedInstanceIds = waitForPrivateIpAddresses();
+        Collection<String> terminatedInstanceIds;
+        try (Span span = Tracing.startSpan("wait-for-private-ip")) {
+          terminatedInstanceIds = waitForPrivateIpAddresses();
+          span.setAttribute("instance.count.terminated", terminatedInstanceIds.size());
+        }
 
         // Remove any instances that have been terminated from our internal record
         for (String terminatedInstanceId : terminatedInstanceIds) {
@@ -270,18 +312,22 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
           // will cause us to not find the instances we just allocated.
           Collection<String> allocatedVirtualInstances = getVirtualInstanceIdsAllocated();
           int numAllocatedInstances = allocatedVirtualInstances.size();
-          Collection<EC2Instance> foundInstances =
-              allocationHelper.find(template, allocatedVirtualInstances);
-          int numFoundInstances = foundInstances.size();
-          Stopwatch stopwatch = Stopwatch.createStarted();
-          while (numFoundInstances != numAllocatedInstances &&
-              stopwatch.elapsed(TimeUnit.MILLISECONDS) < waitUntilFindableMillis) {
-            LOG.info("Found {} Spot instances while expecting {}. Waiting for all Spot " +
-                    "instances to be findable",
-                numFoundInstances, numAllocatedInstances);
-            TimeUnit.SECONDS.sleep(5);
+          Collection<EC2Instance> foundInstances;
+          int numFoundInstances;
+          try (Span span = Tracing.startSpan("wait-until-findable")) {
+            span.setAttribute("instance.count", numAllocatedInstances);
             foundInstances = allocationHelper.find(template, allocatedVirtualInstances);
             numFoundInstances = foundInstances.size();
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            while (numFoundInstances != numAllocatedInstances &&
+                stopwatch.elapsed(TimeUnit.MILLISECONDS) < waitUntilFindableMillis) {
+              LOG.info("Found {} Spot instances while expecting {}. Waiting for all Spot " +
+                      "instances to be findable",
+                  numFoundInstances, numAllocatedInstances);
+              TimeUnit.SECONDS.sleep(5);
+              foundInstances = allocationHelper.find(template, allocatedVirtualInstances);
+              numFoundInstances = foundInstances.size();
+            }
           }
           if (numFoundInstances == numAllocatedInstances) {
             LOG.info("Found all {} allocated Spot instances.", numAllocatedInstances);
@@ -293,13 +339,16 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
           }
 
           success = true;
+          journal.recordAllocated(allocatedVirtualInstances);
           return foundInstances;
         }
       } finally {
-        try {
-          cancelSpotRequests(accumulator);
-        } finally {
-          terminateSpotInstances(success, accumulator);
+        try (Span span = Tracing.startSpan("cleanup")) {
+          try {
+            cancelSpotRequests(accumulator);
+          } finally {
+            terminateSpotInstances(success, accumulator);
+          }
         }
       }
     } catch (AmazonClientException e) {
@@ -340,8 +389,35 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
       throws InterruptedException {
 
     LOG.info(">> Checking for orphaned Spot instances");
+    Map<String, AllocationJournal.Record> journaled = journal.getRecords(virtualInstanceIds);
+    Map<String, Instance> orphanedInstances = Maps.newHashMap();
+
+    // Instances recorded in the journal are looked up by ID rather than by tag
+    Map<String, String> virtualInstanceIdsByEc2InstanceId = Maps.newHashMap();
+    for (AllocationJournal.Record record : journaled.values()) {
+      if (record.getEc2InstanceId() != null) {
+        virtualInstanceIdsByEc2InstanceId.put(record.getEc2InstanceId(),
+            record.getVirtualInstanceId());
+      }
+    }
+    if (!virtualInstanceIdsByEc2InstanceId.isEmpty()) {
+      for (Instance instance : allocationHelper
+          .findByEc2InstanceIds(virtualInstanceIdsByEc2InstanceId.keySet()).values()) {
+        orphanedInstances.put(virtualInstanceIdsByEc2InstanceId.get(instance.getInstanceId()),
+            instance);
+      }
+    }
+    Collection<String> unjournaledInstanceIds = getUnjournaledInstanceIds(journaled);
+    if (!unjournaledInstanceIds.isEmpty()) {
+      for (Map.Entry<String, Instance> virtualInstanceIdToInstance :
+          allocationHelper.doFind(template, unjournaledInstanceIds)) {
+        orphanedInstances.put(virtualInstanceIdToInstance.getKey(),
+            virtualInstanceIdToInstance.getValue());
+      }
+    }
+
     for (Map.Entry<String, Instance> virtualInstanceIdToInstance :
-        allocationHelper.doFind(template, virtualInstanceIds)) {
+        orphanedInstances.entrySet()) {
       String ec2InstanceId = virtualInstanceIdToInstance.getValue().getInstanceId();
       String virtualInstanceId = virtualInstanceIdToInstance.getKey();
       LOG.info(">> Found orphaned instance {} / {}; will reuse", ec2InstanceId, virtualInstanceId);
@@ -358,17 +434,48 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
    *
    * @return the reusable Spot instance requests orphaned by a previous call
    */
-  private Set<String> checkForOrphanedSpotInstanceRequests() {
+  @VisibleForTesting
+  Set<String> checkForOrphanedSpotInstanceRequests() {
 
     Set<String> orphanedSpotInstanceRequests = Sets.newHashSet();
 
     LOG.info(">> Checking for orphaned Spot instance requests");
+    Map<String, AllocationJournal.Record> journaled = journal.getRecords(virtualInstanceIds);
+
+    // Spot instance requests recorded in the journal are looked up by ID rather than by tag
+    Map<String, String> virtualInstanceIdsByRequestId = Maps.newHashMap();
+    for (AllocationJournal.Record record : journaled.values()) {
+      if (record.getSpotInstanceRequestId() != null) {
+        virtualInstanceIdsByRequestId.put(record.getSpotInstanceRequestId(),
+            record.getVirtualInstanceId());
+      }
+    }
+    for (List<String> requestIds
+        : Iterables.partition(virtualInstanceIdsByRequestId.keySet(), MAX_FILTER_VALUES)) {
+      DescribeSpotInstanceRequestsResult describeSpotInstanceRequestsResult =
+          ec2Client.describeSpotInstanceRequests(
+              new DescribeSpotInstanceRequestsRequest().withFilters(
+                  new Filter()
+                      .withName("spot-instance-request-id")
+                      .withValues(requestIds)));
+      for (SpotInstanceRequest existingSpotInstanceRequest :
+          describeSpotInstanceRequestsResult.getSpotInstanceRequests()) {
+        reuseOrphanedSpotInstanceRequest(existingSpotInstanceRequest,
+            virtualInstanceIdsByRequestId.get(
+                existingSpotInstanceRequest.getSpotInstanceRequestId()));
+      }
+    }
+
+    Collection<String> unjournaledInstanceIds = getUnjournaledInstanceIds(journaled);
+    if (unjournaledInstanceIds.isEmpty()) {
+      return orphanedSpotInstanceRequests;
+    }
     String idTagName = ec2TagHelper.getClouderaDirectorIdTagName();
     DescribeSpotInstanceRequestsRequest describeSpotInstanceRequestsRequest =
         new DescribeSpotInstanceRequestsRequest().withFilters(
             new Filter()
                 .withName("tag:" + idTagName)
-                .withValues(virtualInstanceIds));
+                .withValues(unjournaledInstanceIds));
     DescribeSpotInstanceRequestsResult describeSpotInstanceRequestsResult =
         ec2Client.describeSpotInstanceRequests(describeSpotInstanceRequestsRequest);
     for (SpotInstanceRequest existingSpotInstanceRequest :
@@ -384,37 +491,64 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
         LOG.warn(">> Orphaned Spot instance request {} has no virtual instance id",
             spotInstanceRequestId);
       } else {
-        SpotAllocationRecord spotAllocationRecord = getSpotAllocationRecord(virtualInstanceId);
-        SpotInstanceState spotInstanceState =
-            SpotInstanceState.fromValue(existingSpotInstanceRequest.getState());
-        switch (spotInstanceState) {
-          case Active:
-            spotAllocationRecord.spotInstanceRequestId = spotInstanceRequestId;
-            String ec2InstanceId = existingSpotInstanceRequest.getInstanceId();
-            LOG.info(">> Reusing fulfilled orphaned Spot instance request {} / {} / {}",
-                spotInstanceRequestId, virtualInstanceId, ec2InstanceId);
-            if (spotAllocationRecord.ec2InstanceId == null) {
-              spotAllocationRecord.ec2InstanceId = ec2InstanceId;
-            }
-            break;
-          case Cancelled:
-          case Closed:
-          case Failed:
-            break;
-          default:
-            if (existingSpotInstanceRequest.getValidUntil().getTime() > System.currentTimeMillis()) {
-              LOG.info(">> Reusing pending orphaned Spot instance request {} / {}",
-                  spotInstanceRequestId, virtualInstanceId);
-              spotAllocationRecord.spotInstanceRequestId = spotInstanceRequestId;
-            }
-            break;
-        }
+        reuseOrphanedSpotInstanceRequest(existingSpotInstanceRequest, virtualInstanceId);
       }
     }
 
     return orphanedSpotInstanceRequests;
   }
 
+  /**
+   * Reuses a Spot instance request orphaned by a previous call, if it is fulfilled or may still
+   * be fulfilled.
+   *
+   * @param existingSpotInstanceRequest the orphaned Spot instance request
+   * @param virtualInstanceId           the virtual instance ID of the request
+   */
+  private void reuseOrphanedSpotInstanceRequest(SpotInstanceRequest existingSpotInstanceRequest,
+      String virtualInstanceId) {
+    String spotInstanceRequestId = existingSpotInstanceRequest.getSpotInstanceRequestId();
+    SpotAllocationRecord spotAllocationRecord = getSpotAllocationRecord(virtualInstanceId);
+    SpotInstanceState spotInstanceState =
+        SpotInstanceState.fromValue(existingSpotInstanceRequest.getState());
+    switch (spotInstanceState) {
+      case Active:
+        spotAllocationRecord.spotInstanceRequestId = spotInstanceRequestId;
+        String ec2InstanceId = existingSpotInstanceRequest.getInstanceId();
+        LOG.info(">> Reusing fulfilled orphaned Spot instance request {} / {} / {}",
+            spotInstanceRequestId, virtualInstanceId, ec2InstanceId);
+        if (spotAllocationRecord.ec2InstanceId == null) {
+          spotAllocationRecord.ec2InstanceId = ec2InstanceId;
+        }
+        break;
+      case Cancelled:
+      case Closed:
+      case Failed:
+        break;
+      default:
+        if (existingSpotInstanceRequest.getValidUntil().getTime() > System.currentTimeMillis()) {
+          LOG.info(">> Reusing pending orphaned Spot instance request {} / {}",
+              spotInstanceRequestId, virtualInstanceId);
+          spotAllocationRecord.spotInstanceRequestId = spotInstanceRequestId;
+        }
+        break;
+    }
+  }
+
+  /**
+   * Returns the virtual instance IDs without a record in the allocation journal, which must
+   * still be looked up by tag.
+   *
+   * @param journaled the journal records of the virtual instances
+   * @return the virtual instance IDs without a journal record
+   */
+  private Collection<String> getUnjournaledInstanceIds(
+      Map<String, AllocationJournal.Record> journaled) {
+    return journaled.isEmpty()
+        ? virtualInstanceIds
+        : Sets.difference(Sets.newHashSet(virtualInstanceIds), journaled.keySet());
+  }
+
   /**
    * Determines which virtual instance IDs require a Spot instance request.
    *
@@ -438,12 +572,63 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
     return result;
   }
 
+  /**
+   * Returns the client tokens of the Spot instance requests for the specified virtual
+   * instances. A virtual instance whose Spot instance request was sent, but never recorded,
+   * typically because Director stopped in the meantime, reuses the client token of that
+   * request, so that EC2 returns the request instead of opening another one.
+   *
+   * @param virtualInstanceIds the virtual instance IDs
+   * @return the client tokens, by virtual instance ID
+   */
+  private Map<String, String> getClientTokens(Collection<String> virtualInstanceIds) {
+    Map<String, AllocationJournal.Record> journaled = journal.getRecords(virtualInstanceIds);
+    Map<String, String> clientTokens = Maps.newHashMapWithExpectedSize(virtualInstanceIds.size());
+    for (String virtualInstanceId : virtualInstanceIds) {
+      AllocationJournal.Record record = journaled.get(virtualInstanceId);
+      if (record != null && record.isLaunchPending()
+          && record.getSpotInstanceRequestId() == null
+          && getValidUntil(record.getClientToken()) != null) {
+        LOG.info(">> Resending Spot instance request for {} with client token {}",
+            virtualInstanceId, record.getClientToken());
+        clientTokens.put(virtualInstanceId, record.getClientToken());
+      } else {
+        long validUntil = requestExpirationTime.getTime();
+        clientTokens.put(virtualInstanceId, determineClientToken(virtualInstanceId, validUntil)
+            + CLIENT_TOKEN_SEPARATOR + validUntil);
+      }
+    }
+    return clientTokens;
+  }
+
+  /**
+   * Returns the expiration time of the Spot instance request with the specified client token.
+   *
+   * @param clientToken the client token
+   * @return the expiration time of the request, or {@code null} if the client token was not
+   * generated for a Spot instance request
+   */
+  private static Date getValidUntil(String clientToken) {
+    int separator = clientToken.lastIndexOf(CLIENT_TOKEN_SEPARATOR);
+    if (separator < 0) {
+      return null;
+    }
+    try {
+      return new Date(Long.parseLong(clientToken.substring(separator + 1)));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
   /**
    * Builds a {@code RequestSpotInstancesRequest}.
    *
+   * @param virtualInstanceId the virtual instance ID
+   * @param clientToken       the client token of the request
    * @return the {@code RequestSpotInstancesRequest}
    */
-  private RequestSpotInstancesRequest newRequestSpotInstanceRequest(String virtualInstanceId) {
+  private RequestSpotInstancesRequest newRequestSpotInstanceRequest(String virtualInstanceId,
+      String clientToken) {
 
     String image = template.getImage();
     String type = template.getType();
@@ -491,8 +676,8 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
     RequestSpotInstancesRequest request = new RequestSpotInstancesRequest()
         .withLaunchSpecification(launchSpecification)
         .withInstanceCount(1)
-        .withClientToken(determineClientToken(virtualInstanceId, requestExpirationTime.getTime()))
-        .withValidUntil(requestExpirationTime);
+        .withClientToken(clientToken)
+        .withValidUntil(getValidUntil(clientToken));
     if (template.getSpotPriceUSDPerHour().isPresent()) {
       request = request.withSpotPrice(template.getSpotPriceUSDPerHour().get().toString());
     }
@@ -512,19 +697,27 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
    * @param accumulator        plugin exception condition accumulator
    * @return a map of virtual instance ID to spot instance request ID
    */
-  private Map<String, String> requestSpotInstances(
+  @VisibleForTesting
+  Map<String, String> requestSpotInstances(
       Collection<String> virtualInstanceIds,
       PluginExceptionConditionAccumulator accumulator)
       throws InterruptedException {
 
     LOG.info(">> Requesting Spot instances");
 
-    Map<String, Future<RequestSpotInstancesResult>> spotResults = Maps.toMap(
+    Map<String, String> clientTokens = getClientTokens(virtualInstanceIds);
+    // The tokens must be durable before the requests are sent, to resume them later
+    journal.recordClientTokens(clientTokens);
+    Map<String, CompletableFuture<RequestSpotInstancesResult>> spotResults = Maps.toMap(
         virtualInstanceIds,
-        virtualInstanceId -> ec2Client.requestSpotInstancesAsync(newRequestSpotInstanceRequest(virtualInstanceId)));
+        virtualInstanceId -> CompletableFutures.call(ec2Client::requestSpotInstancesAsync,
+            newRequestSpotInstanceRequest(virtualInstanceId, clientTokens.get(virtualInstanceId))));
+
+    // Wait once for all the requests to settle, instead of blocking on each in turn
+    CompletableFutures.join(CompletableFutures.allSettled(spotResults.values()));
 
     Map<String, String> virtualInstanceIdToRequestIds = Maps.newHashMapWithExpectedSize(virtualInstanceIds.size());
-    for (Map.Entry<String, Future<RequestSpotInstancesResult>> spotResult : spotResults.entrySet()) {
+    for (Map.Entry<String, CompletableFuture<RequestSpotInstancesResult>> spotResult : spotResults.entrySet()) {
       try {
         RequestSpotInstancesResult requestSpotInstancesResult = spotResult.getValue().get();
         SpotInstanceRequest requestResponse = getOnlyElement(requestSpotInstancesResult.getSpotInstanceRequests());
@@ -560,6 +753,9 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
     int lostInstances = virtualInstanceIds.size() - virtualInstanceIdToRequestIds.size();
     if (lostInstances > 0) {
       LOG.warn("Lost {} spot requests.", lostInstances);
+      // A rejected request is not resumed, so that its token is not rejected again
+      journal.recordReleased(Sets.difference(
+          Sets.newHashSet(virtualInstanceIds), virtualInstanceIdToRequestIds.keySet()));
     }
 
     return virtualInstanceIdToRequestIds;
@@ -576,6 +772,7 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
       throws InterruptedException {
     // Pre-compute user-defined tags for efficiency
     List<Tag> userDefinedTags = ec2TagHelper.getUserDefinedTags(template);
+    journal.recordSpotInstanceRequests(virtualInstanceIdToRequestIds);
     for (Map.Entry<String, String> entry : virtualInstanceIdToRequestIds.entrySet()) {
       String virtualInstanceId = entry.getKey();
       String spotInstanceRequestId = entry.getValue();
@@ -744,14 +941,18 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
     // Pre-compute user-defined tags for efficiency
     List<Tag> userDefinedTags = ec2TagHelper.getUserDefinedTags(template);
 
+    Map<String, String> taggedInstanceIds = Maps.newHashMap();
     for (SpotAllocationRecord spotAllocationRecord :
         spotAllocationRecordsByVirtualInstanceId.values()) {
       if ((spotAllocationRecord.ec2InstanceId != null) && !spotAllocationRecord.instanceTagged &&
           tagInstance(template, userDefinedTags, spotAllocationRecord.virtualInstanceId,
               spotAllocationRecord.ec2InstanceId, timeout)) {
         spotAllocationRecord.instanceTagged = true;
+        taggedInstanceIds.put(spotAllocationRecord.virtualInstanceId,
+            spotAllocationRecord.ec2InstanceId);
       }
     }
+    journal.recordInstances(taggedInstanceIds);
   }
 
 
@@ -832,17 +1033,21 @@ public class SpotGroupAllocator extends AbstractInstanceAllocator {
 
     if (!ec2InstanceIds.isEmpty()) {
       LOG.info(">> Terminating Spot instances {}", ec2InstanceIds);
-      TerminateInstancesResult terminateResult;
+      InstanceTerminator.Result terminateResult;
       try {
-        terminateResult = ec2Client.terminateInstances(
-            new TerminateInstancesRequest().withInstanceIds(ec2InstanceIds));
-        LOG.info("<< Result {}", terminateResult);
-      } catch (AmazonClientException e) {
-        throw AWSExceptions.propagate(stsClient, e);
-      } catch (Exception e) {
+        terminateResult = new InstanceTerminator(ec2Client, waitUntilFindableMillis)
+            .terminate(ec2InstanceIds);
+      } catch (RuntimeException e) {
+        terminateResult = null;
         accumulator.addError(null, "Problem terminating Spot instances: "
             + getErrorMessage(e));
       }
+      if (terminateResult != null && terminateResult.getFailure() != null) {
+        throw AWSExceptions.propagate(stsClient, terminateResult.getFailure());
+      }
+    }
+    if (!success) {
+      journal.recordReleased(virtualInstanceIds);
     }
   }
 
@@ -20,23 +20,28 @@ import static java.util.Objects.requireNonNull;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
-import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.amazonaws.services.ec2.model.AttachVolumeRequest;
 import com.amazonaws.services.ec2.model.CreateTagsRequest;
 import com.amazonaws.services.ec2.model.CreateVolumeRequest;
 import com.amazonaws.services.ec2.model.CreateVolumeResult;
 import com.amazonaws.services.ec2.model.DeleteVolumeRequest;
-import com.amazonaws.services.ec2.model.DescribeInstanceAttributeRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.amazonaws.services.ec2.model.DescribeInstancesResult;
 import com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
 import com.amazonaws.services.ec2.model.DescribeSubnetsResult;
 import com.amazonaws.services.ec2.model.DescribeVolumesRequest;
 import com.amazonaws.services.ec2.model.DescribeVolumesResult;
 import com.amazonaws.services.ec2.model.DetachVolumeRequest;
+import com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
 import com.amazonaws.services.ec2.model.EbsInstanceBlockDeviceSpecification;
-import com.amazonaws.services.ec2.model.InstanceAttributeName;
+import com.amazonaws.services.ec2.model.Filter;
+import com.amazonaws.services.ec2.model.Instance;
 import com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
 import com.amazonaws.services.ec2.model.InstanceBlockDeviceMappingSpecification;
 import com.amazonaws.services.ec2.model.ModifyInstanceAttributeRequest;
+import com.amazonaws.services.ec2.model.ModifyInstanceAttributeResult;
+import com.amazonaws.services.ec2.model.Reservation;
 import com.amazonaws.services.ec2.model.ResourceType;
 import com.amazonaws.services.ec2.model.Subnet;
 import com.amazonaws.services.ec2.model.Tag;
@@ -48,8 +53,12 @@ import com.amazonaws.services.ec2.model.VolumeState;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSExceptions;
 import com.cloudera.director.aws.AWSTimeouts;
+import com.cloudera.director.aws.common.CompletableFutures;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.EC2TagHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.github.rholder.retry.RetryException;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
@@ -66,8 +75,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
@@ -98,13 +112,29 @@ public class EBSAllocator {
 
   private static final long DEFAULT_TIMEOUT_SECONDS = 180L;
 
+  /**
+   * The maximum number of values in a single describe filter.
+   */
+  @VisibleForTesting
+  static final int MAX_FILTER_VALUES = 200;
+
+  /**
+   * The maximum number of results per page of a describe call.
+   */
+  private static final int MAX_DESCRIBE_RESULTS = 1000;
+
+  /**
+   * The maximum number of modify instance attribute calls in flight at a time.
+   */
+  private static final int MAX_CONCURRENT_MODIFICATIONS = 10;
+
   @VisibleForTesting
   static final String DEVICE_NAME_START_PREFIX = "/dev/sd";
 
   @VisibleForTesting
   static final char DEVICE_NAME_START_CHAR = 'f';
 
-  private final AmazonEC2Client ec2Client;
+  private final AmazonEC2AsyncClient ec2Client;
   private final AWSSecurityTokenServiceAsyncClient stsClient;
   private final long availableTimeoutSeconds;
   private final long attachTimeoutSeconds;
@@ -114,6 +144,13 @@ public class EBSAllocator {
   private final Set<String> excludeDeviceNames;
   private final boolean useTagOnCreate;
 
+  /**
+   * The availability zones of subnets, which are looked up once per allocator rather than once
+   * per instance.
+   */
+  private final ConcurrentMap<String, String> availabilityZonesBySubnetId =
+      new ConcurrentHashMap<>();
+
   /**
    * Constructs a new EBS allocator instance.
    *
@@ -124,7 +161,7 @@ public class EBSAllocator {
    * @param ebsDeviceMappings  helper object to retrieve device mappings
    * @param excludeDeviceNames set of device names that should be excluded when attaching the volumes
    */
-  public EBSAllocator(AmazonEC2Client ec2Client, AWSSecurityTokenServiceAsyncClient stsClient, AWSTimeouts awsTimeouts,
+  public EBSAllocator(AmazonEC2AsyncClient ec2Client, AWSSecurityTokenServiceAsyncClient stsClient, AWSTimeouts awsTimeouts,
       EC2TagHelper ec2TagHelper, EBSDeviceMappings ebsDeviceMappings,
       Set<String> excludeDeviceNames, boolean useTagOnCreate) {
     checkNotNull(awsTimeouts, "awsTimeouts is null");
@@ -221,14 +258,10 @@ public class EBSAllocator {
    *                                   instance id and the value is the ec2 instance id
    * @return a list of InstanceEbsVolumes
    */
-  @SuppressWarnings("Guava")
   public List<InstanceEbsVolumes> createVolumes(EC2InstanceTemplate template,
       Map<String, String> ec2InstanceIdsByInstanceId) {
-    Optional<String> templateAvailabilityZone = template.getAvailabilityZone();
-
-    String availabilityZone = templateAvailabilityZone.isPresent() ?
-        templateAvailabilityZone.get() :
-        getAvailabilityZoneFromSubnetId(template.getSubnetId());
+    Map<String, String> availabilityZones =
+        getAvailabilityZones(template, ec2InstanceIdsByInstanceId.values());
 
     int volumesPerInstance = template.getEbsVolumeCount();
 
@@ -244,6 +277,7 @@ public class EBSAllocator {
     for (Map.Entry<String, String> entry : ec2InstanceIdsByInstanceId.entrySet()) {
       String instanceId = entry.getKey();
       String ec2InstanceId = entry.getValue();
+      String availabilityZone = availabilityZones.get(ec2InstanceId);
 
       Map<String, VolumeState> volumes = Maps.newHashMap();
 
@@ -294,6 +328,46 @@ public class EBSAllocator {
     return instanceEbsVolumesList;
   }
 
+  /**
+   * Creates, attaches and optionally tags the EBS volumes of a single instance. This runs the
+   * same steps as {@link #createVolumes}, {@link #waitUntilVolumesAvailable} and
+   * {@link #attachAndOptionallyTagVolumes}, but only waits on the volumes of this instance, so
+   * that the volumes of several instances can be allocated concurrently without a slow volume
+   * holding up the others. The volumes are not marked to be deleted on termination, which is
+   * left to {@link #addDeleteOnTerminationFlag} once the volumes of all instances are attached,
+   * so that it takes batched rather than per instance describe calls.
+   *
+   * @param template      the instance template
+   * @param instanceId    the Director instance id
+   * @param ec2InstanceId the EC2 instance id
+   * @param progress      a consumer notified of the volumes of the instance after each step,
+   *                      so that volumes can be cleaned up if allocation is abandoned midway
+   * @param poller        the poller shared by the instances whose volumes are allocated
+   *                      concurrently, which waits for the volumes to become available
+   * @return the volumes of the instance, which are all InUse on success
+   * @throws InterruptedException if the operation is interrupted
+   */
+  public InstanceEbsVolumes allocateVolumes(EC2InstanceTemplate template, String instanceId,
+      String ec2InstanceId, Consumer<InstanceEbsVolumes> progress,
+      VolumeAvailabilityPoller poller) throws InterruptedException {
+
+    List<InstanceEbsVolumes> instanceVolumes;
+    try (Span span = Tracing.startSpan("ebs-create")) {
+      instanceVolumes =
+          createVolumes(template, Collections.singletonMap(instanceId, ec2InstanceId));
+    }
+    progress.accept(Iterables.getOnlyElement(instanceVolumes));
+
+    try (Span span = Tracing.startSpan("ebs-wait-available")) {
+      instanceVolumes = waitUntilVolumesAvailable(instanceVolumes, poller);
+    }
+    progress.accept(Iterables.getOnlyElement(instanceVolumes));
+    try (Span span = Tracing.startSpan("ebs-attach")) {
+      instanceVolumes = attachAndOptionallyTagVolumes(template, instanceVolumes);
+    }
+    return Iterables.getOnlyElement(instanceVolumes);
+  }
+
   /**
    * Returns all volumes from a list of instance EBS volumes that have the specified status.
    */
@@ -396,8 +470,66 @@ public class EBSAllocator {
       LOG.info("Skipping wait for availability because no EBS volumes were created");
     }
 
-    // Update the status of each volume to Available or Error based on the result
+    return withAvailability(createdInstanceVolumes, volumesAvailable);
+  }
+
+  /**
+   * Creates a poller that waits for newly created volumes to become available, and that can
+   * be shared by the instances whose volumes are allocated concurrently with
+   * {@link #allocateVolumes}.
+   *
+   * @return a new volume availability poller
+   */
+  public VolumeAvailabilityPoller newVolumeAvailabilityPoller() {
+    return new VolumeAvailabilityPoller((volumeIds) -> {
+      try {
+        return describeVolumes(volumeIds);
+      } catch (AmazonServiceException e) {
+        throw AWSExceptions.propagate(stsClient, e);
+      }
+    }, WAIT_UNTIL_AVAILABLE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Waits for the volumes in a list of {@code InstanceEbsVolumes} to reach an available state,
+   * as {@link #waitUntilVolumesAvailable(List)} does, but checks them through a poller shared
+   * with other instances.
+   */
+  private List<InstanceEbsVolumes> waitUntilVolumesAvailable(
+      List<InstanceEbsVolumes> createdInstanceVolumes, VolumeAvailabilityPoller poller)
+      throws InterruptedException {
+
+    Set<String> volumesToCheck = getAllVolumeIdsWithState(createdInstanceVolumes, VolumeState.Creating);
+    Set<String> volumesAvailable = Sets.newHashSetWithExpectedSize(volumesToCheck.size());
+
+    if (!volumesToCheck.isEmpty()) {
+      LOG.info("Waiting for a maximum of {} seconds for volumes to become available",
+          availableTimeoutSeconds);
+      Map<String, VolumeState> finalStates = poller.awaitFinalStates(volumesToCheck,
+          TimeUnit.SECONDS.toMillis(availableTimeoutSeconds));
+      finalStates.forEach((volumeId, state) -> {
+        if (state == VolumeState.Available) {
+          volumesAvailable.add(volumeId);
+        }
+      });
+
+      if (finalStates.size() < volumesToCheck.size()) {
+        LOG.error("Timed out while waiting for volumes to be created, {} out of {} volumes became available",
+            volumesAvailable.size(), volumesToCheck.size());
+      }
+    } else {
+      LOG.info("Skipping wait for availability because no EBS volumes were created");
+    }
+
+    return withAvailability(createdInstanceVolumes, volumesAvailable);
+  }
 
+  /**
+   * Updates the status of each volume to Available or Error based on whether it became
+   * available.
+   */
+  private static List<InstanceEbsVolumes> withAvailability(
+      List<InstanceEbsVolumes> createdInstanceVolumes, Set<String> volumesAvailable) {
     List<InstanceEbsVolumes> updated = Lists.newArrayList();
     for (InstanceEbsVolumes instanceEbsVolumes : createdInstanceVolumes) {
       Map<String, VolumeState> updatedVolumes = Maps.newHashMap();
@@ -498,6 +630,51 @@ public class EBSAllocator {
     return updated;
   }
 
+  /**
+   * Deletes the volumes that allocation journal records list as created, but not yet attached
+   * and deleted on termination. Volumes that no longer exist, or are already being deleted, are
+   * skipped, and failures are logged rather than propagated.
+   *
+   * @param records the allocation journal records of the instances
+   * @throws InterruptedException if the operation is interrupted
+   */
+  public void deleteIncompleteVolumes(Collection<AllocationJournal.Record> records)
+      throws InterruptedException {
+    List<InstanceEbsVolumes> incompleteVolumes = Lists.newArrayList();
+    for (AllocationJournal.Record record : records) {
+      if (record.hasIncompleteVolumes()) {
+        Map<String, VolumeState> volumeStates = Maps.newHashMap();
+        for (String volumeId : record.getVolumeIds()) {
+          volumeStates.put(volumeId, VolumeState.Creating);
+        }
+        incompleteVolumes.add(new InstanceEbsVolumes(record.getVirtualInstanceId(),
+            record.getEc2InstanceId(), volumeStates));
+      }
+    }
+    if (incompleteVolumes.isEmpty()) {
+      return;
+    }
+
+    LOG.info(">> Deleting incomplete EBS volumes of {} instance(s)", incompleteVolumes.size());
+    Map<String, VolumeState> volumesToDelete = Maps.newHashMap();
+    try {
+      for (InstanceEbsVolumes instanceEbsVolumes : getUpdatedVolumeInfo(incompleteVolumes)) {
+        for (Map.Entry<String, VolumeState> volumeIdAndState
+            : instanceEbsVolumes.getVolumeStates().entrySet()) {
+          VolumeState state = volumeIdAndState.getValue();
+          // Volumes that no longer exist are reported in the Error state
+          if (state != VolumeState.Error && state != VolumeState.Deleting
+              && state != VolumeState.Deleted) {
+            volumesToDelete.put(volumeIdAndState.getKey(), state);
+          }
+        }
+      }
+      deleteVolumes(volumesToDelete);
+    } catch (RuntimeException e) {
+      LOG.error("Error while deleting incomplete EBS volumes {}", volumesToDelete.keySet(), e);
+    }
+  }
+
   /**
    * Deletes a specified collection of volumes.
    *
@@ -585,87 +762,108 @@ public class EBSAllocator {
    * Adds a delete on termination flag to all volumes in an {@code InstanceEbsVolumes} list
    * that are attached to a Director managed instance. This makes sure that the volumes associated with the
    * instance will be automatically cleaned up upon instance termination.
+   * <p>
+   * The block device mappings of all instances are read with batched describe instances calls,
+   * and each instance is then modified once for all of its volumes that are not yet flagged,
+   * with a bounded number of modifications in flight.
    *
    * @param instanceEbsVolumesList list of instances along with their associated volumes
    */
   public void addDeleteOnTerminationFlag(List<InstanceEbsVolumes> instanceEbsVolumesList) throws Exception {
-    DateTime timeout = DateTime.now().plusSeconds((int) availableTimeoutSeconds);
-    for (final InstanceEbsVolumes instanceEbsVolumes : instanceEbsVolumesList) {
-      Callable<Void> task = () -> {
-        String ec2InstanceId = instanceEbsVolumes.getEc2InstanceId();
-        Set<String> managedVolumes = instanceEbsVolumes.getVolumeStates().keySet();
-
-        DescribeInstanceAttributeRequest instanceAttributeRequest = new DescribeInstanceAttributeRequest()
-            .withAttribute(InstanceAttributeName.BlockDeviceMapping)
-            .withInstanceId(ec2InstanceId);
+    Map<String, Set<String>> managedVolumeIdsByEc2InstanceId = Maps.newHashMap();
+    for (InstanceEbsVolumes instanceEbsVolumes : instanceEbsVolumesList) {
+      Set<String> createdVolumeIds = getCreatedVolumeIds(instanceEbsVolumes);
+      if (!createdVolumeIds.isEmpty()) {
+        managedVolumeIdsByEc2InstanceId.put(instanceEbsVolumes.getEc2InstanceId(), createdVolumeIds);
+      }
+    }
+    if (managedVolumeIdsByEc2InstanceId.isEmpty()) {
+      return;
+    }
 
-        List<InstanceBlockDeviceMapping> blockDeviceMappings =
-            ec2Client.describeInstanceAttribute(instanceAttributeRequest)
-                .getInstanceAttribute()
-                .getBlockDeviceMappings();
+    DateTime timeout = DateTime.now().plusSeconds((int) availableTimeoutSeconds);
+    Callable<Void> task = () -> {
+      List<ModifyInstanceAttributeRequest> modifyRequests = Lists.newArrayList();
+      for (Instance instance : describeInstances(managedVolumeIdsByEc2InstanceId.keySet())) {
+        Set<String> managedVolumes = managedVolumeIdsByEc2InstanceId.get(instance.getInstanceId());
+        List<InstanceBlockDeviceMappingSpecification> updatedSpecs = Lists.newArrayList();
 
-        for (InstanceBlockDeviceMapping blockDeviceMapping : blockDeviceMappings) {
-          String volumeId = blockDeviceMapping.getEbs().getVolumeId();
+        for (InstanceBlockDeviceMapping blockDeviceMapping : instance.getBlockDeviceMappings()) {
+          EbsInstanceBlockDevice ebs = blockDeviceMapping.getEbs();
 
           // The block device mapping may have volumes associated with it that were not
           // provisioned by us. We skip marking those volumes for deletion.
 
-          if (!managedVolumes.contains(volumeId)) {
+          if (ebs == null || !managedVolumes.contains(ebs.getVolumeId())
+              || Boolean.TRUE.equals(ebs.getDeleteOnTermination())) {
             continue;
           }
 
-          InstanceBlockDeviceMappingSpecification updatedSpec = new InstanceBlockDeviceMappingSpecification()
+          updatedSpecs.add(new InstanceBlockDeviceMappingSpecification()
               .withEbs(
                   new EbsInstanceBlockDeviceSpecification()
                       .withDeleteOnTermination(true)
-                      .withVolumeId(volumeId)
+                      .withVolumeId(ebs.getVolumeId())
               )
-              .withDeviceName(blockDeviceMapping.getDeviceName());
+              .withDeviceName(blockDeviceMapping.getDeviceName()));
+        }
 
-          ModifyInstanceAttributeRequest modifyRequest = new ModifyInstanceAttributeRequest()
-              .withBlockDeviceMappings(updatedSpec)
-              .withInstanceId(ec2InstanceId);
+        if (!updatedSpecs.isEmpty()) {
+          modifyRequests.add(new ModifyInstanceAttributeRequest()
+              .withBlockDeviceMappings(updatedSpecs)
+              .withInstanceId(instance.getInstanceId()));
+        }
+      }
 
-          try {
-            ec2Client.modifyInstanceAttribute(modifyRequest);
-          } catch (AmazonClientException e) {
-            LOG.error("Volume {} failed to attach.", volumeId);
-          }
+      List<CompletableFuture<ModifyInstanceAttributeResult>> modifications =
+          CompletableFutures.callAll(ec2Client::modifyInstanceAttributeAsync, modifyRequests,
+              MAX_CONCURRENT_MODIFICATIONS);
+      CompletableFutures.join(CompletableFutures.allSettled(modifications));
+
+      for (int i = 0; i < modifyRequests.size(); i++) {
+        if (modifications.get(i).isCompletedExceptionally()) {
+          ModifyInstanceAttributeRequest modifyRequest = modifyRequests.get(i);
+          LOG.error("Failed to set delete on termination for volumes {} of instance {}.",
+              modifyRequest.getBlockDeviceMappings().stream()
+                  .map((spec) -> spec.getEbs().getVolumeId())
+                  .collect(Collectors.toList()),
+              modifyRequest.getInstanceId());
         }
+      }
 
-        return null;
-      };
+      return null;
+    };
 
-      retryUntil(task, timeout);
-    }
+    retryUntil(task, timeout);
   }
 
   /**
-   * Returns the updated volume info for the given volumes.
+   * Returns the updated volume info for the given volumes. The states of all volumes are read
+   * with batched, paginated describe volumes calls.
    *
    * @param instanceEbsVolumesList the list of instance EBS volumes to query
    * @return an updated list of instance EBS volumes
    */
   public List<InstanceEbsVolumes> getUpdatedVolumeInfo(List<InstanceEbsVolumes> instanceEbsVolumesList) {
+    Set<String> createdVolumeIds = Sets.newHashSet();
+    for (InstanceEbsVolumes instanceEbsVolumes : instanceEbsVolumesList) {
+      createdVolumeIds.addAll(getCreatedVolumeIds(instanceEbsVolumes));
+    }
+
+    Map<String, VolumeState> allVolumeStatuses = Maps.newHashMap();
+    for (Volume volume : describeVolumes(createdVolumeIds)) {
+      allVolumeStatuses.put(volume.getVolumeId(), VolumeState.fromValue(volume.getState()));
+    }
+
     List<InstanceEbsVolumes> updatedInstanceEbsVolumesList =
         Lists.newArrayListWithExpectedSize(instanceEbsVolumesList.size());
 
     for (InstanceEbsVolumes instanceEbsVolumes : instanceEbsVolumesList) {
       Map<String, VolumeState> volumeStatuses = Maps.newHashMap();
-      Set<String> volumeIds = instanceEbsVolumes.getVolumeStates().keySet();
-      DescribeVolumesRequest describeVolumesRequest = new DescribeVolumesRequest()
-          .withVolumeIds(volumeIds);
-
-      for (Volume volume : ec2Client.describeVolumes(describeVolumesRequest).getVolumes()) {
-        volumeStatuses.put(volume.getVolumeId(), VolumeState.fromValue(volume.getState()));
-      }
-
-      // If we've lost any volume IDs, add them in but label them as Error.
-      Set<String> missingVolumeIds = Sets.difference(volumeIds, volumeStatuses.keySet());
-      if (!missingVolumeIds.isEmpty()) {
-        for (String volumeId : missingVolumeIds) {
-          volumeStatuses.put(volumeId, VolumeState.Error);
-        }
+      for (String volumeId : instanceEbsVolumes.getVolumeStates().keySet()) {
+        // If we've lost any volume IDs, add them in but label them as Error.
+        volumeStatuses.put(volumeId,
+            allVolumeStatuses.getOrDefault(volumeId, VolumeState.Error));
       }
 
       updatedInstanceEbsVolumesList.add(new InstanceEbsVolumes(instanceEbsVolumes.getInstanceId(),
@@ -675,6 +873,64 @@ public class EBSAllocator {
     return updatedInstanceEbsVolumesList;
   }
 
+  /**
+   * Returns the ids of the volumes of an instance that were actually created.
+   */
+  private static Set<String> getCreatedVolumeIds(InstanceEbsVolumes instanceEbsVolumes) {
+    return Sets.newHashSet(Sets.filter(instanceEbsVolumes.getVolumeStates().keySet(),
+        (volumeId) -> !volumeId.startsWith(InstanceEbsVolumes.UNCREATED_VOLUME_ID)));
+  }
+
+  /**
+   * Describes the specified volumes, filtering by volume id in batches and following
+   * pagination. Volumes that no longer exist are omitted rather than failing the call.
+   *
+   * @param volumeIds the volume ids
+   * @return the volumes
+   */
+  private List<Volume> describeVolumes(Collection<String> volumeIds) {
+    List<Volume> volumes = Lists.newArrayListWithExpectedSize(volumeIds.size());
+    for (List<String> batch : Iterables.partition(volumeIds, MAX_FILTER_VALUES)) {
+      DescribeVolumesRequest request = new DescribeVolumesRequest()
+          .withFilters(new Filter("volume-id", batch))
+          .withMaxResults(MAX_DESCRIBE_RESULTS);
+      String nextToken;
+      do {
+        DescribeVolumesResult result = ec2Client.describeVolumes(request);
+        volumes.addAll(result.getVolumes());
+        nextToken = result.getNextToken();
+        request.setNextToken(nextToken);
+      } while (nextToken != null);
+    }
+    return volumes;
+  }
+
+  /**
+   * Describes the specified instances, filtering by instance id in batches and following
+   * pagination.
+   *
+   * @param ec2InstanceIds the EC2 instance ids
+   * @return the instances
+   */
+  private List<Instance> describeInstances(Collection<String> ec2InstanceIds) {
+    List<Instance> instances = Lists.newArrayListWithExpectedSize(ec2InstanceIds.size());
+    for (List<String> batch : Iterables.partition(ec2InstanceIds, MAX_FILTER_VALUES)) {
+      DescribeInstancesRequest request = new DescribeInstancesRequest()
+          .withFilters(new Filter("instance-id", batch))
+          .withMaxResults(MAX_DESCRIBE_RESULTS);
+      String nextToken;
+      do {
+        DescribeInstancesResult result = ec2Client.describeInstances(request);
+        for (Reservation reservation : result.getReservations()) {
+          instances.addAll(reservation.getInstances());
+        }
+        nextToken = result.getNextToken();
+        request.setNextToken(nextToken);
+      } while (nextToken != null);
+    }
+    return instances;
+  }
+
   /**
    * Wait for the specified list of volumes to be attached within a timeout.
    *
@@ -741,6 +997,54 @@ public class EBSAllocator {
     ec2Client.createTags(new CreateTagsRequest().withTags(tags).withResources(volumeId));
   }
 
+  /**
+   * Returns the availability zones in which to create the volumes of the specified instances.
+   * When the template has capacity fallbacks in other subnets, an instance may have been
+   * launched in another availability zone than the template's, so the zone of each instance is
+   * read from its placement.
+   *
+   * @param template       the instance template
+   * @param ec2InstanceIds the EC2 instance ids
+   * @return the availability zones, by EC2 instance id
+   */
+  private Map<String, String> getAvailabilityZones(EC2InstanceTemplate template,
+      Collection<String> ec2InstanceIds) {
+    Map<String, String> availabilityZones = Maps.newHashMapWithExpectedSize(ec2InstanceIds.size());
+    boolean hasFallbackSubnets = template.getCapacityFallbacks().stream()
+        .anyMatch((pool) -> !pool.getSubnetId().equals(template.getSubnetId()));
+    if (hasFallbackSubnets) {
+      for (Instance instance : describeInstances(ec2InstanceIds)) {
+        if (instance.getPlacement() != null
+            && instance.getPlacement().getAvailabilityZone() != null) {
+          availabilityZones.put(instance.getInstanceId(),
+              instance.getPlacement().getAvailabilityZone());
+        }
+      }
+    }
+    if (availabilityZones.size() < ec2InstanceIds.size()) {
+      String availabilityZone = getAvailabilityZone(template);
+      for (String ec2InstanceId : ec2InstanceIds) {
+        availabilityZones.putIfAbsent(ec2InstanceId, availabilityZone);
+      }
+    }
+    return availabilityZones;
+  }
+
+  /**
+   * Returns the availability zone in which to create the volumes for the specified template.
+   *
+   * @param template the instance template
+   * @return the availability zone
+   */
+  @SuppressWarnings("Guava")
+  private String getAvailabilityZone(EC2InstanceTemplate template) {
+    Optional<String> templateAvailabilityZone = template.getAvailabilityZone();
+    return templateAvailabilityZone.isPresent()
+        ? templateAvailabilityZone.get()
+        : availabilityZonesBySubnetId.computeIfAbsent(template.getSubnetId(),
+            this::getAvailabilityZoneFromSubnetId);
+  }
+
   /**
    * Get the availability zone from a Subnet ID.
    *
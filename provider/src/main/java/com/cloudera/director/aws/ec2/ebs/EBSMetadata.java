@@ -17,7 +17,7 @@ package com.cloudera.director.aws.ec2.ebs;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
-import com.cloudera.director.aws.common.PropertyResolvers;
+import com.cloudera.director.aws.common.ReloadableTable;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
@@ -26,16 +26,15 @@ import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilder;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Map;
 import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.env.PropertyResolver;
 
 /**
  * A lookup mechanism for getting metadata about EBS volumes. AWS does not provide
@@ -220,15 +219,10 @@ public class EBSMetadata implements Function<String, EBSMetadata.EbsVolumeMetada
 
     protected EBSMetadataConfigProperties ebsMetadataConfigProperties;
 
-    public PropertyResolver ebsMetadataResolver() {
-      try {
-        return PropertyResolvers.newMultiResourcePropertyResolver(
-            BUILT_IN_LOCATION,
-            "file:" + ebsMetadataConfigProperties.getCustomEbsMetadataFile().getAbsolutePath()
-        );
-      } catch (IOException e) {
-        throw new IllegalArgumentException("Could not load custom ebs metadata", e);
-      }
+    public ReloadableTable<Map<String, CompiledMetadata>> ebsMetadataTable() {
+      return ReloadableTable.load("ebs metadata", BUILT_IN_LOCATION,
+          ebsMetadataConfigProperties.getCustomEbsMetadataFile(),
+          EBSMetadata::compile);
     }
 
     /**
@@ -243,7 +237,7 @@ public class EBSMetadata implements Function<String, EBSMetadata.EbsVolumeMetada
 
   private final EBSMetadataConfigProperties ebsMetadataConfigProperties;
 
-  private final PropertyResolver ebsMetadataResolver;
+  private final ReloadableTable<Map<String, CompiledMetadata>> ebsMetadataTable;
 
   /**
    * Creates EBS metadata with the specified parameters.
@@ -264,19 +258,19 @@ public class EBSMetadata implements Function<String, EBSMetadata.EbsVolumeMetada
    * @param ebsMetadataConfigProperties the config properties
    */
   public EBSMetadata(EBSMetadataConfigProperties ebsMetadataConfigProperties) {
-    this(ebsMetadataConfigProperties, new EBSMetadataConfig(ebsMetadataConfigProperties).ebsMetadataResolver());
+    this(ebsMetadataConfigProperties, new EBSMetadataConfig(ebsMetadataConfigProperties).ebsMetadataTable());
   }
 
   /**
    * Creates EBS metadata with the specified parameters.
    *
    * @param ebsMetadataConfigProperties the config properties
-   * @param ebsMetadataResolver         the ebs metadata resolver
+   * @param ebsMetadataTable            the compiled ebs metadata
    */
   private EBSMetadata(EBSMetadataConfigProperties ebsMetadataConfigProperties,
-      PropertyResolver ebsMetadataResolver) {
+      ReloadableTable<Map<String, CompiledMetadata>> ebsMetadataTable) {
     this.ebsMetadataConfigProperties = ebsMetadataConfigProperties;
-    this.ebsMetadataResolver = ebsMetadataResolver;
+    this.ebsMetadataTable = ebsMetadataTable;
   }
 
   /**
@@ -290,16 +284,41 @@ public class EBSMetadata implements Function<String, EBSMetadata.EbsVolumeMetada
    */
   @Override
   public EbsVolumeMetadata apply(String volumeType) {
-    String strCapacityRange = ebsMetadataResolver.getProperty(volumeType);
-    Objects.requireNonNull(strCapacityRange, String.format("Could not get metadata for volume type %s", volumeType));
+    CompiledMetadata compiledMetadata = ebsMetadataTable.get().get(volumeType);
+    Objects.requireNonNull(compiledMetadata, String.format("Could not get metadata for volume type %s", volumeType));
+    return compiledMetadata.get();
+  }
 
-    Range capacityRange = Range.resolveRange(volumeType, strCapacityRange);
+  /**
+   * Compiles EBS metadata properties into the metadata for each volume type. Invalid
+   * definitions are kept, so that the error is reported when the volume type is used.
+   *
+   * @param properties the EBS metadata properties
+   * @return the compiled metadata for each volume type
+   */
+  private static Map<String, CompiledMetadata> compile(Map<String, String> properties) {
+    ImmutableMap.Builder<String, CompiledMetadata> builder = ImmutableMap.builder();
+    for (String volumeType : properties.keySet()) {
+      CompiledMetadata compiledMetadata;
+      try {
+        compiledMetadata = new CompiledMetadata(resolveMetadata(volumeType, properties), null);
+      } catch (NullPointerException | IllegalStateException e) {
+        LOG.warn("Invalid EBS metadata for volume type {}: {}", volumeType, e.getMessage());
+        compiledMetadata = new CompiledMetadata(null, e);
+      }
+      builder.put(volumeType, compiledMetadata);
+    }
+    return builder.build();
+  }
+
+  private static EbsVolumeMetadata resolveMetadata(String volumeType, Map<String, String> properties) {
+    Range capacityRange = Range.resolveRange(volumeType, properties.get(volumeType));
     int minSizeGiB = capacityRange.getMin();
     int maxSizeGiB = capacityRange.getMax();
 
     if (volumeType.equals("io1")) {
       String key = "io1-iops";
-      String strIopsMetadata = ebsMetadataResolver.getProperty(key);
+      String strIopsMetadata = properties.get(key);
       Objects.requireNonNull(strIopsMetadata, String.format("Could not get metadata for %s", key));
 
       Range iopsRange = Range.resolveRange(key, strIopsMetadata);
@@ -309,6 +328,34 @@ public class EBSMetadata implements Function<String, EBSMetadata.EbsVolumeMetada
     return new EbsVolumeMetadata(volumeType, minSizeGiB, maxSizeGiB);
   }
 
+  /**
+   * The compiled metadata for a volume type, or the error found compiling it.
+   */
+  static final class CompiledMetadata {
+    private final EbsVolumeMetadata metadata;
+    private final RuntimeException error;
+
+    private CompiledMetadata(EbsVolumeMetadata metadata, RuntimeException error) {
+      this.metadata = metadata;
+      this.error = error;
+    }
+
+    /**
+     * Returns the metadata, or throws an exception of the same type as the compilation error.
+     *
+     * @return the metadata
+     */
+    EbsVolumeMetadata get() {
+      if (error instanceof NullPointerException) {
+        throw new NullPointerException(error.getMessage());
+      }
+      if (error != null) {
+        throw new IllegalStateException(error.getMessage(), error);
+      }
+      return metadata;
+    }
+  }
+
   private static class Range {
     private int min;
     private int max;
@@ -374,12 +421,11 @@ public class EBSMetadata implements Function<String, EBSMetadata.EbsVolumeMetada
    */
   public static EBSMetadata getDefaultInstance(
       final Map<String, String> metadata, LocalizationContext localizationContext) {
-    PropertyResolver ebsMetadataResolver =
-        PropertyResolvers.newMapPropertyResolver(metadata);
     File tempDir = Files.createTempDir();
     tempDir.deleteOnExit();
     EBSMetadataConfigProperties ebsMetadataConfigProperties =
         new EBSMetadataConfigProperties(new SimpleConfiguration(), tempDir, localizationContext);
-    return new EBSMetadata(ebsMetadataConfigProperties, ebsMetadataResolver);
+    return new EBSMetadata(ebsMetadataConfigProperties,
+        ReloadableTable.of(metadata, EBSMetadata::compile));
   }
 }
@@ -0,0 +1,286 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import static java.util.Objects.requireNonNull;
+
+import com.amazonaws.services.ec2.model.VolumeState;
+import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.ec2.ebs.EBSAllocator.InstanceEbsVolumes;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
+import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Allocates the EBS volumes of instances as a pipeline per instance. The volumes of an
+ * instance are created and attached as soon as the instance is submitted, typically when it
+ * starts running, independently of the other instances in the same allocation. The time to
+ * allocate the volumes of a group of instances is then close to the time for the slowest
+ * instance, rather than the sum of the slowest create, wait and attach steps across all
+ * instances.</p>
+ * <p>Pipelines run on a small dedicated pool, since each one mostly waits on EC2, and the pool
+ * is shut down when the pipeline is closed. The pipelines share a single poller while waiting
+ * for their volumes to become available, so that all the volumes being waited on are checked
+ * in one describe call per interval. Once all pipelines complete, the volumes of all instances
+ * are marked for deletion on termination together, with batched describe calls.</p>
+ */
+public class EBSVolumePipeline implements AutoCloseable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(EBSVolumePipeline.class);
+
+  /**
+   * The maximum number of instances whose volumes are allocated concurrently. This bounds the
+   * rate of describe calls made while waiting on volumes to be attached.
+   */
+  private static final int MAX_CONCURRENT_INSTANCES = 20;
+
+  private final EBSAllocator ebsAllocator;
+  private final EC2InstanceTemplate template;
+  private final Span parentSpan;
+  private final ExecutorService executor;
+  private final AllocationJournal journal;
+  private final VolumeAvailabilityPoller poller;
+
+  /**
+   * The pipelines, by Director instance id, in submission order.
+   */
+  private final Map<String, Future<InstanceEbsVolumes>> pipelines = new LinkedHashMap<>();
+
+  /**
+   * The EC2 instance ids of submitted instances, by Director instance id.
+   */
+  private final Map<String, String> ec2InstanceIds = new ConcurrentHashMap<>();
+
+  /**
+   * The latest known volumes of each submitted instance.
+   */
+  private final Map<String, InstanceEbsVolumes> latestVolumes = new ConcurrentHashMap<>();
+
+  /**
+   * Creates an EBS volume pipeline.
+   *
+   * @param ebsAllocator  the EBS allocator
+   * @param template      the instance template
+   * @param instanceCount the number of instances in the allocation
+   */
+  public EBSVolumePipeline(EBSAllocator ebsAllocator, EC2InstanceTemplate template,
+      int instanceCount) {
+    this.ebsAllocator = requireNonNull(ebsAllocator, "ebsAllocator is null");
+    this.template = requireNonNull(template, "template is null");
+    this.parentSpan = Tracing.currentSpan();
+    this.journal = AllocationJournal.get();
+    this.poller = ebsAllocator.newVolumeAvailabilityPoller();
+    int threads = Math.max(1, Math.min(instanceCount, MAX_CONCURRENT_INSTANCES));
+    this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder()
+            .setNameFormat("director-aws-ebs-pipeline-%d")
+            .setDaemon(true)
+            .build());
+  }
+
+  /**
+   * Starts allocating the volumes of an instance. Submitting an instance more than once has
+   * no effect.
+   *
+   * @param instanceId    the Director instance id
+   * @param ec2InstanceId the EC2 instance id
+   */
+  public synchronized void submit(String instanceId, String ec2InstanceId) {
+    if (pipelines.containsKey(instanceId) || executor.isShutdown()) {
+      return;
+    }
+    LOG.info(">> Allocating EBS volumes for instance {} / {}", ec2InstanceId, instanceId);
+    ec2InstanceIds.put(instanceId, ec2InstanceId);
+    pipelines.put(instanceId, executor.submit(() -> {
+      try (Span span = Tracing.startSpan("ebs-instance", parentSpan)) {
+        span.setAttribute("instance.id", ec2InstanceId);
+        InstanceEbsVolumes volumes = ebsAllocator.allocateVolumes(template, instanceId,
+            ec2InstanceId, (progress) -> {
+              latestVolumes.put(instanceId, progress);
+              journal.recordVolumes(instanceId, getCreatedVolumeIds(progress));
+            }, poller);
+        latestVolumes.put(instanceId, volumes);
+        return volumes;
+      }
+    }));
+  }
+
+  /**
+   * Returns whether the volumes of an instance have been submitted for allocation.
+   *
+   * @param instanceId the Director instance id
+   * @return whether the volumes of the instance have been submitted
+   */
+  public synchronized boolean isSubmitted(String instanceId) {
+    return pipelines.containsKey(instanceId);
+  }
+
+  /**
+   * Waits for the volumes of every submitted instance to be allocated, and then marks the
+   * volumes of all instances to be deleted on termination at once. An instance whose pipeline
+   * failed is returned with its latest known volumes, which are not all InUse.
+   *
+   * @return the volumes of every submitted instance, in submission order
+   * @throws InterruptedException           if the operation is interrupted
+   * @throws UnrecoverableProviderException if any pipeline failed unrecoverably, once all
+   *                                        pipelines have completed
+   */
+  public List<InstanceEbsVolumes> awaitAll() throws InterruptedException {
+    Map<String, Future<InstanceEbsVolumes>> submitted;
+    synchronized (this) {
+      submitted = new LinkedHashMap<>(pipelines);
+    }
+
+    List<InstanceEbsVolumes> allocated = Lists.newArrayListWithCapacity(submitted.size());
+    Set<String> failedInstanceIds = new HashSet<>();
+    UnrecoverableProviderException unrecoverable = null;
+    for (Map.Entry<String, Future<InstanceEbsVolumes>> pipeline : submitted.entrySet()) {
+      String instanceId = pipeline.getKey();
+      try {
+        allocated.add(pipeline.getValue().get());
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof UnrecoverableProviderException && unrecoverable == null) {
+          unrecoverable = (UnrecoverableProviderException) cause;
+        }
+        LOG.error("Failed to allocate EBS volumes for instance {}", instanceId, cause);
+        failedInstanceIds.add(instanceId);
+        InstanceEbsVolumes latest = latestVolumes.get(instanceId);
+        allocated.add((latest != null)
+            ? latest
+            : new InstanceEbsVolumes(instanceId, ec2InstanceIds.get(instanceId),
+                Collections.emptyMap()));
+      }
+    }
+
+    List<InstanceEbsVolumes> result = Lists.newArrayListWithCapacity(allocated.size());
+    for (InstanceEbsVolumes volumes : addDeleteOnTerminationFlag(allocated)) {
+      String instanceId = volumes.getInstanceId();
+      latestVolumes.put(instanceId, volumes);
+      if (failedInstanceIds.contains(instanceId)) {
+        result.add(asFailed(volumes));
+      } else {
+        if (volumes.getVolumeStates().values().stream()
+            .allMatch((state) -> state == VolumeState.InUse)) {
+          journal.recordVolumesReady(instanceId);
+        }
+        result.add(volumes);
+      }
+    }
+
+    if (unrecoverable != null) {
+      throw unrecoverable;
+    }
+    return result;
+  }
+
+  /**
+   * Refreshes the states of the volumes of all the specified instances, and marks them to be
+   * deleted on termination. This is done for failed pipelines too, since an attachment may time
+   * out and still succeed, and once for all instances, so that the volumes and instances are
+   * described in batches rather than once per instance.
+   *
+   * @param allocated the volumes of every submitted instance
+   * @return the refreshed volumes of every submitted instance
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private List<InstanceEbsVolumes> addDeleteOnTerminationFlag(List<InstanceEbsVolumes> allocated)
+      throws InterruptedException {
+    if (allocated.isEmpty()) {
+      return allocated;
+    }
+    try (Span span = Tracing.startSpan("ebs-delete-on-termination")) {
+      span.setAttribute("instance.count", allocated.size());
+      List<InstanceEbsVolumes> updated = ebsAllocator.getUpdatedVolumeInfo(allocated);
+      try {
+        ebsAllocator.addDeleteOnTerminationFlag(updated);
+      } catch (InterruptedException | RuntimeException e) {
+        throw e;
+      } catch (Exception e) {
+        LOG.error("Unable to set delete on termination for the volumes of {} instance(s)",
+            updated.size(), e);
+      }
+      return updated;
+    }
+  }
+
+  /**
+   * Stops all pipelines, and returns the latest known volumes of every submitted instance,
+   * so that they can be cleaned up.
+   *
+   * @return the latest known volumes of every submitted instance
+   * @throws InterruptedException if the operation is interrupted
+   */
+  public List<InstanceEbsVolumes> cancel() throws InterruptedException {
+    synchronized (this) {
+      executor.shutdownNow();
+    }
+    if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+      LOG.warn("EBS volume pipelines did not stop within a minute");
+    }
+    return Lists.newArrayList(latestVolumes.values());
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns the IDs of the volumes of an instance that were actually created.
+   */
+  private static Set<String> getCreatedVolumeIds(InstanceEbsVolumes volumes) {
+    return volumes.getVolumeStates().keySet().stream()
+        .filter((volumeId) -> !volumeId.startsWith(InstanceEbsVolumes.UNCREATED_VOLUME_ID))
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
+
+  /**
+   * Returns the volumes of an instance whose pipeline failed, such that the instance counts as
+   * failed. If all its known volumes are InUse, an uncreated placeholder volume in the Error
+   * state is added, which is skipped when volumes are deleted.
+   */
+  private static InstanceEbsVolumes asFailed(InstanceEbsVolumes volumes) {
+    Map<String, VolumeState> states = new LinkedHashMap<>(volumes.getVolumeStates());
+    if (states.values().stream().allMatch((state) -> state == VolumeState.InUse)) {
+      // Keep the real states of the volumes, but make sure the instance counts as failed
+      states.put(InstanceEbsVolumes.UNCREATED_VOLUME_ID + "-failed", VolumeState.Error);
+    }
+    return new InstanceEbsVolumes(volumes.getInstanceId(), volumes.getEc2InstanceId(), states);
+  }
+}
@@ -0,0 +1,141 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.DryRunResult;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Determines whether EBS volumes encrypted with a customer KMS key can be requested as part
+ * of the instance launch request, rather than created and attached separately afterwards.</p>
+ * <p>Support is probed with a dry run of the launch request, and remembered per subnet and key,
+ * since a subnet identifies the account and region. A dry run that fails for reasons unrelated
+ * to the KMS key counts as supported, so that the real launch request reports the actual
+ * problem.</p>
+ */
+public final class LaunchEncryptionSupport {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LaunchEncryptionSupport.class);
+
+  /**
+   * The error codes with which EC2 rejects a launch request whose parameters it does not
+   * support.
+   */
+  private static final Set<String> UNSUPPORTED_PARAMETER_ERROR_CODES = ImmutableSet.of(
+      "InvalidParameter", "InvalidParameterCombination", "InvalidParameterValue",
+      "UnsupportedOperation");
+
+  /**
+   * How long probe results are remembered, so that a region that gains support, or a key whose
+   * permissions change, is eventually probed again.
+   */
+  private static final long PROBE_EXPIRATION_HOURS = 1L;
+
+  /**
+   * Whether launch-time encryption is supported, by subnet and KMS key.
+   */
+  private static final Cache<String, Boolean> SUPPORTED = CacheBuilder.newBuilder()
+      .maximumSize(1000)
+      .expireAfterWrite(PROBE_EXPIRATION_HOURS, TimeUnit.HOURS)
+      .build();
+
+  /**
+   * Returns whether EBS volumes encrypted with the specified KMS key can be requested in the
+   * launch request, probing with a dry run of the supplied request if it is not yet known. The
+   * probe request is only built when a probe is needed, since building it may take calls of
+   * its own.
+   *
+   * @param client       the EC2 client
+   * @param subnetId     the subnet in which instances are launched
+   * @param kmsKeyId     the KMS key ID
+   * @param probeRequest supplies a launch request for a single instance, including the
+   *                     encrypted EBS block device mappings
+   * @return whether launch-time encryption with the key is supported
+   */
+  public static boolean isSupported(AmazonEC2 client, String subnetId, String kmsKeyId,
+      Supplier<RunInstancesRequest> probeRequest) {
+    String key = subnetId + '|' + kmsKeyId;
+    Boolean supported = SUPPORTED.getIfPresent(key);
+    if (supported == null) {
+      supported = probe(client, probeRequest.get());
+      LOG.info("Launch-time EBS encryption with KMS key {} in subnet {} is {}", kmsKeyId,
+          subnetId, supported ? "supported" : "not supported, volumes will be allocated separately");
+      SUPPORTED.put(key, supported);
+    }
+    return supported;
+  }
+
+  private static boolean probe(AmazonEC2 client, RunInstancesRequest probeRequest) {
+    DryRunResult<RunInstancesRequest> result;
+    try {
+      result = client.dryRun(probeRequest);
+    } catch (AmazonClientException e) {
+      // The SDK only returns a dry run result for DryRunOperation and authorization errors, and
+      // wraps any other service error, including parameter errors, in a client exception.
+      if (e.getCause() instanceof AmazonServiceException
+          && isKmsRejection((AmazonServiceException) e.getCause())) {
+        return false;
+      }
+      LOG.warn("Unable to probe for launch-time EBS encryption support, assuming it is supported",
+          e);
+      return true;
+    }
+    return result.isSuccessful() || !isKmsRejection(result.getDryRunResponse());
+  }
+
+  /**
+   * Returns whether the specified error rejects the KMS key of an EBS block device mapping.
+   *
+   * @param e the error
+   * @return whether the error rejects the KMS key
+   */
+  @VisibleForTesting
+  static boolean isKmsRejection(AmazonServiceException e) {
+    if (e == null || !UNSUPPORTED_PARAMETER_ERROR_CODES.contains(e.getErrorCode())) {
+      return false;
+    }
+    String message = e.getErrorMessage();
+    return message != null && message.toLowerCase(Locale.US).contains("kms");
+  }
+
+  /**
+   * Forgets all probe results.
+   */
+  @VisibleForTesting
+  static void clear() {
+    SUPPORTED.invalidateAll();
+  }
+
+  /**
+   * Private constructor to prevent instantiation.
+   */
+  private LaunchEncryptionSupport() {
+  }
+}
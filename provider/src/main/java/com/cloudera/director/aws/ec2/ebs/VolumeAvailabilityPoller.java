@@ -0,0 +1,159 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import static java.util.Objects.requireNonNull;
+
+import com.amazonaws.services.ec2.model.Volume;
+import com.amazonaws.services.ec2.model.VolumeState;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Waits for newly created EBS volumes to leave the creating state, on behalf of any number of
+ * concurrent waiters. Every volume being waited on is checked in the same describe call, made at
+ * most once per interval by whichever waiter is due first, so that the number of describe calls
+ * does not grow with the number of instances whose volumes are allocated concurrently.</p>
+ * <p>Volumes that are not yet found are simply left out of the describe results, and are
+ * checked again on the next poll.</p>
+ */
+public final class VolumeAvailabilityPoller {
+
+  private static final Logger LOG = LoggerFactory.getLogger(VolumeAvailabilityPoller.class);
+
+  private final Function<Collection<String>, List<Volume>> describeVolumes;
+  private final long intervalMillis;
+
+  /**
+   * The final state of every volume being waited on, by volume id.
+   */
+  private final Map<String, CompletableFuture<VolumeState>> pending = new ConcurrentHashMap<>();
+
+  /**
+   * When the last poll started, or zero if there has been none.
+   */
+  private long lastPollMillis;
+
+  /**
+   * Creates a volume availability poller.
+   *
+   * @param describeVolumes a function that describes the specified volumes, omitting those that
+   *                        are not found
+   * @param interval        the minimum time between polls
+   * @param timeUnit        the time unit of the interval
+   */
+  VolumeAvailabilityPoller(Function<Collection<String>, List<Volume>> describeVolumes,
+      long interval, TimeUnit timeUnit) {
+    this.describeVolumes = requireNonNull(describeVolumes, "describeVolumes is null");
+    this.intervalMillis = timeUnit.toMillis(interval);
+  }
+
+  /**
+   * Waits for the specified volumes to leave the creating state, and returns the state that each
+   * one reached. Volumes that are still creating when the timeout elapses are left out of the
+   * result.
+   *
+   * @param volumeIds     the volume ids
+   * @param timeoutMillis the maximum time to wait, in milliseconds
+   * @return the final state of every volume that reached one, by volume id
+   * @throws InterruptedException if the operation is interrupted
+   */
+  public Map<String, VolumeState> awaitFinalStates(Collection<String> volumeIds,
+      long timeoutMillis) throws InterruptedException {
+    Map<String, CompletableFuture<VolumeState>> waited = new LinkedHashMap<>();
+    for (String volumeId : volumeIds) {
+      waited.put(volumeId, pending.computeIfAbsent(volumeId, (id) -> new CompletableFuture<>()));
+    }
+
+    long deadlineMillis = System.currentTimeMillis() + timeoutMillis;
+    CompletableFuture<Void> all =
+        CompletableFuture.allOf(waited.values().toArray(new CompletableFuture<?>[0]));
+    try {
+      while (!all.isDone()) {
+        long remainingMillis = deadlineMillis - System.currentTimeMillis();
+        if (remainingMillis <= 0) {
+          break;
+        }
+        pollIfDue();
+        try {
+          all.get(Math.min(remainingMillis, intervalMillis), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+          // Poll again if no other waiter has
+        } catch (ExecutionException e) {
+          throw new IllegalStateException("Unexpected failure waiting on volumes", e.getCause());
+        }
+      }
+    } finally {
+      waited.forEach(pending::remove);
+    }
+
+    Map<String, VolumeState> finalStates = new LinkedHashMap<>();
+    waited.forEach((volumeId, state) -> {
+      if (state.isDone()) {
+        finalStates.put(volumeId, state.join());
+      }
+    });
+    return finalStates;
+  }
+
+  /**
+   * Describes every volume being waited on, unless another waiter polled within the interval,
+   * and completes the waits on those that left the creating state.
+   */
+  private void pollIfDue() {
+    List<String> volumeIds;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      if (lastPollMillis != 0 && now - lastPollMillis < intervalMillis) {
+        return;
+      }
+      lastPollMillis = now;
+      volumeIds = Lists.newArrayList(pending.keySet());
+    }
+    if (volumeIds.isEmpty()) {
+      return;
+    }
+
+    LOG.info("Checking {} volumes for a final state, next check in {} seconds",
+        volumeIds.size(), TimeUnit.MILLISECONDS.toSeconds(intervalMillis));
+    for (Volume volume : describeVolumes.apply(volumeIds)) {
+      VolumeState state = VolumeState.fromValue(volume.getState());
+      if (state == VolumeState.Creating) {
+        continue;
+      }
+      if (state != VolumeState.Available && state != VolumeState.Error) {
+        LOG.warn("Volume {} went into an unexpected state {} while waiting for it to become "
+            + "available", volume.getVolumeId(), state);
+      }
+      CompletableFuture<VolumeState> finalState = pending.get(volume.getVolumeId());
+      if (finalState != null) {
+        finalState.complete(state);
+      }
+    }
+  }
+}
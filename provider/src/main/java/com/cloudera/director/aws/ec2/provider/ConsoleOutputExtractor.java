@@ -14,23 +14,134 @@
 
 package com.cloudera.director.aws.ec2.provider;
 
-import com.google.common.collect.Sets;
+import static java.util.Objects.requireNonNull;
 
+import com.google.common.base.MoreObjects;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Objects;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
- * Contains functions to extract information from EC2 Console Output.
+ * <p>Contains functions to extract information from EC2 Console Output.</p>
+ * <p>Host key fingerprints are extracted by a single pass over the lines of the console output,
+ * which stops at the end of the fingerprint block. Both MD5 fingerprints, in colon-separated
+ * hex, and SHA256 fingerprints, in base64, are recognized, along with the key type that follows
+ * them. Since the console output of an instance is polled until the block appears, the state of
+ * a scan is kept in a {@link FingerprintScan}, so that each poll only scans the lines that were
+ * not scanned before.</p>
  */
 final class ConsoleOutputExtractor {
 
-  private static final Pattern FINGERPRINTS_BLOCK_PATTERN = Pattern.compile(
-      "(BEGIN SSH HOST KEY FINGERPRINTS)(.*)(END SSH HOST KEY FINGERPRINTS)", Pattern.DOTALL
-  );
+  private static final String BEGIN_MARKER = "BEGIN SSH HOST KEY FINGERPRINTS";
+  private static final String END_MARKER = "END SSH HOST KEY FINGERPRINTS";
 
-  private static final Pattern FINGERPRINT_PATTERN =
-      Pattern.compile("\\s(([0-9a-f]{2}:){15}[0-9a-f]{2})\\s");
+  private static final String MD5_PREFIX = "MD5:";
+  private static final String SHA256_PREFIX = "SHA256:";
+
+  /**
+   * The number of characters of the console output just before the resume offset of a scan
+   * that are compared on the next poll, to detect output that was not merely appended to.
+   */
+  private static final int ANCHOR_LENGTH = 64;
+
+  /**
+   * A host key fingerprint.
+   */
+  static final class HostKeyFingerprint {
+
+    private final String fingerprint;
+    private final String keyType;
+
+    HostKeyFingerprint(String fingerprint, String keyType) {
+      this.fingerprint = requireNonNull(fingerprint, "fingerprint is null");
+      this.keyType = keyType;
+    }
+
+    /**
+     * Returns the fingerprint, in colon-separated hex for MD5, or prefixed with
+     * {@code SHA256:} for SHA256.
+     *
+     * @return the fingerprint
+     */
+    String getFingerprint() {
+      return fingerprint;
+    }
+
+    /**
+     * Returns the key type, such as {@code RSA}, or {@code null} if it was not printed.
+     *
+     * @return the key type, or {@code null}
+     */
+    String getKeyType() {
+      return keyType;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      HostKeyFingerprint that = (HostKeyFingerprint) o;
+      return fingerprint.equals(that.fingerprint) && Objects.equals(keyType, that.keyType);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fingerprint, keyType);
+    }
+
+    @Override
+    public String toString() {
+      return MoreObjects.toStringHelper(this)
+          .add("fingerprint", fingerprint)
+          .add("keyType", keyType)
+          .toString();
+    }
+  }
+
+  /**
+   * The state of a scan of the console output of an instance, which can be resumed when the
+   * console output is polled again.
+   */
+  static final class FingerprintScan {
+
+    private int offset;
+    private String anchor = "";
+    private boolean inBlock;
+    private boolean complete;
+    private final Set<HostKeyFingerprint> fingerprints = new LinkedHashSet<>();
+
+    /**
+     * Returns whether the end of the fingerprint block has been reached.
+     *
+     * @return whether the end of the fingerprint block has been reached
+     */
+    boolean isComplete() {
+      return complete;
+    }
+
+    /**
+     * Returns the fingerprints found so far, in the order in which they appear.
+     *
+     * @return the fingerprints found so far
+     */
+    Set<HostKeyFingerprint> getFingerprints() {
+      return Collections.unmodifiableSet(fingerprints);
+    }
+
+    private void reset() {
+      offset = 0;
+      anchor = "";
+      inBlock = false;
+      fingerprints.clear();
+    }
+  }
 
   /**
    * Returns whether the ec2 console output contains a host key fingerprint section.
@@ -39,8 +150,9 @@ final class ConsoleOutputExtractor {
    * @return whether a host key fingerprint section is present
    */
   boolean hasHostKeyFingerprintBlock(String consoleOutput) {
-    Matcher match = FINGERPRINTS_BLOCK_PATTERN.matcher(consoleOutput);
-    return match.find();
+    FingerprintScan scan = new FingerprintScan();
+    scan(consoleOutput, scan);
+    return scan.isComplete();
   }
 
   /**
@@ -51,17 +163,161 @@ final class ConsoleOutputExtractor {
    * @return a set of host key fingerprints
    */
   Set<String> getHostKeyFingerprints(String consoleOutput) {
-    Matcher match = FINGERPRINTS_BLOCK_PATTERN.matcher(consoleOutput);
-    if (!match.find()) {
+    FingerprintScan scan = new FingerprintScan();
+    scan(consoleOutput, scan);
+    if (!scan.isComplete()) {
       throw new IllegalArgumentException("No SSH Host Key Fingerprint section in console output");
     }
-    String fingerprintBlock = match.group(2);
+    return getHostKeyFingerprints(scan);
+  }
+
+  /**
+   * Returns the host key fingerprints found by the specified scan.
+   *
+   * @param scan the scan
+   * @return a set of host key fingerprints
+   */
+  Set<String> getHostKeyFingerprints(FingerprintScan scan) {
+    return scan.getFingerprints().stream()
+        .map(HostKeyFingerprint::getFingerprint)
+        .collect(Collectors.toCollection(LinkedHashSet::new));
+  }
+
+  /**
+   * Scans the specified console output for host key fingerprints, resuming the specified scan
+   * after the last complete line it scanned. If the console output no longer matches what was
+   * scanned before, as when the console output is truncated at its start, it is scanned again
+   * from the start. A completed scan is left unchanged.
+   *
+   * @param consoleOutput the ec2 console output
+   * @param scan          the scan
+   */
+  void scan(String consoleOutput, FingerprintScan scan) {
+    if (scan.complete) {
+      return;
+    }
+    if (scan.offset > consoleOutput.length()
+        || !consoleOutput.startsWith(scan.anchor, scan.offset - scan.anchor.length())) {
+      scan.reset();
+    }
+
+    int lineStart = scan.offset;
+    while (lineStart < consoleOutput.length()) {
+      int lineEnd = consoleOutput.indexOf('\n', lineStart);
+      boolean partial = (lineEnd < 0);
+      if (partial) {
+        lineEnd = consoleOutput.length();
+      }
+      if (scanLine(consoleOutput, lineStart, lineEnd, scan, partial)) {
+        scan.complete = true;
+        return;
+      }
+      if (partial) {
+        // The rest of the line may not have been written yet, so it is scanned again
+        break;
+      }
+      lineStart = lineEnd + 1;
+    }
+
+    scan.offset = lineStart;
+    scan.anchor = consoleOutput.substring(Math.max(0, lineStart - ANCHOR_LENGTH), lineStart);
+  }
+
+  /**
+   * Scans a single line, recording any fingerprint it holds unless it is partial.
+   *
+   * @return whether the line ends the fingerprint block
+   */
+  private static boolean scanLine(String consoleOutput, int start, int end, FingerprintScan scan,
+      boolean partial) {
+    String line = consoleOutput.substring(start, end);
+    if (!scan.inBlock) {
+      if (line.contains(BEGIN_MARKER)) {
+        scan.inBlock = !partial;
+      }
+      return false;
+    }
+    if (line.contains(END_MARKER)) {
+      return true;
+    }
+    if (!partial) {
+      HostKeyFingerprint fingerprint = parseFingerprintLine(line);
+      if (fingerprint != null) {
+        scan.fingerprints.add(fingerprint);
+      }
+    }
+    return false;
+  }
 
-    Set<String> hostKeyFingerprints = Sets.newHashSet();
-    match = FINGERPRINT_PATTERN.matcher(fingerprintBlock);
-    while (match.find()) {
-      hostKeyFingerprints.add(match.group(1));
+  /**
+   * Parses a line of the fingerprint block, such as
+   * {@code ec2: 2048 SHA256:nThbg6kXUpJWGl7E1IGOCspRomTxdCARLviKw6E5SY8 root@host (RSA)}.
+   *
+   * @param line the line
+   * @return the fingerprint on the line, or {@code null} if there is none
+   */
+  private static HostKeyFingerprint parseFingerprintLine(String line) {
+    String fingerprint = null;
+    String keyType = null;
+    for (String token : line.trim().split("\\s+")) {
+      if (fingerprint == null) {
+        fingerprint = parseFingerprint(token);
+      } else if (token.length() > 2 && token.charAt(0) == '('
+          && token.charAt(token.length() - 1) == ')') {
+        keyType = token.substring(1, token.length() - 1);
+      }
+    }
+    return (fingerprint == null) ? null : new HostKeyFingerprint(fingerprint, keyType);
+  }
+
+  /**
+   * Returns the fingerprint in the specified token, or {@code null} if it is not a
+   * fingerprint. MD5 fingerprints are returned without any {@code MD5:} prefix, as colon-
+   * separated hex, and SHA256 fingerprints are returned with their {@code SHA256:} prefix.
+   */
+  private static String parseFingerprint(String token) {
+    if (token.startsWith(SHA256_PREFIX)) {
+      return isBase64(token, SHA256_PREFIX.length()) ? token : null;
+    }
+    String md5 = token.startsWith(MD5_PREFIX) ? token.substring(MD5_PREFIX.length()) : token;
+    return isColonHex(md5, 16) ? md5 : null;
+  }
+
+  /**
+   * Returns whether the specified string is the specified number of lower case hex bytes,
+   * separated by colons.
+   */
+  private static boolean isColonHex(String s, int bytes) {
+    if (s.length() != bytes * 3 - 1) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      boolean valid = (i % 3 == 2)
+          ? c == ':'
+          : (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+      if (!valid) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the specified string is a 32-byte value in unpadded base64, starting at the
+   * specified index.
+   */
+  private static boolean isBase64(String s, int start) {
+    if (s.length() - start != 43) {
+      return false;
+    }
+    for (int i = start; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+          || c == '+' || c == '/')) {
+        return false;
+      }
     }
-    return hostKeyFingerprints;
+    return true;
   }
 }
@@ -17,6 +17,7 @@ package com.cloudera.director.aws.ec2.provider;
 
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.AVAILABILITY_ZONE;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.BLOCK_DURATION_MINUTES;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.CAPACITY_FALLBACKS;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_IOPS;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_KMS_KEY_ID;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_VOLUME_COUNT;
@@ -38,6 +39,9 @@ import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTempl
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USER_DATA;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USER_DATA_UNENCODED;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USE_SPOT_INSTANCES;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MAX_PREPARED_CAPACITY;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MIN_SIZE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_STATE;
 import static com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate.ComputeInstanceTemplateConfigurationPropertyToken.AUTOMATIC;
 import static com.cloudera.director.spi.v2.model.util.Validations.addError;
 import static com.cloudera.director.spi.v2.model.util.Validations.addWarning;
@@ -65,6 +69,7 @@ import com.amazonaws.services.kms.AWSKMSClient;
 import com.amazonaws.services.kms.model.DescribeKeyRequest;
 import com.amazonaws.services.kms.model.NotFoundException;
 import com.cloudera.director.aws.AWSFilters;
+import com.cloudera.director.aws.ec2.CapacityPool;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.ebs.EBSMetadata;
 import com.cloudera.director.aws.ec2.ebs.EBSMetadata.EbsVolumeMetadata;
@@ -73,6 +78,7 @@ import com.cloudera.director.spi.v2.model.ConfigurationValidator;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
 import com.cloudera.director.spi.v2.model.exception.PluginExceptionConditionAccumulator;
+import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.cloudera.director.spi.v2.util.Preconditions;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
@@ -125,6 +131,9 @@ public class EC2InstanceTemplateConfigurationValidator implements ConfigurationV
   @VisibleForTesting
   static final Set<String> TENANCY_TYPES = ImmutableSet.of("default", "dedicated");
 
+  @VisibleForTesting
+  static final Set<String> WARM_POOL_STATES = ImmutableSet.of("Stopped", "Running");
+
   // TODO: at the moment, we cannot add this to spi (or can we?), that we need to make sure that string
   // content used here is the same as where it is defined (PluggableComputeClusterTemplateValidator).
   @VisibleForTesting
@@ -189,6 +198,13 @@ public class EC2InstanceTemplateConfigurationValidator implements ConfigurationV
   @VisibleForTesting
   static final String INVALID_PLACEMENT_GROUP_MSG = "Invalid placement group: %s";
 
+  @VisibleForTesting
+  static final String INVALID_CAPACITY_FALLBACKS_MSG = "Invalid capacity fallbacks: %s";
+
+  @VisibleForTesting
+  static final String UNSUPPORTED_CAPACITY_FALLBACK_TYPE_MSG =
+      "Capacity fallback instance type %s has no known ephemeral device mapping";
+
   @VisibleForTesting
   static final String INVALID_TENANCY_MSG = "Invalid tenancy type: %s. Available options: %s";
 
@@ -235,6 +251,19 @@ public class EC2InstanceTemplateConfigurationValidator implements ConfigurationV
   static final String NO_SPOT_WITH_ASG_MSG =
       "Spot Instance use with Auto Scaling Groups is not currently supported";
 
+  @VisibleForTesting
+  static final String INVALID_WARM_POOL_MIN_SIZE_MSG =
+      "Warm pool minimum size must be a non-negative integer: %s";
+
+  @VisibleForTesting
+  static final String INVALID_WARM_POOL_MAX_PREPARED_CAPACITY_MSG =
+      "Warm pool maximum prepared capacity must be an integer no less than the warm pool " +
+          "minimum size: %s";
+
+  @VisibleForTesting
+  static final String INVALID_WARM_POOL_STATE_MSG =
+      "Invalid warm pool instance state: %s. Available options: %s";
+
   @VisibleForTesting
   static final String IMAGE_OWNER_ID_BLACKLIST_KEY = "ownerId";
 
@@ -346,7 +375,10 @@ public class EC2InstanceTemplateConfigurationValidator implements ConfigurationV
     checkEbsVolumes(kmsClient, configuration, accumulator, localizationContext);
     checkKeyName(ec2Client, configuration, accumulator, localizationContext);
     checkSpotParameters(configuration, accumulator, localizationContext);
+    checkWarmPool(configuration, accumulator, localizationContext);
     checkUserData(configuration, accumulator, localizationContext);
+    checkCapacityFallbacks(ec2Client, name, configuration, vpcSecurityGroupMap, accumulator,
+        localizationContext);
   }
 
   /**
@@ -592,6 +624,68 @@ public class EC2InstanceTemplateConfigurationValidator implements ConfigurationV
     }
   }
 
+  /**
+   * Validates the configured capacity fallbacks. Each capacity pool is validated as the
+   * template would be with its instance type and subnet: the instance type must have known
+   * ephemeral volumes and support the virtualization type of the AMI, and a different subnet
+   * must be in the VPC of the security groups and satisfy the network rules. Capacity pools are
+   * only validated once the rest of the template is valid, so that its errors are not repeated.
+   *
+   * @param client              the EC2 client
+   * @param name                the name of the template
+   * @param configuration       the configuration to be validated
+   * @param vpcSecurityGroupMap the vpc id to security group ids mapping of the template
+   * @param accumulator         the exception condition accumulator
+   * @param localizationContext the localization context
+   */
+  @VisibleForTesting
+  void checkCapacityFallbacks(AmazonEC2Client client,
+      String name,
+      Configured configuration,
+      Map<String, Set<String>> vpcSecurityGroupMap,
+      PluginExceptionConditionAccumulator accumulator,
+      LocalizationContext localizationContext) {
+
+    String type = configuration.getConfigurationValue(TYPE, localizationContext);
+    String subnetId = configuration.getConfigurationValue(SUBNET_ID, localizationContext);
+    List<CapacityPool> capacityPools;
+    try {
+      capacityPools = CapacityPool.parseList(
+          configuration.getConfigurationValue(CAPACITY_FALLBACKS, localizationContext),
+          type, subnetId);
+    } catch (IllegalArgumentException e) {
+      addError(accumulator, CAPACITY_FALLBACKS, localizationContext,
+          null, INVALID_CAPACITY_FALLBACKS_MSG, e.getMessage());
+      return;
+    }
+    if (capacityPools.isEmpty() || accumulator.hasError()) {
+      return;
+    }
+
+    Map<String, String> configMap = configuration.getConfiguration(localizationContext);
+    for (CapacityPool capacityPool : capacityPools) {
+      if (!provider.getEphemeralDeviceMappings().isSupported(capacityPool.getType())) {
+        addError(accumulator, CAPACITY_FALLBACKS, localizationContext,
+            null, UNSUPPORTED_CAPACITY_FALLBACK_TYPE_MSG, capacityPool.getType());
+        continue;
+      }
+
+      Map<String, String> capacityPoolConfigMap = Maps.newHashMap(configMap);
+      capacityPoolConfigMap.put(TYPE.unwrap().getConfigKey(), capacityPool.getType());
+      capacityPoolConfigMap.put(SUBNET_ID.unwrap().getConfigKey(), capacityPool.getSubnetId());
+      Configured capacityPoolConfiguration = new SimpleConfiguration(capacityPoolConfigMap);
+
+      checkImage(client, capacityPoolConfiguration, accumulator, localizationContext);
+      if (!capacityPool.getSubnetId().equals(subnetId)) {
+        Map<String, String> vpcSubnetMap = checkSubnetId(client, capacityPoolConfiguration,
+            accumulator, localizationContext);
+        checkVpc(vpcSubnetMap, vpcSecurityGroupMap, accumulator, localizationContext);
+        new EC2NetworkValidator(provider).validate(name, capacityPoolConfiguration, accumulator,
+            localizationContext);
+      }
+    }
+  }
+
   /**
    * Validates the configured tenancy type.
    *
@@ -1045,6 +1139,54 @@ public class EC2InstanceTemplateConfigurationValidator implements ConfigurationV
     }
   }
 
+  /**
+   * Validates the configured warm pool parameters.
+   *
+   * @param configuration       the configuration to be validated
+   * @param accumulator         the exception condition accumulator
+   * @param localizationContext the localization context
+   */
+  @VisibleForTesting
+  void checkWarmPool(Configured configuration,
+      PluginExceptionConditionAccumulator accumulator,
+      LocalizationContext localizationContext) {
+
+    String warmPoolMinSizeString =
+        configuration.getConfigurationValue(WARM_POOL_MIN_SIZE, localizationContext);
+    int warmPoolMinSize = -1;
+    try {
+      warmPoolMinSize = Integer.parseInt(warmPoolMinSizeString);
+    } catch (NumberFormatException ignore) {
+    }
+    if (warmPoolMinSize < 0) {
+      addError(accumulator, WARM_POOL_MIN_SIZE, localizationContext,
+          null, INVALID_WARM_POOL_MIN_SIZE_MSG, warmPoolMinSizeString);
+      return;
+    }
+
+    String warmPoolMaxPreparedCapacity = Strings.emptyToNull(
+        configuration.getConfigurationValue(WARM_POOL_MAX_PREPARED_CAPACITY, localizationContext));
+    if (warmPoolMaxPreparedCapacity != null) {
+      boolean valid = false;
+      try {
+        valid = Integer.parseInt(warmPoolMaxPreparedCapacity) >= warmPoolMinSize;
+      } catch (NumberFormatException ignore) {
+      }
+      if (!valid) {
+        addError(accumulator, WARM_POOL_MAX_PREPARED_CAPACITY, localizationContext,
+            null, INVALID_WARM_POOL_MAX_PREPARED_CAPACITY_MSG, warmPoolMaxPreparedCapacity);
+      }
+    }
+
+    String warmPoolState =
+        configuration.getConfigurationValue(WARM_POOL_STATE, localizationContext);
+    if (!WARM_POOL_STATES.contains(warmPoolState)) {
+      addError(accumulator, WARM_POOL_STATE, localizationContext,
+          null, INVALID_WARM_POOL_STATE_MSG,
+          warmPoolState, Joiner.on(", ").join(WARM_POOL_STATES));
+    }
+  }
+
   /**
    * Validates that only one user data property was used, if any.
    *
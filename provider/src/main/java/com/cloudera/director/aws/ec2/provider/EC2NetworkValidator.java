@@ -36,6 +36,7 @@ import com.amazonaws.services.ec2.model.SecurityGroup;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.network.AccessType;
 import com.cloudera.director.aws.network.Direction;
+import com.cloudera.director.aws.network.NetworkPermissionIndex;
 import com.cloudera.director.aws.network.NetworkRule;
 import com.cloudera.director.aws.network.NetworkRules;
 import com.cloudera.director.spi.v2.model.ConfigurationPropertyToken;
@@ -47,6 +48,8 @@ import com.cloudera.director.spi.v2.util.Preconditions;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
@@ -59,8 +62,11 @@ import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -82,6 +88,14 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
    */
   private final NetworkRules networkRules;
 
+  /**
+   * The permission indexes compiled from security groups and network ACLs, by ID.
+   */
+  private static final Cache<String, CompiledPermissions> COMPILED_PERMISSIONS =
+      CacheBuilder.newBuilder()
+          .maximumSize(1000)
+          .build();
+
   private static final String INVALID_ENFORCEMENT_SECURITY_GROUP =
       "No security groups enforce %s network rule: %s";
 
@@ -202,7 +216,27 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
     }
 
     NetworkAcl networkAcl = aclList.get(0);
+    Map<Direction, NetworkPermissionIndex> indexes = getPermissionIndexes(
+        networkAcl.getNetworkAclId(), networkAcl,
+        acl -> compileNetworkAcl(acl, localizationContext));
+
+    for (Direction direction : Direction.values()) {
+      checkRulesForNetworkAclEntries(networkAcl.getNetworkAclId(), indexes.get(direction),
+          direction, accumulator, localizationContext);
+    }
+  }
 
+  /**
+   * Compiles the entries of a network ACL into a permission index per direction,
+   * with the entries of each index in rule number order.
+   *
+   * @param networkAcl          the network ACL
+   * @param localizationContext the localization context
+   * @return the permission indexes, by direction
+   */
+  private static Map<Direction, NetworkPermissionIndex> compileNetworkAcl(NetworkAcl networkAcl,
+      LocalizationContext localizationContext) {
+    Map<Direction, NetworkPermissionIndex> indexes = new EnumMap<>(Direction.class);
     for (final Direction direction : Direction.values()) {
       Iterable<NetworkAclEntry> aclEntries = FluentIterable.from(networkAcl.getEntries())
           .filter(aclEntry -> direction == Direction.INBOUND
@@ -210,9 +244,18 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
               : aclEntry.isEgress())
           .toSortedList(new NetworkAclEntryComparator());
 
-      checkRulesForNetworkAclEntries(networkAcl.getNetworkAclId(), aclEntries, direction,
-          accumulator, localizationContext);
+      NetworkPermissionIndex.Builder builder = NetworkPermissionIndex.builder();
+      for (NetworkAclEntry aclEntry : aclEntries) {
+        String cidr = getCidrFromAclEntry(aclEntry);
+        if (cidr != null) {
+          builder.add(aclEntry.getProtocol(), getPortRangeFromAclEntry(aclEntry),
+              ImmutableList.of(cidr),
+              AccessType.valueOf(aclEntry.getRuleAction().toUpperCase(localizationContext.getLocale())));
+        }
+      }
+      indexes.put(direction, builder.build());
     }
+    return indexes;
   }
 
   /**
@@ -222,13 +265,13 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
    * the enforcements and violations for both allow and deny rules.
    *
    * @param networkAclId        the network ACL ID
-   * @param sortedEntries       the sorted list of network ACL entries
+   * @param index               the index of the network ACL entries, in rule number order
    * @param direction           the network traffic direction
    * @param accumulator         the exception condition accumulator
    * @param localizationContext the localization context
    */
   private void checkRulesForNetworkAclEntries(String networkAclId,
-      Iterable<NetworkAclEntry> sortedEntries,
+      NetworkPermissionIndex index,
       Direction direction,
       PluginExceptionConditionAccumulator accumulator,
       LocalizationContext localizationContext) {
@@ -237,28 +280,19 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
       return;
     }
 
-    List<NetworkRule> pendingRules = Lists.newArrayList(rules);
+    List<NetworkRule> pendingRules = Lists.newArrayList();
     Multimap<String, NetworkRule> violatedRules = HashMultimap.create();
 
-    for (NetworkAclEntry aclEntry : sortedEntries) {
-      String cidr = getCidrFromAclEntry(aclEntry);
-      if (cidr != null) {
-        final List<String> ipRanges = ImmutableList.of(cidr);
-        final String protocol = aclEntry.getProtocol();
-        final Range<Integer> ports = getPortRangeFromAclEntry(aclEntry);
-        final AccessType accessType =
-            AccessType.valueOf(aclEntry.getRuleAction().toUpperCase(localizationContext.getLocale()));
-
-        Iterator<NetworkRule> ruleIt = pendingRules.iterator();
-        while (ruleIt.hasNext()) {
-          NetworkRule rule = ruleIt.next();
-          if (rule.isEnforced(protocol, ports, ipRanges, accessType)) {
-            ruleIt.remove();
-          } else if (rule.isViolated(protocol, ports, ipRanges, accessType)) {
-            violatedRules.put(networkAclId, rule);
-            ruleIt.remove();
-          }
-        }
+    for (NetworkRule rule : rules) {
+      switch (index.getFirstMatch(rule)) {
+        case ENFORCED:
+          break;
+        case VIOLATED:
+          violatedRules.put(networkAclId, rule);
+          break;
+        default:
+          pendingRules.add(rule);
+          break;
       }
     }
     recordNotEnforcedRules(pendingRules, direction, accumulator, localizationContext,
@@ -339,12 +373,86 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
       // EC2InstanceTemplateConfigurationValidator.checkSecurityGroupIds()
     }
 
+    Map<String, Map<Direction, NetworkPermissionIndex>> indexes = new LinkedHashMap<>();
+    for (SecurityGroup sg : securityGroups) {
+      indexes.put(sg.getGroupId(), getPermissionIndexes(sg.getGroupId(), sg,
+          EC2NetworkValidator::compileSecurityGroup));
+    }
+
     for (Direction direction : Direction.values()) {
-      checkRulesForSecurityGroups(securityGroups, direction, accumulator,
+      checkRulesForSecurityGroups(indexes, direction, accumulator,
           localizationContext);
     }
   }
 
+  /**
+   * Compiles the permissions of a security group into a permission index per direction.
+   * Security groups only define allow rules.
+   *
+   * @param sg the security group
+   * @return the permission indexes, by direction
+   */
+  private static Map<Direction, NetworkPermissionIndex> compileSecurityGroup(SecurityGroup sg) {
+    Map<Direction, NetworkPermissionIndex> indexes = new EnumMap<>(Direction.class);
+    for (Direction direction : Direction.values()) {
+      List<IpPermission> permissions =
+          direction == Direction.INBOUND ? sg.getIpPermissions() : sg.getIpPermissionsEgress();
+      NetworkPermissionIndex.Builder builder = NetworkPermissionIndex.builder();
+      for (IpPermission permission : permissions) {
+        String protocol = permission.getIpProtocol();
+        if ("icmp".equalsIgnoreCase(protocol)) {
+          LOG.debug("Skipping check for ICMP permission {}", permission.toString());
+          continue;
+        }
+        builder.add(protocol, getPortRangeFromSgPermission(permission),
+            getIpRangesFromSgPermission(permission), AccessType.ALLOW);
+      }
+      indexes.put(direction, builder.build());
+    }
+    return indexes;
+  }
+
+  /**
+   * Returns the permission indexes of a security group or network ACL, compiling them
+   * unless the same identifier was compiled before with identical content.
+   *
+   * @param id       the security group or network ACL ID
+   * @param source   the security group or network ACL
+   * @param compiler the function compiling the permission indexes
+   * @param <T>      the type of source
+   * @return the permission indexes, by direction
+   */
+  private static <T> Map<Direction, NetworkPermissionIndex> getPermissionIndexes(String id,
+      T source, Function<T, Map<Direction, NetworkPermissionIndex>> compiler) {
+    if (id == null) {
+      return compiler.apply(source);
+    }
+    int contentHash = source.hashCode();
+    CompiledPermissions compiled = COMPILED_PERMISSIONS.getIfPresent(id);
+    if (compiled == null || compiled.contentHash != contentHash || !compiled.source.equals(source)) {
+      compiled = new CompiledPermissions(source, contentHash, compiler.apply(source));
+      COMPILED_PERMISSIONS.put(id, compiled);
+    }
+    return compiled.indexes;
+  }
+
+  /**
+   * The permission indexes compiled from a security group or network ACL, along with
+   * the content they were compiled from.
+   */
+  private static final class CompiledPermissions {
+    private final Object source;
+    private final int contentHash;
+    private final Map<Direction, NetworkPermissionIndex> indexes;
+
+    CompiledPermissions(Object source, int contentHash,
+        Map<Direction, NetworkPermissionIndex> indexes) {
+      this.source = source;
+      this.contentHash = contentHash;
+      this.indexes = indexes;
+    }
+  }
+
   /**
    * Checks the inbound/outbound security group permissions against pre-defined network
    * rules.
@@ -352,13 +460,14 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
    * Because security groups only define allow rules, we only need check the enforcement for
    * allow rules, and check violations for deny rules.
    *
-   * @param securityGroups      a list of security groups
+   * @param indexes             the permission indexes of the security groups, by group ID
    * @param direction           the network traffic direction
    * @param accumulator         the exception condition accumulator
    * @param localizationContext the localization context
    */
   @SuppressWarnings("StaticPseudoFunctionalStyleMethod")
-  private void checkRulesForSecurityGroups(List<SecurityGroup> securityGroups,
+  private void checkRulesForSecurityGroups(
+      Map<String, Map<Direction, NetworkPermissionIndex>> indexes,
       Direction direction,
       PluginExceptionConditionAccumulator accumulator,
       LocalizationContext localizationContext) {
@@ -372,27 +481,14 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
     List<NetworkRule> notEnforcedRules = Lists.newArrayList(allowRules);
     Multimap<String, NetworkRule> violatedRules = HashMultimap.create();
 
-    for (SecurityGroup sg : securityGroups) {
-      List<IpPermission> permissions =
-          direction == Direction.INBOUND ? sg.getIpPermissions() : sg.getIpPermissionsEgress();
-      for (IpPermission permission : permissions) {
-        final String protocol = permission.getIpProtocol();
-        if ("icmp".equalsIgnoreCase(protocol)) {
-          LOG.debug("Skipping check for ICMP permission {}", permission.toString());
-          continue;
-        }
-        final Range<Integer> ports = getPortRangeFromSgPermission(permission);
-        final List<String> ipRanges = getIpRangesFromSgPermission(permission);
-        if (!ipRanges.isEmpty()) {
-          // Check enforcements for allow rules
-          Iterables.removeIf(notEnforcedRules,
-              rule -> rule.isEnforced(protocol, ports, ipRanges, AccessType.ALLOW));
-
-          // Check violations for deny rules
-          violatedRules.putAll(sg.getGroupId(), Iterables.filter(denyRules,
-              rule -> rule.isViolated(protocol, ports, ipRanges, AccessType.ALLOW)));
-        }
-      }
+    for (Map.Entry<String, Map<Direction, NetworkPermissionIndex>> entry : indexes.entrySet()) {
+      NetworkPermissionIndex index = entry.getValue().get(direction);
+
+      // Check enforcements for allow rules
+      Iterables.removeIf(notEnforcedRules, index::isEnforced);
+
+      // Check violations for deny rules
+      violatedRules.putAll(entry.getKey(), Iterables.filter(denyRules, index::isViolated));
     }
 
     recordNotEnforcedRules(notEnforcedRules, direction, accumulator, localizationContext,
@@ -457,7 +553,7 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
    * @param permission the given security group rule
    * @return the port range that this security group rule applies to
    */
-  private Range<Integer> getPortRangeFromSgPermission(IpPermission permission) {
+  private static Range<Integer> getPortRangeFromSgPermission(IpPermission permission) {
     Integer fromPort = permission.getFromPort();
     Integer toPort = permission.getToPort();
     Range<Integer> ports = null;
@@ -479,7 +575,7 @@ public final class EC2NetworkValidator implements ConfigurationValidator {
    * @param permission the given security group rule
    * @return a list of IP ranges that the security group rule applies to
    */
-  private List<String> getIpRangesFromSgPermission(IpPermission permission) {
+  private static List<String> getIpRangesFromSgPermission(IpPermission permission) {
     List<String> cidrs = Lists.newArrayList();
     List<IpRange> ipRanges = permission.getIpv4Ranges();
     if (ipRanges != null && !ipRanges.isEmpty()) {
@@ -18,6 +18,8 @@ import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTempl
 import static com.cloudera.director.aws.ec2.EC2ProviderConfigurationPropertyToken.ASSOCIATE_PUBLIC_IP_ADDRESSES;
 import static com.cloudera.director.aws.ec2.EC2ProviderConfigurationPropertyToken.IMPORT_KEY_PAIR_IF_MISSING;
 import static com.cloudera.director.aws.ec2.EC2ProviderConfigurationPropertyToken.KEY_NAME_PREFIX;
+import static com.cloudera.director.aws.ec2.EC2ProviderConfigurationPropertyToken.REGION;
+import static com.cloudera.director.aws.ec2.EC2ProviderConfigurationPropertyToken.REGION_ENDPOINT;
 import static com.cloudera.director.aws.ec2.EC2Retryer.retryUntil;
 import static com.cloudera.director.aws.ec2.common.EC2Exceptions.INVALID_INSTANCE_ID_NOT_FOUND;
 import static com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate.ComputeInstanceTemplateConfigurationPropertyToken.SSH_JCE_PRIVATE_KEY;
@@ -25,6 +27,7 @@ import static com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate.Compu
 import static com.google.common.collect.Iterables.getOnlyElement;
 import static java.util.Objects.requireNonNull;
 
+import com.amazonaws.AbortedException;
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
@@ -56,9 +59,8 @@ import com.amazonaws.services.ec2.model.InstanceNetworkInterfaceSpecification;
 import com.amazonaws.services.ec2.model.InstanceStateName;
 import com.amazonaws.services.ec2.model.InstanceStatus;
 import com.amazonaws.services.ec2.model.Reservation;
+import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.Tag;
-import com.amazonaws.services.ec2.model.TerminateInstancesRequest;
-import com.amazonaws.services.ec2.model.TerminateInstancesResult;
 import com.amazonaws.services.ec2.model.Volume;
 import com.amazonaws.services.ec2.model.VolumeState;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
@@ -69,6 +71,7 @@ import com.cloudera.director.aws.AWSFilters;
 import com.cloudera.director.aws.AWSTimeouts;
 import com.cloudera.director.aws.CustomTagMappings;
 import com.cloudera.director.aws.clientprovider.ClientProvider;
+import com.cloudera.director.aws.common.CompletableFutures;
 import com.cloudera.director.aws.ec2.EC2Instance;
 import com.cloudera.director.aws.ec2.EC2InstanceState;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
@@ -77,17 +80,25 @@ import com.cloudera.director.aws.ec2.EC2TagHelper;
 import com.cloudera.director.aws.ec2.EphemeralDeviceMappings;
 import com.cloudera.director.aws.ec2.VirtualizationMappings;
 import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
 import com.cloudera.director.aws.ec2.allocation.IdType;
 import com.cloudera.director.aws.ec2.allocation.InstanceAllocator;
+import com.cloudera.director.aws.ec2.allocation.InstanceIdIndex;
+import com.cloudera.director.aws.ec2.allocation.InstanceTerminator;
 import com.cloudera.director.aws.ec2.allocation.asg.AutoScalingGroupAllocator;
+import com.cloudera.director.aws.ec2.allocation.asg.LaunchTemplateRegistry;
 import com.cloudera.director.aws.ec2.allocation.ondemand.OnDemandAllocator;
 import com.cloudera.director.aws.ec2.allocation.spot.SpotGroupAllocator;
 import com.cloudera.director.aws.ec2.ebs.EBSAllocator;
 import com.cloudera.director.aws.ec2.ebs.EBSAllocator.InstanceEbsVolumes;
 import com.cloudera.director.aws.ec2.ebs.EBSDeviceMappings;
 import com.cloudera.director.aws.ec2.ebs.EBSMetadata;
+import com.cloudera.director.aws.ec2.ebs.EBSVolumePipeline;
+import com.cloudera.director.aws.ec2.ebs.LaunchEncryptionSupport;
 import com.cloudera.director.aws.ec2.ebs.SystemDisk;
 import com.cloudera.director.aws.network.NetworkRules;
+import com.cloudera.director.aws.tracing.Span;
+import com.cloudera.director.aws.tracing.Tracing;
 import com.cloudera.director.spi.v2.compute.util.AbstractComputeProvider;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.ConfigurationValidator;
@@ -122,6 +133,7 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -143,9 +155,13 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.xml.bind.DatatypeConverter;
@@ -174,15 +190,20 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
           EC2ProviderConfigurationPropertyToken.values());
 
   /**
-   * EC2 only allows 95 instance status requests per batch.
+   * EC2 allows up to 100 instance IDs per instance status request.
    */
-  private static final int MAX_INSTANCE_STATUS_REQUESTS = 95;
+  private static final int MAX_INSTANCE_STATUS_REQUESTS = 100;
 
   /**
    * EC2 only allows 200 tag values to be filtered at a time.
    */
   private static final int MAX_TAG_FILTERING_REQUESTS = 200;
 
+  /**
+   * The maximum number of describe instances calls in flight for a single lookup.
+   */
+  private static final int MAX_CONCURRENT_DESCRIBE_REQUESTS = 4;
+
   @VisibleForTesting
   static final String DEVICE_TYPE_EBS = "ebs";
 
@@ -209,6 +230,15 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
    */
   private static final long DEFAULT_WAIT_FOR_HOST_KEY_FINGERPRINTS_MS = 6 * 60 * 1000; // 6 min
 
+  /**
+   * The launch template versions known to Auto Scaling group allocations. Shared across
+   * provider instances, since a new provider is created for each resource provider request,
+   * and keyed by endpoint and account as well as by name, since providers for different
+   * regions and accounts share it.
+   */
+  private static final LaunchTemplateRegistry LAUNCH_TEMPLATE_REGISTRY =
+      new LaunchTemplateRegistry();
+
   /**
    * Instance allocation strategies.
    */
@@ -216,11 +246,12 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     ON_DEMAND {
       @Override
       InstanceAllocator allocator(EC2Provider ec2Provider,
-          EC2InstanceTemplate template, Collection<String> virtualInstanceIds, int minCount) {
+          EC2InstanceTemplate template, Collection<String> virtualInstanceIds, int minCount,
+          boolean allocating) {
 
         // Tag EBS volumes if they were part of instance launch request
-        boolean tagEbsVolumes = (template != null) &&
-            (EBSAllocationStrategy.get(template) == EBSAllocationStrategy.AS_INSTANCE_REQUEST);
+        boolean tagEbsVolumes = allocating && (template != null) &&
+            (EBSAllocationStrategy.get(ec2Provider, template) == EBSAllocationStrategy.AS_INSTANCE_REQUEST);
 
         return new OnDemandAllocator(ec2Provider.allocationHelper, ec2Provider.client, ec2Provider.stsClient,
             tagEbsVolumes, ec2Provider.useTagOnCreate,
@@ -231,11 +262,12 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     SPOT {
       @Override
       InstanceAllocator allocator(EC2Provider ec2Provider,
-          EC2InstanceTemplate template, Collection<String> virtualInstanceIds, int minCount) {
+          EC2InstanceTemplate template, Collection<String> virtualInstanceIds, int minCount,
+          boolean allocating) {
 
         // Tag EBS volumes if they were part of instance launch request
-        boolean tagEbsVolumes = (template != null) &&
-            (EBSAllocationStrategy.get(template) == EBSAllocationStrategy.AS_INSTANCE_REQUEST);
+        boolean tagEbsVolumes = allocating && (template != null) &&
+            (EBSAllocationStrategy.get(ec2Provider, template) == EBSAllocationStrategy.AS_INSTANCE_REQUEST);
 
         return new SpotGroupAllocator(
             ec2Provider.allocationHelper, ec2Provider.client, ec2Provider.stsClient,
@@ -246,11 +278,12 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     AUTO_SCALING_GROUP {
       @Override
       InstanceAllocator allocator(EC2Provider ec2Provider,
-          EC2InstanceTemplate template, Collection<String> instanceIds, int minCount) {
+          EC2InstanceTemplate template, Collection<String> instanceIds, int minCount,
+          boolean allocating) {
 
         return new AutoScalingGroupAllocator(ec2Provider.allocationHelper,
             ec2Provider.client, ec2Provider.autoScalingClient, ec2Provider.stsClient,
-            template, instanceIds, minCount);
+            LAUNCH_TEMPLATE_REGISTRY, ec2Provider.ec2Endpoint, template, instanceIds, minCount);
       }
     };
 
@@ -261,14 +294,17 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
      * @param template    the instance template
      * @param instanceIds the instance IDs
      * @param minCount    the min count
+     * @param allocating  whether the allocator is used to allocate instances, rather than to
+     *                    look them up or delete them
      * @return the instance allocator
      */
     private static InstanceAllocator getInstanceAllocator(EC2Provider ec2Provider,
-        EC2InstanceTemplate template, Collection<String> instanceIds, int minCount) {
+        EC2InstanceTemplate template, Collection<String> instanceIds, int minCount,
+        boolean allocating) {
       InstanceAllocationStrategy allocationStrategy;
       allocationStrategy = getInstanceAllocationStrategy(template);
       return allocationStrategy.allocator(ec2Provider,
-          template, instanceIds, minCount);
+          template, instanceIds, minCount, allocating);
     }
 
     /**
@@ -290,8 +326,22 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
       return allocationStrategy;
     }
 
+    /**
+     * Returns an instance allocator for the specified parameters. How the EBS volumes of the
+     * template are allocated is only determined when allocating, since it may take a dry run
+     * launch request.
+     *
+     * @param ec2Provider the EC2 provider
+     * @param template    the instance template
+     * @param instanceIds the instance IDs
+     * @param minCount    the min count
+     * @param allocating  whether the allocator is used to allocate instances, rather than to
+     *                    look them up or delete them
+     * @return the instance allocator
+     */
     abstract InstanceAllocator allocator(EC2Provider ec2Provider,
-        EC2InstanceTemplate template, Collection<String> instanceIds, int minCount);
+        EC2InstanceTemplate template, Collection<String> instanceIds, int minCount,
+        boolean allocating);
   }
 
   private enum EBSAllocationStrategy {
@@ -299,18 +349,21 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     AS_INSTANCE_REQUEST,
     AS_SEPARATE_REQUESTS;
 
-    private static EBSAllocationStrategy get(EC2InstanceTemplate template) {
+    private static EBSAllocationStrategy get(EC2Provider ec2Provider, EC2InstanceTemplate template) {
       if (template.getEbsVolumeCount() == 0 && template.getSystemDisks().size() == 0) {
         return NO_EBS_VOLUMES;
       }
 
       // Ideally we want to request EBS volumes as part of the instance launch request.
       // However due to AWS API limitations, requesting encrypted EBS volumes with a
-      // user specified KMS key can not be done as part of instance launch for certain
-      // regions (like GovCloud). In this scenario we allow the option to individually
-      // create and attach each EBS volume separately after instance launch.
-
-      if (requiresSeparateEbsAllocation(template)) {
+      // user specified KMS key may not be possible as part of instance launch for certain
+      // regions (like GovCloud). In this scenario we allow the option to fall back to
+      // individually creating and attaching each EBS volume after instance launch, which
+      // costs several API calls and waits per volume, so it is only used when a dry run
+      // shows that the launch request would be rejected.
+
+      if (requiresSeparateEbsAllocation(template)
+          && !ec2Provider.isLaunchEncryptionSupported(template)) {
         return AS_SEPARATE_REQUESTS;
       } else {
         return AS_INSTANCE_REQUEST;
@@ -318,6 +371,32 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     }
   }
 
+  /**
+   * Returns whether the encrypted EBS volumes of the specified template can be requested with
+   * their KMS key as part of the instance launch request, which is probed once per subnet and
+   * key with a dry run of a single instance launch.
+   *
+   * @param template the instance template
+   * @return whether launch-time encryption with the template's KMS key is supported
+   */
+  private boolean isLaunchEncryptionSupported(EC2InstanceTemplate template) {
+    String kmsKeyId = (template.getEbsVolumeCount() != 0)
+        ? template.getEbsKmsKeyId().get()
+        : template.getSystemDisks().get(0).getKmsKeyId();
+    return LaunchEncryptionSupport.isSupported(client, template.getSubnetId(), kmsKeyId, () -> {
+      Image image = getImage(template.getImage());
+      return new RunInstancesRequest()
+          .withImageId(template.getImage())
+          .withInstanceType(template.getType())
+          .withMinCount(1)
+          .withMaxCount(1)
+          .withNetworkInterfaces(
+              allocationHelper.getInstanceNetworkInterfaceSpecification(template))
+          .withBlockDeviceMappings(ebsDeviceMappings.getBlockDeviceMappings(template,
+              getExistingDeviceNames(image.getBlockDeviceMappings())));
+    });
+  }
+
   private static boolean requiresSeparateEbsAllocation(EC2InstanceTemplate template) {
     return template.isAllocateEbsSeparately() && hasVolumesWithKmsKey(template);
   }
@@ -344,6 +423,20 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
   private final AWSSecurityTokenServiceAsyncClient stsClient;
   private final AmazonAutoScalingAsyncClient autoScalingClient;
 
+  /**
+   * The configured EC2 region endpoint, or a string identifying the configured region if there
+   * is none, as used to share the EC2 client.
+   */
+  private final String ec2Endpoint;
+
+  /**
+   * The client providers of the above clients. Shared clients are shut down once every client
+   * provider that acquired them has been garbage collected, so the client providers are kept
+   * reachable for as long as this provider uses their clients.
+   */
+  @SuppressWarnings({"unused", "PMD.UnusedPrivateField"})
+  private final List<ClientProvider<?>> clientProviders;
+
   private final EphemeralDeviceMappings ephemeralDeviceMappings;
   private final EBSDeviceMappings ebsDeviceMappings;
   private final VirtualizationMappings virtualizationMappings;
@@ -431,6 +524,8 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
         .getClient(configuration, accumulator, localizationContext, false);
     this.stsClient = requireNonNull(stsClientProvider, "stsClientProvider is null")
         .getClient(configuration, accumulator, localizationContext, false);
+    this.clientProviders = ImmutableList.of(clientProvider, autoScalingClientProvider,
+        identityManagementClientProvider, kmsClientProvider, stsClientProvider);
 
     if (accumulator.hasError()) {
       PluginExceptionDetails pluginExceptionDetails =
@@ -439,6 +534,11 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
           pluginExceptionDetails);
     }
 
+    String regionEndpoint = getConfigurationValue(REGION_ENDPOINT, localizationContext);
+    this.ec2Endpoint = (regionEndpoint != null)
+        ? regionEndpoint
+        : "region:" + getConfigurationValue(REGION, localizationContext);
+
     this.associatePublicIpAddresses = Boolean.parseBoolean(
         getConfigurationValue(ASSOCIATE_PUBLIC_IP_ADDRESSES, localizationContext));
 
@@ -581,20 +681,72 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     // We are punting this for a future change that compels us to release a new version of SPI
     ec2TagHelper.validateTags(template.getTags());
 
+    try (Span span = Tracing.startSpan("allocate")) {
+      span.setAttribute("template.name", template.getName())
+          .setAttribute("instance.type", template.getType())
+          .setAttribute("instance.count.requested", instanceIds.size())
+          .setAttribute("instance.count.min", minCount)
+          .setAttribute("allocation.strategy",
+              InstanceAllocationStrategy.getInstanceAllocationStrategy(template));
+      try {
+        Collection<EC2Instance> allocatedInstances = doAllocate(template, instanceIds, minCount);
+        if (!isAutomatic(template)) {
+          InstanceIdIndex.get().putAll(allocatedInstances.stream().collect(
+              Collectors.toMap(AbstractResource::getId, (i) -> i.unwrap().getInstanceId())));
+        }
+        span.setAttribute("instance.count.allocated", allocatedInstances.size()).setOk();
+        return allocatedInstances;
+      } catch (InterruptedException | RuntimeException e) {
+        span.recordError(e);
+        throw e;
+      }
+    }
+  }
+
+  private Collection<EC2Instance> doAllocate(
+      EC2InstanceTemplate template,
+      Collection<String> instanceIds,
+      int minCount)
+      throws InterruptedException {
+
     InstanceAllocator allocator = InstanceAllocationStrategy.getInstanceAllocator(
-        this, template, instanceIds, minCount);
+        this, template, instanceIds, minCount, true);
 
-    Collection<EC2Instance> allocatedInstances = allocator.allocate();
+    if (EBSAllocationStrategy.get(this, template) != EBSAllocationStrategy.AS_SEPARATE_REQUESTS) {
+      return allocator.allocate();
+    }
+
+    // Volumes left incomplete by an interrupted allocation of the same instances would not be
+    // deleted along with the instances
+    deleteIncompleteVolumes(instanceIds);
+
+    // Allocate the EBS volumes of each instance as soon as it starts running, overlapping
+    // with the rest of the allocation
+    EBSAllocator ebsAllocator = createEbsAllocator(template);
+    Collection<EC2Instance> allocatedInstances;
+    try (EBSVolumePipeline pipeline =
+             new EBSVolumePipeline(ebsAllocator, template, instanceIds.size())) {
+      allocator.setInstanceStartedListener(pipeline::submit);
+      try {
+        allocatedInstances = allocator.allocate();
+      } catch (InterruptedException | RuntimeException e) {
+        // The allocator has already cleaned up its instances
+        deleteAbandonedVolumes(pipeline, template, ebsAllocator);
+        throw e;
+      }
 
-    if (EBSAllocationStrategy.get(template) == EBSAllocationStrategy.AS_SEPARATE_REQUESTS) {
       if (allocatedInstances.size() > 0) {
         LOG.info(">> Allocating EBS volumes");
         Map<String, String> instanceIdPairs = allocatedInstances.stream().collect(
             Collectors.toMap(AbstractResource::getId, (i) -> i.unwrap().getInstanceId()));
 
-        allocateEbsVolumes(template, instanceIdPairs, minCount);
+        try (Span span = Tracing.startSpan("allocate-ebs-volumes")) {
+          span.setAttribute("instance.count", instanceIdPairs.size());
+          allocateEbsVolumes(template, instanceIdPairs, minCount, ebsAllocator, pipeline);
+        }
       } else {
         LOG.info(">> Skipping EBS volume allocation since no instances were allocated");
+        deleteAbandonedVolumes(pipeline, template, ebsAllocator);
       }
     }
 
@@ -611,8 +763,10 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
             ? InstanceAllocationStrategy.ON_DEMAND
             : InstanceAllocationStrategy.getInstanceAllocationStrategy(template);
     InstanceAllocator allocator =
-        instanceAllocationStrategy.allocator(this, template, instanceIds, 0);
+        instanceAllocationStrategy.allocator(this, template, instanceIds, 0, false);
+    deleteIncompleteVolumes(instanceIds);
     allocator.delete();
+    AllocationJournal.get().recordReleased(instanceIds);
   }
 
   @Override
@@ -625,6 +779,8 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
         : Maps.newHashMap(getEC2InstanceIdsByVirtualInstanceId(instanceIds));
 
     Map<String, Set<String>> hostKeyFingerprints = Maps.newHashMapWithExpectedSize(idsToCheck.size());
+    Map<String, ConsoleOutputExtractor.FingerprintScan> scans =
+        Maps.newHashMapWithExpectedSize(idsToCheck.size());
 
     LOG.info("Waiting for EC2 console output to display its host key fingerprint for instance(s): {}",
         idsToCheck.keySet());
@@ -642,16 +798,19 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
         GetConsoleOutputResult result = client.getConsoleOutput(consoleOutputRequest);
 
         if (result.getOutput() != null) {
-          String consoleOutput = result.getDecodedOutput();
-          if (!consoleOutputExtractor.hasHostKeyFingerprintBlock(consoleOutput)) {
+          // Each poll resumes the scan where the previous one stopped
+          ConsoleOutputExtractor.FingerprintScan scan = scans.computeIfAbsent(instanceId,
+              (id) -> new ConsoleOutputExtractor.FingerprintScan());
+          consoleOutputExtractor.scan(result.getDecodedOutput(), scan);
+          if (!scan.isComplete()) {
             LOG.debug("EC2 Console Output doesn't contain the host key fingerprint yet, retrying ...");
             continue;
           }
 
-          Set<String> instanceHostKeyFingerprints
-              = consoleOutputExtractor.getHostKeyFingerprints(result.getDecodedOutput());
+          Set<String> instanceHostKeyFingerprints =
+              consoleOutputExtractor.getHostKeyFingerprints(scan);
 
-          LOG.debug("Host key fingerprints for ID {} are {}", instanceId, instanceHostKeyFingerprints);
+          LOG.debug("Host key fingerprints for ID {} are {}", instanceId, scan.getFingerprints());
           hostKeyFingerprints.put(instanceId, instanceHostKeyFingerprints);
           it.remove();
         } else {
@@ -674,42 +833,60 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     return hostKeyFingerprints;
   }
 
+  /**
+   * Creates an EBS allocator for the specified template.
+   *
+   * @param template the EC2 instance template that contains EBS configurations
+   * @return the EBS allocator
+   */
+  private EBSAllocator createEbsAllocator(EC2InstanceTemplate template) {
+    Image image = getImage(template.getImage());
+    Set<String> existingDeviceNames = getExistingDeviceNames(image.getBlockDeviceMappings());
+
+    return new EBSAllocator(this.client, this.stsClient, this.awsTimeouts, ec2TagHelper,
+        ebsDeviceMappings, existingDeviceNames, useTagOnCreate);
+  }
+
   /**
    * Creates and attaches EBS volumes to EC2 instances. This expects that the instances
-   * have already been allocated. Instances that could not acquire the correct number of
+   * have already been allocated, and that the volumes of some of them may already be
+   * allocating in the pipeline. Instances that could not acquire the correct number of
    * EBS volumes will be terminated along with any leftover volumes. If the minimum
    * number of instances could not acquire EBS volumes, all the specified instances and
-   * leftover volumes will be terminated.
+   * leftover volumes will be terminated. Instances whose volumes were allocated, but that
+   * the instance allocator did not return, are terminated along with their volumes.
    *
    * @param template        the EC2 instance template that contains EBS configurations
    * @param instanceIdPairs map from instance IDs to EC2 instance IDs to attach volumes to
    * @param minCount        the minimum number of instances that need EBS volumes attached
+   * @param ebsAllocator    the EBS allocator
+   * @param pipeline        the EBS volume pipeline
    * @throws InterruptedException if the process is interrupted
    */
   private void allocateEbsVolumes(EC2InstanceTemplate template, Map<String, String> instanceIdPairs,
-      int minCount)
+      int minCount, EBSAllocator ebsAllocator, EBSVolumePipeline pipeline)
       throws InterruptedException {
 
     boolean success = false;
 
-    Image image = getImage(template.getImage());
-    Set<String> existingDeviceNames = getExistingDeviceNames(image.getBlockDeviceMappings());
-
-    EBSAllocator ebsAllocator = new EBSAllocator(this.client, this.stsClient, this.awsTimeouts, ec2TagHelper,
-        ebsDeviceMappings, existingDeviceNames, useTagOnCreate);
-
-    List<InstanceEbsVolumes> instanceVolumes = ebsAllocator.createVolumes(template, instanceIdPairs);
+    List<InstanceEbsVolumes> instanceVolumes = Collections.emptyList();
+    List<InstanceEbsVolumes> abandonedVolumes = Lists.newArrayList();
 
     try {
-      try {
-        instanceVolumes = ebsAllocator.waitUntilVolumesAvailable(instanceVolumes);
-        instanceVolumes = ebsAllocator.attachAndOptionallyTagVolumes(template, instanceVolumes);
-      } finally {
-        // Ensure that delete on termination is set for attached instances no matter what. It's possible
-        // for the EBS volume/ attachment to time out but still succeed, which can lead to leaked EBS
-        // volumes. This should ensure that the instances are not leaked accidentally.
-        instanceVolumes = ebsAllocator.getUpdatedVolumeInfo(instanceVolumes); // Update volume states
-        ebsAllocator.addDeleteOnTerminationFlag(instanceVolumes);
+      // Instances whose start was not reported by the instance allocator begin only now
+      for (Entry<String, String> instanceIdPair : instanceIdPairs.entrySet()) {
+        pipeline.submit(instanceIdPair.getKey(), instanceIdPair.getValue());
+      }
+
+      try (Span span = Tracing.startSpan("ebs-wait-pipelines")) {
+        instanceVolumes = Lists.newArrayList();
+        for (InstanceEbsVolumes volumes : pipeline.awaitAll()) {
+          if (instanceIdPairs.containsKey(volumes.getInstanceId())) {
+            instanceVolumes.add(volumes);
+          } else {
+            abandonedVolumes.add(volumes);
+          }
+        }
       }
 
       int successfulInstances = getSuccessfulInstanceCount(instanceVolumes);
@@ -723,18 +900,82 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
         success = true;
       }
     } catch (InterruptedException e) {
+      abandonedVolumes.clear();
+      instanceVolumes = pipeline.cancel();
       throw e;
     } catch (Exception e) {
+      abandonedVolumes.clear();
+      instanceVolumes = pipeline.cancel();
       throw new UnrecoverableProviderException("Unexpected problem allocating EBS volumes", e);
     } finally {
-      if (!success) {
-        deleteAllInstancesAndVolumes(instanceVolumes, template, ebsAllocator);
-      } else {
-        deleteFailedInstancesAndVolumes(instanceVolumes, template, ebsAllocator);
+      try (Span span = Tracing.startSpan("ebs-cleanup")) {
+        span.setAttribute("ebs.all.deleted", !success);
+        if (!abandonedVolumes.isEmpty()) {
+          deleteAllInstancesAndVolumes(abandonedVolumes, template, ebsAllocator);
+        }
+        if (!success) {
+          // Pipelines may have been stopped midway, so refresh the volume states, and make sure
+          // that instances whose pipeline had not made any progress are terminated too
+          Set<String> instancesWithVolumes = instanceVolumes.stream()
+              .map(InstanceEbsVolumes::getInstanceId)
+              .collect(Collectors.toSet());
+          deleteAllInstancesAndVolumes(ebsAllocator.getUpdatedVolumeInfo(instanceVolumes),
+              template, ebsAllocator);
+          Set<String> instancesWithoutVolumes =
+              Sets.difference(instanceIdPairs.keySet(), instancesWithVolumes);
+          if (!instancesWithoutVolumes.isEmpty()) {
+            delete(template, instancesWithoutVolumes);
+          }
+        } else {
+          deleteFailedInstancesAndVolumes(instanceVolumes, template, ebsAllocator);
+        }
       }
     }
   }
 
+  /**
+   * Stops the EBS volume pipeline after the instance allocation failed, and deletes any
+   * volumes it had created, along with their instances.
+   */
+  private void deleteAbandonedVolumes(EBSVolumePipeline pipeline, EC2InstanceTemplate template,
+      EBSAllocator ebsAllocator) throws InterruptedException {
+    List<InstanceEbsVolumes> abandonedVolumes = pipeline.cancel();
+    if (abandonedVolumes.isEmpty()) {
+      return;
+    }
+    LOG.info(">> Deleting EBS volumes of {} instance(s) that were not allocated",
+        abandonedVolumes.size());
+    try (Span span = Tracing.startSpan("ebs-cleanup")) {
+      span.setAttribute("ebs.all.deleted", true);
+      deleteAllInstancesAndVolumes(ebsAllocator.getUpdatedVolumeInfo(abandonedVolumes),
+          template, ebsAllocator);
+    } catch (RuntimeException e) {
+      LOG.error("Error while deleting EBS volumes after failed instance allocation.", e);
+    }
+  }
+
+  /**
+   * Deletes the EBS volumes that the allocation journal records as created for the specified
+   * instances, but not yet attached and deleted on termination, typically because Director
+   * stopped in the middle of their allocation.
+   *
+   * @param instanceIds the virtual instance IDs
+   * @throws InterruptedException if the operation is interrupted
+   */
+  private void deleteIncompleteVolumes(Collection<String> instanceIds)
+      throws InterruptedException {
+    Collection<AllocationJournal.Record> records =
+        AllocationJournal.get().getRecords(instanceIds).values();
+    if (records.stream().noneMatch(AllocationJournal.Record::hasIncompleteVolumes)) {
+      return;
+    }
+
+    // Deleting volumes does not depend on the image of the instances
+    EBSAllocator ebsAllocator = new EBSAllocator(this.client, this.stsClient, this.awsTimeouts,
+        ec2TagHelper, ebsDeviceMappings, Collections.emptySet(), useTagOnCreate);
+    ebsAllocator.deleteIncompleteVolumes(records);
+  }
+
   /**
    * Terminates failed instances and their associated volumes. In this case a failed
    * instance is any instance that doesn't have all their volumes as ATTACHED.
@@ -843,7 +1084,7 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
 
     if (instanceIds.isEmpty()) {
       InstanceAllocator allocator = InstanceAllocationStrategy.getInstanceAllocator(
-          this, template, instanceIds, 0);
+          this, template, instanceIds, 0, false);
       instanceIds = allocator.getInstanceIds();
     }
 
@@ -900,21 +1141,134 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
       Collection<String> instanceIds) {
     IdType idType = getIdType(template);
 
+    // Only states are needed, so instances whose EC2 instance ID is known are described with
+    // instance status requests, whose responses are much smaller than full descriptions
+    Map<String, String> ec2InstanceIdsByInstanceId;
+    if (idType == IdType.EC2_INSTANCE_ID) {
+      ec2InstanceIdsByInstanceId = Maps.toMap(instanceIds, (instanceId) -> instanceId);
+    } else {
+      ec2InstanceIdsByInstanceId = InstanceIdIndex.get().getEc2InstanceIds(instanceIds);
+    }
+    Map<String, InstanceStateName> stateNamesByEc2InstanceId =
+        getInstanceStateNames(ec2InstanceIdsByInstanceId.values());
+
     Map<String, InstanceState> instanceStateByInstanceId =
         Maps.newHashMapWithExpectedSize(instanceIds.size());
-
-    // Partition full requests into multiple batch requests, AWS limits
-    // the total number of instance status requests you can make.
-    List<List<String>> partitions =
-        Lists.partition(Lists.newArrayList(instanceIds), MAX_INSTANCE_STATUS_REQUESTS);
-
-    for (List<String> partition : partitions) {
-      instanceStateByInstanceId.putAll(getBatchInstanceState(partition, idType));
+    List<String> unresolvedInstanceIds = Lists.newArrayList();
+    for (String instanceId : instanceIds) {
+      String ec2InstanceId = ec2InstanceIdsByInstanceId.get(instanceId);
+      InstanceStateName stateName =
+          (ec2InstanceId == null) ? null : stateNamesByEc2InstanceId.get(ec2InstanceId);
+      if (stateName != null && (idType == IdType.EC2_INSTANCE_ID
+          || (stateName != InstanceStateName.Terminated
+          && stateName != InstanceStateName.ShuttingDown))) {
+        instanceStateByInstanceId.put(instanceId,
+            EC2InstanceState.fromInstanceStateName(stateName));
+      } else if (idType == IdType.VIRTUAL_INSTANCE_ID) {
+        // The virtual instance is not indexed, or its indexed instance is gone, in which case
+        // it may have been reallocated, so it is looked up by tag
+        unresolvedInstanceIds.add(instanceId);
+      }
+    }
+    if (!unresolvedInstanceIds.isEmpty()) {
+      instanceStateByInstanceId.putAll(getBatchInstanceState(unresolvedInstanceIds, idType));
     }
 
     return instanceStateByInstanceId;
   }
 
+  /**
+   * Returns the state names of the specified EC2 instances. Chunks of instances are described
+   * concurrently with instance status requests that include instances that are not running.
+   * A chunk that is rejected because some of its instances do not exist is described again
+   * with an instance ID filter, which omits missing instances.
+   *
+   * @param ec2InstanceIds the EC2 instance IDs
+   * @return the state names, by EC2 instance ID, omitting missing instances
+   */
+  private Map<String, InstanceStateName> getInstanceStateNames(
+      Collection<String> ec2InstanceIds) {
+    Map<String, InstanceStateName> stateNames = new ConcurrentHashMap<>();
+    List<List<String>> chunks = Lists.partition(
+        Lists.newArrayList(Sets.newLinkedHashSet(ec2InstanceIds)), MAX_INSTANCE_STATUS_REQUESTS);
+    await(CompletableFutures.runAll(chunks,
+        (chunk) -> describeInstanceStatuses(new DescribeInstanceStatusRequest()
+            .withIncludeAllInstances(true)
+            .withInstanceIds(chunk), stateNames)
+            .handle((ignored, t) -> {
+              Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+              if (cause == null) {
+                return CompletableFuture.<Void>completedFuture(null);
+              }
+              if (cause instanceof AmazonServiceException
+                  && (INVALID_INSTANCE_ID_NOT_FOUND.equals(
+                  ((AmazonServiceException) cause).getErrorCode())
+                  || "InvalidInstanceID.Malformed".equals(
+                  ((AmazonServiceException) cause).getErrorCode()))) {
+                return allocationHelper.describeAllPages(new DescribeInstancesRequest()
+                        .withFilters(new Filter().withName("instance-id").withValues(chunk)),
+                    (result) -> {
+                      for (Reservation reservation : result.getReservations()) {
+                        for (Instance instance : reservation.getInstances()) {
+                          stateNames.put(instance.getInstanceId(),
+                              InstanceStateName.fromValue(instance.getState().getName()));
+                        }
+                      }
+                    });
+              }
+              CompletableFuture<Void> failed = new CompletableFuture<>();
+              failed.completeExceptionally(cause);
+              return failed;
+            })
+            .thenCompose((future) -> future),
+        MAX_CONCURRENT_DESCRIBE_REQUESTS), "describing instance states");
+    return stateNames;
+  }
+
+  /**
+   * Describes the statuses of the instances matching the specified request, following
+   * pagination, and records their state names.
+   *
+   * @param request    the request
+   * @param stateNames the map in which to record state names, by EC2 instance ID
+   * @return a future that completes once all pages have been recorded
+   */
+  private CompletableFuture<Void> describeInstanceStatuses(DescribeInstanceStatusRequest request,
+      Map<String, InstanceStateName> stateNames) {
+    return CompletableFutures.<DescribeInstanceStatusRequest, DescribeInstanceStatusResult>call(
+        client::describeInstanceStatusAsync, request)
+        .thenCompose((result) -> {
+          for (InstanceStatus status : result.getInstanceStatuses()) {
+            stateNames.put(status.getInstanceId(),
+                InstanceStateName.fromValue(status.getInstanceState().getName()));
+          }
+          if (result.getInstanceStatuses().isEmpty() || result.getNextToken() == null) {
+            return CompletableFuture.completedFuture(null);
+          }
+          return describeInstanceStatuses(request.clone().withNextToken(result.getNextToken()),
+              stateNames);
+        });
+  }
+
+  /**
+   * Blocks until the specified future completes, for blocking SPI methods that do not declare
+   * {@code InterruptedException}. Interruption is reported as it is by blocking SDK calls.
+   *
+   * @param future    the future
+   * @param operation a description of the operation, for the interruption message
+   * @param <T>       the type of result
+   * @return the result of the future
+   * @throws AbortedException if the calling thread is interrupted
+   */
+  private static <T> T await(CompletableFuture<T> future, String operation) {
+    try {
+      return CompletableFutures.join(future);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AbortedException("Interrupted while " + operation, e);
+    }
+  }
+
   @Override
   protected Configured enhanceTemplateConfiguration(String name, Configured configuration,
       LocalizationContext templateLocalizationContext) {
@@ -1314,6 +1668,22 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
       return EC2Provider.this.find(template, instanceIds);
     }
 
+    @Override
+    public Map<String, Instance> findByEc2InstanceIds(Collection<String> ec2InstanceIds) {
+      Map<String, Instance> instances = Maps.newHashMapWithExpectedSize(ec2InstanceIds.size());
+      for (List<String> ec2InstanceIdChunk
+          : Iterables.partition(ec2InstanceIds, MAX_TAG_FILTERING_REQUESTS)) {
+        // Unlike listing instance IDs, filtering by them does not fail on missing instances
+        forEachInstance(client.describeInstances(new DescribeInstancesRequest()
+            .withFilters(new Filter().withName("instance-id").withValues(ec2InstanceIdChunk))),
+            instance -> {
+              instances.put(instance.getInstanceId(), instance);
+              return null;
+            });
+      }
+      return instances;
+    }
+
     @Override
     public void forEachInstance(DescribeInstancesResult result,
         Function<Instance, Void> instanceHandler) {
@@ -1383,7 +1753,7 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
 
       List<BlockDeviceMapping> deviceMappings = Lists.newArrayList(rootDevice);
 
-      EBSAllocationStrategy ebsAllocationStrategy = EBSAllocationStrategy.get(template);
+      EBSAllocationStrategy ebsAllocationStrategy = EBSAllocationStrategy.get(EC2Provider.this, template);
 
       switch (ebsAllocationStrategy) {
         case NO_EBS_VOLUMES:
@@ -1497,7 +1867,9 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     /**
      * Iterates through the instances identified by the specified instance IDs and calls the
      * specified handler on each instance. Instances with the same instance IDs are deduplicated,
-     * preferring running instances over terminating or terminated instances.
+     * preferring running instances over terminating or terminated instances. Virtual instance
+     * IDs found in the instance ID index are looked up by EC2 instance ID, and only the others
+     * are looked up by tag.
      *
      * @param instanceIds     the instance IDs
      * @param instanceHandler the instance handler
@@ -1506,45 +1878,105 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
     @VisibleForTesting
     void forEachInstance(Collection<String> instanceIds,
         Function<Instance, Void> instanceHandler, IdType idType) {
-      List<DescribeInstancesResult> results = Lists.newArrayList();
+      // collect Instances, preferring running instances over terminated instances and
+      // also ensuring we only process one instance per instance id
+      final Map<String, Instance> instanceIdToInstance =
+          Maps.newHashMapWithExpectedSize(instanceIds.size());
+      Collection<String> unindexedInstanceIds = instanceIds;
+      if (idType == IdType.VIRTUAL_INSTANCE_ID) {
+        instanceIdToInstance.putAll(findIndexedInstances(instanceIds));
+        if (!instanceIdToInstance.isEmpty()) {
+          unindexedInstanceIds = Lists.newArrayList(Sets.difference(
+              Sets.newLinkedHashSet(instanceIds), instanceIdToInstance.keySet()));
+        }
+      }
+
       String idTagName = ec2TagHelper.getClouderaDirectorIdTagName();
-      for (List<String> instanceIdChunk : Iterables.partition(instanceIds, MAX_TAG_FILTERING_REQUESTS)) {
-        DescribeInstancesResult result;
+      List<DescribeInstancesRequest> requests = Lists.newArrayList();
+      for (List<String> instanceIdChunk
+          : Iterables.partition(unindexedInstanceIds, MAX_TAG_FILTERING_REQUESTS)) {
         switch (idType) {
           case EC2_INSTANCE_ID:
-            try {
-              result = client.describeInstances(new DescribeInstancesRequest()
-                  .withInstanceIds(instanceIdChunk));
-            } catch (AmazonServiceException e) {
-              if (!"InvalidInstanceID.Malformed".equals(e.getErrorCode())) {
-                throw e;
-              }
-              continue;
-            }
+            requests.add(new DescribeInstancesRequest().withInstanceIds(instanceIdChunk));
             break;
           case VIRTUAL_INSTANCE_ID:
-            result = client.describeInstances(new DescribeInstancesRequest()
+            requests.add(new DescribeInstancesRequest()
                 .withFilters(new Filter().withName("tag:" + idTagName)
                     .withValues(instanceIdChunk)));
             break;
           default:
             throw new IllegalStateException("Unknown ID type: " + idType);
         }
-        results.add(result);
       }
 
-      // collect Instances, preferring running instances over terminated instances and
-      // also ensuring we only process one instance per instance id
-      final Map<String, Instance> instanceIdToInstance =
-          Maps.newHashMapWithExpectedSize(instanceIds.size());
-      for (DescribeInstancesResult result : results) {
-        forEachInstance(result, instance -> {
+      // Chunks are described concurrently, and each page is merged as soon as it arrives, so
+      // that only the pages in flight are held in memory
+      await(CompletableFutures.runAll(requests,
+          (request) -> describeAllPages(request, (result) -> {
+            synchronized (instanceIdToInstance) {
+              mergeInstances(result, instanceIdToInstance, idType);
+            }
+          }).handle((ignored, t) -> {
+            Throwable cause = (t instanceof CompletionException) ? t.getCause() : t;
+            if (cause instanceof AmazonServiceException
+                && "InvalidInstanceID.Malformed".equals(
+                ((AmazonServiceException) cause).getErrorCode())) {
+              return null;
+            }
+            if (cause != null) {
+              throw new CompletionException(cause);
+            }
+            return null;
+          }),
+        MAX_CONCURRENT_DESCRIBE_REQUESTS), "describing instances");
+
+      for (Instance instance : instanceIdToInstance.values()) {
+        instanceHandler.apply(instance);
+      }
+    }
+
+    /**
+     * Describes the instances matching the specified request, passing each page of results to
+     * the specified handler as soon as it arrives, and requesting the next page afterwards.
+     *
+     * @param request     the request
+     * @param pageHandler the page handler
+     * @return a future that completes once all pages have been handled
+     */
+    private CompletableFuture<Void> describeAllPages(DescribeInstancesRequest request,
+        Consumer<DescribeInstancesResult> pageHandler) {
+      return CompletableFutures.<DescribeInstancesRequest, DescribeInstancesResult>call(
+          client::describeInstancesAsync, request)
+          .thenCompose((result) -> {
+            pageHandler.accept(result);
+            if (result.getReservations().isEmpty() || result.getNextToken() == null) {
+              return CompletableFuture.completedFuture(null);
+            }
+            return describeAllPages(request.clone().withNextToken(result.getNextToken()),
+                pageHandler);
+          });
+    }
+
+    /**
+     * Merges the instances of a page of results into the specified map, keeping one instance
+     * per instance ID, and preferring running instances over terminating or terminated
+     * instances.
+     *
+     * @param result               the page of results
+     * @param instanceIdToInstance the instances, by instance ID
+     * @param idType               the type of ID
+     */
+    private void mergeInstances(DescribeInstancesResult result,
+        Map<String, Instance> instanceIdToInstance, IdType idType) {
+      for (Reservation reservation : result.getReservations()) {
+        for (Instance instance : reservation.getInstances()) {
+          LOG.debug("Merging instance {}", instance);
           String instanceId;
           try {
             instanceId = getInstanceId(null, instance, idType);
           } catch (IllegalStateException e) {
             LOG.error("Instance {} is not managed by Director. Skipping", instance.getInstanceId());
-            return null;
+            continue;
           }
           Instance oldInstance = instanceIdToInstance.get(instanceId);
           if (oldInstance == null || INSTANCE_IS_TERMINAL.apply(oldInstance)) {
@@ -1562,13 +1994,58 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
                   oldInstance, instance);
             }
           }
-          return null;
-        });
+        }
       }
+    }
 
-      for (Instance instance : instanceIdToInstance.values()) {
-        instanceHandler.apply(instance);
+    /**
+     * Looks up the instances of the specified virtual instances that are in the instance ID
+     * index. Index entries whose instance is missing, terminated or shutting down, or does not
+     * carry the Director ID tag of its virtual instance, are removed, so that their virtual
+     * instances are looked up by tag, which finds any live instance that replaced them.
+     *
+     * @param virtualInstanceIds the virtual instance IDs
+     * @return the indexed instances, by virtual instance ID
+     */
+    private Map<String, Instance> findIndexedInstances(Collection<String> virtualInstanceIds) {
+      InstanceIdIndex index = InstanceIdIndex.get();
+      Map<String, String> ec2InstanceIds = index.getEc2InstanceIds(virtualInstanceIds);
+      if (ec2InstanceIds.isEmpty()) {
+        return Collections.emptyMap();
       }
+
+      Map<String, Instance> instancesByEc2InstanceId =
+          findByEc2InstanceIds(ec2InstanceIds.values());
+      String idTagName = ec2TagHelper.getClouderaDirectorIdTagName();
+      Map<String, Instance> instances = Maps.newHashMapWithExpectedSize(ec2InstanceIds.size());
+      List<String> staleInstanceIds = Lists.newArrayList();
+      for (Entry<String, String> entry : ec2InstanceIds.entrySet()) {
+        String virtualInstanceId = entry.getKey();
+        Instance instance = instancesByEc2InstanceId.get(entry.getValue());
+        if (instance != null && !isTerminal(instance)
+            && instance.getTags().contains(new Tag(idTagName, virtualInstanceId))) {
+          instances.put(virtualInstanceId, instance);
+        } else {
+          staleInstanceIds.add(virtualInstanceId);
+        }
+      }
+      if (!staleInstanceIds.isEmpty()) {
+        LOG.debug("Instance ID index entries for {} are stale", staleInstanceIds);
+        index.removeAll(staleInstanceIds);
+      }
+      return instances;
+    }
+
+    /**
+     * Returns whether the specified instance is terminated or shutting down.
+     *
+     * @param instance the instance
+     * @return whether the instance is terminated or shutting down
+     */
+    private boolean isTerminal(Instance instance) {
+      InstanceStateName stateName = InstanceStateName.fromValue(instance.getState().getName());
+      return stateName == InstanceStateName.Terminated
+          || stateName == InstanceStateName.ShuttingDown;
     }
 
     @Override
@@ -1604,14 +2081,10 @@ public class EC2Provider extends AbstractComputeProvider<EC2Instance, EC2Instanc
         return;
       }
 
-      try {
-        LOG.info(">> Terminating {}", ec2InstanceIds);
-        TerminateInstancesRequest request = new TerminateInstancesRequest().withInstanceIds(ec2InstanceIds);
-        TerminateInstancesResult result = client.terminateInstances(request);
-        LOG.info("<< Result {}", result);
-
-      } catch (AmazonClientException e) {
-        throw AWSExceptions.propagate(stsClient, e);
+      LOG.info(">> Terminating {}", ec2InstanceIds);
+      InstanceTerminator.Result result = new InstanceTerminator(client).terminate(ec2InstanceIds);
+      if (result.getFailure() != null) {
+        throw AWSExceptions.propagate(stsClient, result.getFailure());
       }
     }
   }
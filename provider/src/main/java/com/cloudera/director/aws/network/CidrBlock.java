@@ -19,18 +19,32 @@ import com.google.common.net.InetAddresses;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Objects;
 
 /**
  * The CIDR (Classless Inter-Domain Routing) block represents a range af
  * IP addresses. It can handle both IPv4 and IPv6 addresses.
+ * <p>
+ * The network address is held as a 128-bit value in two longs, left-aligned
+ * so that bit 0 is the most significant bit of the address; an IPv4 address
+ * only uses the upper half of the high long. Masking and containment checks
+ * are therefore plain bitwise operations that do not allocate.
  */
 public final class CidrBlock {
 
   /**
-   * The network address of the CIDR block.
+   * Whether this is an IPv6 CIDR block.
    */
-  private final InetAddress baseAddress;
+  private final boolean ipv6;
+
+  /**
+   * The upper 64 bits of the network address of the CIDR block.
+   */
+  private final long high;
+
+  /**
+   * The lower 64 bits of the network address of the CIDR block, always zero for IPv4.
+   */
+  private final long low;
 
   /**
    * The number of bits of the prefix in CIDR notation.
@@ -42,6 +56,16 @@ public final class CidrBlock {
    */
   private static final char SEPARATOR = '/';
 
+  /**
+   * The number of bits in an IPv4 address.
+   */
+  private static final int IPV4_BITS = 32;
+
+  /**
+   * The number of bits in an IPv6 address.
+   */
+  private static final int IPV6_BITS = 128;
+
   /**
    * Constructs a CidrBlock from CIDR notation.
    *
@@ -72,47 +96,71 @@ public final class CidrBlock {
     } catch (NumberFormatException e) {
       throw new IllegalArgumentException(error);
     }
-    return new CidrBlock(addr, prefixLength);
+    return new CidrBlock(addr.getAddress(), prefixLength);
   }
 
   /**
    * Internal constructor.
    *
-   * @param ipAddress an IP address (either IPv4 or Ipv6)
+   * @param address   the bytes of an IP address (either IPv4 or Ipv6)
    * @param prefixLen the number of bits of the prefix in CIDR notation
    */
-  private CidrBlock(InetAddress ipAddress, int prefixLen) {
-    this.baseAddress = mask(ipAddress, prefixLen);
+  private CidrBlock(byte[] address, int prefixLen) {
+    Preconditions.checkArgument(prefixLen >= 0 && prefixLen <= address.length * 8,
+        String.format("The CIDR prefix length %d is out of range: [0, %d].",
+            prefixLen, (address.length * 8)));
+    this.ipv6 = address.length * 8 == IPV6_BITS;
+    this.high = highBits(address) & highMask(prefixLen);
+    this.low = lowBits(address) & lowMask(prefixLen);
     this.prefixLen = prefixLen;
   }
 
   /**
-   * Uses the routing prefix information to mask an IP address to a network address.
+   * Returns the upper 64 bits of the left-aligned value of the given address.
    *
-   * @param ipAddress an IP address (either IPv4 or Ipv6)
-   * @param prefixLen the number of bits of the prefix in CIDR notation
-   * @return the network address of the CIDR block where this IP address falls
+   * @param address the bytes of an IP address (either IPv4 or Ipv6)
+   * @return the upper 64 bits of the address
    */
-  private static InetAddress mask(InetAddress ipAddress, int prefixLen) {
-    byte[] bytes = ipAddress.getAddress();
-    Preconditions.checkArgument(prefixLen >= 0 && prefixLen <= bytes.length * 8,
-        String.format("The CIDR prefix length %d is out of range: [0, %d].",
-            prefixLen, (bytes.length * 8)));
-
-    int borderByte = (prefixLen == 0) ? 0 : (prefixLen - 1) / 8;
-    int numBits = prefixLen - (borderByte * 8);
-    int bitMask = (-1 << (8 - numBits));
-
-    bytes[borderByte] = (byte) (bytes[borderByte] & bitMask);
-    for (int i = borderByte + 1; i < bytes.length; i++) {
-      bytes[i] = 0;
+  private static long highBits(byte[] address) {
+    long bits = 0L;
+    for (int i = 0; i < 8; i++) {
+      bits = (bits << 8) | (i < address.length ? address[i] & 0xFFL : 0L);
     }
+    return bits;
+  }
 
-    try {
-      return InetAddress.getByAddress(bytes);
-    } catch (UnknownHostException e) {
-      throw new IllegalStateException("Failed to apply network mask");
+  /**
+   * Returns the lower 64 bits of the left-aligned value of the given address.
+   *
+   * @param address the bytes of an IP address (either IPv4 or Ipv6)
+   * @return the lower 64 bits of the address
+   */
+  private static long lowBits(byte[] address) {
+    long bits = 0L;
+    for (int i = 8; i < 16; i++) {
+      bits = (bits << 8) | (i < address.length ? address[i] & 0xFFL : 0L);
     }
+    return bits;
+  }
+
+  /**
+   * Returns the mask selecting the prefix bits of the upper 64 bits of an address.
+   *
+   * @param prefixLen the number of bits of the prefix
+   * @return the mask for the upper 64 bits
+   */
+  private static long highMask(int prefixLen) {
+    return (prefixLen == 0) ? 0L : -1L << (64 - Math.min(prefixLen, 64));
+  }
+
+  /**
+   * Returns the mask selecting the prefix bits of the lower 64 bits of an address.
+   *
+   * @param prefixLen the number of bits of the prefix
+   * @return the mask for the lower 64 bits
+   */
+  private static long lowMask(int prefixLen) {
+    return (prefixLen <= 64) ? 0L : -1L << (128 - prefixLen);
   }
 
   /**
@@ -124,8 +172,9 @@ public final class CidrBlock {
   public boolean contains(InetAddress address) {
     Preconditions.checkNotNull(address);
 
-    return (baseAddress.getClass() == address.getClass())
-        && baseAddress.equals(mask(address, prefixLen));
+    byte[] bytes = address.getAddress();
+    return ipv6 == (bytes.length * 8 == IPV6_BITS)
+        && covers(highBits(bytes), lowBits(bytes));
   }
 
   /**
@@ -137,7 +186,43 @@ public final class CidrBlock {
   public boolean contains(CidrBlock cidr) {
     Preconditions.checkNotNull(cidr);
 
-    return this.prefixLen <= cidr.prefixLen && this.contains(cidr.baseAddress);
+    return ipv6 == cidr.ipv6
+        && prefixLen <= cidr.prefixLen
+        && covers(cidr.high, cidr.low);
+  }
+
+  /**
+   * Checks if the prefix of the given address value matches this CIDR block.
+   *
+   * @param otherHigh the upper 64 bits of the address
+   * @param otherLow  the lower 64 bits of the address
+   * @return true if the prefix of the address matches this CIDR block
+   */
+  private boolean covers(long otherHigh, long otherLow) {
+    return (((otherHigh ^ high) & highMask(prefixLen))
+        | ((otherLow ^ low) & lowMask(prefixLen))) == 0L;
+  }
+
+  /**
+   * Returns the bit at the given position of the network address, where
+   * position 0 is the most significant bit.
+   *
+   * @param position the bit position
+   * @return the bit at the given position, either 0 or 1
+   */
+  int bit(int position) {
+    return (position < 64)
+        ? (int) (high >>> (63 - position)) & 1
+        : (int) (low >>> (127 - position)) & 1;
+  }
+
+  /**
+   * Whether this is an IPv6 CIDR block.
+   *
+   * @return true if this is an IPv6 CIDR block, false if it is an IPv4 one
+   */
+  public boolean isIpv6() {
+    return ipv6;
   }
 
   /**
@@ -146,7 +231,15 @@ public final class CidrBlock {
    * @return the network address of the CIDR block
    */
   public InetAddress getBaseAddress() {
-    return baseAddress;
+    byte[] bytes = new byte[(ipv6 ? IPV6_BITS : IPV4_BITS) / 8];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) ((i < 8) ? high >>> (56 - 8 * i) : low >>> (120 - 8 * i));
+    }
+    try {
+      return InetAddress.getByAddress(bytes);
+    } catch (UnknownHostException e) {
+      throw new IllegalStateException("Failed to build network address");
+    }
   }
 
   /**
@@ -160,7 +253,7 @@ public final class CidrBlock {
 
   @Override
   public String toString() {
-    return String.format("%s%c%d", InetAddresses.toAddrString(baseAddress), SEPARATOR, prefixLen);
+    return String.format("%s%c%d", InetAddresses.toAddrString(getBaseAddress()), SEPARATOR, prefixLen);
   }
 
   @Override
@@ -173,12 +266,17 @@ public final class CidrBlock {
     }
 
     CidrBlock that = (CidrBlock) o;
-    return prefixLen == that.prefixLen
-        && baseAddress.equals(that.baseAddress);
+    return ipv6 == that.ipv6
+        && high == that.high
+        && low == that.low
+        && prefixLen == that.prefixLen;
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(baseAddress, prefixLen);
+    int result = Boolean.hashCode(ipv6);
+    result = 31 * result + Long.hashCode(high);
+    result = 31 * result + Long.hashCode(low);
+    return 31 * result + prefixLen;
   }
 }
@@ -0,0 +1,176 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.network;
+
+import com.google.common.base.Preconditions;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A binary prefix trie of CIDR blocks and associated values. Each CIDR block
+ * is stored at the node reached by following the bits of its prefix, so that
+ * the blocks covering a given block lie on the path to its node, and the
+ * blocks covered by it lie in the subtree below that node. IPv4 and IPv6
+ * blocks are kept in separate tries.
+ *
+ * @param <V> the type of values associated with CIDR blocks
+ */
+public final class CidrBlockTrie<V> {
+
+  /**
+   * The root of the IPv4 trie.
+   */
+  private final Node<V> ipv4Root = new Node<>();
+
+  /**
+   * The root of the IPv6 trie.
+   */
+  private final Node<V> ipv6Root = new Node<>();
+
+  /**
+   * The number of values in the trie.
+   */
+  private int size;
+
+  /**
+   * Associates a value with the given CIDR block. Several values may be
+   * associated with the same block.
+   *
+   * @param cidr  the CIDR block
+   * @param value the value
+   */
+  public void put(CidrBlock cidr, V value) {
+    Preconditions.checkNotNull(cidr);
+    Node<V> node = root(cidr);
+    for (int i = 0; i < cidr.getPrefixLength(); i++) {
+      int bit = cidr.bit(i);
+      if (node.children[bit] == null) {
+        node.children[bit] = new Node<>();
+      }
+      node = node.children[bit];
+    }
+    node.values.add(value);
+    size++;
+  }
+
+  /**
+   * Returns the values associated with the CIDR blocks that contain the given
+   * CIDR block, including the block itself, from the least to the most specific.
+   *
+   * @param cidr the CIDR block
+   * @return the values of the CIDR blocks containing the given block
+   */
+  public List<V> getCovering(CidrBlock cidr) {
+    Preconditions.checkNotNull(cidr);
+    List<V> result = new ArrayList<>();
+    Node<V> node = root(cidr);
+    for (int i = 0; node != null; i++) {
+      result.addAll(node.values);
+      if (i == cidr.getPrefixLength()) {
+        break;
+      }
+      node = node.children[cidr.bit(i)];
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether any CIDR block in the trie contains the given CIDR block.
+   *
+   * @param cidr the CIDR block
+   * @return true if some CIDR block in the trie contains the given block
+   */
+  public boolean isCovered(CidrBlock cidr) {
+    Preconditions.checkNotNull(cidr);
+    Node<V> node = root(cidr);
+    for (int i = 0; node != null; i++) {
+      if (!node.values.isEmpty()) {
+        return true;
+      }
+      if (i == cidr.getPrefixLength()) {
+        break;
+      }
+      node = node.children[cidr.bit(i)];
+    }
+    return false;
+  }
+
+  /**
+   * Returns the values associated with the CIDR blocks contained in the given
+   * CIDR block, including the block itself.
+   *
+   * @param cidr the CIDR block
+   * @return the values of the CIDR blocks contained in the given block
+   */
+  public List<V> getCoveredBy(CidrBlock cidr) {
+    Preconditions.checkNotNull(cidr);
+    Node<V> node = root(cidr);
+    for (int i = 0; node != null && i < cidr.getPrefixLength(); i++) {
+      node = node.children[cidr.bit(i)];
+    }
+    if (node == null) {
+      return Collections.emptyList();
+    }
+
+    List<V> result = new ArrayList<>();
+    Deque<Node<V>> pending = new ArrayDeque<>();
+    pending.push(node);
+    while (!pending.isEmpty()) {
+      Node<V> current = pending.pop();
+      result.addAll(current.values);
+      for (Node<V> child : current.children) {
+        if (child != null) {
+          pending.push(child);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the number of values in the trie.
+   *
+   * @return the number of values in the trie
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns whether the trie is empty.
+   *
+   * @return true if the trie is empty
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  private Node<V> root(CidrBlock cidr) {
+    return cidr.isIpv6() ? ipv6Root : ipv4Root;
+  }
+
+  /**
+   * A trie node, holding the values of the CIDR block whose prefix leads to it.
+   */
+  private static final class Node<V> {
+    @SuppressWarnings("unchecked")
+    private final Node<V>[] children = (Node<V>[]) new Node[2];
+    private final List<V> values = new ArrayList<>(1);
+  }
+}
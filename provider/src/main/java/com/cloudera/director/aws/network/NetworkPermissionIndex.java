@@ -0,0 +1,278 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.network;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Range;
+
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * An index of the network permissions of a security group or network ACL,
+ * against which network rules are checked.
+ * <p>
+ * Permissions are compiled once into CIDR block tries, partitioned by access
+ * type and protocol, so that checking a rule only looks at the permissions
+ * whose CIDR blocks lie on the path of the rule's own CIDR block, instead of
+ * at every permission. The port and protocol checks are then applied to those
+ * few candidates.
+ */
+public final class NetworkPermissionIndex {
+
+  /**
+   * The result of checking a network rule against ordered permissions.
+   */
+  public enum Match {
+    /**
+     * The first matching permission enforces the rule.
+     */
+    ENFORCED,
+    /**
+     * The first matching permission violates the rule.
+     */
+    VIOLATED,
+    /**
+     * No permission enforces or violates the rule.
+     */
+    NONE
+  }
+
+  /**
+   * The permission tries, by access type and protocol.
+   */
+  private final Map<AccessType, Map<Protocol, CidrBlockTrie<Permission>>> tries;
+
+  /**
+   * The number of permissions in the index.
+   */
+  private final int size;
+
+  private NetworkPermissionIndex(Map<AccessType, Map<Protocol, CidrBlockTrie<Permission>>> tries,
+      int size) {
+    this.tries = tries;
+    this.size = size;
+  }
+
+  /**
+   * Returns a new builder for a network permission index.
+   *
+   * @return a new builder
+   */
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * Checks if any permission in this index enforces the given rule.
+   *
+   * @param rule the network rule
+   * @return true if the rule is enforced
+   */
+  public boolean isEnforced(NetworkRule rule) {
+    return firstEnforcing(rule) != null;
+  }
+
+  /**
+   * Checks if any permission in this index violates the given rule.
+   *
+   * @param rule the network rule
+   * @return true if the rule is violated
+   */
+  public boolean isViolated(NetworkRule rule) {
+    return firstViolating(rule) != null;
+  }
+
+  /**
+   * Checks the given rule against the permissions in the order in which they were
+   * added, returning whether the first permission that enforces or violates the
+   * rule does so. This matches the way network ACL entries are evaluated.
+   *
+   * @param rule the network rule
+   * @return the result of the first matching permission
+   */
+  public Match getFirstMatch(NetworkRule rule) {
+    Permission enforcing = firstEnforcing(rule);
+    Permission violating = firstViolating(rule);
+    if (enforcing == null && violating == null) {
+      return Match.NONE;
+    }
+    if (violating == null || (enforcing != null && enforcing.order < violating.order)) {
+      return Match.ENFORCED;
+    }
+    return Match.VIOLATED;
+  }
+
+  /**
+   * Returns the number of permissions in this index, counting one per CIDR block.
+   *
+   * @return the number of permissions in this index
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the first permission enforcing the given rule. A permission can only
+   * enforce a rule if it has the same access type and its CIDR block contains
+   * the rule's CIDR block.
+   */
+  private Permission firstEnforcing(NetworkRule rule) {
+    Map<Protocol, CidrBlockTrie<Permission>> byProtocol = tries.get(rule.getAccess());
+    Permission first = null;
+    for (Map.Entry<Protocol, CidrBlockTrie<Permission>> entry : byProtocol.entrySet()) {
+      Protocol protocol = entry.getKey();
+      if (protocol != Protocol.ALL && protocol != rule.getProtocol()) {
+        continue;
+      }
+      for (Permission permission : entry.getValue().getCovering(rule.getCidrBlock())) {
+        if (isBefore(permission, first) && permission.enforces(rule)) {
+          first = permission;
+        }
+      }
+    }
+    return first;
+  }
+
+  /**
+   * Returns the first permission violating the given rule. A permission can only
+   * violate a rule if it has a different access type and its CIDR block contains,
+   * or is contained in, the rule's CIDR block.
+   */
+  private Permission firstViolating(NetworkRule rule) {
+    Permission first = null;
+    for (Map.Entry<AccessType, Map<Protocol, CidrBlockTrie<Permission>>> accessEntry
+        : tries.entrySet()) {
+      if (accessEntry.getKey() == rule.getAccess()) {
+        continue;
+      }
+      for (Map.Entry<Protocol, CidrBlockTrie<Permission>> entry
+          : accessEntry.getValue().entrySet()) {
+        Protocol protocol = entry.getKey();
+        if (rule.getProtocol() != Protocol.ALL && protocol != Protocol.ALL
+            && protocol != rule.getProtocol()) {
+          continue;
+        }
+        CidrBlockTrie<Permission> trie = entry.getValue();
+        first = firstViolating(rule, trie.getCovering(rule.getCidrBlock()), first);
+        first = firstViolating(rule, trie.getCoveredBy(rule.getCidrBlock()), first);
+      }
+    }
+    return first;
+  }
+
+  private static Permission firstViolating(NetworkRule rule, Collection<Permission> candidates,
+      Permission first) {
+    for (Permission permission : candidates) {
+      if (isBefore(permission, first) && permission.violates(rule)) {
+        first = permission;
+      }
+    }
+    return first;
+  }
+
+  private static boolean isBefore(Permission permission, Permission other) {
+    return other == null || permission.order < other.order;
+  }
+
+  /**
+   * Builds a network permission index. Permissions are added in evaluation order.
+   */
+  public static final class Builder {
+
+    private final Map<AccessType, Map<Protocol, CidrBlockTrie<Permission>>> tries =
+        new EnumMap<>(AccessType.class);
+
+    private int order;
+
+    private int size;
+
+    private boolean built;
+
+    private Builder() {
+      for (AccessType access : AccessType.values()) {
+        tries.put(access, new EnumMap<>(Protocol.class));
+      }
+    }
+
+    /**
+     * Adds a network permission.
+     *
+     * @param protocolNameOrNumber the network protocol
+     * @param portRange            the range of ports, which may be {@code null}
+     * @param ipRanges             the IP ranges
+     * @param access               the access type
+     * @return this builder
+     */
+    public Builder add(String protocolNameOrNumber, Range<Integer> portRange,
+        Iterable<String> ipRanges, AccessType access) {
+      Preconditions.checkNotNull(access, "access is null");
+      Preconditions.checkState(!built, "index already built");
+      Protocol protocol = Protocol.toProtocol(protocolNameOrNumber);
+      int fromPort = NetworkRule.fromPort(portRange);
+      int toPort = NetworkRule.toPort(portRange);
+      CidrBlockTrie<Permission> trie =
+          tries.get(access).computeIfAbsent(protocol, (p) -> new CidrBlockTrie<>());
+      for (String ipRange : ipRanges) {
+        CidrBlock cidr = CidrBlock.fromString(ipRange);
+        trie.put(cidr, new Permission(order, protocol, fromPort, toPort, cidr, access));
+        size++;
+      }
+      order++;
+      return this;
+    }
+
+    /**
+     * Builds the network permission index.
+     *
+     * @return the network permission index
+     */
+    public NetworkPermissionIndex build() {
+      built = true;
+      return new NetworkPermissionIndex(tries, size);
+    }
+  }
+
+  /**
+   * A compiled network permission for a single CIDR block.
+   */
+  private static final class Permission {
+    private final int order;
+    private final Protocol protocol;
+    private final int fromPort;
+    private final int toPort;
+    private final CidrBlock cidr;
+    private final AccessType access;
+
+    Permission(int order, Protocol protocol, int fromPort, int toPort, CidrBlock cidr,
+        AccessType access) {
+      this.order = order;
+      this.protocol = protocol;
+      this.fromPort = fromPort;
+      this.toPort = toPort;
+      this.cidr = cidr;
+      this.access = access;
+    }
+
+    boolean enforces(NetworkRule rule) {
+      return rule.isEnforced(protocol, fromPort, toPort, cidr, access);
+    }
+
+    boolean violates(NetworkRule rule) {
+      return rule.isViolated(protocol, fromPort, toPort, cidr, access);
+    }
+  }
+}
@@ -137,6 +137,33 @@ public final class NetworkRule {
     this.cidrBlock = CidrBlock.fromString(ipRange);
   }
 
+  /**
+   * The protocol that this rule applies to.
+   *
+   * @return the protocol that this rule applies to
+   */
+  Protocol getProtocol() {
+    return protocol;
+  }
+
+  /**
+   * The CIDR block that this rule applies to.
+   *
+   * @return the CIDR block that this rule applies to
+   */
+  CidrBlock getCidrBlock() {
+    return cidrBlock;
+  }
+
+  /**
+   * The access type of this rule.
+   *
+   * @return the access type of this rule
+   */
+  AccessType getAccess() {
+    return access;
+  }
+
   /**
    * Checks if this network rule is enforced by a network permission with the given parameters.
    *
@@ -150,28 +177,45 @@ public final class NetworkRule {
       Range<Integer> portRange,
       List<String> ipRangeList,
       AccessType accessType) {
+    Protocol proto = Protocol.toProtocol(protocolNameOrNumber);
+    int fromPort = fromPort(portRange);
+    int toPort = toPort(portRange);
+    for (String curIpRange : ipRangeList) {
+      if (isEnforced(proto, fromPort, toPort, CidrBlock.fromString(curIpRange), accessType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if this network rule is enforced by a network permission for a single
+   * CIDR block. An empty port range, where {@code fromPort > toPort}, contains no ports.
+   *
+   * @param proto      the network protocol
+   * @param fromPort   the first port of the port range
+   * @param toPort     the last port of the port range
+   * @param cidr       the CIDR block
+   * @param accessType the access type
+   * @return true if the network rule is enforced by the network permission
+   */
+  boolean isEnforced(Protocol proto, int fromPort, int toPort, CidrBlock cidr,
+      AccessType accessType) {
     if (this.access != accessType) {
       return false;
     }
 
     // Check the protocol
-    Protocol proto = Protocol.toProtocol(protocolNameOrNumber);
     if (proto != Protocol.ALL && proto != this.protocol) {
       return false;
     }
     // Check the port
     if (proto != Protocol.ALL &&
-        (portRange == null || (!portRange.contains(-1) && !portRange.contains(this.port)))) {
+        !inRange(-1, fromPort, toPort) && !inRange(this.port, fromPort, toPort)) {
       return false;
     }
-    // Check the ip ranges
-    for (String curIpRange : ipRangeList) {
-      CidrBlock curCidr = CidrBlock.fromString(curIpRange);
-      if (curCidr.contains(this.cidrBlock)) {
-        return true;
-      }
-    }
-    return false;
+    // Check the ip range
+    return cidr.contains(this.cidrBlock);
   }
 
   /**
@@ -187,28 +231,70 @@ public final class NetworkRule {
       Range<Integer> portRange,
       List<String> ipRangeList,
       AccessType accessType) {
+    Protocol proto = Protocol.toProtocol(protocolNameOrNumber);
+    int fromPort = fromPort(portRange);
+    int toPort = toPort(portRange);
+    for (String curIpRange : ipRangeList) {
+      if (isViolated(proto, fromPort, toPort, CidrBlock.fromString(curIpRange), accessType)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if this network rule is violated by a network permission for a single
+   * CIDR block. An empty port range, where {@code fromPort > toPort}, contains no ports.
+   *
+   * @param proto      the network protocol
+   * @param fromPort   the first port of the port range
+   * @param toPort     the last port of the port range
+   * @param cidr       the CIDR block
+   * @param accessType the access type
+   * @return true if the network rule is violated by the network permission
+   */
+  boolean isViolated(Protocol proto, int fromPort, int toPort, CidrBlock cidr,
+      AccessType accessType) {
     if (this.access == accessType) {
       return false;
     }
 
     // Check the protocol
-    Protocol proto = Protocol.toProtocol(protocolNameOrNumber);
     if (this.protocol != Protocol.ALL && proto != Protocol.ALL && proto != this.protocol) {
       return false;
     }
     // Check the port
     if (this.protocol != Protocol.ALL && proto != Protocol.ALL &&
-        (this.port != -1 && !portRange.contains(-1) && !portRange.contains(this.port))) {
+        (this.port != -1 && !inRange(-1, fromPort, toPort) && !inRange(this.port, fromPort, toPort))) {
       return false;
     }
-    // Check the ip ranges
-    for (String curIpRange : ipRangeList) {
-      CidrBlock curCidr = CidrBlock.fromString(curIpRange);
-      if (curCidr.contains(this.cidrBlock) || this.cidrBlock.contains(curCidr)) {
-        return true;
-      }
-    }
-    return false;
+    // Check the ip range
+    return cidr.contains(this.cidrBlock) || this.cidrBlock.contains(cidr);
+  }
+
+  /**
+   * Returns the first port of the given port range, or {@code 0} if there is no range.
+   *
+   * @param portRange the port range, which may be {@code null}
+   * @return the first port of the port range
+   */
+  static int fromPort(Range<Integer> portRange) {
+    return (portRange == null) ? 0 : portRange.lowerEndpoint();
+  }
+
+  /**
+   * Returns the last port of the given port range, or {@code -1} if there is no range,
+   * so that a missing range contains no ports.
+   *
+   * @param portRange the port range, which may be {@code null}
+   * @return the last port of the port range
+   */
+  static int toPort(Range<Integer> portRange) {
+    return (portRange == null) ? -1 : portRange.upperEndpoint();
+  }
+
+  private static boolean inRange(int port, int fromPort, int toPort) {
+    return fromPort <= port && port <= toPort;
   }
 
   @Override
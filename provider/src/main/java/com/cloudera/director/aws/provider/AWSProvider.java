@@ -19,11 +19,17 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.services.autoscaling.AmazonAutoScaling;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
+import com.amazonaws.services.ec2.AmazonEC2;
 import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.amazonaws.services.identitymanagement.AmazonIdentityManagement;
 import com.amazonaws.services.identitymanagement.AmazonIdentityManagementClient;
+import com.amazonaws.services.kms.AWSKMS;
 import com.amazonaws.services.kms.AWSKMSClient;
+import com.amazonaws.services.rds.AmazonRDS;
 import com.amazonaws.services.rds.AmazonRDSClient;
+import com.amazonaws.services.securitytoken.AWSSecurityTokenService;
 import com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.AWSClientConfig;
 import com.cloudera.director.aws.AWSCredentialsProviderChainProvider;
@@ -143,11 +149,6 @@ public class AWSProvider extends AbstractCloudProvider {
    */
   private final RDSEncryptionInstanceClasses rdsEncryptionInstanceClasses;
 
-  /**
-   * The AWS config.
-   */
-  private final ClientConfiguration clientConfiguration;
-
   /**
    * The AWS filters.
    */
@@ -289,7 +290,6 @@ public class AWSProvider extends AbstractCloudProvider {
     this.virtualizationMappings = virtualizationMappings;
     this.rdsEndpoints = rdsEndpoints;
     this.rdsEncryptionInstanceClasses = rdsEncryptionInstanceClasses;
-    this.clientConfiguration = getClientConfiguration(awsClientConfig);
     this.awsFilters = checkNotNull(awsFilters, "awsFilters is null");
     this.awsTimeouts = checkNotNull(awsTimeouts, "awsTimeouts is null");
     this.customTagMappings = checkNotNull(customTagMappings, "customTagMappings is null");
@@ -297,17 +297,23 @@ public class AWSProvider extends AbstractCloudProvider {
     this.useTagOnCreate = useTagOnCreate;
 
     this.amazonEC2ClientProvider = new AmazonEC2ClientProvider(
-        this.credentialsProvider, this.clientConfiguration);
+        this.credentialsProvider,
+        getClientConfiguration(awsClientConfig, AmazonEC2.ENDPOINT_PREFIX));
     this.amazonAutoScalingClientProvider = new AmazonAutoScalingClientProvider(
-        this.credentialsProvider, this.clientConfiguration);
+        this.credentialsProvider,
+        getClientConfiguration(awsClientConfig, AmazonAutoScaling.ENDPOINT_PREFIX));
     this.amazonIdentityManagementClientProvider = new AmazonIdentityManagementClientProvider(
-        this.credentialsProvider, this.clientConfiguration);
+        this.credentialsProvider,
+        getClientConfiguration(awsClientConfig, AmazonIdentityManagement.ENDPOINT_PREFIX));
     this.awskmsClientProvider = new AWSKMSClientProvider(
-        this.credentialsProvider, this.clientConfiguration);
+        this.credentialsProvider,
+        getClientConfiguration(awsClientConfig, AWSKMS.ENDPOINT_PREFIX));
     this.awsStsClientProvider = new AWSSTSClientProvider(
-        this.credentialsProvider, this.clientConfiguration);
+        this.credentialsProvider,
+        getClientConfiguration(awsClientConfig, AWSSecurityTokenService.ENDPOINT_PREFIX));
     this.amazonRDSClientProvider = new AmazonRDSClientProvider(
-        this.credentialsProvider, this.clientConfiguration, this.rdsEndpoints);
+        this.credentialsProvider,
+        getClientConfiguration(awsClientConfig, AmazonRDS.ENDPOINT_PREFIX), this.rdsEndpoints);
   }
 
   @Override
@@ -375,13 +381,16 @@ public class AWSProvider extends AbstractCloudProvider {
   }
 
   /**
-   * Returns the AWS client configuration.
+   * Returns the AWS client configuration for the specified service.
    *
-   * @return the AWS client configuration
+   * @param awsClientConfig the AWS client config, which may be {@code null}
+   * @param serviceName     the service endpoint prefix
+   * @return the AWS client configuration for the specified service
    */
-  private static ClientConfiguration getClientConfiguration(AWSClientConfig awsClientConfig) {
+  private static ClientConfiguration getClientConfiguration(AWSClientConfig awsClientConfig,
+      String serviceName) {
     return (awsClientConfig == null)
         ? AWSClientConfig.DEFAULT_CLIENT_CONFIG
-        : awsClientConfig.getClientConfiguration();
+        : awsClientConfig.getClientConfiguration(serviceName);
   }
 }
@@ -16,7 +16,7 @@ package com.cloudera.director.aws.rds;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-import com.cloudera.director.aws.common.PropertyResolvers;
+import com.cloudera.director.aws.common.ReloadableTable;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
@@ -25,19 +25,19 @@ import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilder;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.io.Files;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.env.PropertyResolver;
 
 /**
  * A lookup mechanism for RDS encryption instance classes. This class looks up
@@ -145,19 +145,31 @@ public class RDSEncryptionInstanceClasses implements Function<String, Boolean> {
   private static final String BUILT_IN_LOCATION =
       "classpath:/com/cloudera/director/aws/rds/encryptioninstanceclasses.properties";
 
-  private static PropertyResolver getResolver(RDSEncryptionInstanceClassesConfigProperties configProperties) {
-    try {
-      return PropertyResolvers.newMultiResourcePropertyResolver(
-          BUILT_IN_LOCATION,
-          "file:" + configProperties.getCustomEncryptionInstanceClassesFile().getAbsolutePath()
-      );
-    } catch (IOException e) {
-      throw new IllegalArgumentException("Could not load custom encryption instance classes", e);
+  private static ReloadableTable<Set<String>> getTable(RDSEncryptionInstanceClassesConfigProperties configProperties) {
+    return ReloadableTable.load("encryption instance classes", BUILT_IN_LOCATION,
+        configProperties.getCustomEncryptionInstanceClassesFile(),
+        RDSEncryptionInstanceClasses::compile);
+  }
+
+  /**
+   * Compiles encryption instance class properties into the set of instance classes that
+   * support storage encryption.
+   *
+   * @param properties the encryption instance class properties
+   * @return the instance classes that support storage encryption
+   */
+  private static Set<String> compile(Map<String, String> properties) {
+    ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+    for (Map.Entry<String, String> entry : properties.entrySet()) {
+      if (Boolean.parseBoolean(entry.getValue().trim())) {
+        builder.add(entry.getKey());
+      }
     }
+    return builder.build();
   }
 
   private final RDSEncryptionInstanceClassesConfigProperties rdsEncryptionInstanceClassesConfigProperties;
-  private final PropertyResolver rdsEncryptionInstanceClassesResolver;
+  private final ReloadableTable<Set<String>> rdsEncryptionInstanceClassesTable;
 
   /**
    * Creates RDS encryption instance classes with the specified parameters.
@@ -171,21 +183,21 @@ public class RDSEncryptionInstanceClasses implements Function<String, Boolean> {
     this.rdsEncryptionInstanceClassesConfigProperties =
         new RDSEncryptionInstanceClassesConfigProperties(configuration, configurationDirectory,
             localizationContext);
-    rdsEncryptionInstanceClassesResolver =
-        getResolver(this.rdsEncryptionInstanceClassesConfigProperties);
+    rdsEncryptionInstanceClassesTable =
+        getTable(this.rdsEncryptionInstanceClassesConfigProperties);
   }
 
   /**
    * Creates RDS encryption instance classes with the specified parameters.
    *
    * @param rdsEncryptionInstanceClassesConfigProperties the config properties
-   * @param rdsEncryptionInstanceClassesResolver         the RDS encryption instance classes resolver
+   * @param rdsEncryptionInstanceClassesTable            the compiled RDS encryption instance classes
    */
   private RDSEncryptionInstanceClasses(RDSEncryptionInstanceClassesConfigProperties rdsEncryptionInstanceClassesConfigProperties,
-      PropertyResolver rdsEncryptionInstanceClassesResolver) {
+      ReloadableTable<Set<String>> rdsEncryptionInstanceClassesTable) {
     this.rdsEncryptionInstanceClassesConfigProperties =
         rdsEncryptionInstanceClassesConfigProperties;
-    this.rdsEncryptionInstanceClassesResolver = rdsEncryptionInstanceClassesResolver;
+    this.rdsEncryptionInstanceClassesTable = rdsEncryptionInstanceClassesTable;
   }
 
 
@@ -199,7 +211,7 @@ public class RDSEncryptionInstanceClasses implements Function<String, Boolean> {
   @Nullable
   @Override
   public Boolean apply(String instanceClass) {
-    return Boolean.valueOf(rdsEncryptionInstanceClassesResolver.getProperty(instanceClass, "false"));
+    return rdsEncryptionInstanceClassesTable.get().contains(instanceClass);
   }
 
   /**
@@ -216,15 +228,13 @@ public class RDSEncryptionInstanceClasses implements Function<String, Boolean> {
     for (String instanceClass : encryptionInstanceClasses) {
       encryptionInstanceClassesMap.put(instanceClass, "true");
     }
-    PropertyResolver resolver =
-        PropertyResolvers.newMapPropertyResolver(encryptionInstanceClassesMap);
-
     File tempDir = Files.createTempDir();
     tempDir.deleteOnExit();
 
     RDSEncryptionInstanceClassesConfigProperties configProperties =
         new RDSEncryptionInstanceClassesConfigProperties(new SimpleConfiguration(), tempDir,
             localizationContext);
-    return new RDSEncryptionInstanceClasses(configProperties, resolver);
+    return new RDSEncryptionInstanceClasses(configProperties,
+        ReloadableTable.of(encryptionInstanceClassesMap, RDSEncryptionInstanceClasses::compile));
   }
 }
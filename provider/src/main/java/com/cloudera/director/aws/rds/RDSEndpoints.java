@@ -16,7 +16,7 @@ package com.cloudera.director.aws.rds;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
-import com.cloudera.director.aws.common.PropertyResolvers;
+import com.cloudera.director.aws.common.ReloadableTable;
 import com.cloudera.director.spi.v2.model.ConfigurationProperty;
 import com.cloudera.director.spi.v2.model.Configured;
 import com.cloudera.director.spi.v2.model.LocalizationContext;
@@ -24,17 +24,16 @@ import com.cloudera.director.spi.v2.model.util.ChildLocalizationContext;
 import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.cloudera.director.spi.v2.model.util.SimpleConfigurationPropertyBuilder;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.core.env.PropertyResolver;
 
 /**
  * A lookup mechanism for RDS endpoints. Unlike EC2, RDS does not provide a
@@ -146,15 +145,10 @@ public class RDSEndpoints implements Function<String, String> {
 
     protected RDSEndpointsConfigProperties rdsEndpointsConfigProperties;
 
-    public PropertyResolver rdsEndpointsResolver() {
-      try {
-        return PropertyResolvers.newMultiResourcePropertyResolver(
-            BUILT_IN_LOCATION,
-            "file:" + rdsEndpointsConfigProperties.getCustomEndpointsFile().getAbsolutePath()
-        );
-      } catch (IOException e) {
-        throw new IllegalArgumentException("Could not load custom endpoints", e);
-      }
+    public ReloadableTable<Map<String, String>> rdsEndpointsTable() {
+      return ReloadableTable.load("RDS endpoints", BUILT_IN_LOCATION,
+          rdsEndpointsConfigProperties.getCustomEndpointsFile(),
+          ImmutableMap::copyOf);
     }
 
     /**
@@ -169,7 +163,7 @@ public class RDSEndpoints implements Function<String, String> {
 
   private final RDSEndpointsConfigProperties rdsEndpointsConfigProperties;
 
-  private final PropertyResolver rdsEndpointsResolver;
+  private final ReloadableTable<Map<String, String>> rdsEndpointsTable;
 
   /**
    * Creates RDS endpoints with the specified parameters.
@@ -190,19 +184,19 @@ public class RDSEndpoints implements Function<String, String> {
    * @param rdsEndpointsConfigProperties the config properties
    */
   public RDSEndpoints(RDSEndpointsConfigProperties rdsEndpointsConfigProperties) {
-    this(rdsEndpointsConfigProperties, new RDSEndpointsConfig(rdsEndpointsConfigProperties).rdsEndpointsResolver());
+    this(rdsEndpointsConfigProperties, new RDSEndpointsConfig(rdsEndpointsConfigProperties).rdsEndpointsTable());
   }
 
   /**
    * Creates RDS endpoints with the specified parameters.
    *
    * @param rdsEndpointsConfigProperties the config properties
-   * @param rdsEndpointsResolver         the RDS endpoints resolver
+   * @param rdsEndpointsTable            the compiled RDS endpoints
    */
   private RDSEndpoints(RDSEndpointsConfigProperties rdsEndpointsConfigProperties,
-      PropertyResolver rdsEndpointsResolver) {
+      ReloadableTable<Map<String, String>> rdsEndpointsTable) {
     this.rdsEndpointsConfigProperties = rdsEndpointsConfigProperties;
-    this.rdsEndpointsResolver = rdsEndpointsResolver;
+    this.rdsEndpointsTable = rdsEndpointsTable;
   }
 
 
@@ -216,7 +210,7 @@ public class RDSEndpoints implements Function<String, String> {
   @Nullable
   @Override
   public String apply(String regionName) {
-    return rdsEndpointsResolver.getProperty(regionName);
+    return rdsEndpointsTable.get().get(regionName);
   }
 
   /**
@@ -228,12 +222,11 @@ public class RDSEndpoints implements Function<String, String> {
    */
   public static RDSEndpoints getTestInstance(
       final Map<String, String> endpoints, LocalizationContext localizationContext) {
-    PropertyResolver rdsEndpointsResolver =
-        PropertyResolvers.newMapPropertyResolver(endpoints);
     File tempDir = Files.createTempDir();
     tempDir.deleteOnExit();
     RDSEndpointsConfigProperties rdsEndpointsConfigProperties =
         new RDSEndpointsConfigProperties(new SimpleConfiguration(), tempDir, localizationContext);
-    return new RDSEndpoints(rdsEndpointsConfigProperties, rdsEndpointsResolver);
+    return new RDSEndpoints(rdsEndpointsConfigProperties,
+        ReloadableTable.of(endpoints, ImmutableMap::copyOf));
   }
 }
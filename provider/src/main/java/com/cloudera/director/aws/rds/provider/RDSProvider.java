@@ -50,6 +50,7 @@ import com.cloudera.director.spi.v2.model.exception.PluginExceptionDetails;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
 import com.cloudera.director.spi.v2.model.util.CompositeConfigurationValidator;
 import com.cloudera.director.spi.v2.util.ConfigurationPropertiesUtil;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
@@ -100,6 +101,13 @@ public class RDSProvider extends AbstractDatabaseServerProvider<RDSInstance, RDS
   @SuppressWarnings("PMD.UnusedPrivateField")
   private final AmazonIdentityManagementClient identityManagementClient;
 
+  /**
+   * The client providers of the above clients, which are kept reachable for as long as this
+   * provider uses their shared clients.
+   */
+  @SuppressWarnings({"unused", "PMD.UnusedPrivateField"})
+  private final List<ClientProvider<?>> clientProviders;
+
   private final boolean associatePublicIpAddresses;
 
   private final ConfigurationValidator resourceTemplateConfigurationValidator;
@@ -132,6 +140,7 @@ public class RDSProvider extends AbstractDatabaseServerProvider<RDSInstance, RDS
     this.identityManagementClient = requireNonNull(
         identityManagementClientProvider, "identityManagementClientProvider is null")
         .getClient(configuration, accumulator, localizationContext, false);
+    this.clientProviders = ImmutableList.of(clientProvider, identityManagementClientProvider);
 
     if (accumulator.hasError()) {
       PluginExceptionDetails pluginExceptionDetails =
@@ -0,0 +1,234 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.tracing;
+
+import static java.util.Objects.requireNonNull;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports spans to a local file, one JSON document per line, so that the timeline of an
+ * allocation can be inspected after the fact or loaded into a tracing backend.
+ */
+public final class FileSpanExporter implements SpanExporter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileSpanExporter.class);
+
+  /**
+   * The service name reported in OpenTelemetry resources.
+   */
+  private static final String SERVICE_NAME = "director-aws-plugin";
+
+  /**
+   * The instrumentation scope name reported in OpenTelemetry documents.
+   */
+  private static final String SCOPE_NAME = "com.cloudera.director.aws";
+
+  /**
+   * The format of exported spans.
+   */
+  public enum Format {
+    /**
+     * One flat JSON object per span.
+     */
+    JSON_LINES,
+    /**
+     * One OpenTelemetry protocol (OTLP) JSON trace export request per span, as written by the
+     * OpenTelemetry file exporter.
+     */
+    OTLP_JSON
+  }
+
+  private final File file;
+  private final Format format;
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private OutputStream out;
+  private boolean failed;
+
+  /**
+   * Creates a file span exporter, appending to the specified file.
+   *
+   * @param file   the file
+   * @param format the format of exported spans
+   */
+  public FileSpanExporter(File file, Format format) {
+    this.file = requireNonNull(file, "file is null");
+    this.format = requireNonNull(format, "format is null");
+  }
+
+  @Override
+  public synchronized void export(Span span) {
+    if (failed) {
+      return;
+    }
+    try {
+      ByteArrayOutputStream line = new ByteArrayOutputStream(512);
+      try (JsonGenerator generator = jsonFactory.createGenerator(line, JsonEncoding.UTF8)) {
+        if (format == Format.OTLP_JSON) {
+          writeOtlp(generator, span);
+        } else {
+          writeJsonLine(generator, span);
+        }
+      }
+      line.write('\n');
+      if (out == null) {
+        out = new FileOutputStream(file, true);
+      }
+      line.writeTo(out);
+      out.flush();
+    } catch (IOException e) {
+      // Tracing must never break allocation, so stop exporting after the first failure
+      failed = true;
+      LOG.warn("Unable to export spans to {}, tracing output is disabled", file, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    if (out != null) {
+      try {
+        out.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close span file {}", file, e);
+      }
+      out = null;
+    }
+  }
+
+  private static void writeJsonLine(JsonGenerator generator, Span span) throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField("traceId", span.getTraceId());
+    generator.writeStringField("spanId", span.getSpanId());
+    if (span.getParentSpanId() != null) {
+      generator.writeStringField("parentSpanId", span.getParentSpanId());
+    }
+    generator.writeStringField("name", span.getName());
+    generator.writeStringField("start", toInstant(span.getStartEpochNanos()).toString());
+    generator.writeStringField("end", toInstant(span.getEndEpochNanos()).toString());
+    generator.writeNumberField("durationMillis",
+        (span.getEndEpochNanos() - span.getStartEpochNanos()) / 1000000L);
+    generator.writeStringField("status", span.getStatus().name());
+    if (span.getStatusMessage() != null) {
+      generator.writeStringField("statusMessage", span.getStatusMessage());
+    }
+    generator.writeObjectFieldStart("attributes");
+    for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+      generator.writeFieldName(attribute.getKey());
+      Object value = attribute.getValue();
+      if (value instanceof Boolean) {
+        generator.writeBoolean((Boolean) value);
+      } else if (value instanceof Long || value instanceof Integer) {
+        generator.writeNumber(((Number) value).longValue());
+      } else if (value instanceof Number) {
+        generator.writeNumber(((Number) value).doubleValue());
+      } else {
+        generator.writeString(value.toString());
+      }
+    }
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+
+  private static void writeOtlp(JsonGenerator generator, Span span) throws IOException {
+    generator.writeStartObject();
+    generator.writeArrayFieldStart("resourceSpans");
+    generator.writeStartObject();
+
+    generator.writeObjectFieldStart("resource");
+    generator.writeArrayFieldStart("attributes");
+    writeOtlpAttribute(generator, "service.name", SERVICE_NAME);
+    generator.writeEndArray();
+    generator.writeEndObject();
+
+    generator.writeArrayFieldStart("scopeSpans");
+    generator.writeStartObject();
+    generator.writeObjectFieldStart("scope");
+    generator.writeStringField("name", SCOPE_NAME);
+    generator.writeEndObject();
+    generator.writeArrayFieldStart("spans");
+
+    generator.writeStartObject();
+    generator.writeStringField("traceId", span.getTraceId());
+    generator.writeStringField("spanId", span.getSpanId());
+    if (span.getParentSpanId() != null) {
+      generator.writeStringField("parentSpanId", span.getParentSpanId());
+    }
+    generator.writeStringField("name", span.getName());
+    generator.writeNumberField("kind", 1); // SPAN_KIND_INTERNAL
+    generator.writeStringField("startTimeUnixNano", Long.toString(span.getStartEpochNanos()));
+    generator.writeStringField("endTimeUnixNano", Long.toString(span.getEndEpochNanos()));
+    generator.writeArrayFieldStart("attributes");
+    for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet()) {
+      writeOtlpAttribute(generator, attribute.getKey(), attribute.getValue());
+    }
+    generator.writeEndArray();
+    generator.writeObjectFieldStart("status");
+    generator.writeNumberField("code", span.getStatus().ordinal());
+    if (span.getStatusMessage() != null) {
+      generator.writeStringField("message", span.getStatusMessage());
+    }
+    generator.writeEndObject();
+    generator.writeEndObject();
+
+    generator.writeEndArray();
+    generator.writeEndObject();
+    generator.writeEndArray();
+
+    generator.writeEndObject();
+    generator.writeEndArray();
+    generator.writeEndObject();
+  }
+
+  private static void writeOtlpAttribute(JsonGenerator generator, String key, Object value)
+      throws IOException {
+    generator.writeStartObject();
+    generator.writeStringField("key", key);
+    generator.writeObjectFieldStart("value");
+    if (value instanceof Boolean) {
+      generator.writeBooleanField("boolValue", (Boolean) value);
+    } else if (value instanceof Long || value instanceof Integer) {
+      // OTLP JSON encodes 64-bit integers as strings
+      generator.writeStringField("intValue", value.toString());
+    } else if (value instanceof Number) {
+      generator.writeNumberField("doubleValue", ((Number) value).doubleValue());
+    } else {
+      generator.writeStringField("stringValue", value.toString());
+    }
+    generator.writeEndObject();
+    generator.writeEndObject();
+  }
+
+  private static Instant toInstant(long epochNanos) {
+    return Instant.ofEpochSecond(0L, epochNanos);
+  }
+
+  @Override
+  public String toString() {
+    return file + " (" + format + ")";
+  }
+}
@@ -0,0 +1,247 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.tracing;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>A timed operation within a trace, such as an allocation, one of its phases, or a single
+ * AWS call. Spans are created by {@link Tracing#startSpan(String)} and become the current span
+ * of the creating thread until they are closed, so that spans started in between become their
+ * children.</p>
+ * <p>When tracing is disabled, a shared no-op span is returned, which records nothing.</p>
+ */
+public final class Span implements AutoCloseable {
+
+  /**
+   * The status of a span.
+   */
+  public enum Status {
+    /**
+     * The span did not record an outcome.
+     */
+    UNSET,
+    /**
+     * The operation succeeded.
+     */
+    OK,
+    /**
+     * The operation failed.
+     */
+    ERROR
+  }
+
+  /**
+   * The span returned when tracing is disabled.
+   */
+  static final Span NOOP = new Span();
+
+  private final boolean recording;
+  private final String traceId;
+  private final String spanId;
+  private final String parentSpanId;
+  private final String name;
+  private final Span previous;
+  private final long startEpochNanos;
+  private final long startNanos;
+  private final Map<String, Object> attributes = new LinkedHashMap<>();
+  private long endEpochNanos;
+  private Status status = Status.UNSET;
+  private String statusMessage;
+  private boolean closed;
+
+  /**
+   * Creates the no-op span.
+   */
+  private Span() {
+    this.recording = false;
+    this.traceId = null;
+    this.spanId = null;
+    this.parentSpanId = null;
+    this.name = "noop";
+    this.previous = null;
+    this.startEpochNanos = 0L;
+    this.startNanos = 0L;
+  }
+
+  /**
+   * Creates a recording span.
+   *
+   * @param name     the name of the span
+   * @param parent   the parent span, or {@code null} for a root span
+   * @param previous the span that was current on the creating thread
+   */
+  Span(String name, Span parent, Span previous) {
+    this.recording = true;
+    this.name = name;
+    this.traceId = (parent == null) ? randomHex(2) : parent.traceId;
+    this.spanId = randomHex(1);
+    this.parentSpanId = (parent == null) ? null : parent.spanId;
+    this.previous = previous;
+    this.startEpochNanos = System.currentTimeMillis() * 1000000L;
+    this.startNanos = System.nanoTime();
+  }
+
+  private static String randomHex(int longs) {
+    StringBuilder builder = new StringBuilder(16 * longs);
+    for (int i = 0; i < longs; i++) {
+      String hex = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      for (int pad = hex.length(); pad < 16; pad++) {
+        builder.append('0');
+      }
+      builder.append(hex);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Returns whether this span records anything.
+   *
+   * @return whether this span records anything
+   */
+  public boolean isRecording() {
+    return recording;
+  }
+
+  /**
+   * Sets an attribute of this span. Strings, numbers and booleans are exported as such; any
+   * other value is exported as its string representation. Null values are ignored.
+   *
+   * @param key   the attribute key
+   * @param value the attribute value
+   * @return this span
+   */
+  public Span setAttribute(String key, Object value) {
+    if (recording && value != null) {
+      synchronized (this) {
+        attributes.put(key, value);
+      }
+    }
+    return this;
+  }
+
+  /**
+   * Marks the operation as successful, unless it already failed.
+   *
+   * @return this span
+   */
+  public synchronized Span setOk() {
+    if (recording && status != Status.ERROR) {
+      status = Status.OK;
+    }
+    return this;
+  }
+
+  /**
+   * Marks the operation as failed.
+   *
+   * @param message a description of the failure
+   * @return this span
+   */
+  public synchronized Span setError(String message) {
+    if (recording) {
+      status = Status.ERROR;
+      statusMessage = message;
+    }
+    return this;
+  }
+
+  /**
+   * Marks the operation as failed with the given exception.
+   *
+   * @param e the exception
+   * @return this span
+   */
+  public Span recordError(Throwable e) {
+    setAttribute("exception.type", e.getClass().getName());
+    return setError(e.getMessage());
+  }
+
+  /**
+   * Ends this span, restores the previously current span of this thread, and exports this
+   * span. Closing a span more than once has no effect.
+   */
+  @Override
+  public void close() {
+    if (!recording) {
+      return;
+    }
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      endEpochNanos = startEpochNanos + (System.nanoTime() - startNanos);
+    }
+    Tracing.end(this, previous);
+  }
+
+  public String getTraceId() {
+    return traceId;
+  }
+
+  public String getSpanId() {
+    return spanId;
+  }
+
+  public String getParentSpanId() {
+    return parentSpanId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getStartEpochNanos() {
+    return startEpochNanos;
+  }
+
+  public synchronized long getEndEpochNanos() {
+    return endEpochNanos;
+  }
+
+  public synchronized Status getStatus() {
+    return status;
+  }
+
+  public synchronized String getStatusMessage() {
+    return statusMessage;
+  }
+
+  /**
+   * Returns a snapshot of the attributes of this span, in the order they were first set.
+   *
+   * @return the attributes of this span
+   */
+  public synchronized Map<String, Object> getAttributes() {
+    return ImmutableMap.copyOf(attributes);
+  }
+
+  @Override
+  public String toString() {
+    return MoreObjects.toStringHelper(this)
+        .add("name", name)
+        .add("traceId", traceId)
+        .add("spanId", spanId)
+        .add("parentSpanId", parentSpanId)
+        .add("status", status)
+        .toString();
+  }
+}
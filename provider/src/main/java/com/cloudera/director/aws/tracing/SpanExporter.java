@@ -0,0 +1,33 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.tracing;
+
+/**
+ * Exports ended spans.
+ */
+public interface SpanExporter {
+
+  /**
+   * Exports an ended span. Implementations must be thread-safe and must not throw.
+   *
+   * @param span the ended span
+   */
+  void export(Span span);
+
+  /**
+   * Releases any resources held by this exporter.
+   */
+  void close();
+}
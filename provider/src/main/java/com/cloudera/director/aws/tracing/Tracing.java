@@ -0,0 +1,169 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.tracing;
+
+import static java.util.Objects.requireNonNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Process-wide entry point for tracing allocations.</p>
+ * <p>Each thread has a current span. A span started on a thread becomes a child of that
+ * thread's current span, and becomes the current span itself until it is closed. Spans are
+ * handed to the configured exporter as they end. Tracing is disabled until an exporter is
+ * set, and then every started span is the shared no-op span.</p>
+ */
+public final class Tracing {
+
+  private static final Logger LOG = LoggerFactory.getLogger(Tracing.class);
+
+  /**
+   * The current span of each thread.
+   */
+  private static final ThreadLocal<Span> CURRENT_SPAN = new ThreadLocal<>();
+
+  /**
+   * The span exporter, or {@code null} if tracing is disabled.
+   */
+  private static volatile SpanExporter exporter;
+
+  /**
+   * Sets the span exporter, closing the previous one.
+   *
+   * @param spanExporter the span exporter, or {@code null} to disable tracing
+   */
+  public static synchronized void setExporter(SpanExporter spanExporter) {
+    SpanExporter previous = exporter;
+    exporter = spanExporter;
+    if (previous != null && previous != spanExporter) {
+      previous.close();
+    }
+    LOG.info("Allocation tracing is {}",
+        (spanExporter == null) ? "disabled" : "exporting to " + spanExporter);
+  }
+
+  /**
+   * Returns whether tracing is enabled.
+   *
+   * @return whether tracing is enabled
+   */
+  public static boolean isEnabled() {
+    return exporter != null;
+  }
+
+  /**
+   * Starts a span as a child of the current span of this thread, or as a new trace if there is
+   * none, and makes it the current span.
+   *
+   * @param name the name of the span
+   * @return the span, to be closed when the operation ends
+   */
+  public static Span startSpan(String name) {
+    requireNonNull(name, "name is null");
+    if (exporter == null) {
+      return Span.NOOP;
+    }
+    Span current = CURRENT_SPAN.get();
+    Span span = new Span(name, current, current);
+    CURRENT_SPAN.set(span);
+    return span;
+  }
+
+  /**
+   * Starts a span as a child of the specified span, and makes it the current span of this
+   * thread. This is used to continue a trace on another thread, such as a worker thread that
+   * runs part of an allocation.
+   *
+   * @param name   the name of the span
+   * @param parent the parent span, typically the current span of the submitting thread
+   * @return the span, to be closed when the operation ends
+   */
+  public static Span startSpan(String name, Span parent) {
+    requireNonNull(name, "name is null");
+    if (exporter == null || !parent.isRecording()) {
+      return Span.NOOP;
+    }
+    Span current = CURRENT_SPAN.get();
+    Span span = new Span(name, parent, current);
+    CURRENT_SPAN.set(span);
+    return span;
+  }
+
+  /**
+   * Starts a span as a child of the current span of this thread, only if there is a current
+   * span. This is used for fine-grained operations, such as single AWS calls, which are only
+   * of interest within a traced allocation.
+   *
+   * @param name the name of the span
+   * @return the span, to be closed when the operation ends
+   */
+  public static Span startChildSpan(String name) {
+    return (CURRENT_SPAN.get() == null) ? Span.NOOP : startSpan(name);
+  }
+
+  /**
+   * Starts a span as a child of the specified span, without making it the current span of
+   * this thread. This is used for asynchronous operations, such as asynchronous AWS calls,
+   * whose spans are closed on whichever thread completes them.
+   *
+   * @param name   the name of the span
+   * @param parent the parent span, typically the current span of the calling thread
+   * @return the span, to be closed when the operation completes
+   */
+  public static Span startAsyncSpan(String name, Span parent) {
+    requireNonNull(name, "name is null");
+    if (exporter == null || !parent.isRecording()) {
+      return Span.NOOP;
+    }
+    return new Span(name, parent, null);
+  }
+
+  /**
+   * Returns the current span of this thread.
+   *
+   * @return the current span of this thread, or the no-op span if there is none
+   */
+  public static Span currentSpan() {
+    Span current = CURRENT_SPAN.get();
+    return (current == null) ? Span.NOOP : current;
+  }
+
+  /**
+   * Ends a span, restoring the previously current span of this thread, and exports it.
+   *
+   * @param span     the span
+   * @param previous the previously current span
+   */
+  static void end(Span span, Span previous) {
+    if (CURRENT_SPAN.get() == span) {
+      if (previous == null) {
+        CURRENT_SPAN.remove();
+      } else {
+        CURRENT_SPAN.set(previous);
+      }
+    }
+    SpanExporter spanExporter = exporter;
+    if (spanExporter != null) {
+      spanExporter.export(span);
+    }
+  }
+
+  /**
+   * Private constructor to prevent instantiation.
+   */
+  private Tracing() {
+  }
+}
@@ -21,6 +21,8 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
 import com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.amazonaws.services.ec2.model.BlockDeviceMapping;
@@ -71,10 +73,13 @@ import java.io.File;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 
 /**
@@ -113,8 +118,8 @@ public class EC2ProviderLocalTest {
     when(ec2Client.describeImages(any(DescribeImagesRequest.class)))
         .thenReturn(makeDescribeImagesResult());
 
-    when(ec2Client.runInstancesAsync(any(RunInstancesRequest.class))).then(
-        (Answer<Future<RunInstancesResult>>) invocation -> {
+    when(ec2Client.runInstancesAsync(any(RunInstancesRequest.class), any())).then(
+        (Answer<Future<RunInstancesResult>>) invocation -> completeAsync(invocation, () -> {
 
           List<Tag> allTags =
               tagSpecificationsToTags(((RunInstancesRequest) invocation.getArguments()[0]).getTagSpecifications());
@@ -126,7 +131,8 @@ public class EC2ProviderLocalTest {
           }
 
           return null;
-        });
+        }));
+    mockDescribeInstancesAsync();
 
     when(ec2Client.describeInstanceStatus(makeDescribeInstanceStatusRequest("1i")))
         .thenReturn(makeDescribeInstanceStatusResult("1i", InstanceStateName.Running));
@@ -170,8 +176,8 @@ public class EC2ProviderLocalTest {
     when(ec2Client.describeImages(any(DescribeImagesRequest.class)))
         .thenReturn(makeDescribeImagesResult());
 
-    when(ec2Client.runInstancesAsync(any(RunInstancesRequest.class))).then(
-        (Answer<Future<RunInstancesResult>>) invocation -> {
+    when(ec2Client.runInstancesAsync(any(RunInstancesRequest.class), any())).then(
+        (Answer<Future<RunInstancesResult>>) invocation -> completeAsync(invocation, () -> {
 
           List<Tag> allTags =
               tagSpecificationsToTags(((RunInstancesRequest) invocation.getArguments()[0]).getTagSpecifications());
@@ -185,7 +191,8 @@ public class EC2ProviderLocalTest {
           }
 
           return null;
-        });
+        }));
+    mockDescribeInstancesAsync();
 
     when(ec2Client.describeInstanceStatus(makeDescribeInstanceStatusRequest("1i")))
         .thenReturn(makeDescribeInstanceStatusResult("1i", InstanceStateName.Running));
@@ -313,6 +320,27 @@ public class EC2ProviderLocalTest {
     return mockFuture;
   }
 
+  private void mockDescribeInstancesAsync() {
+    when(ec2Client.describeInstancesAsync(any(DescribeInstancesRequest.class), any())).then(
+        (Answer<Future<DescribeInstancesResult>>) invocation -> completeAsync(invocation,
+            () -> CompletableFuture.completedFuture(
+                ec2Client.describeInstances((DescribeInstancesRequest) invocation.getArguments()[0]))));
+  }
+
+  @SuppressWarnings("unchecked")
+  private <Q extends AmazonWebServiceRequest, R> Future<R> completeAsync(
+      InvocationOnMock invocation, Callable<Future<R>> resultSupplier) throws Exception {
+    Q request = (Q) invocation.getArguments()[0];
+    AsyncHandler<Q, R> asyncHandler = (AsyncHandler<Q, R>) invocation.getArguments()[1];
+    Future<R> future = resultSupplier.call();
+    if (future == null) {
+      asyncHandler.onError(new IllegalStateException("Unexpected request " + request));
+    } else {
+      asyncHandler.onSuccess(request, future.get());
+    }
+    return future;
+  }
+
   private List<Tag> tagSpecificationsToTags(List<TagSpecification> tagSpecifications) {
     List<Tag> allTags = Lists.newArrayList();
     for (TagSpecification tagSpecification : tagSpecifications) {
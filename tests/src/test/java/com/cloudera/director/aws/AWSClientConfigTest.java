@@ -14,8 +14,14 @@
 
 package com.cloudera.director.aws;
 
+import static com.cloudera.director.aws.AWSLauncher.DEFAULT_PLUGIN_LOCALIZATION_CONTEXT;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import com.cloudera.director.aws.shaded.com.amazonaws.ClientConfiguration;
+import com.cloudera.director.spi.v2.common.http.HttpProxyParameters;
+import com.cloudera.director.spi.v2.model.Configured;
+import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 
 import org.junit.Test;
@@ -27,4 +33,24 @@ public class AWSClientConfigTest {
     assertThat(AWSClientConfig.modifyProxyBypassList(Lists.newArrayList("host1", ".host2", "host3.com", ".host4")))
         .isEqualTo("host1|*.host2|host3.com|*.host4");
   }
+
+  @Test
+  public void testServiceOverrides() {
+    Configured configuration = new SimpleConfiguration(ImmutableMap.of(
+        "maxConnections", "100",
+        "socketTimeoutInMilliseconds", "20000"));
+    Configured ec2Configuration = new SimpleConfiguration(ImmutableMap.of(
+        "maxConnections", "200"));
+    AWSClientConfig awsClientConfig = new AWSClientConfig(configuration,
+        ImmutableMap.of("ec2", ec2Configuration), new HttpProxyParameters(),
+        DEFAULT_PLUGIN_LOCALIZATION_CONTEXT);
+
+    ClientConfiguration ec2ClientConfiguration = awsClientConfig.getClientConfiguration("ec2");
+    assertThat(ec2ClientConfiguration.getMaxConnections()).isEqualTo(200);
+    assertThat(ec2ClientConfiguration.getSocketTimeout()).isEqualTo(20000);
+
+    ClientConfiguration kmsClientConfiguration = awsClientConfig.getClientConfiguration("kms");
+    assertThat(kmsClientConfiguration.getMaxConnections()).isEqualTo(100);
+    assertThat(kmsClientConfiguration.getSocketTimeout()).isEqualTo(20000);
+  }
 }
@@ -14,15 +14,31 @@
 
 package com.cloudera.director.aws;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
 import com.cloudera.director.aws.shaded.com.amazonaws.AmazonClientException;
 import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.model.DecodeAuthorizationMessageRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.model.DecodeAuthorizationMessageResult;
 import com.cloudera.director.spi.v2.model.exception.InvalidCredentialsException;
 import com.cloudera.director.spi.v2.model.exception.TransientProviderException;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import org.junit.Before;
 import org.junit.Test;
 
 public class AWSExceptionsTest {
 
+  @Before
+  public void setUp() {
+    AWSExceptions.clearDecodedAuthorizationMessages();
+  }
+
   @Test(expected = InvalidCredentialsException.class)
   public void testUnauthorizedOperationException() {
     AmazonServiceException e =
@@ -72,4 +88,49 @@ public class AWSExceptionsTest {
         new AmazonServiceException("Test TransientProviderException");
     AWSExceptions.propagate(null, e);
   }
+
+  @Test
+  public void testDecodedAuthorizationMessageIsCached() {
+    AWSSecurityTokenServiceAsyncClient stsClient = mock(AWSSecurityTokenServiceAsyncClient.class);
+    when(stsClient.decodeAuthorizationMessage(any(DecodeAuthorizationMessageRequest.class)))
+        .thenReturn(new DecodeAuthorizationMessageResult().withDecodedMessage("decoded"));
+
+    for (int i = 0; i < 3; i++) {
+      AmazonServiceException e = AWSExceptions.decodeAuthorizationMessageIfPossible(stsClient,
+          authorizationException("abc123"));
+      assertThat(e.getErrorMessage())
+          .isEqualTo("Not allowed. Decoded authorization message: decoded");
+    }
+    verify(stsClient, times(1))
+        .decodeAuthorizationMessage(any(DecodeAuthorizationMessageRequest.class));
+
+    AWSExceptions.decodeAuthorizationMessageIfPossible(stsClient,
+        authorizationException("def456"));
+    verify(stsClient, times(2))
+        .decodeAuthorizationMessage(any(DecodeAuthorizationMessageRequest.class));
+  }
+
+  @Test
+  public void testFailedDecodeIsNotCached() {
+    AWSSecurityTokenServiceAsyncClient stsClient = mock(AWSSecurityTokenServiceAsyncClient.class);
+    when(stsClient.decodeAuthorizationMessage(any(DecodeAuthorizationMessageRequest.class)))
+        .thenThrow(new AmazonClientException("STS unavailable"))
+        .thenReturn(new DecodeAuthorizationMessageResult().withDecodedMessage("decoded"));
+
+    AmazonServiceException first = AWSExceptions.decodeAuthorizationMessageIfPossible(stsClient,
+        authorizationException("abc123"));
+    assertThat(first.getErrorMessage()).contains(AWSExceptions.ENCODED_MESSAGE_STRING);
+
+    AmazonServiceException second = AWSExceptions.decodeAuthorizationMessageIfPossible(stsClient,
+        authorizationException("abc123"));
+    assertThat(second.getErrorMessage())
+        .isEqualTo("Not allowed. Decoded authorization message: decoded");
+  }
+
+  private static AmazonServiceException authorizationException(String encodedMessage) {
+    AmazonServiceException e = new AmazonServiceException(
+        "Not allowed. " + AWSExceptions.ENCODED_MESSAGE_STRING + encodedMessage);
+    e.setErrorCode("UnauthorizedOperation");
+    return e;
+  }
 }
@@ -16,6 +16,7 @@ package com.cloudera.director.aws;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
@@ -30,7 +31,14 @@ import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.mod
 import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.model.Credentials;
 import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableList;
 
+import java.lang.ref.WeakReference;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicStampedReference;
 
 import org.junit.Test;
@@ -90,5 +98,141 @@ public class STSAssumeNRolesSessionCredentialsProviderTest {
       credentials1 = credentials2;
     }
   }
-}
 
+  @Test
+  public void testGetCredentialsServesCurrentCredentialsWhileRefreshing() throws InterruptedException {
+    final AtomicInteger assumeRoleCount = new AtomicInteger();
+
+    AWSSecurityTokenServiceClientBuilder stsClientBuilder = spy(AWSSecurityTokenServiceClientBuilder.class);
+    AWSSecurityTokenService stsClient = mock(AWSSecurityTokenService.class);
+    stsClientBuilder.withRegion("us-west-1");
+    doReturn(stsClient).when(stsClientBuilder).build();
+    doReturn(stsClientBuilder).when(stsClientBuilder).withCredentials(any(AWSCredentialsProvider.class));
+    // Credentials expire inside the async refresh window, but outside the blocking one
+    when(stsClient.assumeRole(any(AssumeRoleRequest.class))).thenAnswer(invocationOnMock ->
+        new AssumeRoleResult().withCredentials(new Credentials(
+            "accessKey",
+            "secretKey",
+            String.valueOf(assumeRoleCount.incrementAndGet()),
+            new Date(System.currentTimeMillis() + 300 * 1000))));
+
+    STSAssumeNRolesSessionCredentialsProvider.RoleConfiguration rc =
+        new STSAssumeNRolesSessionCredentialsProvider.RoleConfiguration("roleArn", "roleSessionName");
+    STSAssumeNRolesSessionCredentialsProvider.Builder builder =
+        new STSAssumeNRolesSessionCredentialsProvider.Builder(ImmutableList.of(rc), stsClientBuilder)
+            .withBlockingRefreshDurationMsec(60 * 1000)
+            .withAsyncRefreshDurationMsec(600 * 1000)
+            .withRoleSessionDurationSeconds(900);
+    STSAssumeNRolesSessionCredentialsProvider.Builder spyBuilder = spy(builder);
+    when(spyBuilder.getStsClientBuilder()).thenReturn(stsClientBuilder);
+    STSAssumeNRolesSessionCredentialsProvider stsAssumeNRolesSessionCredentialsProvider = spyBuilder.build();
+
+    AWSSessionCredentials credentials1 = stsAssumeNRolesSessionCredentialsProvider.getCredentials();
+    assertThat(credentials1.getSessionToken()).isEqualTo("1");
+
+    // The current credentials are served without waiting for the refresh they trigger
+    AWSSessionCredentials credentials2 = stsAssumeNRolesSessionCredentialsProvider.getCredentials();
+    assertThat(credentials2.getSessionToken()).isEqualTo("1");
+
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while (assumeRoleCount.get() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(assumeRoleCount.get()).isGreaterThanOrEqualTo(2);
+  }
+
+  @Test
+  public void testGetCredentialsOnlyRefreshesExpiringHops() {
+    Map<String, AtomicInteger> assumeRoleCounts = new ConcurrentHashMap<>();
+    List<String> callerAccessKeys = new CopyOnWriteArrayList<>();
+
+    AWSSecurityTokenServiceClientBuilder stsClientBuilder = AWSSecurityTokenServiceClientBuilder
+        .standard()
+        .withRegion("us-west-1");
+    STSAssumeNRolesSessionCredentialsProvider provider = spy(
+        new STSAssumeNRolesSessionCredentialsProvider.Builder(
+            ImmutableList.of(
+                new STSAssumeNRolesSessionCredentialsProvider.RoleConfiguration("role-0", "session"),
+                new STSAssumeNRolesSessionCredentialsProvider.RoleConfiguration("role-1", "session"),
+                new STSAssumeNRolesSessionCredentialsProvider.RoleConfiguration("role-2", "session")),
+            stsClientBuilder)
+            .withBlockingRefreshDurationMsec(60 * 1000)
+            .withAsyncRefreshDurationMsec(300 * 1000)
+            .withRoleSessionDurationSeconds(900)
+            .build());
+
+    // The last hop expires inside the blocking refresh window, and the others last an hour
+    doAnswer(invocation -> {
+      AWSCredentialsProvider callerCredentials = invocation.getArgument(0);
+      String callerAccessKey = (callerCredentials == null)
+          ? "base" : callerCredentials.getCredentials().getAWSAccessKeyId();
+      AWSSecurityTokenService stsClient = mock(AWSSecurityTokenService.class);
+      when(stsClient.assumeRole(any(AssumeRoleRequest.class))).thenAnswer(assumeRole -> {
+        String roleArn = assumeRole.<AssumeRoleRequest>getArgument(0).getRoleArn();
+        callerAccessKeys.add(callerAccessKey + "->" + roleArn);
+        int count = assumeRoleCounts.computeIfAbsent(roleArn, (arn) -> new AtomicInteger())
+            .incrementAndGet();
+        long lifetimeMillis = roleArn.equals("role-2") ? 30 * 1000 : 3600 * 1000;
+        return new AssumeRoleResult().withCredentials(new Credentials(
+            roleArn + "-" + count,
+            "secretKey",
+            roleArn + "-" + count,
+            new Date(System.currentTimeMillis() + lifetimeMillis)));
+      });
+      return stsClient;
+    }).when(provider).buildStsClient(any());
+
+    for (int i = 1; i <= 3; i++) {
+      assertThat(provider.getCredentials().getSessionToken()).isEqualTo("role-2-" + i);
+    }
+
+    // Earlier hops are assumed once, and their credentials are reused for the expiring hop
+    assertThat(assumeRoleCounts.get("role-0").get()).isEqualTo(1);
+    assertThat(assumeRoleCounts.get("role-1").get()).isEqualTo(1);
+    assertThat(assumeRoleCounts.get("role-2").get()).isEqualTo(3);
+    assertThat(callerAccessKeys).containsExactly(
+        "base->role-0", "role-0-1->role-1", "role-1-1->role-2",
+        "role-1-1->role-2", "role-1-1->role-2");
+  }
+
+  @Test
+  public void testRoleChainIsForgottenOnceProviderIsCollected() throws InterruptedException {
+    AWSSecurityTokenServiceClientBuilder stsClientBuilder = spy(AWSSecurityTokenServiceClientBuilder.class);
+    AWSSecurityTokenService stsClient = mock(AWSSecurityTokenService.class);
+    stsClientBuilder.withRegion("us-west-1");
+    doReturn(stsClient).when(stsClientBuilder).build();
+    when(stsClient.assumeRole(any(AssumeRoleRequest.class))).thenAnswer(invocationOnMock ->
+        new AssumeRoleResult().withCredentials(new Credentials(
+            "accessKey", "secretKey", "sessionToken",
+            new Date(System.currentTimeMillis() + 900 * 1000))));
+
+    int initialCount = STSAssumeNRolesSessionCredentialsProvider.getRoleChainCount();
+    STSAssumeNRolesSessionCredentialsProvider.Builder builder =
+        new STSAssumeNRolesSessionCredentialsProvider.Builder(
+            ImmutableList.of(new STSAssumeNRolesSessionCredentialsProvider.RoleConfiguration(
+                "roleArn-" + UUID.randomUUID(), "roleSessionName")),
+            stsClientBuilder)
+            .withBlockingRefreshDurationMsec(0)
+            .withAsyncRefreshDurationMsec(1)
+            .withRoleSessionDurationSeconds(900);
+    STSAssumeNRolesSessionCredentialsProvider.Builder spyBuilder = spy(builder);
+    when(spyBuilder.getStsClientBuilder()).thenReturn(stsClientBuilder);
+
+    WeakReference<STSAssumeNRolesSessionCredentialsProvider> providerReference =
+        new WeakReference<>(spyBuilder.build());
+    assertThat(STSAssumeNRolesSessionCredentialsProvider.getRoleChainCount())
+        .isEqualTo(initialCount + 1);
+
+    // The scheduled refresh notices that the provider was collected on its next run
+    long deadline = System.currentTimeMillis() + 10 * 1000;
+    while ((providerReference.get() != null
+        || STSAssumeNRolesSessionCredentialsProvider.getRoleChainCount() > initialCount)
+        && System.currentTimeMillis() < deadline) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(providerReference.get()).isNull();
+    assertThat(STSAssumeNRolesSessionCredentialsProvider.getRoleChainCount())
+        .isEqualTo(initialCount);
+  }
+}
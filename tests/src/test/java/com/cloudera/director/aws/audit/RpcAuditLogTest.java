@@ -0,0 +1,200 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudera.director.aws.audit.RpcAuditConfig.Verbosity;
+import com.cloudera.director.aws.common.CompletableFutures;
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.CreateTagsRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RpcAuditLogTest {
+
+  private final List<RpcAuditRecord> records = new ArrayList<>();
+
+  private final RpcAuditSink sink = new RpcAuditSink() {
+    @Override
+    public void write(RpcAuditRecord record) {
+      records.add(record);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+
+  @After
+  public void tearDown() {
+    RpcAuditLog.stop();
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    assertThat(RpcAuditLog.isEnabled()).isFalse();
+    assertThat(RpcAuditLog.getVerbosity("AmazonEC2Client::runInstances", "runInstances"))
+        .isEqualTo(Verbosity.OFF);
+    assertThat(RpcAuditLog.isSampled()).isFalse();
+  }
+
+  @Test
+  public void testVerbosityByAction() {
+    RpcAuditLog.start(new RpcAuditConfig(1.0, Verbosity.SUMMARY,
+        ImmutableMap.of("describeInstances", Verbosity.OFF,
+            "AmazonEC2Client::terminateInstances", Verbosity.FULL), 16), sink);
+
+    assertThat(RpcAuditLog.getVerbosity("AmazonEC2Client::describeInstances",
+        "describeInstances")).isEqualTo(Verbosity.OFF);
+    assertThat(RpcAuditLog.getVerbosity("AmazonEC2Client::terminateInstances",
+        "terminateInstances")).isEqualTo(Verbosity.FULL);
+    assertThat(RpcAuditLog.getVerbosity("AmazonEC2Client::runInstances", "runInstances"))
+        .isEqualTo(Verbosity.SUMMARY);
+  }
+
+  @Test
+  public void testFullRecord() {
+    RpcAuditLog.start(new RpcAuditConfig(1.0, Verbosity.FULL, Collections.emptyMap(), 16), sink);
+
+    TerminateInstancesRequest request =
+        new TerminateInstancesRequest().withInstanceIds("i-1", "i-2");
+    RpcAuditLog.record("AmazonEC2Client::terminateInstances", Verbosity.FULL, 1000L,
+        TimeUnit.MILLISECONDS.toNanos(25), request, new TerminateInstancesResult(), null);
+    RpcAuditLog.drain();
+
+    assertThat(records).hasSize(1);
+    RpcAuditRecord record = records.get(0);
+    assertThat(record.getAction()).isEqualTo("AmazonEC2Client::terminateInstances");
+    assertThat(record.getLatencyMicros()).isEqualTo(25000L);
+    assertThat(record.getErrorCode()).isNull();
+    assertThat(record.getResourceIds()).containsExactly("i-1", "i-2");
+    assertThat(record.getResourceCount()).isEqualTo(2);
+    assertThat(record.toJson()).contains("\"resourceIds\":[\"i-1\",\"i-2\"]");
+  }
+
+  @Test
+  public void testSummaryRecordOfFailure() {
+    RpcAuditLog.start(new RpcAuditConfig(0.0, Verbosity.SUMMARY, Collections.emptyMap(), 16),
+        sink);
+
+    AmazonServiceException error = new AmazonServiceException("denied");
+    error.setErrorCode("UnauthorizedOperation");
+    error.setRequestId("req-1");
+    RpcAuditLog.record("AmazonEC2Client::createTags", Verbosity.SUMMARY, 1000L, 1000L,
+        new CreateTagsRequest().withResources("i-1"), null, error);
+    RpcAuditLog.drain();
+
+    assertThat(records).hasSize(1);
+    RpcAuditRecord record = records.get(0);
+    assertThat(record.getErrorCode()).isEqualTo("UnauthorizedOperation");
+    assertThat(record.getRequestId()).isNull();
+    assertThat(record.getResourceIds()).isEmpty();
+    assertThat(record.toJson()).doesNotContain("resourceIds");
+  }
+
+  @Test
+  public void testResourceIdsAreCapped() {
+    RpcAuditLog.start(new RpcAuditConfig(1.0, Verbosity.FULL, Collections.emptyMap(), 16), sink);
+
+    List<String> instanceIds = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      instanceIds.add("i-" + i);
+    }
+    RpcAuditLog.record("AmazonEC2Client::terminateInstances", Verbosity.FULL, 1000L, 1000L,
+        new TerminateInstancesRequest().withInstanceIds(instanceIds), null, null);
+    RpcAuditLog.drain();
+
+    assertThat(records.get(0).getResourceIds()).hasSize(20);
+    assertThat(records.get(0).getResourceCount()).isEqualTo(50);
+  }
+
+  @Test
+  public void testAsyncCallIsRecordedOnCompletion() throws Exception {
+    RpcAuditLog.start(new RpcAuditConfig(1.0, Verbosity.FULL, Collections.emptyMap(), 16), sink);
+
+    AtomicReference<AsyncHandler<TerminateInstancesRequest, TerminateInstancesResult>> handler =
+        new AtomicReference<>();
+    CompletableFuture<TerminateInstancesResult> future = CompletableFutures.call(
+        (request, asyncHandler) -> {
+          handler.set(asyncHandler);
+          return null;
+        },
+        new TerminateInstancesRequest().withInstanceIds("i-1"));
+    RpcAuditLog.drain();
+    assertThat(records).isEmpty();
+
+    handler.get().onSuccess(new TerminateInstancesRequest().withInstanceIds("i-1"),
+        new TerminateInstancesResult());
+    future.get();
+    RpcAuditLog.drain();
+
+    assertThat(records).hasSize(1);
+    RpcAuditRecord record = records.get(0);
+    assertThat(record.getAction()).isEqualTo("ec2::terminateInstances");
+    assertThat(record.getErrorCode()).isNull();
+    assertThat(record.getResourceIds()).containsExactly("i-1");
+  }
+
+  @Test
+  public void testFailedAsyncCallIsRecordedDespiteSampling() throws Exception {
+    RpcAuditLog.start(new RpcAuditConfig(0.0, Verbosity.SUMMARY, Collections.emptyMap(), 16),
+        sink);
+
+    AmazonServiceException error = new AmazonServiceException("denied");
+    error.setErrorCode("UnauthorizedOperation");
+    CompletableFuture<TerminateInstancesResult> future = CompletableFutures.call(
+        (TerminateInstancesRequest request,
+            AsyncHandler<TerminateInstancesRequest, TerminateInstancesResult> asyncHandler) -> {
+          asyncHandler.onError(error);
+          return null;
+        },
+        new TerminateInstancesRequest().withInstanceIds("i-1"));
+    assertThat(future.isCompletedExceptionally()).isTrue();
+    RpcAuditLog.drain();
+
+    assertThat(records).hasSize(1);
+    assertThat(records.get(0).getAction()).isEqualTo("ec2::terminateInstances");
+    assertThat(records.get(0).getErrorCode()).isEqualTo("UnauthorizedOperation");
+  }
+
+  @Test
+  public void testStopDrainsBufferedRecords() {
+    RpcAuditLog.start(new RpcAuditConfig(1.0, Verbosity.SUMMARY, Collections.emptyMap(), 16),
+        sink);
+    RpcAuditLog.record("AmazonEC2Client::runInstances", Verbosity.SUMMARY, 1000L, 1000L, null,
+        null, null);
+    RpcAuditLog.stop();
+
+    assertThat(records).hasSize(1);
+    assertThat(RpcAuditLog.isEnabled()).isFalse();
+  }
+}
@@ -0,0 +1,85 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.audit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RpcAuditRingBufferTest {
+
+  private static RpcAuditRecord record(String action) {
+    return new RpcAuditRecord(0L, action, 1L, null, null, Collections.emptyList(), 0);
+  }
+
+  @Test
+  public void testCapacityIsRoundedUpToPowerOfTwo() {
+    assertThat(new RpcAuditRingBuffer(5).capacity()).isEqualTo(8);
+    assertThat(new RpcAuditRingBuffer(8).capacity()).isEqualTo(8);
+  }
+
+  @Test
+  public void testDrainsInOrderAndDropsWhenFull() {
+    RpcAuditRingBuffer buffer = new RpcAuditRingBuffer(4);
+    for (int i = 0; i < 6; i++) {
+      buffer.offer(record("a" + i));
+    }
+    assertThat(buffer.getDropped()).isEqualTo(2L);
+
+    List<String> actions = new ArrayList<>();
+    assertThat(buffer.drainTo((r) -> actions.add(r.getAction()))).isEqualTo(4);
+    assertThat(actions).containsExactly("a0", "a1", "a2", "a3");
+
+    // Slots are reused after draining
+    assertThat(buffer.offer(record("b0"))).isTrue();
+    actions.clear();
+    buffer.drainTo((r) -> actions.add(r.getAction()));
+    assertThat(actions).containsExactly("b0");
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    int producers = 4;
+    int perProducer = 10000;
+    RpcAuditRingBuffer buffer = new RpcAuditRingBuffer(1024);
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    CountDownLatch done = new CountDownLatch(producers);
+    for (int p = 0; p < producers; p++) {
+      executor.submit(() -> {
+        for (int i = 0; i < perProducer; i++) {
+          buffer.offer(record("call"));
+        }
+        done.countDown();
+      });
+    }
+
+    long drained = 0;
+    while (!done.await(1, TimeUnit.MILLISECONDS)) {
+      drained += buffer.drainTo((r) -> { });
+    }
+    drained += buffer.drainTo((r) -> { });
+    executor.shutdown();
+
+    assertThat(drained + buffer.getDropped()).isEqualTo((long) producers * perProducer);
+  }
+}
@@ -0,0 +1,188 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.clientprovider;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.cloudera.director.aws.shaded.com.amazonaws.ClientConfiguration;
+import com.cloudera.director.aws.shaded.com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.cloudera.director.aws.shaded.com.amazonaws.auth.BasicAWSCredentials;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AWSClientRegistryTest {
+
+  private static final String ENDPOINT = "https://ec2.us-east-1.amazonaws.com";
+
+  private final AWSClientRegistry registry = new AWSClientRegistry();
+
+  @Test
+  public void testAcquireSharesClientForEquivalentConfiguration() {
+    AtomicInteger created = new AtomicInteger();
+    Object owner1 = new Object();
+    Object owner2 = new Object();
+
+    AmazonEC2AsyncClient client1 = acquire(owner1, "secret", new ClientConfiguration(), created);
+    AmazonEC2AsyncClient client2 = acquire(owner2, "secret", new ClientConfiguration(), created);
+
+    assertThat(client2).isSameAs(client1);
+    assertThat(created.get()).isEqualTo(1);
+    assertThat(registry.getReferenceCounts()).hasSize(1);
+    assertThat(registry.getReferenceCounts().values()).containsOnly(2);
+  }
+
+  @Test
+  public void testAcquireSeparatesDifferentCredentialsAndConfiguration() {
+    AtomicInteger created = new AtomicInteger();
+
+    AmazonEC2AsyncClient client1 = acquire(new Object(), "secret", new ClientConfiguration(), created);
+    AmazonEC2AsyncClient client2 = acquire(new Object(), "other", new ClientConfiguration(), created);
+    AmazonEC2AsyncClient client3 = acquire(new Object(), "secret",
+        new ClientConfiguration().withMaxConnections(7), created);
+
+    assertThat(client2).isNotSameAs(client1);
+    assertThat(client3).isNotSameAs(client1);
+    assertThat(created.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testReleaseShutsDownUnreferencedClient() {
+    AtomicInteger created = new AtomicInteger();
+    Object owner1 = new Object();
+    Object owner2 = new Object();
+
+    AmazonEC2AsyncClient client = acquire(owner1, "secret", new ClientConfiguration(), created);
+    acquire(owner2, "secret", new ClientConfiguration(), created);
+
+    registry.release(owner1);
+    verify(client, never()).shutdown();
+
+    registry.release(owner2);
+    verify(client).shutdown();
+    assertThat(registry.getReferenceCounts()).isEmpty();
+  }
+
+  @Test
+  public void testSlowFactoryDoesNotBlockOtherClients() throws Exception {
+    CountDownLatch creating = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<AmazonEC2AsyncClient> slow = executor.submit(() -> registry.acquire(
+          AmazonEC2AsyncClient.class,
+          new AWSStaticCredentialsProvider(new BasicAWSCredentials("accessKey", "slow")),
+          ENDPOINT, new ClientConfiguration(), new Object(),
+          () -> {
+            creating.countDown();
+            awaitUninterruptibly(release);
+            return mock(AmazonEC2AsyncClient.class);
+          }));
+      assertThat(creating.await(10, TimeUnit.SECONDS)).isTrue();
+
+      AtomicInteger created = new AtomicInteger();
+      acquire(new Object(), "secret", new ClientConfiguration(), created);
+      assertThat(created.get()).isEqualTo(1);
+      assertThat(slow.isDone()).isFalse();
+
+      release.countDown();
+      assertThat(slow.get(10, TimeUnit.SECONDS)).isNotNull();
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testConcurrentAcquireCreatesClientOnce() throws Exception {
+    AtomicInteger created = new AtomicInteger();
+    CountDownLatch creating = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Callable<AmazonEC2AsyncClient> acquisition = () -> registry.acquire(
+          AmazonEC2AsyncClient.class,
+          new AWSStaticCredentialsProvider(new BasicAWSCredentials("accessKey", "secret")),
+          ENDPOINT, new ClientConfiguration(), new Object(),
+          () -> {
+            created.incrementAndGet();
+            creating.countDown();
+            awaitUninterruptibly(release);
+            return mock(AmazonEC2AsyncClient.class);
+          });
+      Future<AmazonEC2AsyncClient> first = executor.submit(acquisition);
+      assertThat(creating.await(10, TimeUnit.SECONDS)).isTrue();
+      Future<AmazonEC2AsyncClient> second = executor.submit(acquisition);
+
+      release.countDown();
+      assertThat(second.get(10, TimeUnit.SECONDS)).isSameAs(first.get(10, TimeUnit.SECONDS));
+      assertThat(created.get()).isEqualTo(1);
+    } finally {
+      release.countDown();
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFailedCreationIsRetriedByNextAcquire() {
+    AtomicInteger created = new AtomicInteger();
+    try {
+      registry.acquire(AmazonEC2AsyncClient.class,
+          new AWSStaticCredentialsProvider(new BasicAWSCredentials("accessKey", "secret")),
+          ENDPOINT, new ClientConfiguration(), new Object(),
+          () -> {
+            throw new IllegalStateException("endpoint lookup failed");
+          });
+      fail("expected creation to fail");
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("endpoint lookup failed");
+    }
+    assertThat(registry.getReferenceCounts()).isEmpty();
+
+    assertThat(acquire(new Object(), "secret", new ClientConfiguration(), created)).isNotNull();
+    assertThat(created.get()).isEqualTo(1);
+  }
+
+  private static void awaitUninterruptibly(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private AmazonEC2AsyncClient acquire(Object owner, String secretKey,
+      ClientConfiguration clientConfiguration, AtomicInteger created) {
+    return registry.acquire(AmazonEC2AsyncClient.class,
+        new AWSStaticCredentialsProvider(new BasicAWSCredentials("accessKey", secretKey)),
+        ENDPOINT, clientConfiguration, owner,
+        () -> {
+          created.incrementAndGet();
+          return mock(AmazonEC2AsyncClient.class);
+        });
+  }
+}
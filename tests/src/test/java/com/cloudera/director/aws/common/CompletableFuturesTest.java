@@ -0,0 +1,352 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DetachInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeInstancesResult;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class CompletableFuturesTest {
+
+  @Test
+  public void testRunAllBoundsTasksInFlight() throws Exception {
+    List<CompletableFuture<Void>> pending = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger started = new AtomicInteger();
+    CompletableFuture<Void> done = CompletableFutures.runAll(
+        Collections.nCopies(5, "item"),
+        (item) -> {
+          started.incrementAndGet();
+          CompletableFuture<Void> future = new CompletableFuture<>();
+          pending.add(future);
+          return future;
+        },
+        2);
+
+    assertThat(started.get()).isEqualTo(2);
+    for (int i = 0; i < 5; i++) {
+      assertThat(done.isDone()).isFalse();
+      pending.get(i).complete(null);
+    }
+    assertThat(started.get()).isEqualTo(5);
+    assertThat(done.isDone()).isTrue();
+    done.get();
+  }
+
+  @Test
+  public void testRunAllStopsAfterFailure() throws Exception {
+    AtomicInteger started = new AtomicInteger();
+    IllegalStateException failure = new IllegalStateException("failed");
+    CompletableFuture<Void> done = CompletableFutures.runAll(
+        Collections.nCopies(5, "item"),
+        (item) -> {
+          started.incrementAndGet();
+          CompletableFuture<Void> future = new CompletableFuture<>();
+          future.completeExceptionally(failure);
+          return future;
+        },
+        1);
+
+    assertThat(started.get()).isEqualTo(1);
+    try {
+      done.get();
+      fail("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testRunAllWithoutItems() {
+    assertThat(CompletableFutures.runAll(Collections.<String>emptyList(),
+        (item) -> new CompletableFuture<Void>(), 3).isDone()).isTrue();
+  }
+
+  @Test
+  public void testCallCompletesWithResult() throws Exception {
+    DescribeInstancesRequest request = new DescribeInstancesRequest();
+    DescribeInstancesResult result = new DescribeInstancesResult();
+    CompletableFuture<DescribeInstancesResult> future = CompletableFutures.call(
+        (DescribeInstancesRequest q,
+            AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler) -> {
+          handler.onSuccess(q, result);
+          return CompletableFuture.completedFuture(result);
+        },
+        request);
+
+    assertThat(future.get()).isSameAs(result);
+  }
+
+  @Test
+  public void testCallCompletesExceptionallyOnError() throws Exception {
+    IllegalStateException failure = new IllegalStateException("failed");
+    CompletableFuture<DescribeInstancesResult> future = CompletableFutures.call(
+        (DescribeInstancesRequest q,
+            AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler) -> {
+          handler.onError(failure);
+          return null;
+        },
+        new DescribeInstancesRequest());
+
+    try {
+      future.get();
+      fail("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testCallCompletesExceptionallyWhenRejected() throws Exception {
+    IllegalStateException failure = new IllegalStateException("rejected");
+    CompletableFuture<DescribeInstancesResult> future = CompletableFutures.call(
+        (DescribeInstancesRequest q,
+            AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler) -> {
+          throw failure;
+        },
+        new DescribeInstancesRequest());
+
+    try {
+      future.get();
+      fail("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testGetActionNamesServiceAndMethod() {
+    assertThat(CompletableFutures.getAction(new DescribeInstancesRequest()))
+        .isEqualTo("ec2::describeInstances");
+    assertThat(CompletableFutures.getAction(new DetachInstancesRequest()))
+        .isEqualTo("autoscaling::detachInstances");
+  }
+
+  @Test
+  public void testCallAllBoundsCallsInFlight() throws Exception {
+    List<AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult>> handlers =
+        Collections.synchronizedList(new ArrayList<>());
+    List<DescribeInstancesRequest> requests = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      requests.add(new DescribeInstancesRequest().withInstanceIds("i-" + i));
+    }
+
+    List<CompletableFuture<DescribeInstancesResult>> futures = CompletableFutures.callAll(
+        (DescribeInstancesRequest q,
+            AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler) -> {
+          handlers.add(handler);
+          return new CompletableFuture<>();
+        },
+        requests, 2);
+
+    assertThat(futures).hasSize(5);
+    assertThat(handlers).hasSize(2);
+    List<DescribeInstancesResult> results = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      assertThat(futures.get(i).isDone()).isFalse();
+      DescribeInstancesResult result = new DescribeInstancesResult();
+      results.add(result);
+      handlers.get(i).onSuccess(requests.get(i), result);
+      assertThat(handlers).hasSize(Math.min(i + 3, 5));
+    }
+    for (int i = 0; i < 5; i++) {
+      assertThat(futures.get(i).get()).isSameAs(results.get(i));
+    }
+  }
+
+  @Test
+  public void testCallAllContinuesAfterFailure() throws Exception {
+    IllegalStateException failure = new IllegalStateException("failed");
+    List<DescribeInstancesRequest> requests = Arrays.asList(
+        new DescribeInstancesRequest().withInstanceIds("i-0"),
+        new DescribeInstancesRequest().withInstanceIds("i-1"),
+        new DescribeInstancesRequest().withInstanceIds("i-2"));
+
+    List<CompletableFuture<DescribeInstancesResult>> futures = CompletableFutures.callAll(
+        (DescribeInstancesRequest q,
+            AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler) -> {
+          if (q.getInstanceIds().contains("i-1")) {
+            handler.onError(failure);
+          } else {
+            handler.onSuccess(q, new DescribeInstancesResult());
+          }
+          return null;
+        },
+        requests, 1);
+
+    assertThat(futures.get(0).isCompletedExceptionally()).isFalse();
+    assertThat(futures.get(1).isCompletedExceptionally()).isTrue();
+    assertThat(futures.get(2).get()).isNotNull();
+  }
+
+  @Test
+  public void testCallAllWithoutRequests() {
+    assertThat(CompletableFutures.callAll(
+        (DescribeInstancesRequest q,
+            AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler) -> null,
+        Collections.emptyList(), 3)).isEmpty();
+  }
+
+  @Test
+  public void testPollUntilSucceeds() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<Boolean> polled = CompletableFutures.pollUntil(
+        () -> CompletableFuture.completedFuture(attempts.incrementAndGet() == 3),
+        10, TimeUnit.MILLISECONDS, Long.MAX_VALUE);
+
+    assertThat(polled.get(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(attempts.get()).isEqualTo(3);
+  }
+
+  @Test
+  public void testPollUntilStopsAtDeadline() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<Boolean> polled = CompletableFutures.pollUntil(
+        () -> {
+          attempts.incrementAndGet();
+          return CompletableFuture.completedFuture(false);
+        },
+        10, TimeUnit.MILLISECONDS, System.currentTimeMillis() + 100L);
+
+    assertThat(polled.get(5, TimeUnit.SECONDS)).isFalse();
+    assertThat(attempts.get()).isGreaterThan(1);
+  }
+
+  @Test
+  public void testPollUntilFailsWhenAttemptFails() throws Exception {
+    IllegalStateException failure = new IllegalStateException("failed");
+    CompletableFuture<Boolean> polled = CompletableFutures.pollUntil(
+        () -> {
+          CompletableFuture<Boolean> attempt = new CompletableFuture<>();
+          attempt.completeExceptionally(failure);
+          return attempt;
+        },
+        10, TimeUnit.MILLISECONDS, Long.MAX_VALUE);
+
+    try {
+      polled.get(5, TimeUnit.SECONDS);
+      fail("expected failure");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testPollUntilStopsWhenCancelled() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    CompletableFuture<Boolean> polled = CompletableFutures.pollUntil(
+        () -> {
+          attempts.incrementAndGet();
+          return CompletableFuture.completedFuture(false);
+        },
+        50, TimeUnit.MILLISECONDS, Long.MAX_VALUE);
+
+    polled.cancel(true);
+    int attemptsWhenCancelled = attempts.get();
+    Thread.sleep(300L);
+
+    assertThat(polled.isCancelled()).isTrue();
+    assertThat(attempts.get()).isEqualTo(attemptsWhenCancelled);
+  }
+
+  @Test
+  public void testAllSettledWaitsForFailures() throws Exception {
+    CompletableFuture<String> succeeded = new CompletableFuture<>();
+    CompletableFuture<String> failed = new CompletableFuture<>();
+    CompletableFuture<Void> settled =
+        CompletableFutures.allSettled(Arrays.asList(succeeded, failed));
+
+    failed.completeExceptionally(new IllegalStateException("failed"));
+    assertThat(settled.isDone()).isFalse();
+    succeeded.complete("done");
+
+    assertThat(settled.isDone()).isTrue();
+    assertThat(settled.isCompletedExceptionally()).isFalse();
+    settled.get();
+  }
+
+  @Test
+  public void testJoinReturnsResult() throws Exception {
+    assertThat(CompletableFutures.join(CompletableFuture.completedFuture("done")))
+        .isEqualTo("done");
+  }
+
+  @Test
+  public void testJoinRethrowsUncheckedCause() throws Exception {
+    IllegalStateException failure = new IllegalStateException("failed");
+    CompletableFuture<String> future = new CompletableFuture<>();
+    future.completeExceptionally(failure);
+
+    try {
+      CompletableFutures.join(future);
+      fail("expected failure");
+    } catch (IllegalStateException e) {
+      assertThat(e).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testJoinWrapsCheckedCause() throws Exception {
+    IOException failure = new IOException("failed");
+    CompletableFuture<String> future = new CompletableFuture<>();
+    future.completeExceptionally(failure);
+
+    try {
+      CompletableFutures.join(future);
+      fail("expected failure");
+    } catch (RuntimeException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void testJoinCancelsFutureWhenInterrupted() throws Exception {
+    CompletableFuture<String> future = new CompletableFuture<>();
+    AtomicReference<Throwable> thrown = new AtomicReference<>();
+    CountDownLatch joined = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try {
+        CompletableFutures.join(future);
+      } catch (Throwable t) {
+        thrown.set(t);
+      } finally {
+        joined.countDown();
+      }
+    });
+    thread.start();
+    thread.interrupt();
+
+    assertThat(joined.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(thrown.get()).isInstanceOf(InterruptedException.class);
+    assertThat(future.isCancelled()).isTrue();
+  }
+}
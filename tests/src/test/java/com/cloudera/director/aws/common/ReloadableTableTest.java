@@ -0,0 +1,96 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.common;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReloadableTableTest {
+
+  private static final String BUILT_IN_PATH = "classpath:builtin.properties";
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Test
+  public void testLoadOverridesBuiltIn() throws Exception {
+    File customFile = writeCustomFile("property1=custom1\n");
+
+    ReloadableTable<Map<String, String>> table =
+        ReloadableTable.load("test table", BUILT_IN_PATH, customFile, ImmutableMap::copyOf);
+
+    assertThat(table.get().get("property1")).isEqualTo("custom1");
+    assertThat(table.get().get("property2")).isEqualTo("value2");
+  }
+
+  @Test
+  public void testLoadWithMissingCustomFile() throws Exception {
+    File customFile = new File(temporaryFolder.getRoot(), "missing.properties");
+
+    ReloadableTable<Map<String, String>> table =
+        ReloadableTable.load("test table", BUILT_IN_PATH, customFile, ImmutableMap::copyOf);
+
+    assertThat(table.get().get("property1")).isEqualTo("value1");
+  }
+
+  @Test
+  public void testReloadReplacesTable() throws Exception {
+    File customFile = writeCustomFile("property1=custom1\n");
+    ReloadableTable<Map<String, String>> table =
+        ReloadableTable.load("test table", BUILT_IN_PATH, customFile, ImmutableMap::copyOf);
+
+    writeCustomFile("property1=custom2\n");
+
+    assertThat(table.reload()).isTrue();
+    assertThat(table.get().get("property1")).isEqualTo("custom2");
+  }
+
+  @Test
+  public void testFailedReloadKeepsTable() throws Exception {
+    File customFile = writeCustomFile("count=1\n");
+    ReloadableTable<Integer> table = ReloadableTable.load("test table", BUILT_IN_PATH,
+        customFile, (properties) -> Integer.valueOf(properties.get("count")));
+
+    writeCustomFile("count=one\n");
+
+    assertThat(table.reload()).isFalse();
+    assertThat(table.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void testFixedTableIsNotReloaded() {
+    ReloadableTable<Map<String, String>> table =
+        ReloadableTable.of(ImmutableMap.of("key", "value"), ImmutableMap::copyOf);
+
+    assertThat(table.reload()).isFalse();
+    assertThat(table.get()).containsEntry("key", "value");
+  }
+
+  private File writeCustomFile(String contents) throws Exception {
+    File customFile = new File(temporaryFolder.getRoot(), "custom.properties");
+    Files.write(customFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+    return customFile;
+  }
+}
@@ -0,0 +1,50 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.cloudera.director.aws.ec2;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class CapacityPoolTest {
+
+  @Test
+  public void testParseListEmpty() {
+    assertThat(CapacityPool.parseList(null, "m5.xlarge", "subnet-a")).isEmpty();
+    assertThat(CapacityPool.parseList("", "m5.xlarge", "subnet-a")).isEmpty();
+  }
+
+  @Test
+  public void testParseListDefaults() {
+    assertThat(CapacityPool.parseList("m5.2xlarge, :subnet-b, r5.xlarge:subnet-c",
+        "m5.xlarge", "subnet-a"))
+        .containsExactly(
+            new CapacityPool("m5.2xlarge", "subnet-a"),
+            new CapacityPool("m5.xlarge", "subnet-b"),
+            new CapacityPool("r5.xlarge", "subnet-c"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseListRejectsEmptyPool() {
+    CapacityPool.parseList("m5.2xlarge,:", "m5.xlarge", "subnet-a");
+  }
+
+  @Test
+  public void testToString() {
+    assertThat(new CapacityPool("m5.xlarge", "subnet-a").toString())
+        .isEqualTo("m5.xlarge:subnet-a");
+  }
+}
@@ -129,6 +129,17 @@ public class EphemeralDeviceMappingsTest {
     assertThat(deviceMappings.get(23).getVirtualName()).isEqualTo("ephemeral23");
   }
 
+  @Test
+  public void testReturnsCopies() {
+    List<BlockDeviceMapping> deviceMappings = ephemeralDeviceMappings.getBlockDeviceMappings("c3.large");
+    deviceMappings.get(0).setDeviceName("/dev/sdz");
+    deviceMappings.remove(1);
+
+    deviceMappings = ephemeralDeviceMappings.getBlockDeviceMappings("c3.large");
+    assertThat(deviceMappings).hasSize(2);
+    assertThat(deviceMappings.get(0).getDeviceName()).isEqualTo("/dev/sdb");
+  }
+
   @Test
   public void testTestInstance() {
     Map<String, Integer> counts = Maps.newHashMap();
@@ -0,0 +1,128 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableMap;
+import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AllocationJournalTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    AllocationJournal.close();
+  }
+
+  @Test
+  public void testDisabledJournalRecordsNothing() {
+    AllocationJournal journal = AllocationJournal.get();
+    assertThat(journal.isEnabled()).isFalse();
+
+    journal.recordClientTokens(ImmutableMap.of("vid1", "token1"));
+    assertThat(journal.getRecord("vid1")).isNull();
+    assertThat(journal.getRecords(Collections.singletonList("vid1"))).isEmpty();
+  }
+
+  @Test
+  public void testRecordsAreReplayedWhenReopened() throws IOException {
+    File file = temporaryFolder.newFile("journal.json");
+    AllocationJournal.open(file);
+    AllocationJournal journal = AllocationJournal.get();
+    journal.recordClientTokens(ImmutableMap.of("vid1", "token1", "vid2", "token2"));
+    journal.recordInstances(ImmutableMap.of("vid1", "i-1"));
+    journal.recordVolumes("vid1", ImmutableSet.of("vol-1", "vol-2"));
+    journal.recordAllocated(Collections.singletonList("vid1"));
+
+    AllocationJournal.open(file);
+    journal = AllocationJournal.get();
+
+    AllocationJournal.Record record = journal.getRecord("vid1");
+    assertThat(record.getClientToken()).isEqualTo("token1");
+    assertThat(record.getEc2InstanceId()).isEqualTo("i-1");
+    assertThat(record.getVolumeIds()).containsOnly("vol-1", "vol-2");
+    assertThat(record.hasIncompleteVolumes()).isTrue();
+    assertThat(record.isAllocated()).isTrue();
+    assertThat(record.isLaunchPending()).isFalse();
+
+    assertThat(journal.getRecord("vid2").isLaunchPending()).isTrue();
+  }
+
+  @Test
+  public void testNewLaunchRequestSupersedesInstance() throws IOException {
+    AllocationJournal.open(temporaryFolder.newFile("journal.json"));
+    AllocationJournal journal = AllocationJournal.get();
+    journal.recordClientTokens(ImmutableMap.of("vid1", "token1"));
+    journal.recordInstances(ImmutableMap.of("vid1", "i-1"));
+    journal.recordClientTokens(ImmutableMap.of("vid1", "token2"));
+
+    AllocationJournal.Record record = journal.getRecord("vid1");
+    assertThat(record.getEc2InstanceId()).isNull();
+    assertThat(record.isLaunchPending()).isTrue();
+  }
+
+  @Test
+  public void testReleasedRecordsAreCompactedAway() throws IOException {
+    File file = temporaryFolder.newFile("journal.json");
+    AllocationJournal.open(file);
+    AllocationJournal journal = AllocationJournal.get();
+    journal.recordClientTokens(ImmutableMap.of("vid1", "token1", "vid2", "token2"));
+    journal.recordVolumes("vid2", ImmutableSet.of("vol-1"));
+    journal.recordVolumesReady("vid2");
+    journal.recordReleased(Collections.singletonList("vid1"));
+    assertThat(journal.getRecord("vid1")).isNull();
+
+    AllocationJournal.open(file);
+    assertThat(AllocationJournal.get().getRecord("vid1")).isNull();
+    assertThat(AllocationJournal.get().getRecord("vid2").hasIncompleteVolumes()).isFalse();
+
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    assertThat(lines).hasSize(3);
+    assertThat(String.join("\n", lines)).doesNotContain("vid1");
+  }
+
+  @Test
+  public void testMalformedEntriesAreSkipped() throws IOException {
+    File file = temporaryFolder.newFile("journal.json");
+    AllocationJournal.open(file);
+    AllocationJournal.get().recordInstances(ImmutableMap.of("vid1", "i-1"));
+    AllocationJournal.close();
+
+    // As left behind by a crash in the middle of a write
+    Files.write(file.toPath(), Arrays.asList("not json", "{\"op\":\"instance\",\"vid\":\"vid2\""),
+        StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+    AllocationJournal.open(file);
+    assertThat(AllocationJournal.get().getRecord("vid1").getEc2InstanceId()).isEqualTo("i-1");
+    assertThat(AllocationJournal.get().getRecord("vid2")).isNull();
+  }
+}
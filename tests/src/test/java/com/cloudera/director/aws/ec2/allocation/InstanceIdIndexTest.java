@@ -0,0 +1,83 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableList;
+import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InstanceIdIndexTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    InstanceIdIndex.openInMemory(InstanceIdIndex.DEFAULT_MAX_ENTRIES);
+  }
+
+  @Test
+  public void testEntriesSurviveReopen() throws IOException {
+    File file = new File(temporaryFolder.getRoot(), "index");
+    InstanceIdIndex.open(file, 10);
+    InstanceIdIndex.get().putAll(ImmutableMap.of("vid1", "i-1", "vid2", "i-2", "vid3", "i-3"));
+    InstanceIdIndex.get().removeAll(ImmutableList.of("vid2"));
+
+    InstanceIdIndex.open(file, 10);
+    assertThat(InstanceIdIndex.get().getEc2InstanceIds(ImmutableList.of("vid1", "vid2", "vid3")))
+        .isEqualTo(ImmutableMap.of("vid1", "i-1", "vid3", "i-3"));
+  }
+
+  @Test
+  public void testFileIsCompactedToLiveEntries() throws IOException {
+    File file = new File(temporaryFolder.getRoot(), "index");
+    InstanceIdIndex.open(file, 2);
+    InstanceIdIndex index = InstanceIdIndex.get();
+    for (int i = 0; i < 10; i++) {
+      index.putAll(ImmutableMap.of("vid" + i, "i-" + i));
+    }
+
+    InstanceIdIndex.open(file, 2);
+    assertThat(InstanceIdIndex.get().size()).isEqualTo(2);
+    assertThat(InstanceIdIndex.get().getEc2InstanceIds(ImmutableList.of("vid8", "vid9")))
+        .isEqualTo(ImmutableMap.of("vid8", "i-8", "vid9", "i-9"));
+    // Reopening compacted the file to the entries that were not evicted
+    assertThat(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)).hasSize(2);
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntriesAreEvicted() {
+    InstanceIdIndex.openInMemory(2);
+    InstanceIdIndex index = InstanceIdIndex.get();
+    index.putAll(ImmutableMap.of("vid1", "i-1", "vid2", "i-2"));
+    index.getEc2InstanceIds(ImmutableList.of("vid1"));
+    index.putAll(ImmutableMap.of("vid3", "i-3"));
+
+    assertThat(index.size()).isEqualTo(2);
+    assertThat(index.getEc2InstanceIds(ImmutableList.of("vid1", "vid2", "vid3")))
+        .isEqualTo(ImmutableMap.of("vid1", "i-1", "vid3", "i-3"));
+  }
+}
@@ -0,0 +1,214 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.cloudera.director.aws.common.CompletableFutures;
+import com.cloudera.director.aws.ec2.allocation.InstanceTerminator.Outcome;
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceState;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceStateName;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.TerminateInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.TerminateInstancesResult;
+import com.cloudera.director.aws.shaded.com.google.common.collect.ImmutableList;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.stubbing.Answer;
+
+public class InstanceTerminatorTest {
+
+  private AmazonEC2AsyncClient client;
+  private Set<Integer> requestSizes;
+
+  /**
+   * Instance IDs that EC2 does not know yet, until they are sent on their own.
+   */
+  private Set<String> notYetKnownIds;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    client = mock(AmazonEC2AsyncClient.class);
+    requestSizes = ConcurrentHashMap.newKeySet();
+    notYetKnownIds = ConcurrentHashMap.newKeySet();
+    when(client.terminateInstancesAsync(any(TerminateInstancesRequest.class),
+        any(AsyncHandler.class)))
+        .thenAnswer(answerTerminations());
+  }
+
+  /**
+   * Returns an answer that rejects any request containing an instance ID that does not start
+   * with "i-", or that is not known yet, and otherwise reports its instances as shutting down.
+   */
+  private Answer<CompletableFuture<TerminateInstancesResult>> answerTerminations() {
+    return invocation -> {
+      TerminateInstancesRequest request = invocation.getArgument(0);
+      AsyncHandler<TerminateInstancesRequest, TerminateInstancesResult> handler =
+          invocation.getArgument(1);
+      List<String> instanceIds = request.getInstanceIds();
+      requestSizes.add(instanceIds.size());
+      boolean unknown = instanceIds.stream().anyMatch((instanceId) ->
+          !instanceId.startsWith("i-") || notYetKnownIds.contains(instanceId));
+      if (instanceIds.size() == 1) {
+        notYetKnownIds.remove(instanceIds.get(0));
+      }
+      if (unknown) {
+        AmazonServiceException e = new AmazonServiceException("not found");
+        e.setErrorCode("InvalidInstanceID.NotFound");
+        handler.onError(e);
+        CompletableFuture<TerminateInstancesResult> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+      }
+      TerminateInstancesResult result = new TerminateInstancesResult()
+          .withTerminatingInstances(instanceIds.stream()
+              .map((instanceId) -> new InstanceStateChange()
+                  .withInstanceId(instanceId)
+                  .withCurrentState(new InstanceState()
+                      .withName(InstanceStateName.ShuttingDown)))
+              .collect(Collectors.toList()));
+      handler.onSuccess(request, result);
+      return CompletableFuture.completedFuture(result);
+    };
+  }
+
+  @Test
+  public void testLargeSetsAreChunked() throws InterruptedException {
+    List<String> instanceIds = IntStream
+        .range(0, InstanceTerminator.MAX_INSTANCES_PER_REQUEST + 1)
+        .mapToObj((i) -> "i-" + i)
+        .collect(Collectors.toList());
+
+    InstanceTerminator.Result result = new InstanceTerminator(client, 0L).terminate(instanceIds);
+
+    assertThat(result.getInstanceIds(Outcome.TERMINATING)).hasSize(instanceIds.size());
+    assertThat(result.getFailure()).isNull();
+    assertThat(requestSizes).containsOnly(InstanceTerminator.MAX_INSTANCES_PER_REQUEST, 1);
+  }
+
+  @Test
+  public void testUnknownInstancesAreIsolated() throws InterruptedException {
+    List<String> instanceIds = ImmutableList.of("i-1", "i-2", "bad-3", "i-4", "i-5", "bad-6");
+
+    InstanceTerminator.Result result = new InstanceTerminator(client, 0L).terminate(instanceIds);
+
+    assertThat(result.getInstanceIds(Outcome.NOT_FOUND)).containsOnly("bad-3", "bad-6");
+    assertThat(result.getInstanceIds(Outcome.TERMINATING))
+        .containsOnly("i-1", "i-2", "i-4", "i-5");
+    assertThat(((AmazonServiceException) result.getFailure()).getErrorCode())
+        .isEqualTo("InvalidInstanceID.NotFound");
+  }
+
+  @Test
+  public void testUnknownInstancesAreRetriedUntilKnown() throws InterruptedException {
+    notYetKnownIds.add("i-3");
+    List<String> instanceIds = ImmutableList.of("i-1", "i-2", "i-3", "i-4");
+
+    InstanceTerminator.Result result =
+        new InstanceTerminator(client, 60000L).terminate(instanceIds);
+
+    assertThat(result.getInstanceIds(Outcome.TERMINATING))
+        .containsOnly("i-1", "i-2", "i-3", "i-4");
+    assertThat(result.getInstanceIds(Outcome.NOT_FOUND)).isEmpty();
+    assertThat(result.getFailure()).isNull();
+  }
+
+  @Test
+  public void testUnknownInstancesAreTerminatedWhenNotFreshlyLaunched()
+      throws InterruptedException {
+    notYetKnownIds.add("i-3");
+    List<String> instanceIds = ImmutableList.of("i-1", "i-2", "i-3", "bad-4");
+
+    InstanceTerminator.Result result = new InstanceTerminator(client).terminate(instanceIds);
+
+    assertThat(result.getInstanceIds(Outcome.TERMINATING)).containsOnly("i-1", "i-2");
+    assertThat(result.getInstanceIds(Outcome.NOT_FOUND)).containsOnly("i-3", "bad-4");
+    assertThat(result.getFailure()).isNull();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBisectionStaysWithinRequestWindow() throws InterruptedException {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    Answer<CompletableFuture<TerminateInstancesResult>> synchronousAnswer =
+        answerTerminations();
+    when(client.terminateInstancesAsync(any(TerminateInstancesRequest.class),
+        any(AsyncHandler.class)))
+        .thenAnswer(invocation -> {
+          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          return CompletableFutures.delay(5, TimeUnit.MILLISECONDS).thenApply((ignored) -> {
+            inFlight.decrementAndGet();
+            try {
+              return synchronousAnswer.answer(invocation);
+            } catch (Throwable t) {
+              throw new IllegalStateException(t);
+            }
+          });
+        });
+    // Every chunk has an unknown instance ID to isolate
+    List<String> instanceIds = IntStream
+        .range(0, 8 * InstanceTerminator.MAX_INSTANCES_PER_REQUEST)
+        .mapToObj((i) -> (i % InstanceTerminator.MAX_INSTANCES_PER_REQUEST == 7)
+            ? "bad-" + i : "i-" + i)
+        .collect(Collectors.toList());
+
+    InstanceTerminator.Result result = new InstanceTerminator(client).terminate(instanceIds);
+
+    assertThat(result.getInstanceIds(Outcome.NOT_FOUND)).hasSize(8);
+    assertThat(result.getInstanceIds(Outcome.TERMINATING)).hasSize(instanceIds.size() - 8);
+    assertThat(maxInFlight.get()).isLessThanOrEqualTo(InstanceTerminator.MAX_CONCURRENT_REQUESTS);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testOtherErrorsAreReported() throws InterruptedException {
+    AmazonServiceException e = new AmazonServiceException("denied");
+    e.setErrorCode("UnauthorizedOperation");
+    when(client.terminateInstancesAsync(any(TerminateInstancesRequest.class),
+        any(AsyncHandler.class)))
+        .thenAnswer(invocation -> {
+          AsyncHandler<TerminateInstancesRequest, TerminateInstancesResult> handler =
+              invocation.getArgument(1);
+          handler.onError(e);
+          CompletableFuture<TerminateInstancesResult> failed = new CompletableFuture<>();
+          failed.completeExceptionally(e);
+          return failed;
+        });
+
+    InstanceTerminator.Result result =
+        new InstanceTerminator(client, 0L).terminate(ImmutableList.of("i-1", "i-2"));
+
+    assertThat(result.getInstanceIds(Outcome.FAILED)).containsOnly("i-1", "i-2");
+    assertThat(result.getFailure()).isSameAs(e);
+  }
+}
@@ -18,6 +18,8 @@ import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTempl
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.SECURITY_GROUP_IDS;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.SUBNET_ID;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.TYPE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MIN_SIZE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_STATE;
 import static com.cloudera.director.aws.ec2.allocation.asg.AutoScalingGroupAllocator.AUTO_SCALING_GROUP_REQUEST_DURATION_MS;
 import static com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException.ErrorType;
 import static com.cloudera.director.spi.v2.compute.ComputeInstanceTemplate.ComputeInstanceTemplateConfigurationPropertyToken.AUTOMATIC;
@@ -33,29 +35,53 @@ import static org.mockito.Mockito.when;
 
 import com.cloudera.director.aws.AWSTimeouts;
 import com.cloudera.director.aws.Tags;
+import com.cloudera.director.aws.common.CompletableFutures;
 import com.cloudera.director.aws.ec2.EC2Instance;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.EC2TagHelper;
 import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
 import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonWebServiceRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.Activity;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.AutoScalingGroup;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.AutoScalingInstanceDetails;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.CreateAutoScalingGroupRequest;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.CreateAutoScalingGroupResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DeleteAutoScalingGroupResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsRequest;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DescribeAutoScalingGroupsResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DescribeAutoScalingInstancesResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DescribeScalingActivitiesResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DetachInstancesRequest;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.DetachInstancesResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.EnterStandbyRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.EnterStandbyResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.ExitStandbyRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.Instance;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.LaunchTemplateSpecification;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupRequest;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.model.UpdateAutoScalingGroupResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.CreateLaunchTemplateResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.CreateLaunchTemplateVersionResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DeleteLaunchTemplateResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DeleteLaunchTemplateVersionsRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DeleteLaunchTemplateVersionsResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeLaunchTemplateVersionsRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeLaunchTemplateVersionsResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeLaunchTemplatesRequest;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeLaunchTemplatesResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.TerminateInstancesResult;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.LaunchTemplate;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.LaunchTemplateInstanceNetworkInterfaceSpecificationRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.LaunchTemplateVersion;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.RequestLaunchTemplateData;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.model.GetCallerIdentityResult;
 import com.cloudera.director.aws.shaded.com.typesafe.config.Config;
 import com.cloudera.director.aws.shaded.com.typesafe.config.ConfigFactory;
 import com.cloudera.director.spi.v2.model.ConfigurationPropertyToken;
@@ -66,15 +92,27 @@ import com.cloudera.director.spi.v2.model.exception.TransientProviderException;
 import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
 import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import org.assertj.core.util.Maps;
 import org.hamcrest.Description;
@@ -83,12 +121,17 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
 
 /**
  * Tests {@link AutoScalingGroupAllocator}.
  */
 public class AutoScalingGroupAllocatorTest {
 
+  private static final String EC2_ENDPOINT = "region:us-east-1";
+  private static final String ACCOUNT_ID = "123456789012";
+
   private static void putConfig(Map<String, String> configMap, ConfigurationPropertyToken propertyToken,
       String value) {
     if (value != null) {
@@ -120,6 +163,8 @@ public class AutoScalingGroupAllocatorTest {
     ec2Client = mock(AmazonEC2AsyncClient.class);
     autoScalingClient = mock(AmazonAutoScalingAsyncClient.class);
     stsClient = mock(AWSSecurityTokenServiceAsyncClient.class);
+    when(stsClient.getCallerIdentity(any()))
+        .thenReturn(new GetCallerIdentityResult().withAccount(ACCOUNT_ID));
   }
 
   @SuppressWarnings("unchecked")
@@ -133,6 +178,7 @@ public class AutoScalingGroupAllocatorTest {
     mockCreateLaunchTemplateSuccess();
     mockDescribeAutoScalingGroupsSuccess();
     mockCreateAutoScalingGroupSuccess();
+    mockDescribeScalingActivitiesSuccess();
 
     Collection<EC2Instance> instances = autoScalingGroupAllocator.allocate();
     assertThat(instances).isNotNull();
@@ -144,6 +190,303 @@ public class AutoScalingGroupAllocatorTest {
     verify(autoScalingClient, times(0)).deleteAutoScalingGroup(any());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_FailedScalingActivity()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String groupId = UUID.randomUUID().toString();
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 10, 1);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockDescribeAutoScalingGroupsSuccess();
+    mockCreateAutoScalingGroupSuccess();
+    mockDeleteLaunchTemplateSuccess();
+    mockDeleteAutoScalingGroupSuccess();
+
+    // Mock a scaling activity that failed because the image does not exist
+    mockDescribeScalingActivitiesSuccess(
+        mockFailedActivity("The image id '[ami-test]' does not exist"));
+
+    expectedException.expect(
+        nestedMatcher(UnrecoverableProviderException.class, "does not exist"));
+
+    try {
+      autoScalingGroupAllocator.allocate();
+    } finally {
+      verify(autoScalingClient, times(1))
+          .describeScalingActivities(any(DescribeScalingActivitiesRequest.class));
+      verify(autoScalingClient, times(1)).deleteAutoScalingGroup(any());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_RetriedScalingActivityFailure()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String groupId = UUID.randomUUID().toString();
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 1, 1);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockCreateAutoScalingGroupSuccess();
+    mockFindSuccess();
+
+    // The first launch fails for lack of capacity in one availability zone, and Auto Scaling
+    // then launches the instance elsewhere
+    Activity failedActivity = mockFailedActivity("We currently do not have sufficient"
+        + " m3.medium capacity in the Availability Zone you requested (us-east-1a).");
+    DescribeScalingActivitiesResult failedResult = mock(DescribeScalingActivitiesResult.class);
+    when(failedResult.getActivities()).thenReturn(ImmutableList.of(failedActivity));
+    AtomicBoolean launched = new AtomicBoolean();
+    when(autoScalingClient.describeScalingActivities(any(DescribeScalingActivitiesRequest.class)))
+        .thenAnswer((invocation) -> {
+          launched.set(true);
+          return failedResult;
+        });
+    DescribeAutoScalingGroupsResult noAutoScalingGroups =
+        mock(DescribeAutoScalingGroupsResult.class);
+    when(noAutoScalingGroups.getAutoScalingGroups()).thenReturn(ImmutableList.of());
+    DescribeAutoScalingGroupsResult grownAutoScalingGroups =
+        mock(DescribeAutoScalingGroupsResult.class);
+    when(grownAutoScalingGroups.getAutoScalingGroups()).thenReturn(
+        mockAutoScalingGroupsWithInstances(1, ImmutableMap.of("i-1", "InService"), groupId));
+    when(autoScalingClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class)))
+        .thenAnswer((invocation) ->
+            launched.get() ? grownAutoScalingGroups : noAutoScalingGroups);
+
+    Collection<EC2Instance> instances = autoScalingGroupAllocator.allocate();
+    assertThat(instances).extracting("id").containsExactly("i-1");
+
+    verify(autoScalingClient, times(1))
+        .describeScalingActivities(any(DescribeScalingActivitiesRequest.class));
+    verify(autoScalingClient, times(0)).deleteAutoScalingGroup(any());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_RepeatedScalingActivityFailures()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String groupId = UUID.randomUUID().toString();
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 10, 1);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockDescribeAutoScalingGroupsSuccess();
+    mockCreateAutoScalingGroupSuccess();
+    mockDeleteLaunchTemplateSuccess();
+    mockDeleteAutoScalingGroupSuccess();
+
+    // Launches keep failing for lack of capacity, without any instance joining the group
+    Activity[] activities =
+        new Activity[AutoScalingGroupAllocator.MAX_CONSECUTIVE_SCALING_FAILURES];
+    for (int i = 0; i < activities.length; i++) {
+      activities[i] = mockFailedActivity("InsufficientInstanceCapacity");
+    }
+    mockDescribeScalingActivitiesSuccess(activities);
+
+    expectedException.expect(
+        nestedMatcher(UnrecoverableProviderException.class, "InsufficientInstanceCapacity"));
+
+    try {
+      autoScalingGroupAllocator.allocate();
+    } finally {
+      verify(autoScalingClient, times(1))
+          .describeScalingActivities(any(DescribeScalingActivitiesRequest.class));
+      verify(autoScalingClient, times(1)).deleteAutoScalingGroup(any());
+    }
+  }
+
+  @Test
+  public void testIsNonRetryableScalingFailure() {
+    assertThat(AutoScalingGroupAllocator.isNonRetryableScalingFailure(
+        "The image id '[ami-test]' does not exist. Launching EC2 instance failed.")).isTrue();
+    assertThat(AutoScalingGroupAllocator.isNonRetryableScalingFailure(
+        "Invalid IamInstanceProfile name. Launching EC2 instance failed.")).isTrue();
+    assertThat(AutoScalingGroupAllocator.isNonRetryableScalingFailure(
+        "You are not authorized to perform this operation.")).isTrue();
+    assertThat(AutoScalingGroupAllocator.isNonRetryableScalingFailure(
+        "We currently do not have sufficient m3.medium capacity in the Availability Zone you"
+            + " requested (us-east-1a).")).isFalse();
+    assertThat(AutoScalingGroupAllocator.isNonRetryableScalingFailure(
+        "Request limit exceeded.")).isFalse();
+    assertThat(AutoScalingGroupAllocator.isNonRetryableScalingFailure(null)).isFalse();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_ReusesLaunchTemplateVersion()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String groupId = UUID.randomUUID().toString();
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 0, 0);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockDescribeAutoScalingGroupsSuccess();
+    mockCreateAutoScalingGroupSuccess();
+
+    autoScalingGroupAllocator.allocate();
+    autoScalingGroupAllocator.allocate();
+
+    verify(ec2Client, times(1))
+        .describeLaunchTemplateVersions(any(DescribeLaunchTemplateVersionsRequest.class));
+    verify(ec2Client, times(1)).createLaunchTemplate(any());
+    verify(ec2Client, times(0)).createLaunchTemplateVersion(any());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_RecreatesStaleRegisteredLaunchTemplateVersion()
+      throws InterruptedException {
+    String groupId = UUID.randomUUID().toString();
+    LaunchTemplateRegistry launchTemplateRegistry = new LaunchTemplateRegistry();
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockDescribeAutoScalingGroupsSuccess();
+    // The launch template is deleted outside of the plugin after the first allocation
+    when(autoScalingClient.createAutoScalingGroup(any()))
+        .thenReturn(mock(CreateAutoScalingGroupResult.class))
+        .thenThrow(newAmazonServiceException(
+            "The specified version 1 for launch template lt-test does not exist.",
+            ErrorType.Client, "ValidationError"))
+        .thenReturn(mock(CreateAutoScalingGroupResult.class));
+
+    new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
+        launchTemplateRegistry, EC2_ENDPOINT, createEC2InstanceTemplate(groupId),
+        ImmutableList.of(), 0)
+        .allocate();
+    new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
+        launchTemplateRegistry, EC2_ENDPOINT, createEC2InstanceTemplate(groupId),
+        ImmutableList.of(), 0)
+        .allocate();
+
+    // The stale registry entry is looked up again and the launch template recreated
+    verify(ec2Client, times(2))
+        .describeLaunchTemplateVersions(any(DescribeLaunchTemplateVersionsRequest.class));
+    verify(ec2Client, times(2)).createLaunchTemplate(any());
+    verify(autoScalingClient, times(3)).createAutoScalingGroup(any());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_DoesNotShareLaunchTemplateVersionsAcrossAccounts()
+      throws InterruptedException {
+    String groupId = UUID.randomUUID().toString();
+    LaunchTemplateRegistry launchTemplateRegistry = new LaunchTemplateRegistry();
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockDescribeAutoScalingGroupsSuccess();
+    mockCreateAutoScalingGroupSuccess();
+
+    new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
+        launchTemplateRegistry, EC2_ENDPOINT, createEC2InstanceTemplate(groupId),
+        ImmutableList.of(), 0)
+        .allocate();
+    // A launch template of the same name in another account is unrelated
+    when(stsClient.getCallerIdentity(any()))
+        .thenReturn(new GetCallerIdentityResult().withAccount("210987654321"));
+    new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
+        launchTemplateRegistry, EC2_ENDPOINT, createEC2InstanceTemplate(groupId),
+        ImmutableList.of(), 0)
+        .allocate();
+    // So is a launch template of the same name in another region
+    new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
+        launchTemplateRegistry, "region:us-west-2", createEC2InstanceTemplate(groupId),
+        ImmutableList.of(), 0)
+        .allocate();
+
+    verify(ec2Client, times(3))
+        .describeLaunchTemplateVersions(any(DescribeLaunchTemplateVersionsRequest.class));
+    verify(ec2Client, times(3)).createLaunchTemplate(any());
+  }
+
+  @Test
+  public void testFingerprint_DependsOnEachField() {
+    RequestLaunchTemplateData data = new RequestLaunchTemplateData()
+        .withImageId("ami-test")
+        .withInstanceType("m3.medium")
+        .withUserData("user-data")
+        .withNetworkInterfaces(new LaunchTemplateInstanceNetworkInterfaceSpecificationRequest()
+            .withDeviceIndex(0)
+            .withSubnetId("sb-test")
+            .withGroups("sg-test"));
+    String fingerprint = LaunchTemplateRegistry.fingerprint(data);
+
+    assertThat(LaunchTemplateRegistry.fingerprint(data.clone())).isEqualTo(fingerprint);
+    assertThat(LaunchTemplateRegistry.fingerprint(data.clone().withUserData("other")))
+        .isNotEqualTo(fingerprint);
+    assertThat(LaunchTemplateRegistry.fingerprint(data.clone().withKeyName("key")))
+        .isNotEqualTo(fingerprint);
+    assertThat(LaunchTemplateRegistry.fingerprint(data.clone().withNetworkInterfaces(
+        new LaunchTemplateInstanceNetworkInterfaceSpecificationRequest()
+            .withDeviceIndex(0)
+            .withSubnetId("sb-test")
+            .withGroups("sg-test", "sg-other"))))
+        .isNotEqualTo(fingerprint);
+    // Adjacent fields cannot run together
+    assertThat(LaunchTemplateRegistry.fingerprint(
+        data.clone().withImageId("ami-testm3").withInstanceType(".medium")))
+        .isNotEqualTo(fingerprint);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_PrunesOldLaunchTemplateVersions() throws InterruptedException {
+    String groupId = UUID.randomUUID().toString();
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 0, 0);
+
+    // Versions 1 to 9 exist, none matching the template, and version 1 is the default
+    List<LaunchTemplateVersion> versions = Lists.newArrayList();
+    for (long versionNumber = 1; versionNumber <= 9; versionNumber++) {
+      versions.add(new LaunchTemplateVersion()
+          .withVersionNumber(versionNumber)
+          .withVersionDescription(LaunchTemplateRegistry.toVersionDescription("old" + versionNumber))
+          .withDefaultVersion(versionNumber == 1));
+    }
+    when(ec2Client.describeLaunchTemplateVersions(any(DescribeLaunchTemplateVersionsRequest.class)))
+        .thenReturn(new DescribeLaunchTemplateVersionsResult().withLaunchTemplateVersions(versions));
+    when(ec2Client.createLaunchTemplateVersion(any())).thenReturn(
+        new CreateLaunchTemplateVersionResult().withLaunchTemplateVersion(
+            new LaunchTemplateVersion().withVersionNumber(9L)));
+    when(ec2Client.deleteLaunchTemplateVersions(any()))
+        .thenReturn(new DeleteLaunchTemplateVersionsResult());
+    mockDescribeAutoScalingGroupsSuccess();
+    mockCreateAutoScalingGroupSuccess();
+
+    autoScalingGroupAllocator.allocate();
+
+    ArgumentCaptor<DeleteLaunchTemplateVersionsRequest> captor =
+        ArgumentCaptor.forClass(DeleteLaunchTemplateVersionsRequest.class);
+    verify(ec2Client, times(1)).deleteLaunchTemplateVersions(captor.capture());
+    assertThat(captor.getValue().getLaunchTemplateName()).isEqualTo(groupId);
+    assertThat(captor.getValue().getVersions()).containsExactly("4", "3", "2");
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_DoesNotPruneFewLaunchTemplateVersions()
+      throws InterruptedException {
+    String groupId = UUID.randomUUID().toString();
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 0, 0);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockDescribeAutoScalingGroupsSuccess();
+    mockCreateAutoScalingGroupSuccess();
+
+    autoScalingGroupAllocator.allocate();
+
+    verify(ec2Client, times(0)).deleteLaunchTemplateVersions(any());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testAllocateNone() throws InterruptedException, ExecutionException, TimeoutException {
@@ -170,6 +513,127 @@ public class AutoScalingGroupAllocatorTest {
     verify(autoScalingClient, times(0)).deleteAutoScalingGroup(any());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_DrawsFromWarmPool()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String groupId = UUID.randomUUID().toString();
+    Map<String, String> warmPoolConfig = new LinkedHashMap<>();
+    putConfig(warmPoolConfig, WARM_POOL_MIN_SIZE, "2");
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 4, 0, warmPoolConfig);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    Map<String, String> lifecycleStates = new LinkedHashMap<>();
+    lifecycleStates.put("i-1", "InService");
+    lifecycleStates.put("i-2", "InService");
+    lifecycleStates.put("i-3", "Standby");
+    lifecycleStates.put("i-4", "Standby");
+    mockDescribeAutoScalingGroupsWithInstances(2, lifecycleStates, groupId);
+    when(autoScalingClient.exitStandby(any())).thenAnswer((invocation) -> {
+      ExitStandbyRequest request = invocation.getArgument(0);
+      request.getInstanceIds().forEach((id) -> lifecycleStates.put(id, "InService"));
+      return null;
+    });
+    when(allocationHelper.waitUntilInstanceHasStarted(any(), any())).thenReturn(true);
+    mockFindSuccess();
+
+    Collection<EC2Instance> instances = autoScalingGroupAllocator.allocate();
+    assertThat(instances).hasSize(4);
+
+    ArgumentCaptor<ExitStandbyRequest> exitStandbyRequest =
+        ArgumentCaptor.forClass(ExitStandbyRequest.class);
+    verify(ec2Client, times(1)).startInstances(any());
+    verify(autoScalingClient, times(1)).exitStandby(exitStandbyRequest.capture());
+    assertThat(exitStandbyRequest.getValue().getInstanceIds()).containsExactly("i-3", "i-4");
+    // The grow was served entirely by the warm pool, so nothing was launched to refill it
+    verify(autoScalingClient, times(0)).enterStandby(any());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testAllocate_RefillsWarmPool()
+      throws InterruptedException, ExecutionException, TimeoutException {
+    String groupId = UUID.randomUUID().toString();
+    Map<String, String> warmPoolConfig = new LinkedHashMap<>();
+    putConfig(warmPoolConfig, WARM_POOL_MIN_SIZE, "2");
+    putConfig(warmPoolConfig, WARM_POOL_STATE, "Running");
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, 1, 0, warmPoolConfig);
+
+    mockDescribeLaunchTemplatesSuccess();
+    mockCreateLaunchTemplateSuccess();
+    mockCreateAutoScalingGroupSuccess();
+    // The group only launches the refill instances once the refill raises its desired capacity
+    Map<String, String> grownLifecycleStates = ImmutableMap.of("i-1", "InService");
+    Map<String, String> refilledLifecycleStates =
+        ImmutableMap.of("i-1", "InService", "i-2", "InService", "i-3", "InService");
+    DescribeAutoScalingGroupsResult noAutoScalingGroups =
+        mock(DescribeAutoScalingGroupsResult.class);
+    when(noAutoScalingGroups.getAutoScalingGroups()).thenReturn(ImmutableList.of());
+    DescribeAutoScalingGroupsResult grownAutoScalingGroups =
+        mock(DescribeAutoScalingGroupsResult.class);
+    when(grownAutoScalingGroups.getAutoScalingGroups())
+        .thenReturn(mockAutoScalingGroupsWithInstances(1, grownLifecycleStates, groupId));
+    DescribeAutoScalingGroupsResult refilledAutoScalingGroups =
+        mock(DescribeAutoScalingGroupsResult.class);
+    when(refilledAutoScalingGroups.getAutoScalingGroups())
+        .thenReturn(mockAutoScalingGroupsWithInstances(1, refilledLifecycleStates, groupId));
+    when(autoScalingClient.describeAutoScalingGroups(any(DescribeAutoScalingGroupsRequest.class)))
+        .thenReturn(noAutoScalingGroups, noAutoScalingGroups, grownAutoScalingGroups);
+    AtomicBoolean refillLaunched = new AtomicBoolean();
+    when(autoScalingClient.describeAutoScalingGroupsAsync(
+        any(DescribeAutoScalingGroupsRequest.class), any()))
+        .thenAnswer((invocation) -> completeAsync(invocation,
+            refillLaunched.get() ? refilledAutoScalingGroups : grownAutoScalingGroups));
+    when(autoScalingClient.updateAutoScalingGroupAsync(
+        any(UpdateAutoScalingGroupRequest.class), any()))
+        .thenAnswer((invocation) -> {
+          refillLaunched.set(true);
+          return completeAsync(invocation, new UpdateAutoScalingGroupResult());
+        });
+    when(autoScalingClient.describeAutoScalingInstancesAsync(
+        any(DescribeAutoScalingInstancesRequest.class), any()))
+        .thenAnswer((invocation) -> completeAsync(invocation,
+            new DescribeAutoScalingInstancesResult().withAutoScalingInstances(
+                refilledLifecycleStates.entrySet().stream()
+                    .map((entry) -> new AutoScalingInstanceDetails()
+                        .withInstanceId(entry.getKey())
+                        .withLifecycleState(entry.getValue()))
+                    .collect(Collectors.toList()))));
+    when(autoScalingClient.enterStandbyAsync(any(EnterStandbyRequest.class), any()))
+        .thenAnswer((invocation) -> completeAsync(invocation, new EnterStandbyResult()));
+    mockFindSuccess();
+
+    Collection<EC2Instance> instances = autoScalingGroupAllocator.allocate();
+    assertThat(instances).hasSize(1);
+
+    // The allocation only waits for the desired count
+    ArgumentCaptor<CreateAutoScalingGroupRequest> createRequest =
+        ArgumentCaptor.forClass(CreateAutoScalingGroupRequest.class);
+    verify(autoScalingClient, times(1)).createAutoScalingGroup(createRequest.capture());
+    assertThat(createRequest.getValue().getDesiredCapacity()).isEqualTo(1);
+    assertThat(createRequest.getValue().getMaxSize()).isEqualTo(1);
+
+    // The refill then launches the pool instances, and parks them as they come into service
+    assertThat(autoScalingGroupAllocator.getWarmPoolRefill().get(5, TimeUnit.SECONDS))
+        .containsOnly("i-2", "i-3");
+    ArgumentCaptor<UpdateAutoScalingGroupRequest> updateRequest =
+        ArgumentCaptor.forClass(UpdateAutoScalingGroupRequest.class);
+    verify(autoScalingClient, times(1))
+        .updateAutoScalingGroupAsync(updateRequest.capture(), any());
+    assertThat(updateRequest.getValue().getDesiredCapacity()).isEqualTo(3);
+    assertThat(updateRequest.getValue().getMaxSize()).isEqualTo(3);
+    ArgumentCaptor<EnterStandbyRequest> enterStandbyRequest =
+        ArgumentCaptor.forClass(EnterStandbyRequest.class);
+    verify(autoScalingClient, times(1)).enterStandbyAsync(enterStandbyRequest.capture(), any());
+    assertThat(enterStandbyRequest.getValue().getInstanceIds()).containsOnly("i-2", "i-3");
+    assertThat(enterStandbyRequest.getValue().getShouldDecrementDesiredCapacity()).isTrue();
+    // Instances in a Running warm pool are not stopped
+    verify(ec2Client, times(0)).stopInstancesAsync(any(), any());
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testAllocate_UnrecoverableExceptionCreatingLaunchTemplate()
@@ -526,27 +990,125 @@ public class AutoScalingGroupAllocatorTest {
   public void testDeleteInstances_SomeInstancesNotInAutoScalingGroup()
       throws InterruptedException, ExecutionException, TimeoutException {
     String groupId = UUID.randomUUID().toString();
+    ImmutableList.Builder<String> listBuilder = ImmutableList.builder();
+    for (int i = 0; i < 10; i++) {
+      listBuilder.add(UUID.randomUUID().toString());
+    }
+    List<String> instanceIds = listBuilder.build();
+    String missingInstanceId = instanceIds.get(0);
     AutoScalingGroupAllocator autoScalingGroupAllocator =
-        createAutoScalingGroupAllocator(groupId, 10, 0);
+        createAutoScalingGroupAllocator(groupId, instanceIds, 0);
 
     mockDescribeAutoScalingGroupsSuccess();
 
     // Mock Auto Scaling group description with AWS exception
+    AmazonServiceException notInAutoScalingGroupException = newAmazonServiceException(
+        "The instance " + missingInstanceId + " is not part of Auto Scaling group " + groupId + ".",
+        ErrorType.Client, "ValidationError");
     when(autoScalingClient.detachInstances(any()))
-        .thenThrow(newAmazonServiceException(
-            "The instance foo is not part of Auto Scaling group " + groupId + ".",
-            ErrorType.Client, "ValidationError"));
+        .thenThrow(notInAutoScalingGroupException);
+    when(autoScalingClient.detachInstancesAsync(any(DetachInstancesRequest.class), any()))
+        .thenAnswer((invocation) -> {
+          DetachInstancesRequest request = invocation.getArgument(0);
+          AsyncHandler<DetachInstancesRequest, DetachInstancesResult> handler =
+              invocation.getArgument(1);
+          CompletableFuture<DetachInstancesResult> future = new CompletableFuture<>();
+          if (request.getInstanceIds().contains(missingInstanceId)) {
+            handler.onError(notInAutoScalingGroupException);
+            future.completeExceptionally(notInAutoScalingGroupException);
+          } else {
+            DetachInstancesResult result = new DetachInstancesResult();
+            handler.onSuccess(request, result);
+            future.complete(result);
+          }
+          return future;
+        });
 
     autoScalingGroupAllocator.delete();
 
+    // The bulk request fails, then bisection isolates the missing instance in three rounds of
+    // two concurrent requests, the last of which finds it is not in the group
     verify(autoScalingClient, times(1)).describeAutoScalingGroups(any());
     verify(autoScalingClient, times(0)).updateAutoScalingGroup(any());
-    verify(autoScalingClient, times(11)).detachInstances(any());
+    verify(autoScalingClient, times(1)).detachInstances(any());
+    verify(autoScalingClient, times(6))
+        .detachInstancesAsync(any(DetachInstancesRequest.class), any());
     verify(allocationHelper, times(1)).doDelete(any());
     verify(ec2Client, times(0)).deleteLaunchTemplate(any());
     verify(autoScalingClient, times(0)).deleteAutoScalingGroup(any());
   }
 
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testDeleteInstances_BisectionIsBoundedAndRetriesThrottledBatches()
+      throws InterruptedException {
+    String groupId = UUID.randomUUID().toString();
+    List<String> instanceIds = Lists.newArrayList();
+    for (int i = 0; i < 64; i++) {
+      instanceIds.add(UUID.randomUUID().toString());
+    }
+    // One missing instance in every batch of eight
+    Set<String> missingInstanceIds = Sets.newHashSet();
+    for (int i = 0; i < instanceIds.size(); i += 8) {
+      missingInstanceIds.add(instanceIds.get(i));
+    }
+    AutoScalingGroupAllocator autoScalingGroupAllocator =
+        createAutoScalingGroupAllocator(groupId, instanceIds, 0);
+
+    mockDescribeAutoScalingGroupsSuccess();
+
+    AmazonServiceException notInAutoScalingGroupException = newAmazonServiceException(
+        "The instance " + instanceIds.get(0) + " is not part of Auto Scaling group " + groupId
+            + ".", ErrorType.Client, "ValidationError");
+    AmazonServiceException throttlingException = newRetryableAmazonServiceException();
+    when(autoScalingClient.detachInstances(any()))
+        .thenThrow(notInAutoScalingGroupException);
+    Set<List<String>> throttledBatches = ConcurrentHashMap.newKeySet();
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    when(autoScalingClient.detachInstancesAsync(any(DetachInstancesRequest.class), any()))
+        .thenAnswer((invocation) -> {
+          DetachInstancesRequest request = invocation.getArgument(0);
+          AsyncHandler<DetachInstancesRequest, DetachInstancesResult> handler =
+              invocation.getArgument(1);
+          maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+          return CompletableFutures.delay(5, TimeUnit.MILLISECONDS).thenApply((ignored) -> {
+            inFlight.decrementAndGet();
+            List<String> batch = Lists.newArrayList(request.getInstanceIds());
+            if (!Collections.disjoint(batch, missingInstanceIds)) {
+              handler.onError(notInAutoScalingGroupException);
+            } else if (throttledBatches.add(batch)) {
+              // Every batch that can be detached is throttled once
+              handler.onError(throttlingException);
+            } else {
+              DetachInstancesResult result = new DetachInstancesResult();
+              handler.onSuccess(request, result);
+              return result;
+            }
+            return null;
+          });
+        });
+
+    autoScalingGroupAllocator.delete();
+
+    assertThat(maxInFlight.get())
+        .isLessThanOrEqualTo(AutoScalingGroupAllocator.MAX_CONCURRENT_DETACH_REQUESTS);
+    assertThat(throttledBatches).isNotEmpty();
+    verify(allocationHelper, times(1)).doDelete(any());
+  }
+
+  @Test
+  public void testGetDetachRetryDelayMillis_GrowsExponentiallyWithJitterUpToMaximum() {
+    long previousCeiling = 0L;
+    for (int retry = 1; retry <= 10; retry++) {
+      long delayMillis = AutoScalingGroupAllocator.getDetachRetryDelayMillis(retry);
+      long ceiling = Math.min(10000L, 500L << (retry - 1));
+      assertThat(delayMillis).isBetween(ceiling / 2, ceiling);
+      assertThat(ceiling).isGreaterThanOrEqualTo(previousCeiling);
+      previousCeiling = ceiling;
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Test
   public void testDeleteInstances_UnrecoverableExceptionDescribingAutoScalingGroup()
@@ -717,11 +1279,28 @@ public class AutoScalingGroupAllocatorTest {
   private AutoScalingGroupAllocator createAutoScalingGroupAllocator(String groupId,
       Collection<String> instanceIds, int minCount) {
     return new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
-        createEC2InstanceTemplate(groupId), instanceIds, minCount);
+        new LaunchTemplateRegistry(), EC2_ENDPOINT, createEC2InstanceTemplate(groupId), instanceIds,
+        minCount);
+  }
+
+  private AutoScalingGroupAllocator createAutoScalingGroupAllocator(String groupId,
+      int desiredCount, int minCount, Map<String, String> additionalConfigMap) {
+    ImmutableList.Builder<String> listBuilder = ImmutableList.builder();
+    for (int i = 0; i < desiredCount; i++) {
+      listBuilder.add(UUID.randomUUID().toString());
+    }
+    return new AutoScalingGroupAllocator(allocationHelper, ec2Client, autoScalingClient, stsClient,
+        new LaunchTemplateRegistry(), EC2_ENDPOINT,
+        createEC2InstanceTemplate(groupId, additionalConfigMap), listBuilder.build(), minCount);
   }
 
   private EC2InstanceTemplate createEC2InstanceTemplate(String groupId) {
-    Map<String, String> instanceTemplateConfigMap = new LinkedHashMap<>();
+    return createEC2InstanceTemplate(groupId, Collections.emptyMap());
+  }
+
+  private EC2InstanceTemplate createEC2InstanceTemplate(String groupId,
+      Map<String, String> additionalConfigMap) {
+    Map<String, String> instanceTemplateConfigMap = new LinkedHashMap<>(additionalConfigMap);
     String templateName = "test-template";
     putConfig(instanceTemplateConfigMap, INSTANCE_NAME_PREFIX, templateName);
     putConfig(instanceTemplateConfigMap, IMAGE, "ami-test");
@@ -750,12 +1329,30 @@ public class AutoScalingGroupAllocatorTest {
     when(ec2Client.describeLaunchTemplates(
         any(DescribeLaunchTemplatesRequest.class)))
         .thenReturn(launchTemplatesResult);
+    // Mock launch template version description
+    if (launchTemplateNames.length == 0) {
+      when(ec2Client.describeLaunchTemplateVersions(
+          any(DescribeLaunchTemplateVersionsRequest.class)))
+          .thenThrow(newAmazonServiceException("Launch template not found",
+              ErrorType.Client, "InvalidLaunchTemplateName.NotFoundException"));
+    } else {
+      DescribeLaunchTemplateVersionsResult launchTemplateVersionsResult =
+          mock(DescribeLaunchTemplateVersionsResult.class);
+      when(launchTemplateVersionsResult.getLaunchTemplateVersions())
+          .thenReturn(ImmutableList.of());
+      when(ec2Client.describeLaunchTemplateVersions(
+          any(DescribeLaunchTemplateVersionsRequest.class)))
+          .thenReturn(launchTemplateVersionsResult);
+    }
   }
 
   private void mockCreateLaunchTemplateSuccess() {
     // Mock launch template creation
+    LaunchTemplate launchTemplate = mock(LaunchTemplate.class);
+    when(launchTemplate.getLatestVersionNumber()).thenReturn(1L);
     CreateLaunchTemplateResult launchTemplateResult =
         mock(CreateLaunchTemplateResult.class);
+    when(launchTemplateResult.getLaunchTemplate()).thenReturn(launchTemplate);
     when(ec2Client.createLaunchTemplate(any()))
         .thenReturn(launchTemplateResult);
   }
@@ -778,6 +1375,56 @@ public class AutoScalingGroupAllocatorTest {
         .thenReturn(autoScalingGroupsResult);
   }
 
+  private void mockDescribeAutoScalingGroupsWithInstances(int desiredCapacity,
+      Map<String, String> lifecycleStates, String asgName) {
+    DescribeAutoScalingGroupsResult autoScalingGroupsResult =
+        mock(DescribeAutoScalingGroupsResult.class);
+    when(autoScalingGroupsResult.getAutoScalingGroups())
+        .thenReturn(mockAutoScalingGroupsWithInstances(desiredCapacity, lifecycleStates, asgName));
+    when(autoScalingClient.describeAutoScalingGroups(
+        any(DescribeAutoScalingGroupsRequest.class)))
+        .thenReturn(autoScalingGroupsResult);
+  }
+
+  private List<AutoScalingGroup> mockAutoScalingGroupsWithInstances(int desiredCapacity,
+      Map<String, String> lifecycleStates, String asgName) {
+    List<AutoScalingGroup> autoScalingGroups =
+        mockAutoScalingGroups(desiredCapacity, null, new String[] {asgName});
+    // Lifecycle states are read on every call, so that tests can change them
+    List<Instance> instances = lifecycleStates.keySet().stream()
+        .map((instanceId) -> {
+          Instance instance = mock(Instance.class);
+          when(instance.getInstanceId()).thenReturn(instanceId);
+          when(instance.getLifecycleState())
+              .thenAnswer((invocation) -> lifecycleStates.get(instanceId));
+          return instance;
+        })
+        .collect(Collectors.toList());
+    when(autoScalingGroups.get(0).getInstances()).thenReturn(instances);
+    return autoScalingGroups;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> completeAsync(
+      InvocationOnMock invocation, R result) {
+    Q request = invocation.getArgument(0);
+    AsyncHandler<Q, R> handler = invocation.getArgument(1);
+    handler.onSuccess(request, result);
+    return CompletableFuture.completedFuture(result);
+  }
+
+  private void mockFindSuccess() throws InterruptedException {
+    when(allocationHelper.find(any(), any())).thenAnswer((invocation) -> {
+      EC2InstanceTemplate template = invocation.getArgument(0);
+      Collection<String> instanceIds = invocation.getArgument(1);
+      return instanceIds.stream()
+          .map((instanceId) -> new EC2Instance(template, instanceId,
+              new com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Instance()
+                  .withInstanceId(instanceId)))
+          .collect(Collectors.toList());
+    });
+  }
+
   private void mockCreateAutoScalingGroupSuccess() {
     // Mock ASG creation
     CreateAutoScalingGroupResult asgResult =
@@ -786,6 +1433,25 @@ public class AutoScalingGroupAllocatorTest {
         .thenReturn(asgResult);
   }
 
+  private Activity mockFailedActivity(String statusMessage) {
+    Activity activity = mock(Activity.class);
+    when(activity.getActivityId()).thenReturn(UUID.randomUUID().toString());
+    when(activity.getStartTime()).thenReturn(new Date(System.currentTimeMillis() + 60000L));
+    when(activity.getStatusCode()).thenReturn("Failed");
+    when(activity.getStatusMessage()).thenReturn(statusMessage);
+    return activity;
+  }
+
+  private void mockDescribeScalingActivitiesSuccess(Activity... activities) {
+    // Mock scaling activity description
+    DescribeScalingActivitiesResult scalingActivitiesResult =
+        mock(DescribeScalingActivitiesResult.class);
+    when(scalingActivitiesResult.getActivities()).thenReturn(ImmutableList.copyOf(activities));
+    when(autoScalingClient.describeScalingActivities(
+        any(DescribeScalingActivitiesRequest.class)))
+        .thenReturn(scalingActivitiesResult);
+  }
+
   private void mockDeleteLaunchTemplateSuccess() {
     // Mock launch template deletion
     DeleteLaunchTemplateResult launchTemplateResult =
@@ -0,0 +1,338 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.allocation.ondemand;
+
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.CAPACITY_FALLBACKS;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.IMAGE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.SECURITY_GROUP_IDS;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.SUBNET_ID;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.TYPE;
+import static com.cloudera.director.spi.v2.model.InstanceTemplate.InstanceTemplateConfigurationPropertyToken.INSTANCE_NAME_PREFIX;
+import static com.cloudera.director.spi.v2.provider.Launcher.DEFAULT_PLUGIN_LOCALIZATION_CONTEXT;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cloudera.director.aws.AWSTimeouts;
+import com.cloudera.director.aws.ec2.EC2Instance;
+import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
+import com.cloudera.director.aws.ec2.EC2TagHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Instance;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceNetworkInterfaceSpecification;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceState;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceStateName;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Reservation;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.RunInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Tag;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
+import com.cloudera.director.spi.v2.model.ConfigurationPropertyToken;
+import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link OnDemandAllocator}.
+ */
+public class OnDemandAllocatorTest {
+
+  private static final String VIRTUAL_INSTANCE_ID_TAG = "test-virtual-instance-id";
+
+  private static void putConfig(Map<String, String> configMap,
+      ConfigurationPropertyToken propertyToken, String value) {
+    if (value != null) {
+      configMap.put(propertyToken.unwrap().getConfigKey(), value);
+    }
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private AllocationHelper allocationHelper;
+  private AmazonEC2AsyncClient ec2Client;
+  private AWSSecurityTokenServiceAsyncClient stsClient;
+
+  /**
+   * The launch requests, in the order they were sent.
+   */
+  private final List<RunInstancesRequest> runInstancesRequests =
+      Collections.synchronizedList(Lists.newArrayList());
+
+  private final AtomicInteger launchedInstanceCount = new AtomicInteger();
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() throws Exception {
+    EC2TagHelper ec2TagHelper = mock(EC2TagHelper.class);
+    when(ec2TagHelper.getInstanceTags(any(EC2InstanceTemplate.class), anyString(), any()))
+        .thenAnswer((invocation) ->
+            Lists.newArrayList(new Tag(VIRTUAL_INSTANCE_ID_TAG, invocation.getArgument(1))));
+
+    allocationHelper = mock(AllocationHelper.class);
+    when(allocationHelper.getAWSTimeouts()).thenReturn(new AWSTimeouts(null));
+    when(allocationHelper.getEC2TagHelper()).thenReturn(ec2TagHelper);
+    when(allocationHelper.doFind(any(EC2InstanceTemplate.class), any(), any()))
+        .thenReturn(Collections.emptyList());
+    when(allocationHelper.getInstanceNetworkInterfaceSpecification(any(EC2InstanceTemplate.class)))
+        .thenAnswer((invocation) -> new InstanceNetworkInterfaceSpecification()
+            .withSubnetId(invocation.<EC2InstanceTemplate>getArgument(0).getSubnetId()));
+    when(allocationHelper.waitUntilInstanceHasStarted(anyString(), any())).thenReturn(true);
+    when(allocationHelper.getVirtualInstanceId(any(), eq("instance")))
+        .thenAnswer((invocation) -> {
+          List<Tag> tags = invocation.getArgument(0);
+          return tags.stream()
+              .filter((tag) -> VIRTUAL_INSTANCE_ID_TAG.equals(tag.getKey()))
+              .map(Tag::getValue)
+              .findFirst()
+              .orElse(null);
+        });
+    when(allocationHelper.createInstance(any(EC2InstanceTemplate.class), anyString(),
+        any(Instance.class))).thenAnswer((invocation) -> mock(EC2Instance.class));
+
+    ec2Client = mock(AmazonEC2AsyncClient.class);
+    stsClient = mock(AWSSecurityTokenServiceAsyncClient.class);
+  }
+
+  @After
+  public void tearDown() {
+    AllocationJournal.close();
+  }
+
+  @Test
+  public void testAllocate_FallsBackToNextCapacityPool() throws Exception {
+    mockRunInstances("m3.medium");
+    EC2InstanceTemplate template = createTemplate("m4.large:subnet-b");
+
+    Collection<EC2Instance> instances =
+        createAllocator(template, ImmutableList.of("vid1", "vid2"), 2).allocate();
+
+    assertThat(instances).hasSize(2);
+    assertThat(runInstancesRequests).hasSize(4);
+    for (RunInstancesRequest request : runInstancesRequests.subList(0, 2)) {
+      assertThat(request.getInstanceType()).isEqualTo("m3.medium");
+      assertThat(getSubnetId(request)).isEqualTo("subnet-a");
+    }
+    for (RunInstancesRequest request : runInstancesRequests.subList(2, 4)) {
+      assertThat(request.getInstanceType()).isEqualTo("m4.large");
+      assertThat(getSubnetId(request)).isEqualTo("subnet-b");
+    }
+
+    // Instances are described with the template of the pool that served them
+    verify(allocationHelper).createInstance(
+        argThat((t) -> t.getType().equals("m4.large") && t.getSubnetId().equals("subnet-b")),
+        eq("vid1"), any(Instance.class));
+    verify(allocationHelper, never()).doDelete(any());
+  }
+
+  @Test
+  public void testAllocate_FallsBackOnlyForShortfall() throws Exception {
+    // The first launch in the primary pool succeeds and the second is out of capacity
+    AtomicInteger primaryLaunches = new AtomicInteger();
+    mockRunInstances((request) -> request.getInstanceType().equals("m3.medium")
+        && primaryLaunches.incrementAndGet() > 1);
+    EC2InstanceTemplate template = createTemplate("m4.large");
+
+    Collection<EC2Instance> instances =
+        createAllocator(template, ImmutableList.of("vid1", "vid2"), 2).allocate();
+
+    assertThat(instances).hasSize(2);
+    assertThat(runInstancesRequests).hasSize(3);
+    assertThat(runInstancesRequests.get(2).getInstanceType()).isEqualTo("m4.large");
+    // Without a subnet, the fallback stays in the primary subnet
+    assertThat(getSubnetId(runInstancesRequests.get(2))).isEqualTo("subnet-a");
+  }
+
+  @Test
+  public void testAllocate_DoesNotFallBackWhenPrimaryPoolServesAll() throws Exception {
+    mockRunInstances((request) -> false);
+    EC2InstanceTemplate template = createTemplate("m4.large:subnet-b");
+
+    Collection<EC2Instance> instances =
+        createAllocator(template, ImmutableList.of("vid1", "vid2"), 2).allocate();
+
+    assertThat(instances).hasSize(2);
+    assertThat(runInstancesRequests).hasSize(2);
+    for (RunInstancesRequest request : runInstancesRequests) {
+      assertThat(request.getInstanceType()).isEqualTo("m3.medium");
+    }
+  }
+
+  @Test
+  public void testAllocate_ResumesPendingLaunchWithJournaledClientToken() throws Exception {
+    AllocationJournal.open(temporaryFolder.newFile("journal.json"));
+    // The launch request for vid1 was sent, but its instance was never recorded
+    AllocationJournal.get().recordClientTokens(ImmutableMap.of("vid1", "token-vid1"));
+    mockRunInstances((request) -> false);
+
+    Collection<EC2Instance> instances =
+        createAllocator(createTemplate(null), ImmutableList.of("vid1", "vid2"), 2).allocate();
+
+    assertThat(instances).hasSize(2);
+    Map<String, String> clientTokens = runInstancesRequests.stream().collect(Collectors.toMap(
+        OnDemandAllocatorTest::getVirtualInstanceId, RunInstancesRequest::getClientToken));
+    assertThat(clientTokens).hasSize(2).containsEntry("vid1", "token-vid1");
+    assertThat(clientTokens.get("vid2")).isNotNull().isNotEqualTo("token-vid1");
+
+    AllocationJournal.Record record = AllocationJournal.get().getRecord("vid1");
+    assertThat(record.getEc2InstanceId()).startsWith("i-");
+    assertThat(record.isLaunchPending()).isFalse();
+    assertThat(record.isAllocated()).isTrue();
+  }
+
+  @Test
+  public void testAllocate_LooksUpJournaledInstancesById() throws Exception {
+    AllocationJournal.open(temporaryFolder.newFile("journal.json"));
+    AllocationJournal.get().recordClientTokens(ImmutableMap.of("vid1", "token-vid1"));
+    AllocationJournal.get().recordInstances(ImmutableMap.of("vid1", "i-100"));
+    when(allocationHelper.findByEc2InstanceIds(any())).thenReturn(ImmutableMap.of("i-100",
+        new Instance()
+            .withInstanceId("i-100")
+            .withState(new InstanceState().withName(InstanceStateName.Running))
+            .withPrivateIpAddress("10.0.1.100")
+            .withTags(new Tag(VIRTUAL_INSTANCE_ID_TAG, "vid1"))));
+    mockRunInstances((request) -> false);
+
+    Collection<EC2Instance> instances =
+        createAllocator(createTemplate(null), ImmutableList.of("vid1", "vid2"), 2).allocate();
+
+    assertThat(instances).hasSize(2);
+    // Only the virtual instance unknown to the journal is looked up by tag and launched
+    verify(allocationHelper).findByEc2InstanceIds(
+        argThat((ids) -> ids.size() == 1 && ids.contains("i-100")));
+    verify(allocationHelper).doFind(any(EC2InstanceTemplate.class),
+        argThat((ids) -> Iterables.elementsEqual(ids, ImmutableList.of("vid2"))), any());
+    assertThat(runInstancesRequests).hasSize(1);
+    assertThat(getVirtualInstanceId(runInstancesRequests.get(0))).isEqualTo("vid2");
+  }
+
+  @Test
+  public void testAllocate_LaunchesAgainWhenJournaledInstanceIsTerminated() throws Exception {
+    AllocationJournal.open(temporaryFolder.newFile("journal.json"));
+    AllocationJournal.get().recordClientTokens(ImmutableMap.of("vid1", "token-vid1"));
+    AllocationJournal.get().recordInstances(ImmutableMap.of("vid1", "i-100"));
+    when(allocationHelper.findByEc2InstanceIds(any())).thenReturn(ImmutableMap.of("i-100",
+        new Instance()
+            .withInstanceId("i-100")
+            .withState(new InstanceState().withName(InstanceStateName.Terminated))));
+    mockRunInstances((request) -> false);
+
+    Collection<EC2Instance> instances =
+        createAllocator(createTemplate(null), ImmutableList.of("vid1"), 1).allocate();
+
+    assertThat(instances).hasSize(1);
+    assertThat(runInstancesRequests).hasSize(1);
+    // The launch request that led to the terminated instance is not resumed
+    assertThat(runInstancesRequests.get(0).getClientToken()).isNotEqualTo("token-vid1");
+    verify(allocationHelper, never()).doFind(any(EC2InstanceTemplate.class), any(), any());
+  }
+
+  /**
+   * Mocks launch requests to fail with insufficient capacity for the specified instance type,
+   * and to launch a running instance otherwise.
+   */
+  private void mockRunInstances(String exhaustedType) {
+    mockRunInstances((request) -> request.getInstanceType().equals(exhaustedType));
+  }
+
+  /**
+   * Mocks launch requests to fail with insufficient capacity when the specified predicate
+   * holds, and to launch a running instance otherwise.
+   */
+  @SuppressWarnings("unchecked")
+  private void mockRunInstances(Predicate<RunInstancesRequest> exhausted) {
+    when(ec2Client.runInstancesAsync(any(RunInstancesRequest.class), any(AsyncHandler.class)))
+        .thenAnswer((invocation) -> {
+          RunInstancesRequest request = invocation.getArgument(0);
+          AsyncHandler<RunInstancesRequest, RunInstancesResult> handler =
+              invocation.getArgument(1);
+          runInstancesRequests.add(request);
+          if (exhausted.test(request)) {
+            AmazonServiceException e =
+                new AmazonServiceException("Insufficient capacity.");
+            e.setErrorCode("InsufficientInstanceCapacity");
+            handler.onError(e);
+          } else {
+            int index = launchedInstanceCount.incrementAndGet();
+            List<Tag> tags = request.getTagSpecifications().get(0).getTags();
+            handler.onSuccess(request, new RunInstancesResult().withReservation(
+                new Reservation().withReservationId("r-" + index).withInstances(new Instance()
+                    .withInstanceId("i-" + index)
+                    .withInstanceType(request.getInstanceType())
+                    .withPrivateIpAddress("10.0.0." + index)
+                    .withTags(tags))));
+          }
+          return null;
+        });
+  }
+
+  private static String getVirtualInstanceId(RunInstancesRequest request) {
+    return request.getTagSpecifications().get(0).getTags().stream()
+        .filter((tag) -> VIRTUAL_INSTANCE_ID_TAG.equals(tag.getKey()))
+        .map(Tag::getValue)
+        .findFirst()
+        .orElse(null);
+  }
+
+  private static String getSubnetId(RunInstancesRequest request) {
+    return request.getNetworkInterfaces().get(0).getSubnetId();
+  }
+
+  private OnDemandAllocator createAllocator(EC2InstanceTemplate template,
+      Collection<String> virtualInstanceIds, int minCount) {
+    return new OnDemandAllocator(allocationHelper, ec2Client, stsClient, false, true,
+        template, virtualInstanceIds, minCount);
+  }
+
+  private static EC2InstanceTemplate createTemplate(String capacityFallbacks) {
+    Map<String, String> configMap = new LinkedHashMap<>();
+    String templateName = "test-template";
+    putConfig(configMap, INSTANCE_NAME_PREFIX, templateName);
+    putConfig(configMap, IMAGE, "ami-test");
+    putConfig(configMap, SECURITY_GROUP_IDS, "sg-test");
+    putConfig(configMap, SUBNET_ID, "subnet-a");
+    putConfig(configMap, TYPE, "m3.medium");
+    putConfig(configMap, CAPACITY_FALLBACKS, capacityFallbacks);
+    return new EC2InstanceTemplate(templateName, new SimpleConfiguration(configMap),
+        Collections.emptyMap(), DEFAULT_PLUGIN_LOCALIZATION_CONTEXT);
+  }
+}
@@ -25,6 +25,8 @@ import static com.cloudera.director.spi.v2.provider.Launcher.DEFAULT_PLUGIN_LOCA
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.cloudera.director.aws.AWSTimeouts;
@@ -32,21 +34,38 @@ import com.cloudera.director.aws.Tags;
 import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
 import com.cloudera.director.aws.ec2.EC2TagHelper;
 import com.cloudera.director.aws.ec2.allocation.AllocationHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeSpotInstanceRequestsResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.RequestSpotInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.RequestSpotInstancesResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.SpotInstanceRequest;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
 import com.cloudera.director.aws.shaded.org.joda.time.DateTime;
 import com.cloudera.director.spi.v2.model.ConfigurationPropertyToken;
+import com.cloudera.director.spi.v2.model.exception.PluginExceptionConditionAccumulator;
 import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 
+import java.io.File;
 import java.util.Collection;
+import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.junit.After;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 /**
  * Tests {@link SpotGroupAllocator}.
@@ -60,6 +79,9 @@ public class SpotGroupAllocatorTest {
     }
   }
 
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   private AllocationHelper allocationHelper;
   private AmazonEC2AsyncClient ec2Client;
   private AWSSecurityTokenServiceAsyncClient stsClient;
@@ -77,6 +99,11 @@ public class SpotGroupAllocatorTest {
     stsClient = mock(AWSSecurityTokenServiceAsyncClient.class);
   }
 
+  @After
+  public void tearDown() {
+    AllocationJournal.close();
+  }
+
   @Test(timeout=5000L)
   public void testSpotGroupAllocatorTagSpotInstancesSuccess() throws Exception {
     Set<String> virtualInstanceIds = ImmutableSet.of("vid1", "vid2");
@@ -138,6 +165,73 @@ public class SpotGroupAllocatorTest {
     }
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRequestSpotInstancesJournalsClientTokensAndResendsUnrecordedRequests()
+      throws Exception {
+    AllocationJournal.open(new File(temporaryFolder.getRoot(), "journal.json"));
+    // As left behind by a restart after the request was sent, but before it was recorded
+    long validUntil = System.currentTimeMillis() + 60000L;
+    String pendingClientToken = "0123456789abcdef-" + validUntil;
+    AllocationJournal.get().recordClientTokens(ImmutableMap.of("vid1", pendingClientToken));
+
+    Map<String, RequestSpotInstancesRequest> requestsByClientToken = Maps.newConcurrentMap();
+    AtomicInteger requestCount = new AtomicInteger();
+    when(ec2Client.requestSpotInstancesAsync(any(RequestSpotInstancesRequest.class),
+        any(AsyncHandler.class)))
+        .thenAnswer(invocation -> {
+          RequestSpotInstancesRequest request = invocation.getArgument(0);
+          requestsByClientToken.put(request.getClientToken(), request);
+          AsyncHandler<RequestSpotInstancesRequest, RequestSpotInstancesResult> handler =
+              invocation.getArgument(1);
+          RequestSpotInstancesResult result = new RequestSpotInstancesResult()
+              .withSpotInstanceRequests(new SpotInstanceRequest()
+                  .withSpotInstanceRequestId("sir-" + requestCount.incrementAndGet()));
+          handler.onSuccess(request, result);
+          return CompletableFuture.completedFuture(result);
+        });
+
+    Set<String> virtualInstanceIds = ImmutableSet.of("vid1", "vid2");
+    SpotGroupAllocator spotGroupAllocator = createSpotGroupAllocator(virtualInstanceIds);
+    Map<String, String> requestIds = spotGroupAllocator.requestSpotInstances(virtualInstanceIds,
+        new PluginExceptionConditionAccumulator());
+
+    assertThat(requestIds.keySet()).containsOnly("vid1", "vid2");
+    // The unrecorded request is resent exactly as before, so that EC2 returns it
+    assertThat(requestsByClientToken).containsKey(pendingClientToken);
+    assertThat(requestsByClientToken.get(pendingClientToken).getValidUntil())
+        .isEqualTo(new Date(validUntil));
+    // The new request was journaled with its client token
+    String newClientToken = AllocationJournal.get().getRecord("vid2").getClientToken();
+    assertThat(newClientToken).isNotEqualTo(pendingClientToken);
+    assertThat(requestsByClientToken.keySet())
+        .containsOnly(pendingClientToken, newClientToken);
+  }
+
+  @Test
+  public void testOrphanedSpotInstanceRequestsAreDescribedInChunks() throws Exception {
+    AllocationJournal.open(new File(temporaryFolder.getRoot(), "journal.json"));
+    Map<String, String> spotInstanceRequestIds = new LinkedHashMap<>();
+    for (int i = 0; i < 250; i++) {
+      spotInstanceRequestIds.put("vid" + i, "sir-" + i);
+    }
+    AllocationJournal.get().recordSpotInstanceRequests(spotInstanceRequestIds);
+
+    when(ec2Client.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class)))
+        .thenAnswer(invocation -> {
+          DescribeSpotInstanceRequestsRequest request = invocation.getArgument(0);
+          assertThat(request.getFilters().get(0).getValues().size()).isLessThanOrEqualTo(200);
+          return new DescribeSpotInstanceRequestsResult();
+        });
+
+    SpotGroupAllocator spotGroupAllocator =
+        createSpotGroupAllocator(spotInstanceRequestIds.keySet());
+    spotGroupAllocator.checkForOrphanedSpotInstanceRequests();
+
+    verify(ec2Client, times(2))
+        .describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+  }
+
   private SpotGroupAllocator createSpotGroupAllocator(
       Collection<String> virtualInstanceIds) {
     return new SpotGroupAllocator(allocationHelper, ec2Client, stsClient, false,
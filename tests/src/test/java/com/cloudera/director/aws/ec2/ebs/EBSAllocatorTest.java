@@ -0,0 +1,458 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.CAPACITY_FALLBACKS;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_KMS_KEY_ID;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.EBS_VOLUME_COUNT;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.ENCRYPT_ADDITIONAL_EBS_VOLUMES;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.IMAGE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.SECURITY_GROUP_IDS;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.SUBNET_ID;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.TYPE;
+import static com.cloudera.director.spi.v2.model.InstanceTemplate.InstanceTemplateConfigurationPropertyToken.INSTANCE_NAME_PREFIX;
+import static com.cloudera.director.spi.v2.provider.Launcher.DEFAULT_PLUGIN_LOCALIZATION_CONTEXT;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cloudera.director.aws.AWSTimeouts;
+import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
+import com.cloudera.director.aws.ec2.EC2TagHelper;
+import com.cloudera.director.aws.ec2.allocation.AllocationJournal;
+import com.cloudera.director.aws.ec2.ebs.EBSAllocator.InstanceEbsVolumes;
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.CreateVolumeRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.CreateVolumeResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DeleteVolumeRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeSubnetsRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeSubnetsResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeVolumesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeVolumesResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.EbsInstanceBlockDevice;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Instance;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.InstanceBlockDeviceMapping;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.ModifyInstanceAttributeRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.ModifyInstanceAttributeResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Placement;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Reservation;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Subnet;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Volume;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.VolumeState;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.securitytoken.AWSSecurityTokenServiceAsyncClient;
+import com.cloudera.director.spi.v2.model.ConfigurationPropertyToken;
+import com.cloudera.director.spi.v2.model.util.SimpleConfiguration;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests {@link EBSAllocator}.
+ */
+public class EBSAllocatorTest {
+
+  private static void putConfig(Map<String, String> configMap,
+      ConfigurationPropertyToken propertyToken, String value) {
+    if (value != null) {
+      configMap.put(propertyToken.unwrap().getConfigKey(), value);
+    }
+  }
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private AmazonEC2AsyncClient ec2Client;
+  private EBSAllocator ebsAllocator;
+
+  /**
+   * The create volume requests, in the order they were sent.
+   */
+  private final List<CreateVolumeRequest> createVolumeRequests = Lists.newArrayList();
+
+  @Before
+  public void setUp() {
+    ec2Client = mock(AmazonEC2AsyncClient.class);
+    ebsAllocator = new EBSAllocator(ec2Client, mock(AWSSecurityTokenServiceAsyncClient.class),
+        new AWSTimeouts(null), mock(EC2TagHelper.class), mock(EBSDeviceMappings.class),
+        Collections.emptySet(), true);
+
+    AtomicInteger volumeCount = new AtomicInteger();
+    when(ec2Client.createVolume(any(CreateVolumeRequest.class))).thenAnswer((invocation) -> {
+      createVolumeRequests.add(invocation.getArgument(0));
+      return new CreateVolumeResult().withVolume(
+          new Volume().withVolumeId("vol-" + volumeCount.incrementAndGet()));
+    });
+    when(ec2Client.describeSubnets(any(DescribeSubnetsRequest.class))).thenReturn(
+        new DescribeSubnetsResult().withSubnets(
+            new Subnet().withSubnetId("subnet-a").withAvailabilityZone("us-east-1a")));
+  }
+
+  @After
+  public void tearDown() {
+    AllocationJournal.close();
+  }
+
+  @Test
+  public void testCreateVolumes_UsesSubnetAvailabilityZone() {
+    ebsAllocator.createVolumes(createTemplate(null),
+        ImmutableMap.of("vid1", "i-1", "vid2", "i-2"));
+
+    assertThat(createVolumeRequests).hasSize(2);
+    for (CreateVolumeRequest request : createVolumeRequests) {
+      assertThat(request.getAvailabilityZone()).isEqualTo("us-east-1a");
+    }
+    verify(ec2Client, never()).describeInstances(any(DescribeInstancesRequest.class));
+  }
+
+  @Test
+  public void testCreateVolumes_UsesInstancePlacementWithFallbackSubnets() {
+    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenReturn(
+        new DescribeInstancesResult().withReservations(new Reservation().withInstances(
+            new Instance().withInstanceId("i-1")
+                .withPlacement(new Placement().withAvailabilityZone("us-east-1a")),
+            new Instance().withInstanceId("i-2")
+                .withPlacement(new Placement().withAvailabilityZone("us-east-1b")))));
+
+    ebsAllocator.createVolumes(createTemplate("m4.large:subnet-b"),
+        ImmutableMap.of("vid1", "i-1", "vid2", "i-2"));
+
+    assertThat(createVolumeRequests).hasSize(2);
+    assertThat(createVolumeRequests.get(0).getAvailabilityZone()).isEqualTo("us-east-1a");
+    assertThat(createVolumeRequests.get(1).getAvailabilityZone()).isEqualTo("us-east-1b");
+    verify(ec2Client, never()).describeSubnets(any(DescribeSubnetsRequest.class));
+  }
+
+  @Test
+  public void testGetUpdatedVolumeInfo_DescribesVolumesInBatchesAcrossPages() {
+    List<InstanceEbsVolumes> instanceVolumes = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      Map<String, VolumeState> volumeStates = new LinkedHashMap<>();
+      for (int j = 0; j < 90; j++) {
+        volumeStates.put("vol-" + i + "-" + j, VolumeState.Creating);
+      }
+      volumeStates.put(InstanceEbsVolumes.UNCREATED_VOLUME_ID + "-" + i, VolumeState.Error);
+      instanceVolumes.add(new InstanceEbsVolumes("vid" + i, "i-" + i, volumeStates));
+    }
+    List<DescribeCall> describeCalls = mockDescribeVolumes("vol-4-89");
+
+    List<InstanceEbsVolumes> updated = ebsAllocator.getUpdatedVolumeInfo(instanceVolumes);
+
+    // 450 created volumes, in batches of 200, each over two pages
+    assertThat(describeCalls).hasSize(6);
+    assertThat(describeCalls.stream().mapToInt((call) -> call.values.size()).sum())
+        .isEqualTo(450);
+    for (DescribeCall call : describeCalls) {
+      assertThat(call.filterSize).isLessThanOrEqualTo(EBSAllocator.MAX_FILTER_VALUES);
+      assertThat(call.values).doesNotContain(InstanceEbsVolumes.UNCREATED_VOLUME_ID + "-0");
+    }
+    assertThat(describeCalls.stream().map((call) -> call.nextToken)
+        .filter("page-2"::equals).count()).isEqualTo(3);
+
+    assertThat(updated).hasSize(5);
+    assertThat(updated.get(0).getEc2InstanceId()).isEqualTo("i-0");
+    assertThat(updated.get(0).getVolumeStates())
+        .hasSize(91)
+        .containsEntry("vol-0-0", VolumeState.Available)
+        .containsEntry(InstanceEbsVolumes.UNCREATED_VOLUME_ID + "-0", VolumeState.Error);
+    // A volume that is no longer found is reported as failed
+    assertThat(updated.get(4).getVolumeStates()).containsEntry("vol-4-89", VolumeState.Error);
+  }
+
+  @Test
+  public void testAddDeleteOnTerminationFlag_DescribesInstancesInBatchesAcrossPages()
+      throws Exception {
+    List<InstanceEbsVolumes> instanceVolumes = Lists.newArrayList();
+    for (int i = 0; i < 250; i++) {
+      instanceVolumes.add(new InstanceEbsVolumes("vid" + i, "i-" + i,
+          ImmutableMap.of("vol-" + i, VolumeState.InUse)));
+    }
+    List<DescribeCall> describeCalls = mockDescribeInstances();
+    List<ModifyInstanceAttributeRequest> modifyRequests = mockModifyInstanceAttribute(null);
+
+    ebsAllocator.addDeleteOnTerminationFlag(instanceVolumes);
+
+    assertThat(describeCalls).hasSize(4);
+    assertThat(describeCalls.stream().map((call) -> call.filterSize)
+        .collect(Collectors.toList())).containsOnly(EBSAllocator.MAX_FILTER_VALUES, 50);
+    assertThat(modifyRequests).hasSize(250);
+  }
+
+  @Test
+  public void testAddDeleteOnTerminationFlag_SkipsVolumesAlreadyFlagged() throws Exception {
+    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class))).thenReturn(
+        new DescribeInstancesResult().withReservations(new Reservation().withInstances(
+            new Instance().withInstanceId("i-1").withBlockDeviceMappings(
+                newBlockDeviceMapping("/dev/sda1", "vol-root", false),
+                newBlockDeviceMapping("/dev/sdf", "vol-1", false),
+                newBlockDeviceMapping("/dev/sdg", "vol-2", true)),
+            new Instance().withInstanceId("i-2").withBlockDeviceMappings(
+                newBlockDeviceMapping("/dev/sdf", "vol-3", true)))));
+    List<ModifyInstanceAttributeRequest> modifyRequests = mockModifyInstanceAttribute(null);
+
+    ebsAllocator.addDeleteOnTerminationFlag(Lists.newArrayList(
+        new InstanceEbsVolumes("vid1", "i-1",
+            ImmutableMap.of("vol-1", VolumeState.InUse, "vol-2", VolumeState.InUse)),
+        new InstanceEbsVolumes("vid2", "i-2", ImmutableMap.of("vol-3", VolumeState.InUse))));
+
+    // Only the unflagged volume that was allocated separately is modified
+    assertThat(modifyRequests).hasSize(1);
+    ModifyInstanceAttributeRequest request = modifyRequests.get(0);
+    assertThat(request.getInstanceId()).isEqualTo("i-1");
+    assertThat(request.getBlockDeviceMappings()).hasSize(1);
+    assertThat(request.getBlockDeviceMappings().get(0).getDeviceName()).isEqualTo("/dev/sdf");
+    assertThat(request.getBlockDeviceMappings().get(0).getEbs().getVolumeId())
+        .isEqualTo("vol-1");
+    assertThat(request.getBlockDeviceMappings().get(0).getEbs().getDeleteOnTermination())
+        .isTrue();
+  }
+
+  @Test
+  public void testAddDeleteOnTerminationFlag_ContinuesAfterFailedModification()
+      throws Exception {
+    List<InstanceEbsVolumes> instanceVolumes = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      instanceVolumes.add(new InstanceEbsVolumes("vid" + i, "i-" + i,
+          ImmutableMap.of("vol-" + i, VolumeState.InUse)));
+    }
+    mockDescribeInstances();
+    List<ModifyInstanceAttributeRequest> modifyRequests = mockModifyInstanceAttribute("i-1");
+
+    // The failure is only logged
+    ebsAllocator.addDeleteOnTerminationFlag(instanceVolumes);
+
+    assertThat(modifyRequests).extracting("instanceId").containsOnly("i-0", "i-1", "i-2");
+    verify(ec2Client, times(1)).describeInstances(any(DescribeInstancesRequest.class));
+  }
+
+  @Test
+  public void testVolumePipeline_DescribesOnceForAllInstancesToFlagVolumes() throws Exception {
+    int instanceCount = 200;
+    EBSAllocator spyAllocator = spy(ebsAllocator);
+    doAnswer((invocation) -> {
+      String instanceId = invocation.getArgument(1);
+      String ec2InstanceId = invocation.getArgument(2);
+      return new InstanceEbsVolumes(instanceId, ec2InstanceId,
+          ImmutableMap.of(ec2InstanceId.replace("i-", "vol-"), VolumeState.InUse));
+    }).when(spyAllocator).allocateVolumes(any(), any(), any(), any(), any());
+    List<DescribeCall> describeVolumesCalls = mockDescribeVolumes(null);
+    List<DescribeCall> describeInstancesCalls = mockDescribeInstances();
+    List<ModifyInstanceAttributeRequest> modifyRequests = mockModifyInstanceAttribute(null);
+
+    List<InstanceEbsVolumes> allocated;
+    try (EBSVolumePipeline pipeline =
+             new EBSVolumePipeline(spyAllocator, createTemplate(null), instanceCount)) {
+      for (int i = 0; i < instanceCount; i++) {
+        pipeline.submit("vid" + i, "i-" + i);
+      }
+      allocated = pipeline.awaitAll();
+    }
+
+    // One batch of volumes and one batch of instances, each over two pages, for all instances
+    assertThat(allocated).hasSize(instanceCount);
+    assertThat(describeVolumesCalls).hasSize(2);
+    assertThat(describeInstancesCalls).hasSize(2);
+    verify(spyAllocator, times(1)).getUpdatedVolumeInfo(any());
+    verify(spyAllocator, times(1)).addDeleteOnTerminationFlag(any());
+    assertThat(modifyRequests).hasSize(instanceCount);
+  }
+
+  @Test
+  public void testDeleteIncompleteVolumes_DeletesOnlyJournaledVolumesThatStillExist()
+      throws Exception {
+    AllocationJournal.open(temporaryFolder.newFile("journal.json"));
+    AllocationJournal journal = AllocationJournal.get();
+    journal.recordInstances(ImmutableMap.of("vid1", "i-1", "vid2", "i-2"));
+    // Director stopped while the volumes of vid1 were being allocated
+    journal.recordVolumes("vid1", ImmutableSet.of("vol-1", "vol-2", "vol-gone"));
+    journal.recordVolumes("vid2", ImmutableSet.of("vol-3"));
+    journal.recordVolumesReady("vid2");
+    when(ec2Client.describeVolumes(any(DescribeVolumesRequest.class))).thenReturn(
+        new DescribeVolumesResult().withVolumes(
+            new Volume().withVolumeId("vol-1").withState(VolumeState.Available),
+            new Volume().withVolumeId("vol-2").withState(VolumeState.Deleting)));
+    List<String> deletedVolumeIds = Lists.newArrayList();
+    when(ec2Client.deleteVolume(any(DeleteVolumeRequest.class))).thenAnswer((invocation) -> {
+      deletedVolumeIds.add(invocation.<DeleteVolumeRequest>getArgument(0).getVolumeId());
+      return null;
+    });
+
+    ebsAllocator.deleteIncompleteVolumes(
+        journal.getRecords(ImmutableList.of("vid1", "vid2")).values());
+
+    assertThat(deletedVolumeIds).containsExactly("vol-1");
+    verify(ec2Client, times(1)).describeVolumes(any(DescribeVolumesRequest.class));
+  }
+
+  @Test
+  public void testDeleteIncompleteVolumes_SkipsCompleteVolumes() throws Exception {
+    AllocationJournal.open(temporaryFolder.newFile("journal.json"));
+    AllocationJournal journal = AllocationJournal.get();
+    journal.recordVolumes("vid1", ImmutableSet.of("vol-1"));
+    journal.recordVolumesReady("vid1");
+
+    ebsAllocator.deleteIncompleteVolumes(journal.getRecords(ImmutableList.of("vid1")).values());
+
+    verify(ec2Client, never()).describeVolumes(any(DescribeVolumesRequest.class));
+    verify(ec2Client, never()).deleteVolume(any(DeleteVolumeRequest.class));
+  }
+
+  /**
+   * A describe call, with the filter values and page token it was made with, and the values it
+   * returned.
+   */
+  private static final class DescribeCall {
+    private final int filterSize;
+    private final String nextToken;
+    private final List<String> values;
+
+    private DescribeCall(int filterSize, String nextToken, List<String> values) {
+      this.filterSize = filterSize;
+      this.nextToken = nextToken;
+      this.values = values;
+    }
+  }
+
+  /**
+   * Returns the first page of results for a describe call without a page token, and the rest on
+   * the second page.
+   */
+  private static DescribeCall page(List<String> filterValues, String nextToken) {
+    int half = filterValues.size() / 2;
+    List<String> values = (nextToken == null)
+        ? filterValues.subList(0, half)
+        : filterValues.subList(half, filterValues.size());
+    return new DescribeCall(filterValues.size(), nextToken, Lists.newArrayList(values));
+  }
+
+  /**
+   * Mocks describe volumes calls that return every filtered volume as Available, over two
+   * pages, except for the specified missing volume.
+   */
+  private List<DescribeCall> mockDescribeVolumes(String missingVolumeId) {
+    List<DescribeCall> describeCalls = Lists.newArrayList();
+    when(ec2Client.describeVolumes(any(DescribeVolumesRequest.class))).thenAnswer((invocation) -> {
+      DescribeVolumesRequest request = invocation.getArgument(0);
+      assertThat(request.getVolumeIds()).isEmpty();
+      DescribeCall call = page(request.getFilters().get(0).getValues(), request.getNextToken());
+      describeCalls.add(call);
+      return new DescribeVolumesResult()
+          .withVolumes(call.values.stream()
+              .filter((volumeId) -> !volumeId.equals(missingVolumeId))
+              .map((volumeId) -> new Volume().withVolumeId(volumeId)
+                  .withState(VolumeState.Available))
+              .collect(Collectors.toList()))
+          .withNextToken((call.nextToken == null) ? "page-2" : null);
+    });
+    return describeCalls;
+  }
+
+  /**
+   * Mocks describe instances calls that return every filtered instance, over two pages, with
+   * its volume attached and not yet flagged for deletion on termination.
+   */
+  private List<DescribeCall> mockDescribeInstances() {
+    List<DescribeCall> describeCalls = Lists.newArrayList();
+    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class)))
+        .thenAnswer((invocation) -> {
+          DescribeInstancesRequest request = invocation.getArgument(0);
+          DescribeCall call =
+              page(request.getFilters().get(0).getValues(), request.getNextToken());
+          describeCalls.add(call);
+          return new DescribeInstancesResult()
+              .withReservations(new Reservation().withInstances(call.values.stream()
+                  .map((ec2InstanceId) -> new Instance().withInstanceId(ec2InstanceId)
+                      .withBlockDeviceMappings(newBlockDeviceMapping("/dev/sdf",
+                          ec2InstanceId.replace("i-", "vol-"), false)))
+                  .collect(Collectors.toList())))
+              .withNextToken((call.nextToken == null) ? "page-2" : null);
+        });
+    return describeCalls;
+  }
+
+  /**
+   * Mocks modify instance attribute calls, which fail for the specified instance, if any.
+   */
+  @SuppressWarnings("unchecked")
+  private List<ModifyInstanceAttributeRequest> mockModifyInstanceAttribute(
+      String failingEc2InstanceId) {
+    List<ModifyInstanceAttributeRequest> modifyRequests =
+        Collections.synchronizedList(Lists.newArrayList());
+    when(ec2Client.modifyInstanceAttributeAsync(any(ModifyInstanceAttributeRequest.class),
+        any(AsyncHandler.class))).thenAnswer((invocation) -> {
+          ModifyInstanceAttributeRequest request = invocation.getArgument(0);
+          AsyncHandler<ModifyInstanceAttributeRequest, ModifyInstanceAttributeResult> handler =
+              invocation.getArgument(1);
+          modifyRequests.add(request);
+          if (request.getInstanceId().equals(failingEc2InstanceId)) {
+            handler.onError(new AmazonServiceException("Request limit exceeded"));
+            return null;
+          }
+          ModifyInstanceAttributeResult result = new ModifyInstanceAttributeResult();
+          handler.onSuccess(request, result);
+          return CompletableFuture.completedFuture(result);
+        });
+    return modifyRequests;
+  }
+
+  private static InstanceBlockDeviceMapping newBlockDeviceMapping(String deviceName,
+      String volumeId, boolean deleteOnTermination) {
+    return new InstanceBlockDeviceMapping()
+        .withDeviceName(deviceName)
+        .withEbs(new EbsInstanceBlockDevice()
+            .withVolumeId(volumeId)
+            .withDeleteOnTermination(deleteOnTermination));
+  }
+
+  private static EC2InstanceTemplate createTemplate(String capacityFallbacks) {
+    Map<String, String> configMap = new LinkedHashMap<>();
+    String templateName = "test-template";
+    putConfig(configMap, INSTANCE_NAME_PREFIX, templateName);
+    putConfig(configMap, IMAGE, "ami-test");
+    putConfig(configMap, SECURITY_GROUP_IDS, "sg-test");
+    putConfig(configMap, SUBNET_ID, "subnet-a");
+    putConfig(configMap, TYPE, "m3.medium");
+    putConfig(configMap, EBS_VOLUME_COUNT, "1");
+    putConfig(configMap, ENCRYPT_ADDITIONAL_EBS_VOLUMES, "true");
+    putConfig(configMap, EBS_KMS_KEY_ID, "key");
+    putConfig(configMap, CAPACITY_FALLBACKS, capacityFallbacks);
+    return new EC2InstanceTemplate(templateName, new SimpleConfiguration(configMap),
+        Collections.emptyMap(), DEFAULT_PLUGIN_LOCALIZATION_CONTEXT);
+  }
+}
@@ -0,0 +1,245 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cloudera.director.aws.ec2.EC2InstanceTemplate;
+import com.cloudera.director.aws.ec2.ebs.EBSAllocator.InstanceEbsVolumes;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.VolumeState;
+import com.cloudera.director.spi.v2.model.exception.UnrecoverableProviderException;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link EBSVolumePipeline}.
+ */
+public class EBSVolumePipelineTest {
+
+  private EBSAllocator ebsAllocator;
+  private EBSVolumePipeline pipeline;
+
+  @Before
+  public void setUp() {
+    ebsAllocator = mock(EBSAllocator.class);
+    when(ebsAllocator.getUpdatedVolumeInfo(any()))
+        .thenAnswer((invocation) -> invocation.getArgument(0));
+    pipeline = new EBSVolumePipeline(ebsAllocator, mock(EC2InstanceTemplate.class), 3);
+  }
+
+  @After
+  public void tearDown() {
+    pipeline.close();
+  }
+
+  @Test
+  public void testAwaitAll_ReturnsVolumesInSubmissionOrder() throws Exception {
+    mockAllocation("vid2", ImmutableMap.of("vol-2", VolumeState.InUse), null);
+    mockAllocation("vid1", ImmutableMap.of("vol-1", VolumeState.InUse), null);
+
+    pipeline.submit("vid2", "i-2");
+    pipeline.submit("vid1", "i-1");
+    pipeline.submit("vid2", "i-2");
+
+    List<InstanceEbsVolumes> result = pipeline.awaitAll();
+
+    assertThat(result).hasSize(2);
+    assertThat(result.get(0).getInstanceId()).isEqualTo("vid2");
+    assertThat(result.get(0).getVolumeStates()).containsEntry("vol-2", VolumeState.InUse);
+    assertThat(result.get(1).getInstanceId()).isEqualTo("vid1");
+    assertThat(pipeline.isSubmitted("vid1")).isTrue();
+    assertThat(pipeline.isSubmitted("vid3")).isFalse();
+    verify(ebsAllocator, times(1))
+        .allocateVolumes(any(), eq("vid2"), eq("i-2"), any(), any());
+    // Delete on termination is set once for all instances
+    verify(ebsAllocator, times(1)).getUpdatedVolumeInfo(any());
+    verify(ebsAllocator, times(1)).addDeleteOnTerminationFlag(any());
+  }
+
+  @Test
+  public void testAwaitAll_AddsFailedPlaceholderWhenFailedInstanceHasAllVolumesInUse()
+      throws Exception {
+    mockAllocation("vid1", ImmutableMap.of("vol-1", VolumeState.InUse),
+        new IllegalStateException("delete on termination failed"));
+
+    pipeline.submit("vid1", "i-1");
+    InstanceEbsVolumes volumes = pipeline.awaitAll().get(0);
+
+    assertThat(volumes.getEc2InstanceId()).isEqualTo("i-1");
+    assertThat(volumes.getVolumeStates())
+        .hasSize(2)
+        .containsEntry("vol-1", VolumeState.InUse)
+        .containsEntry(InstanceEbsVolumes.UNCREATED_VOLUME_ID + "-failed", VolumeState.Error);
+  }
+
+  @Test
+  public void testAwaitAll_KeepsLatestVolumesOfFailedInstance() throws Exception {
+    Map<String, VolumeState> progress =
+        ImmutableMap.of("vol-1", VolumeState.InUse, "vol-2", VolumeState.Available);
+    mockAllocation("vid1", progress, new IllegalStateException("attach failed"));
+
+    pipeline.submit("vid1", "i-1");
+
+    assertThat(pipeline.awaitAll().get(0).getVolumeStates()).isEqualTo(progress);
+  }
+
+  @Test
+  public void testAwaitAll_ReturnsFailedInstanceWithoutVolumesSoItIsTerminated()
+      throws Exception {
+    // Failing before any volume is created leaves no progress to report
+    mockAllocation("vid1", null, new IllegalStateException("create failed"));
+    mockAllocation("vid2", ImmutableMap.of("vol-2", VolumeState.InUse), null);
+
+    pipeline.submit("vid1", "i-1");
+    pipeline.submit("vid2", "i-2");
+    List<InstanceEbsVolumes> result = pipeline.awaitAll();
+
+    assertThat(result).hasSize(2);
+    InstanceEbsVolumes failed = result.get(0);
+    assertThat(failed.getInstanceId()).isEqualTo("vid1");
+    assertThat(failed.getEc2InstanceId()).isEqualTo("i-1");
+    // The placeholder makes the instance count as failed, so that it is terminated too
+    assertThat(failed.getVolumeStates().keySet())
+        .containsOnly(InstanceEbsVolumes.UNCREATED_VOLUME_ID + "-failed");
+  }
+
+  @Test
+  public void testAwaitAll_ReturnsVolumesOfInstancesThatWereNotAllocated() throws Exception {
+    // Volumes of an instance that the instance allocator later dropped are still reported,
+    // so that they can be deleted as abandoned
+    mockAllocation("vid1", ImmutableMap.of("vol-1", VolumeState.InUse), null);
+    pipeline.submit("vid1", "i-1");
+
+    mockAllocation("vid2", ImmutableMap.of("vol-2", VolumeState.InUse), null);
+    pipeline.submit("vid2", "i-2");
+
+    assertThat(pipeline.awaitAll()).extracting("instanceId").containsExactly("vid1", "vid2");
+  }
+
+  @Test
+  public void testAwaitAll_ThrowsUnrecoverableOnceAllPipelinesComplete() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    mockAllocation("vid1", null, new UnrecoverableProviderException("unauthorized",
+        new IllegalStateException("not authorized to create volumes")));
+    when(ebsAllocator.allocateVolumes(any(), eq("vid2"), any(), any(), any()))
+        .thenAnswer((invocation) -> {
+          release.await();
+          return new InstanceEbsVolumes("vid2", "i-2",
+              ImmutableMap.of("vol-2", VolumeState.InUse));
+        });
+
+    pipeline.submit("vid1", "i-1");
+    pipeline.submit("vid2", "i-2");
+    release.countDown();
+
+    try {
+      pipeline.awaitAll();
+      fail("expected UnrecoverableProviderException");
+    } catch (UnrecoverableProviderException e) {
+      assertThat(e.getMessage()).isEqualTo("unauthorized");
+    }
+    verify(ebsAllocator).allocateVolumes(any(), eq("vid2"), any(), any(), any());
+  }
+
+  @Test
+  public void testCancel_ReturnsAbandonedVolumesAfterFailedInstanceAllocation()
+      throws Exception {
+    CountDownLatch created = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    when(ebsAllocator.allocateVolumes(any(), eq("vid1"), any(), any(), any()))
+        .thenAnswer((invocation) -> {
+          Consumer<InstanceEbsVolumes> progress = invocation.getArgument(3);
+          progress.accept(new InstanceEbsVolumes("vid1", "i-1",
+              ImmutableMap.of("vol-1", VolumeState.Creating)));
+          created.countDown();
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            interrupted.countDown();
+            throw e;
+          }
+          return null;
+        });
+
+    pipeline.submit("vid1", "i-1");
+    assertThat(created.await(10, TimeUnit.SECONDS)).isTrue();
+
+    // As when the instance allocation fails while volumes are still being allocated
+    List<InstanceEbsVolumes> abandoned = pipeline.cancel();
+
+    assertThat(interrupted.getCount()).isZero();
+    assertThat(abandoned).hasSize(1);
+    assertThat(abandoned.get(0).getVolumeStates().keySet()).containsOnly("vol-1");
+
+    // Instances started after the cancellation get no volumes
+    pipeline.submit("vid2", "i-2");
+    assertThat(pipeline.isSubmitted("vid2")).isFalse();
+    verify(ebsAllocator, times(0)).allocateVolumes(any(), eq("vid2"), any(), any(), any());
+  }
+
+  @Test
+  public void testCancel_OmitsInstancesWithoutProgress() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    when(ebsAllocator.allocateVolumes(any(), eq("vid1"), any(), any(), any()))
+        .thenAnswer((invocation) -> {
+          started.countDown();
+          new CountDownLatch(1).await();
+          return null;
+        });
+
+    pipeline.submit("vid1", "i-1");
+    assertThat(started.await(10, TimeUnit.SECONDS)).isTrue();
+
+    assertThat(pipeline.cancel()).isEmpty();
+  }
+
+  /**
+   * Mocks the allocation of the volumes of an instance, which reports the specified volumes as
+   * progress, if any, and then either fails with the specified exception or returns them.
+   */
+  private void mockAllocation(String instanceId, Map<String, VolumeState> volumeStates,
+      RuntimeException failure) throws InterruptedException {
+    when(ebsAllocator.allocateVolumes(any(), eq(instanceId), any(), any(), any()))
+        .thenAnswer((invocation) -> {
+          String ec2InstanceId = invocation.getArgument(2);
+          Consumer<InstanceEbsVolumes> progress = invocation.getArgument(3);
+          InstanceEbsVolumes volumes = null;
+          if (volumeStates != null) {
+            volumes = new InstanceEbsVolumes(instanceId, ec2InstanceId, volumeStates);
+            progress.accept(volumes);
+          }
+          if (failure != null) {
+            throw failure;
+          }
+          return volumes;
+        });
+  }
+}
@@ -0,0 +1,143 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonClientException;
+import com.cloudera.director.aws.shaded.com.amazonaws.AmazonServiceException;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DryRunResult;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.RunInstancesRequest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test cases for LaunchEncryptionSupport.
+ */
+public class LaunchEncryptionSupportTest {
+
+  private final AmazonEC2 client = mock(AmazonEC2.class);
+
+  private final RunInstancesRequest probeRequest = new RunInstancesRequest();
+
+  @After
+  public void tearDown() {
+    LaunchEncryptionSupport.clear();
+  }
+
+  @Test
+  public void testSupportedWhenDryRunSucceeds() {
+    mockDryRun(new DryRunResult<>(true, probeRequest, "Request would have succeeded", null));
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isTrue();
+  }
+
+  @Test
+  public void testNotSupportedWhenKmsKeyRejected() {
+    mockDryRunError(error(
+        "InvalidParameterCombination", "KmsKeyId is not supported in block device mappings"));
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isFalse();
+  }
+
+  @Test
+  public void testSupportedWhenDryRunFailsForOtherReasons() {
+    mockDryRunError(error(
+        "InvalidSubnetID.NotFound", "The subnet ID 'subnet-1' does not exist"));
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isTrue();
+  }
+
+  @Test
+  public void testSupportedWhenParameterErrorIsUnrelatedToKms() {
+    mockDryRunError(error(
+        "InvalidParameterValue", "Value (foo) for parameter instanceType is invalid"));
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isTrue();
+  }
+
+  @Test
+  public void testSupportedWhenProbeFailsWithoutServiceError() {
+    when(client.dryRun(any(RunInstancesRequest.class)))
+        .thenThrow(new AmazonClientException("Unable to execute HTTP request"));
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isTrue();
+  }
+
+  @Test
+  public void testProbeResultIsRemembered() {
+    mockDryRunError(error(
+        "InvalidParameterValue", "Invalid KMS key for encrypted volumes"));
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isFalse();
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key", () -> probeRequest))
+        .isFalse();
+    verify(client, times(1)).dryRun(any(RunInstancesRequest.class));
+
+    LaunchEncryptionSupport.isSupported(client, "subnet-2", "key", () -> probeRequest);
+    verify(client, times(2)).dryRun(any(RunInstancesRequest.class));
+  }
+
+  @Test
+  public void testProbeRequestIsOnlyBuiltToProbe() {
+    mockDryRun(new DryRunResult<>(true, probeRequest, "Request would have succeeded", null));
+    AtomicInteger builds = new AtomicInteger();
+    Supplier<RunInstancesRequest> probeRequestSupplier = () -> {
+      builds.incrementAndGet();
+      return probeRequest;
+    };
+
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key",
+        probeRequestSupplier)).isTrue();
+    assertThat(LaunchEncryptionSupport.isSupported(client, "subnet-1", "key",
+        probeRequestSupplier)).isTrue();
+    assertThat(builds.get()).isEqualTo(1);
+  }
+
+  private void mockDryRun(DryRunResult<RunInstancesRequest> result) {
+    when(client.dryRun(any(RunInstancesRequest.class))).thenReturn(result);
+  }
+
+  /**
+   * Stubs the dry run to fail the way the SDK reports service errors other than
+   * DryRunOperation and authorization failures.
+   */
+  private void mockDryRunError(AmazonServiceException error) {
+    when(client.dryRun(any(RunInstancesRequest.class))).thenThrow(new AmazonClientException(
+        "Unrecognized service response for the dry-run request.", error));
+  }
+
+  private static AmazonServiceException error(String errorCode, String message) {
+    AmazonServiceException e = new AmazonServiceException(message);
+    e.setErrorCode(errorCode);
+    return e;
+  }
+}
@@ -0,0 +1,146 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.ec2.ebs;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.Volume;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.VolumeState;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests {@link VolumeAvailabilityPoller}.
+ */
+public class VolumeAvailabilityPollerTest {
+
+  /**
+   * The volume ids of each describe call, in the order they were made.
+   */
+  private final List<List<String>> describeCalls = Lists.newCopyOnWriteArrayList();
+
+  /**
+   * The current state of each volume. Volumes without a state are not found.
+   */
+  private final Map<String, VolumeState> volumeStates = new ConcurrentHashMap<>();
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testAwaitFinalStates_ReturnsStatesOnceCreated() throws Exception {
+    volumeStates.put("vol-1", VolumeState.Creating);
+    volumeStates.put("vol-2", VolumeState.Creating);
+    VolumeAvailabilityPoller poller = new VolumeAvailabilityPoller((volumeIds) -> {
+      List<Volume> volumes = describe(volumeIds);
+      volumeStates.put("vol-1", VolumeState.Available);
+      volumeStates.put("vol-2", VolumeState.Error);
+      return volumes;
+    }, 10, TimeUnit.MILLISECONDS);
+
+    Map<String, VolumeState> finalStates =
+        poller.awaitFinalStates(ImmutableList.of("vol-1", "vol-2"), 5000);
+
+    assertThat(finalStates).containsEntry("vol-1", VolumeState.Available)
+        .containsEntry("vol-2", VolumeState.Error);
+    assertThat(describeCalls).hasSize(2);
+  }
+
+  @Test
+  public void testAwaitFinalStates_KeepsPollingVolumesNotYetFound() throws Exception {
+    VolumeAvailabilityPoller poller = new VolumeAvailabilityPoller((volumeIds) -> {
+      List<Volume> volumes = describe(volumeIds);
+      volumeStates.put("vol-1", VolumeState.Available);
+      return volumes;
+    }, 10, TimeUnit.MILLISECONDS);
+
+    assertThat(poller.awaitFinalStates(ImmutableList.of("vol-1"), 5000))
+        .containsEntry("vol-1", VolumeState.Available);
+    assertThat(describeCalls).hasSize(2);
+  }
+
+  @Test
+  public void testAwaitFinalStates_OmitsVolumesStillCreatingAtTimeout() throws Exception {
+    volumeStates.put("vol-1", VolumeState.Creating);
+    volumeStates.put("vol-2", VolumeState.Available);
+    VolumeAvailabilityPoller poller =
+        new VolumeAvailabilityPoller(this::describe, 10, TimeUnit.MILLISECONDS);
+
+    Map<String, VolumeState> finalStates =
+        poller.awaitFinalStates(ImmutableList.of("vol-1", "vol-2"), 100);
+
+    assertThat(finalStates).hasSize(1).containsEntry("vol-2", VolumeState.Available);
+  }
+
+  @Test
+  public void testAwaitFinalStates_ChecksConcurrentWaitersTogether() throws Exception {
+    int waiters = 10;
+    CountDownLatch allWaiting = new CountDownLatch(waiters);
+    for (int i = 0; i < waiters; i++) {
+      volumeStates.put("vol-" + i, VolumeState.Creating);
+    }
+    VolumeAvailabilityPoller poller = new VolumeAvailabilityPoller((volumeIds) -> {
+      List<Volume> volumes = describe(volumeIds);
+      if (allWaiting.getCount() == 0) {
+        volumeStates.replaceAll((volumeId, state) -> VolumeState.Available);
+      }
+      return volumes;
+    }, 200, TimeUnit.MILLISECONDS);
+
+    List<Future<Map<String, VolumeState>>> results = Lists.newArrayList();
+    for (int i = 0; i < waiters; i++) {
+      String volumeId = "vol-" + i;
+      results.add(executor.submit(() -> {
+        allWaiting.countDown();
+        return poller.awaitFinalStates(ImmutableList.of(volumeId), 10000);
+      }));
+    }
+    for (int i = 0; i < waiters; i++) {
+      assertThat(results.get(i).get(10, TimeUnit.SECONDS))
+          .containsEntry("vol-" + i, VolumeState.Available);
+    }
+
+    // Far fewer describe calls than waiters, and the last one covers every volume
+    assertThat(describeCalls.size()).isLessThan(waiters);
+    assertThat(describeCalls.get(describeCalls.size() - 1)).hasSize(waiters);
+  }
+
+  private List<Volume> describe(Collection<String> volumeIds) {
+    describeCalls.add(ImmutableList.copyOf(volumeIds));
+    return volumeIds.stream()
+        .filter(volumeStates::containsKey)
+        .map((volumeId) -> new Volume().withVolumeId(volumeId)
+            .withState(volumeStates.get(volumeId)))
+        .collect(Collectors.toList());
+  }
+}
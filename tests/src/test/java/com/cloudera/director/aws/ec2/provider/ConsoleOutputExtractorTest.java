@@ -16,6 +16,9 @@ package com.cloudera.director.aws.ec2.provider;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import com.cloudera.director.aws.ec2.provider.ConsoleOutputExtractor.FingerprintScan;
+import com.cloudera.director.aws.ec2.provider.ConsoleOutputExtractor.HostKeyFingerprint;
+
 import java.util.Set;
 
 import org.junit.Test;
@@ -45,6 +48,12 @@ public class ConsoleOutputExtractorTest {
       "\n" +
       "ec2: #############################################################\n";
 
+  private static final String SHA256_OUTPUT = "ec2: -----BEGIN SSH HOST KEY FINGERPRINTS-----\n" +
+      "ec2: 1024 SHA256:nThbg6kXUpJWGl7E1IGOCspRomTxdCARLviKw6E5SY8 root@ip-10-0-0-1 (DSA)\n" +
+      "ec2: 256 MD5:7f:1b:3b:51:42:2e:4e:be:9f:f1:77:15:a6:33:62:c7 root@ip-10-0-0-1 (ECDSA)\n" +
+      "ec2: -----END SSH HOST KEY FINGERPRINTS-----\n" +
+      "ec2: 2048 SHA256:AAAAg6kXUpJWGl7E1IGOCspRomTxdCARLviKw6E5SY8 root@ip-10-0-0-1 (RSA)\n";
+
   @Test
   public void getHostKeyFingerprintsTests() {
     assertThat(consoleOutputExtractor.hasHostKeyFingerprintBlock(VALID_OUTPUT)).isTrue();
@@ -69,4 +78,46 @@ public class ConsoleOutputExtractorTest {
     Set<String> fingerprints = consoleOutputExtractor.getHostKeyFingerprints(EMPTY_FINGERPRINTS_BLOCK);
     assertThat(fingerprints).isEmpty();
   }
+
+  @Test
+  public void scanParsesSha256FingerprintsAndKeyTypes() {
+    FingerprintScan scan = new FingerprintScan();
+    consoleOutputExtractor.scan(SHA256_OUTPUT, scan);
+
+    assertThat(scan.isComplete()).isTrue();
+    // The fingerprint after the end of the block is ignored
+    assertThat(scan.getFingerprints()).containsExactly(
+        new HostKeyFingerprint("SHA256:nThbg6kXUpJWGl7E1IGOCspRomTxdCARLviKw6E5SY8", "DSA"),
+        new HostKeyFingerprint("7f:1b:3b:51:42:2e:4e:be:9f:f1:77:15:a6:33:62:c7", "ECDSA"));
+  }
+
+  @Test
+  public void scanResumesWhenOutputGrows() {
+    int split = VALID_OUTPUT.indexOf("2048");
+    String partialOutput = VALID_OUTPUT.substring(0, split + 10);
+
+    FingerprintScan scan = new FingerprintScan();
+    consoleOutputExtractor.scan(partialOutput, scan);
+    assertThat(scan.isComplete()).isFalse();
+    assertThat(consoleOutputExtractor.getHostKeyFingerprints(scan))
+        .containsOnly("6d:99:6d:f1:d5:42:42:68:f1:5b:40:e9:ff:30:82:38");
+
+    consoleOutputExtractor.scan(VALID_OUTPUT, scan);
+    assertThat(scan.isComplete()).isTrue();
+    assertThat(consoleOutputExtractor.getHostKeyFingerprints(scan)).containsExactly(
+        "6d:99:6d:f1:d5:42:42:68:f1:5b:40:e9:ff:30:82:38",
+        "2d:e1:d3:48:06:0d:32:32:1b:14:3a:87:49:18:ca:2a",
+        "7f:1b:3b:51:42:2e:4e:be:9f:f1:77:15:a6:33:62:c7");
+  }
+
+  @Test
+  public void scanRestartsWhenOutputIsReplaced() {
+    FingerprintScan scan = new FingerprintScan();
+    consoleOutputExtractor.scan("boot messages\nmore boot messages\n", scan);
+    assertThat(scan.isComplete()).isFalse();
+
+    consoleOutputExtractor.scan(SHA256_OUTPUT, scan);
+    assertThat(scan.isComplete()).isTrue();
+    assertThat(scan.getFingerprints()).hasSize(2);
+  }
 }
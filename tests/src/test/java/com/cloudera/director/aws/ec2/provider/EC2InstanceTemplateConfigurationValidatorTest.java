@@ -37,6 +37,9 @@ import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTempl
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USER_DATA;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USER_DATA_UNENCODED;
 import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.USE_SPOT_INSTANCES;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MAX_PREPARED_CAPACITY;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_MIN_SIZE;
+import static com.cloudera.director.aws.ec2.EC2InstanceTemplate.EC2InstanceTemplateConfigurationPropertyToken.WARM_POOL_STATE;
 import static com.cloudera.director.aws.ec2.provider.EC2InstanceTemplateConfigurationValidator.BOTH_USER_DATA_USED;
 import static com.cloudera.director.aws.ec2.provider.EC2InstanceTemplateConfigurationValidator.HVM_VIRTUALIZATION;
 import static com.cloudera.director.aws.ec2.provider.EC2InstanceTemplateConfigurationValidator.IMAGE_OWNER_ID_BLACKLIST_KEY;
@@ -548,6 +551,30 @@ public class EC2InstanceTemplateConfigurationValidatorTest {
     verifySingleError(TENANCY);
   }
 
+  @Test
+  public void testCheckWarmPool() {
+    checkWarmPool("2", "10", "Running");
+    verifyClean();
+  }
+
+  @Test
+  public void testCheckWarmPool_NegativeMinSize() {
+    checkWarmPool("-1", null, "Stopped");
+    verifySingleError(WARM_POOL_MIN_SIZE);
+  }
+
+  @Test
+  public void testCheckWarmPool_MaxPreparedCapacityBelowMinSize() {
+    checkWarmPool("4", "3", "Stopped");
+    verifySingleError(WARM_POOL_MAX_PREPARED_CAPACITY);
+  }
+
+  @Test
+  public void testCheckWarmPool_InvalidState() {
+    checkWarmPool("2", null, "Hibernated");
+    verifySingleError(WARM_POOL_STATE);
+  }
+
   @Test
   public void testCheckIamProfileName() {
     AmazonIdentityManagementClient iamClient = mock(AmazonIdentityManagementClient.class);
@@ -1082,6 +1109,24 @@ public class EC2InstanceTemplateConfigurationValidatorTest {
     validator.checkTenancy(configuration, accumulator, localizationContext);
   }
 
+  /**
+   * Invokes checkWarmPool with the specified configuration.
+   *
+   * @param minSize             the warm pool minimum size
+   * @param maxPreparedCapacity the warm pool maximum prepared capacity, or {@code null}
+   * @param state               the warm pool instance state
+   */
+  protected void checkWarmPool(String minSize, String maxPreparedCapacity, String state) {
+    Map<String, String> configMap = Maps.newHashMap();
+    configMap.put(WARM_POOL_MIN_SIZE.unwrap().getConfigKey(), minSize);
+    if (maxPreparedCapacity != null) {
+      configMap.put(WARM_POOL_MAX_PREPARED_CAPACITY.unwrap().getConfigKey(), maxPreparedCapacity);
+    }
+    configMap.put(WARM_POOL_STATE.unwrap().getConfigKey(), state);
+    Configured configuration = new SimpleConfiguration(configMap);
+    validator.checkWarmPool(configuration, accumulator, localizationContext);
+  }
+
   /**
    * Invokes checkIamProfileName with the specified configuration.
    *
@@ -32,9 +32,11 @@ import com.cloudera.director.aws.clientprovider.ClientProvider;
 import com.cloudera.director.aws.ec2.EphemeralDeviceMappings;
 import com.cloudera.director.aws.ec2.VirtualizationMappings;
 import com.cloudera.director.aws.ec2.allocation.IdType;
+import com.cloudera.director.aws.ec2.allocation.InstanceIdIndex;
 import com.cloudera.director.aws.ec2.ebs.EBSDeviceMappings;
 import com.cloudera.director.aws.ec2.ebs.EBSMetadata;
 import com.cloudera.director.aws.network.NetworkRules;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.autoscaling.AmazonAutoScalingAsyncClient;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.AmazonEC2AsyncClient;
 import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.BlockDeviceMapping;
@@ -73,7 +75,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.hamcrest.Description;
@@ -280,8 +284,7 @@ public class EC2ProviderTest {
     DescribeInstancesResult describeInstancesResult = new DescribeInstancesResult()
         .withReservations(new Reservation().withInstances(instances));
 
-    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class)))
-        .thenReturn(describeInstancesResult);
+    stubDescribeInstancesAsync(describeInstancesResult);
 
     ec2Provider.allocationHelper.forEachInstance(virtualInstanceIds, instanceHandler,
         IdType.VIRTUAL_INSTANCE_ID);
@@ -290,6 +293,40 @@ public class EC2ProviderTest {
     assertThat(handledInstances).containsOnlyOnce(expectedInstances);
   }
 
+  @Test
+  public void testForEachInstanceLooksUpTerminatedIndexedInstancesByTag() throws Exception {
+    // An indexed instance that was terminated still carries its Director ID tag, but the
+    // virtual instance may have been reallocated since, so it is looked up by tag
+    String virtualInstanceTag = ec2Provider.ec2TagHelper.getClouderaDirectorIdTagName();
+    InstanceIdIndex.openInMemory(InstanceIdIndex.DEFAULT_MAX_ENTRIES);
+    InstanceIdIndex.get().putAll(ImmutableMap.of("vid-0001", "i-0001"));
+
+    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class)))
+        .thenReturn(new DescribeInstancesResult()
+            .withReservations(new Reservation().withInstances(new Instance()
+                .withInstanceId("i-0001")
+                .withTags(new Tag(virtualInstanceTag, "vid-0001"))
+                .withState(new InstanceState().withName("terminated")))));
+    Instance reallocated = new Instance().withInstanceId("i-0002")
+        .withTags(new Tag(virtualInstanceTag, "vid-0001"))
+        .withState(new InstanceState().withName("running"));
+    stubDescribeInstancesAsync(new DescribeInstancesResult()
+        .withReservations(new Reservation().withInstances(reallocated)));
+
+    final List<Instance> handledInstances = Lists.newArrayList();
+    try {
+      ec2Provider.allocationHelper.forEachInstance(ImmutableList.of("vid-0001"),
+          instance -> { handledInstances.add(instance); return null; },
+          IdType.VIRTUAL_INSTANCE_ID);
+
+      assertThat(handledInstances).containsExactly(reallocated);
+      assertThat(InstanceIdIndex.get().getEc2InstanceIds(ImmutableList.of("vid-0001")))
+          .isEmpty();
+    } finally {
+      InstanceIdIndex.openInMemory(InstanceIdIndex.DEFAULT_MAX_ENTRIES);
+    }
+  }
+
   @Test
   public void testForEachInstanceByResult() throws Exception {
     final List<Instance> handledInstances = Lists.newArrayList();
@@ -385,6 +422,47 @@ public class EC2ProviderTest {
         ec2InstanceId, DateTime.now().plus(1000L));
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testGetInstanceStateUsesInstanceStatusForIndexedInstances() throws Exception {
+    InstanceIdIndex.openInMemory(InstanceIdIndex.DEFAULT_MAX_ENTRIES);
+    InstanceIdIndex.get().putAll(ImmutableMap.of("vid1", "id1"));
+
+    when(ec2Client.describeInstanceStatusAsync(any(DescribeInstanceStatusRequest.class),
+        any(AsyncHandler.class)))
+        .thenAnswer(invocation -> {
+          DescribeInstanceStatusRequest request = invocation.getArgument(0);
+          assertThat(request.getIncludeAllInstances()).isTrue();
+          assertThat(request.getInstanceIds()).containsOnly("id1");
+          AsyncHandler<DescribeInstanceStatusRequest, DescribeInstanceStatusResult> handler =
+              invocation.getArgument(1);
+          DescribeInstanceStatusResult result = new DescribeInstanceStatusResult()
+              .withInstanceStatuses(new InstanceStatus()
+                  .withInstanceId("id1")
+                  .withInstanceState(new InstanceState().withName(InstanceStateName.Running)));
+          handler.onSuccess(request, result);
+          return CompletableFuture.completedFuture(result);
+        });
+    // The unindexed instance is found by tag
+    stubDescribeInstancesAsync(new DescribeInstancesResult()
+        .withReservations(new Reservation().withInstances(new Instance()
+            .withInstanceId("id2")
+            .withTags(new Tag(Tags.ResourceTags.CLOUDERA_DIRECTOR_ID.getTagKey(), "vid2"))
+            .withState(new InstanceState().withName(InstanceStateName.Stopped)))));
+
+    try {
+      Map<String, com.cloudera.director.spi.v2.model.InstanceState> states =
+          ec2Provider.getInstanceState(null, ImmutableList.of("vid1", "vid2"));
+
+      assertThat(states.get("vid1").getInstanceStatus())
+          .isEqualTo(com.cloudera.director.spi.v2.model.InstanceStatus.RUNNING);
+      assertThat(states.get("vid2").getInstanceStatus())
+          .isEqualTo(com.cloudera.director.spi.v2.model.InstanceStatus.STOPPED);
+    } finally {
+      InstanceIdIndex.openInMemory(InstanceIdIndex.DEFAULT_MAX_ENTRIES);
+    }
+  }
+
   @Test
   public void testFind() throws Exception {
     Instance instance1 = new Instance()
@@ -402,13 +480,10 @@ public class EC2ProviderTest {
     Map<String, Instance> vidToIds = Maps.newHashMap();
     vidToIds.put("vid1", instance1p);
 
-    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class)))
-        .thenReturn(
-            new DescribeInstancesResult().withReservations(new Reservation()))
-        .thenReturn(
-            new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1, instance2)))
-        .thenReturn(
-            new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1p, instance2)));
+    stubDescribeInstancesAsync(
+        new DescribeInstancesResult().withReservations(new Reservation()),
+        new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1, instance2)),
+        new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1p, instance2)));
 
     List<Map.Entry<String, Instance>> vidToInstances = Lists.newArrayList(ec2Provider.allocationHelper.doFind(
         vidToIds.keySet(),
@@ -446,13 +521,10 @@ public class EC2ProviderTest {
         .withState(new InstanceState().withName(InstanceStateName.Pending));
     Map<String, Instance> vidToIds = Maps.newHashMap();
 
-    when(ec2Client.describeInstances(any(DescribeInstancesRequest.class)))
-        .thenReturn(
-            new DescribeInstancesResult().withReservations(new Reservation()))
-        .thenReturn(
-            new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1, instance2)))
-        .thenReturn(
-            new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1p, instance2)));
+    stubDescribeInstancesAsync(
+        new DescribeInstancesResult().withReservations(new Reservation()),
+        new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1, instance2)),
+        new DescribeInstancesResult().withReservations(new Reservation().withInstances(instance1p, instance2)));
 
     List<Map.Entry<String, Instance>> vidToInstances = Lists.newArrayList(ec2Provider.allocationHelper.doFind(
         vidToIds.keySet(),
@@ -489,6 +561,26 @@ public class EC2ProviderTest {
     ec2Provider.delete(null, Collections.EMPTY_LIST);
   }
 
+  /**
+   * Stubs asynchronous describe instances calls to complete with the specified results in
+   * turn, repeating the last one.
+   */
+  @SuppressWarnings("unchecked")
+  private void stubDescribeInstancesAsync(DescribeInstancesResult... results) {
+    AtomicInteger calls = new AtomicInteger();
+    when(ec2Client.describeInstancesAsync(any(DescribeInstancesRequest.class),
+        any(AsyncHandler.class)))
+        .thenAnswer(invocation -> {
+          DescribeInstancesRequest request = invocation.getArgument(0);
+          AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult> handler =
+              invocation.getArgument(1);
+          DescribeInstancesResult result =
+              results[Math.min(calls.getAndIncrement(), results.length - 1)];
+          handler.onSuccess(request, result);
+          return CompletableFuture.completedFuture(result);
+        });
+  }
+
   public static DescribeInstancesRequestTokenMatcher matchesNextToken(String nextToken) {
     return new DescribeInstancesRequestTokenMatcher(nextToken);
   }
@@ -0,0 +1,77 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.network;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for CidrBlockTrie.
+ */
+public class CidrBlockTrieTest {
+
+  private CidrBlockTrie<String> trie;
+
+  @Before
+  public void setUp() {
+    trie = new CidrBlockTrie<>();
+    for (String cidr : new String[]{"0.0.0.0/0", "10.0.0.0/8", "10.1.0.0/16",
+        "10.1.2.0/24", "192.168.0.0/16", "2001:db8::/32", "2001:db8:1::/48"}) {
+      trie.put(CidrBlock.fromString(cidr), cidr);
+    }
+  }
+
+  @Test
+  public void testGetCovering() {
+    assertThat(trie.getCovering(CidrBlock.fromString("10.1.2.128/25")))
+        .containsExactly("0.0.0.0/0", "10.0.0.0/8", "10.1.0.0/16", "10.1.2.0/24");
+    assertThat(trie.getCovering(CidrBlock.fromString("10.1.0.0/16")))
+        .containsExactly("0.0.0.0/0", "10.0.0.0/8", "10.1.0.0/16");
+    assertThat(trie.getCovering(CidrBlock.fromString("172.16.0.0/12")))
+        .containsExactly("0.0.0.0/0");
+  }
+
+  @Test
+  public void testGetCoveringKeepsAddressFamiliesApart() {
+    assertThat(trie.getCovering(CidrBlock.fromString("2001:db8:1:2::/64")))
+        .containsExactly("2001:db8::/32", "2001:db8:1::/48");
+    assertThat(trie.getCovering(CidrBlock.fromString("2002::/16"))).isEmpty();
+    assertThat(trie.isCovered(CidrBlock.fromString("2002::/16"))).isFalse();
+    assertThat(trie.isCovered(CidrBlock.fromString("8.8.8.8/32"))).isTrue();
+  }
+
+  @Test
+  public void testGetCoveredBy() {
+    assertThat(trie.getCoveredBy(CidrBlock.fromString("10.0.0.0/8")))
+        .containsOnly("10.0.0.0/8", "10.1.0.0/16", "10.1.2.0/24");
+    assertThat(trie.getCoveredBy(CidrBlock.fromString("10.1.2.3/32"))).isEmpty();
+    assertThat(trie.getCoveredBy(CidrBlock.fromString("::/0")))
+        .containsOnly("2001:db8::/32", "2001:db8:1::/48");
+  }
+
+  @Test
+  public void testCoveringMatchesContains() {
+    String[] queries = {"10.1.2.3/32", "10.2.0.0/16", "192.168.1.0/24", "11.0.0.0/8"};
+    for (String query : queries) {
+      CidrBlock queryBlock = CidrBlock.fromString(query);
+      for (String covering : trie.getCovering(queryBlock)) {
+        assertThat(CidrBlock.fromString(covering).contains(queryBlock)).isTrue();
+      }
+    }
+    assertThat(trie.size()).isEqualTo(7);
+  }
+}
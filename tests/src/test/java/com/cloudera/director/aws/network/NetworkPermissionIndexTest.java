@@ -0,0 +1,146 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.network;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudera.director.aws.network.NetworkPermissionIndex.Match;
+import com.cloudera.director.aws.shaded.com.google.common.collect.Range;
+import com.cloudera.director.aws.shaded.com.typesafe.config.Config;
+import com.cloudera.director.aws.shaded.com.typesafe.config.ConfigFactory;
+import com.cloudera.director.aws.shaded.com.typesafe.config.ConfigParseOptions;
+import com.cloudera.director.aws.shaded.com.typesafe.config.ConfigSyntax;
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test cases for NetworkPermissionIndex, checking it against the direct
+ * evaluation of network rules.
+ */
+public class NetworkPermissionIndexTest {
+
+  private static final String[] PROTOCOLS = {"tcp", "udp", "-1", "6", "icmp"};
+
+  private static final String[] CIDRS = {"0.0.0.0/0", "54.0.0.0/8", "54.23.205.0/24",
+      "54.23.0.0/16", "189.203.0.0/12", "88.49.1.0/24", "10.0.0.0/8", "192.178.5.128/25",
+      "::/0", "2001:db8::/32", "2001:db8:ac10:fe01::/64", "2001:db8:ac10:fe01::/128"};
+
+  private List<NetworkRule> rules;
+
+  @Before
+  public void setUp() {
+    ConfigParseOptions options = ConfigParseOptions.defaults()
+        .setSyntax(ConfigSyntax.CONF)
+        .setAllowMissing(false);
+    Config config = ConfigFactory.parseResourcesAnySyntax("test-network-rules.conf", options);
+    NetworkRules networkRules = NetworkRules.fromConfig(config);
+    rules = new ArrayList<>();
+    for (Direction direction : Direction.values()) {
+      for (NetworkRule rule : networkRules.getRules(direction)) {
+        rules.add(rule);
+      }
+    }
+  }
+
+  @Test
+  public void testIndexMatchesDirectEvaluation() {
+    Random random = new Random(42L);
+    for (int iteration = 0; iteration < 200; iteration++) {
+      List<Permission> permissions = new ArrayList<>();
+      NetworkPermissionIndex.Builder builder = NetworkPermissionIndex.builder();
+      int count = random.nextInt(8);
+      for (int i = 0; i < count; i++) {
+        Permission permission = randomPermission(random);
+        permissions.add(permission);
+        builder.add(permission.protocol, permission.ports, permission.ipRanges, permission.access);
+      }
+      NetworkPermissionIndex index = builder.build();
+
+      for (NetworkRule rule : rules) {
+        boolean enforced = false;
+        boolean violated = false;
+        Match firstMatch = Match.NONE;
+        for (Permission permission : permissions) {
+          boolean enforces = rule.isEnforced(permission.protocol, permission.ports,
+              permission.ipRanges, permission.access);
+          boolean violates = rule.isViolated(permission.protocol, permission.ports,
+              permission.ipRanges, permission.access);
+          if (firstMatch == Match.NONE && (enforces || violates)) {
+            firstMatch = enforces ? Match.ENFORCED : Match.VIOLATED;
+          }
+          enforced |= enforces;
+          violated |= violates;
+        }
+
+        assertThat(index.isEnforced(rule)).as(rule + " enforced by " + permissions)
+            .isEqualTo(enforced);
+        assertThat(index.isViolated(rule)).as(rule + " violated by " + permissions)
+            .isEqualTo(violated);
+        assertThat(index.getFirstMatch(rule)).as(rule + " first match in " + permissions)
+            .isEqualTo(firstMatch);
+      }
+    }
+  }
+
+  private static Permission randomPermission(Random random) {
+    String protocol = PROTOCOLS[random.nextInt(PROTOCOLS.length)];
+    Range<Integer> ports;
+    switch (random.nextInt(4)) {
+      case 0:
+        ports = null;
+        break;
+      case 1:
+        ports = Range.singleton(-1);
+        break;
+      case 2:
+        int port = random.nextInt(100);
+        ports = Range.singleton(port);
+        break;
+      default:
+        int from = random.nextInt(40);
+        ports = Range.closed(from, from + random.nextInt(20000));
+        break;
+    }
+    List<String> ipRanges = ImmutableList.of(CIDRS[random.nextInt(CIDRS.length)],
+        CIDRS[random.nextInt(CIDRS.length)]);
+    AccessType access = random.nextBoolean() ? AccessType.ALLOW : AccessType.DENY;
+    return new Permission(protocol, ports, ipRanges, access);
+  }
+
+  private static final class Permission {
+    private final String protocol;
+    private final Range<Integer> ports;
+    private final List<String> ipRanges;
+    private final AccessType access;
+
+    Permission(String protocol, Range<Integer> ports, List<String> ipRanges, AccessType access) {
+      this.protocol = protocol;
+      this.ports = ports;
+      this.ipRanges = ipRanges;
+      this.access = access;
+    }
+
+    @Override
+    public String toString() {
+      return protocol + ":" + ports + ":" + ipRanges + ":" + access;
+    }
+  }
+}
@@ -0,0 +1,230 @@
+// (c) Copyright 2018 Cloudera, Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//   http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cloudera.director.aws.tracing;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.cloudera.director.aws.common.CompletableFutures;
+import com.cloudera.director.aws.shaded.com.amazonaws.handlers.AsyncHandler;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeInstancesRequest;
+import com.cloudera.director.aws.shaded.com.amazonaws.services.ec2.model.DescribeInstancesResult;
+import com.cloudera.director.aws.shaded.com.fasterxml.jackson.databind.JsonNode;
+import com.cloudera.director.aws.shaded.com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test cases for Tracing and FileSpanExporter.
+ */
+public class TracingTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  @After
+  public void tearDown() {
+    Tracing.setExporter(null);
+  }
+
+  @Test
+  public void testDisabled() {
+    assertThat(Tracing.isEnabled()).isFalse();
+    try (Span span = Tracing.startSpan("allocate")) {
+      assertThat(span.isRecording()).isFalse();
+      span.setAttribute("key", "value");
+      assertThat(span.getAttributes()).isEmpty();
+    }
+    assertThat(Tracing.currentSpan().isRecording()).isFalse();
+  }
+
+  @Test
+  public void testParentChildLinking() {
+    List<Span> exported = new ArrayList<>();
+    Tracing.setExporter(new SpanExporter() {
+      @Override
+      public synchronized void export(Span span) {
+        exported.add(span);
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+
+    assertThat(Tracing.startChildSpan("orphan").isRecording()).isFalse();
+
+    try (Span root = Tracing.startSpan("allocate")) {
+      try (Span phase = Tracing.startSpan("run-instances")) {
+        assertThat(Tracing.currentSpan()).isSameAs(phase);
+        try (Span call = Tracing.startChildSpan("AmazonEC2Client::runInstances")) {
+          call.setOk();
+        }
+      }
+      assertThat(Tracing.currentSpan()).isSameAs(root);
+    }
+    assertThat(Tracing.currentSpan().isRecording()).isFalse();
+
+    assertThat(exported).extracting("name")
+        .containsExactly("AmazonEC2Client::runInstances", "run-instances", "allocate");
+    Span call = exported.get(0);
+    Span phase = exported.get(1);
+    Span root = exported.get(2);
+    assertThat(root.getParentSpanId()).isNull();
+    assertThat(phase.getParentSpanId()).isEqualTo(root.getSpanId());
+    assertThat(call.getParentSpanId()).isEqualTo(phase.getSpanId());
+    assertThat(call.getTraceId()).isEqualTo(root.getTraceId()).hasSize(32);
+    assertThat(call.getStatus()).isEqualTo(Span.Status.OK);
+    assertThat(root.getEndEpochNanos()).isGreaterThanOrEqualTo(phase.getEndEpochNanos());
+  }
+
+  @Test
+  public void testAsyncCallSpanEndsOnCompletion() throws Exception {
+    List<Span> exported = new ArrayList<>();
+    Tracing.setExporter(new SpanExporter() {
+      @Override
+      public synchronized void export(Span span) {
+        exported.add(span);
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+
+    AtomicReference<AsyncHandler<DescribeInstancesRequest, DescribeInstancesResult>> handler =
+        new AtomicReference<>();
+    CompletableFuture<DescribeInstancesResult> future;
+    try (Span root = Tracing.startSpan("allocate")) {
+      future = CompletableFutures.call(
+          (request, asyncHandler) -> {
+            handler.set(asyncHandler);
+            return null;
+          },
+          new DescribeInstancesRequest().withInstanceIds("i-1"));
+      assertThat(Tracing.currentSpan()).isSameAs(root);
+    }
+    assertThat(exported).extracting("name").containsExactly("allocate");
+
+    // The SDK completes the call on another thread, after the calling operation ended
+    Thread completer = new Thread(() -> handler.get().onSuccess(
+        new DescribeInstancesRequest().withInstanceIds("i-1"), new DescribeInstancesResult()));
+    completer.start();
+    completer.join();
+    future.get();
+
+    assertThat(exported).extracting("name").containsExactly("allocate", "ec2::describeInstances");
+    Span root = exported.get(0);
+    Span call = exported.get(1);
+    assertThat(call.getParentSpanId()).isEqualTo(root.getSpanId());
+    assertThat(call.getTraceId()).isEqualTo(root.getTraceId());
+    assertThat(call.getStatus()).isEqualTo(Span.Status.OK);
+    assertThat(Tracing.currentSpan().isRecording()).isFalse();
+  }
+
+  @Test
+  public void testErrorStatus() {
+    Tracing.setExporter(new FileSpanExporter(new File(temporaryFolder.getRoot(), "unused"),
+        FileSpanExporter.Format.JSON_LINES));
+    try (Span span = Tracing.startSpan("allocate")) {
+      span.recordError(new IllegalStateException("no capacity"));
+      span.setOk();
+      assertThat(span.getStatus()).isEqualTo(Span.Status.ERROR);
+      assertThat(span.getStatusMessage()).isEqualTo("no capacity");
+      assertThat(span.getAttributes())
+          .containsEntry("exception.type", IllegalStateException.class.getName());
+    }
+  }
+
+  @Test
+  public void testJsonLinesExport() throws Exception {
+    File file = temporaryFolder.newFile("spans.json");
+    Tracing.setExporter(new FileSpanExporter(file, FileSpanExporter.Format.JSON_LINES));
+    try (Span root = Tracing.startSpan("allocate")) {
+      root.setAttribute("instance.count.requested", 3)
+          .setAttribute("template.name", "workers")
+          .setAttribute("tag.on.create", true)
+          .setOk();
+      try (Span phase = Tracing.startSpan("find-existing")) {
+        phase.setAttribute("instance.count.found", 0);
+      }
+    }
+    Tracing.setExporter(null);
+
+    List<JsonNode> lines = readLines(file);
+    assertThat(lines).hasSize(2);
+    JsonNode phase = lines.get(0);
+    JsonNode root = lines.get(1);
+    assertThat(phase.get("name").asText()).isEqualTo("find-existing");
+    assertThat(phase.get("parentSpanId").asText()).isEqualTo(root.get("spanId").asText());
+    assertThat(phase.get("status").asText()).isEqualTo("UNSET");
+    assertThat(root.has("parentSpanId")).isFalse();
+    assertThat(root.get("status").asText()).isEqualTo("OK");
+    assertThat(root.get("durationMillis").asLong()).isGreaterThanOrEqualTo(0L);
+    JsonNode attributes = root.get("attributes");
+    assertThat(attributes.get("instance.count.requested").asInt()).isEqualTo(3);
+    assertThat(attributes.get("template.name").asText()).isEqualTo("workers");
+    assertThat(attributes.get("tag.on.create").asBoolean()).isTrue();
+  }
+
+  @Test
+  public void testOtlpExport() throws Exception {
+    File file = temporaryFolder.newFile("spans.otlp.json");
+    Tracing.setExporter(new FileSpanExporter(file, FileSpanExporter.Format.OTLP_JSON));
+    try (Span root = Tracing.startSpan("allocate")) {
+      root.setAttribute("instance.count.requested", 3)
+          .setAttribute("template.name", "workers")
+          .setError("no capacity");
+    }
+    Tracing.setExporter(null);
+
+    List<JsonNode> lines = readLines(file);
+    assertThat(lines).hasSize(1);
+    JsonNode resourceSpans = lines.get(0).get("resourceSpans").get(0);
+    assertThat(resourceSpans.get("resource").get("attributes").get(0).get("value")
+        .get("stringValue").asText()).isEqualTo("director-aws-plugin");
+    JsonNode span = resourceSpans.get("scopeSpans").get(0).get("spans").get(0);
+    assertThat(span.get("name").asText()).isEqualTo("allocate");
+    assertThat(span.get("traceId").asText()).hasSize(32);
+    assertThat(span.get("spanId").asText()).hasSize(16);
+    assertThat(Long.parseLong(span.get("endTimeUnixNano").asText()))
+        .isGreaterThanOrEqualTo(Long.parseLong(span.get("startTimeUnixNano").asText()));
+    assertThat(span.get("status").get("code").asInt()).isEqualTo(2);
+    assertThat(span.get("status").get("message").asText()).isEqualTo("no capacity");
+    JsonNode count = span.get("attributes").get(0);
+    assertThat(count.get("key").asText()).isEqualTo("instance.count.requested");
+    assertThat(count.get("value").get("intValue").asText()).isEqualTo("3");
+  }
+
+  private List<JsonNode> readLines(File file) throws Exception {
+    List<JsonNode> nodes = new ArrayList<>();
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      nodes.add(objectMapper.readTree(line));
+    }
+    return nodes;
+  }
+}